@@ -20,9 +20,15 @@
  */
 package org.mule.module;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -35,11 +41,27 @@ import org.mule.api.annotations.lifecycle.Start;
 import org.mule.api.annotations.lifecycle.Stop;
 import org.mule.api.annotations.param.Default;
 import org.mule.api.annotations.param.Optional;
+import org.mule.module.bridgetable.AsyncBridgeTable;
+import org.mule.module.bridgetable.BloomFilterBridgeTable;
 import org.mule.module.bridgetable.BridgeTable;
 import org.mule.module.bridgetable.BridgeTableFactory;
+import org.mule.module.bridgetable.BridgeTableOperation;
+import org.mule.module.bridgetable.CachingBridgeTable;
+import org.mule.module.bridgetable.DataSourceBridgeTable;
+import org.mule.module.bridgetable.DurabilityMode;
+import org.mule.module.bridgetable.ExecutorAsyncBridgeTable;
+import org.mule.module.bridgetable.InMemoryBridgeTable;
 import org.mule.module.bridgetable.KeyDoesNotExistException;
+import org.mule.module.bridgetable.KeyIterator;
 import org.mule.module.bridgetable.KeyType;
+import org.mule.module.bridgetable.LogBridgeTable;
+import org.mule.module.bridgetable.MappedFileBridgeTable;
+import org.mule.module.bridgetable.Monitorable;
+import org.mule.module.bridgetable.ReadSelection;
+import org.mule.module.bridgetable.SchemaLayout;
+import org.mule.module.bridgetable.ShardedBridgeTable;
 import org.mule.module.bridgetable.Type;
+import org.mule.module.bridgetable.WriteBehindBridgeTable;
 
 /**
  * <p>
@@ -70,6 +92,9 @@ import org.mule.module.bridgetable.Type;
 public class BridgeTableModule
 {
     private static final Logger LOGGER = Logger.getLogger(BridgeTableModule.class);
+
+    // Returned by the bridge table for keys that are not present, so a stored value is never taken for the default
+    private static final Object MISSING = new Object();
     
     /**
      * Name of the bridge table. For example if bridge table is implemented in a Database, this will be the
@@ -81,7 +106,13 @@ public class BridgeTableModule
     /**
      * Type or concreate implementation of the bridge table. Supported types are:
      * <ul>
+     *    <li>DEFAULT_VOLATILE: In memory implementation, the mappings are lost when the application stops</li>
+     *    <li>DEFAULT_PERSISTENT: In memory implementation that logs every change to a file in <code>storeDirectory</code>
+     *    and recovers the mappings from it when the application starts</li>
      *    <li>DATA_SOURCE: Implementation that receives a Data Source object and uses Database tables through JDBC</i>
+     *    <li>OFF_HEAP: In memory implementation that keeps the mappings in direct memory, outside of the Java heap,
+     *    for up to <code>capacity</code> mappings</li>
+     *    <li>MAPPED_FILE: Persistent implementation that keeps the mappings in the memory-mapped file <code>mappedFile</code></li>
      * </ul>
      */
     @Configurable
@@ -97,6 +128,295 @@ public class BridgeTableModule
     @Optional
     private DataSource dataSource;
 
+    /**
+     * When the type is <b>DATA_SOURCE</b> these are the DataSources the mappings are spread over, instead of
+     * <code>dataSource</code>, each one with its own copy of the table. Every mapping goes to the DataSource picked
+     * by the hash of key1 and to the one picked by the hash of key2, so lookups in either direction reach a single
+     * database. The DataSources and their order cannot change once the table holds mappings.
+     */
+    @Configurable
+    @Optional
+    private List<DataSource> shardDataSources;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> and there are no <code>shardDataSources</code>, this is the number of
+     * tables the mappings are spread over in <code>dataSource</code>, named after the table name followed by
+     * <code>_0</code>, <code>_1</code>... 1 keeps a single table. It cannot change once the tables hold mappings.
+     */
+    @Configurable
+    @Optional
+    @Default("1")
+    private int shardCount;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this defines whether connections of the DataSource, together with
+     * the statements prepared on them, are kept between operations instead of being returned to the pool after
+     * every operation. Up to 16 idle connections are kept, and they are closed after a minute without use, so
+     * only enable it if the pool has that many connections to spare.
+     */
+    @Configurable
+    @Optional
+    @Default("false")
+    private boolean pinConnections;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this is the number of inserts of <code>insert-all</code> that are sent
+     * to the database at once.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int batchSize;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this is the largest number of keys that <code>retrieve-all-by-key1</code>
+     * and <code>retrieve-all-by-key2</code> look up with a single query.
+     */
+    @Configurable
+    @Optional
+    @Default("500")
+    private int inChunkSize;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this is the number of rows that <code>stream-keys1</code> and
+     * <code>stream-keys2</code> fetch from the database at once.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int fetchSize;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this is the set of indexes of the table in databases that support a
+     * choice (MySQL). <b>COMPACT</b> and <b>COMPACT_ORDERED</b> maintain fewer indexes than <b>STANDARD</b>, so
+     * writes are faster. Tables that already exist with other indexes are reported when the module starts.
+     */
+    @Configurable
+    @Optional
+    @Default("STANDARD")
+    private SchemaLayout schemaLayout;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this tells whether an existing table is migrated to
+     * <code>schemaLayout</code> when the module starts. Migrating rebuilds the indexes of the table.
+     */
+    @Configurable
+    @Optional
+    @Default("false")
+    private boolean migrateSchema;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> these are read replicas of <code>dataSource</code>. Lookups, key
+     * listings and streams go to the replicas, while writes go to <code>dataSource</code>. Not used with
+     * <code>shardDataSources</code>, as each shard would need replicas of its own. A replica that fails is skipped
+     * for a second, twice as long after every consecutive failure up to a minute.
+     */
+    @Configurable
+    @Optional
+    private List<DataSource> readDataSources;
+
+    /**
+     * When there are <code>readDataSources</code> this is how lookups pick one of them:
+     * <ul>
+     *    <li>ROUND_ROBIN: The replicas take turns</li>
+     *    <li>LEAST_LATENCY: The replica that has answered fastest lately</li>
+     * </ul>
+     */
+    @Configurable
+    @Optional
+    @Default("ROUND_ROBIN")
+    private ReadSelection readSelection;
+
+    /**
+     * When there are <code>readDataSources</code> this is the number of milliseconds a thread keeps reading from
+     * <code>dataSource</code> after writing to it, so a flow sees its own writes before they reach the replicas.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private long readAfterWriteWindow;
+
+    /**
+     * Maximum number of mappings kept in a local cache in front of the bridge table, so that lookups of
+     * recently used mappings don't reach the underlying storage. 0 disables the cache. Writes through this
+     * module invalidate the cache, but writes from elsewhere (e.g. other nodes sharing the database) are only
+     * seen once the cached mapping expires; set <code>cacheTimeToLive</code> in that case.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private int cacheSize;
+
+    /**
+     * Milliseconds a mapping is kept in the local cache since it was read, 0 if it doesn't expire.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private long cacheTimeToLive;
+
+    /**
+     * Number of mappings the Bloom filters of the bridge table are sized for. The filters answer lookups of keys
+     * that are certainly not present without reaching the underlying storage. They are filled when the module
+     * starts and kept up to date by the writes through this module, so they should only be enabled if no one
+     * else writes to the table. 0 disables them.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private long filterExpectedEntries;
+
+    /**
+     * Probability that a lookup of a missing key reaches the underlying storage despite the Bloom filters, when
+     * the table holds <code>filterExpectedEntries</code> mappings.
+     */
+    @Configurable
+    @Optional
+    @Default("0.01")
+    private double filterFalsePositiveRate;
+
+    /**
+     * Milliseconds between the background flushes of write-behind mode, 0 disables it. In write-behind mode
+     * writes are acknowledged once they are staged in memory and applied to the underlying storage (typically a
+     * <b>DATA_SOURCE</b>) in batches, where repeated writes to the same key are applied once. Lookups see the
+     * staged writes, but they are lost if the process dies before they are flushed. They are always flushed when
+     * the module stops.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private long writeBehindInterval;
+
+    /**
+     * Number of keys staged in write-behind mode at which writes wait for the staged ones to be flushed.
+     */
+    @Configurable
+    @Optional
+    @Default("10000")
+    private int writeBehindMaxPending;
+
+    /**
+     * Milliseconds a write waits in write-behind mode for the staged keys to drop below
+     * <code>writeBehindMaxPending</code> before failing, e.g. while the underlying storage is unavailable.
+     */
+    @Configurable
+    @Optional
+    @Default("30000")
+    private long writeBehindMaxWait;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this is the number of threads that run the operations of the
+     * asynchronous view of the bridge table, see {@link #getAsyncBridgeTable()}. The other types run them on
+     * the calling thread.
+     */
+    @Configurable
+    @Optional
+    @Default("8")
+    private int asyncThreads;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this is the number of asynchronous operations that can wait for a
+     * thread. Once they are that many, further operations run on the calling thread.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int asyncQueueSize;
+
+    /**
+     * When the type is <b>DATA_SOURCE</b> this tells whether asynchronous operations run on virtual threads, one
+     * per operation, instead of on <code>asyncThreads</code> threads. The data source's connection pool then
+     * bounds how many of them reach the database at once. Needs Java 21 or later: on earlier versions the
+     * threads of <code>asyncThreads</code> are used. Virtual threads save the memory of that many platform
+     * threads, but are no faster than <code>asyncThreads</code> set to the size of the connection pool. On Java 21
+     * a virtual thread that blocks in synchronized code, as some JDBC drivers and logging appenders do, holds on to
+     * its carrier thread; run with <code>-Djdk.tracePinnedThreads=full</code> to find out.
+     */
+    @Configurable
+    @Optional
+    @Default("false")
+    private boolean asyncVirtualThreads;
+
+    /**
+     * When the type is <b>OFF_HEAP</b> this is the maximum number of mappings the bridge table can hold. The
+     * indexes are allocated up front for this capacity. When the type is <b>MAPPED_FILE</b> this is the
+     * capacity of the file when it's created.
+     */
+    @Configurable
+    @Optional
+    @Default("1000000")
+    private int capacity;
+
+    /**
+     * When the type is <b>DEFAULT_PERSISTENT</b> this is the directory where the log of the bridge table is
+     * stored. The log file is named after the table.
+     */
+    @Configurable
+    @Optional
+    @Default(".mule/bridgetable")
+    private String storeDirectory;
+
+    /**
+     * When the type is <b>DEFAULT_PERSISTENT</b> this is the number of milliseconds between compactions of
+     * the log: a snapshot of the mappings is written in the background and the log behind it is discarded,
+     * so restart time and disk usage don't grow with the number of updates. 0 disables compaction.
+     */
+    @Configurable
+    @Optional
+    @Default("300000")
+    private long compactionInterval;
+
+    /**
+     * When the type is <b>DEFAULT_PERSISTENT</b> this defines when operations return with respect to their
+     * changes reaching the disk:
+     * <ul>
+     *    <li>ALWAYS: Once the log has been forced to the disk after the change</li>
+     *    <li>GROUP_COMMIT: Once the log has been forced to the disk, concurrent writers sharing a single force
+     *    issued after <code>groupCommitWindow</code> microseconds or once <code>groupCommitSize</code> writers
+     *    are waiting</li>
+     *    <li>OS_MANAGED: Right away, the operating system writes the log back on its own schedule</li>
+     * </ul>
+     */
+    @Configurable
+    @Optional
+    @Default("GROUP_COMMIT")
+    private DurabilityMode durabilityMode;
+
+    /**
+     * When the durability mode is <b>GROUP_COMMIT</b> this is the longest time, in microseconds, writers wait
+     * for other writers to join their force of the log.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private long groupCommitWindow;
+
+    /**
+     * When the durability mode is <b>GROUP_COMMIT</b> this is the number of waiting writers that forces the
+     * log before the window elapses.
+     */
+    @Configurable
+    @Optional
+    @Default("64")
+    private int groupCommitSize;
+
+    /**
+     * When the type is <b>MAPPED_FILE</b> this is the path of the file that holds the bridge table. By
+     * default it's a file named after the table in <code>storeDirectory</code>.
+     */
+    @Configurable
+    @Optional
+    private String mappedFile;
+
+    /**
+     * When the type is <b>MAPPED_FILE</b> this is the factor applied to the capacity of the file each time
+     * it's full. Use 1 for a file that never grows.
+     */
+    @Configurable
+    @Optional
+    @Default("2.0")
+    private float growthFactor;
+
     /**
      * If the bridge table doesn't exist it will be created automatically if this flag is set to <i>true</i>.
      */
@@ -161,6 +481,8 @@ public class BridgeTableModule
     
     // Implementation
     private BridgeTable bridgeTable;
+    private AsyncBridgeTable asyncBridgeTable;
+    private ExecutorService asyncExecutor;
     
     /**
      * Initializes the bridge table component
@@ -171,9 +493,60 @@ public class BridgeTableModule
     {
         Map<Type, Object> config = new HashMap<Type, Object>();
         config.put(Type.DATA_SOURCE, getDataSource());
+        config.put(Type.OFF_HEAP, getCapacity());
+        config.put(Type.DEFAULT_PERSISTENT, new File(getStoreDirectory()));
+        config.put(Type.MAPPED_FILE, StringUtils.isEmpty(getMappedFile()) ? new File(getStoreDirectory(), getTableName() + ".table") : new File(getMappedFile()));
         
-        this.bridgeTable = BridgeTableFactory.create(type, config);
+        if(type == Type.DATA_SOURCE && (!isEmpty(getShardDataSources()) || getShardCount() > 1))
+        {
+            this.bridgeTable = createShards();
+        }
+        else
+        {
+            this.bridgeTable = BridgeTableFactory.create(type, config);
+            configure(this.bridgeTable);
+        }
+        if(getWriteBehindInterval() > 0)
+        {
+            WriteBehindBridgeTable writeBehind = new WriteBehindBridgeTable(this.bridgeTable);
+            writeBehind.setFlushInterval(getWriteBehindInterval());
+            writeBehind.setMaxPending(getWriteBehindMaxPending());
+            writeBehind.setMaxWait(getWriteBehindMaxWait());
+            writeBehind.setBatchSize(getBatchSize());
+            this.bridgeTable = writeBehind;
+        }
+        if(getFilterExpectedEntries() > 0)
+        {
+            BloomFilterBridgeTable filter = new BloomFilterBridgeTable(this.bridgeTable);
+            filter.setExpectedEntries(getFilterExpectedEntries());
+            filter.setFalsePositiveRate(getFilterFalsePositiveRate());
+            this.bridgeTable = filter;
+        }
+        if(getCacheSize() > 0)
+        {
+            CachingBridgeTable cache = new CachingBridgeTable(this.bridgeTable);
+            cache.setMaxEntries(getCacheSize());
+            cache.setTimeToLive(getCacheTimeToLive());
+            this.bridgeTable = cache;
+        }
         this.bridgeTable.init(getTableName(), getKey1Type(), getKey2Type(), getKey1Name(), getKey2Name(), autoCreateTable);
+
+        if(type == Type.DATA_SOURCE)
+        {
+            if(isAsyncVirtualThreads())
+            {
+                this.asyncExecutor = ExecutorAsyncBridgeTable.newVirtualThreadExecutor();
+                if(this.asyncExecutor == null)
+                {
+                    LOGGER.warn("Virtual threads need Java 21 or later, asynchronous operations on " + getTableName() + " run on " + getAsyncThreads() + " threads");
+                }
+            }
+            if(this.asyncExecutor == null)
+            {
+                this.asyncExecutor = ExecutorAsyncBridgeTable.newExecutor(getTableName(), getAsyncThreads(), getAsyncQueueSize());
+            }
+        }
+        this.asyncBridgeTable = new ExecutorAsyncBridgeTable(this.bridgeTable, this.asyncExecutor);
     }
     
     /**
@@ -183,6 +556,17 @@ public class BridgeTableModule
     @Stop
     public void onStop() throws Exception
     {
+        this.asyncBridgeTable = null;
+        if(this.asyncExecutor != null)
+        {
+            // Lets the operations already submitted complete before the table is closed
+            this.asyncExecutor.shutdown();
+            if(!this.asyncExecutor.awaitTermination(30, TimeUnit.SECONDS))
+            {
+                LOGGER.warn("Asynchronous operations on " + getTableName() + " did not complete before the bridge table was closed");
+            }
+            this.asyncExecutor = null;
+        }
         if(this.bridgeTable != null)
         {
             this.bridgeTable.destroy();
@@ -209,16 +593,47 @@ public class BridgeTableModule
         this.bridgeTable.insert(getKey1Type().toObject(key1), getKey2Type().toObject(key2));
     }
     
+    /**
+     * Insert several mappings: key1 <=> key2. The mappings whose key1 or key2 already existed are not inserted and
+     * are returned, the rest of them are inserted anyway. When the type is <b>DATA_SOURCE</b> the inserts are sent
+     * to the database in batches of <code>batchSize</code> within a single transaction.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:insert-all}
+     *
+     * @param pairs The mappings: a map of key2 by key1, or a list of pairs where each pair is a map entry, an
+     * array or a list with key1 and key2
+     * @return The mappings that were not inserted because key1 or key2 already existed, as a map of key2 by key1
+     * @throws Exception In case of error
+     */
+    @Processor
+    public Map<Object, Object> insertAll(@Optional @Default("#[payload]") Object pairs) throws Exception
+    {
+        // A list may repeat key1, the repetitions conflict with its first pair
+        Map<Object, Object> duplicates = new LinkedHashMap<Object, Object>();
+        Map<Object, Object> conflicts = this.bridgeTable.insertAll(toPairs(pairs, duplicates));
+
+        Map<Object, Object> result = transformReturnValues(conflicts, getKey1Type(), getKey2Type());
+        for(Map.Entry<Object, Object> duplicate : duplicates.entrySet())
+        {
+            Object key1 = transformReturnValue(duplicate.getKey(), getKey1Type());
+            if(!result.containsKey(key1))
+            {
+                result.put(key1, transformReturnValue(duplicate.getValue(), getKey2Type()));
+            }
+        }
+        return result;
+    }
+
     /**
      * Update or insert the mapping: key1 <=> key2.
      * If key1 already existed in the database, then the value for key2 is updated, if not
-     * the mapping will be inserted.
+     * the mapping will be inserted, as a single operation.
      * <p/>
      * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:upsert-by-key1}
      *
      * @param key1 The value for key1
      * @param key2 The new value for key2
-     * @throws KeyAlreadyExistsException If the value for key2 already existed in the bridge table when attempting the insert.
+     * @throws KeyAlreadyExistsException If the value for key2 is already mapped to another value of key1.
      * @throws Exception In case of any other error
      */
     @Processor
@@ -227,26 +642,19 @@ public class BridgeTableModule
         validateKey(getKey1Description(), key1);
         validateKey(getKey2Description(), key2);
 
-        try
-        {
-            this.bridgeTable.updateByKey1(getKey1Type().toObject(key1), getKey2Type().toObject(key2));
-        }
-        catch(KeyDoesNotExistException ex)
-        {
-            this.bridgeTable.insert(getKey1Type().toObject(key1), getKey2Type().toObject(key2));
-        }
+        this.bridgeTable.upsertByKey1(getKey1Type().toObject(key1), getKey2Type().toObject(key2));
     }
 
     /**
      * Update or insert the mapping: key2 <=> key1.
      * If key2 already existed in the database, then the value for key1 is updated, if not
-     * the mapping will be inserted.
+     * the mapping will be inserted, as a single operation.
      * <p/>
      * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:upsert-by-key2}
      *
      * @param key1 The new value for key1
      * @param key2 The value for key2
-     * @throws KeyAlreadyExistsException If the value for key1 already existed in the bridge table when attempting the insert.
+     * @throws KeyAlreadyExistsException If the value for key1 is already mapped to another value of key2.
      * @throws Exception In case of any other error
      */    
     @Processor
@@ -255,14 +663,7 @@ public class BridgeTableModule
         validateKey(getKey1Description(), key1);
         validateKey(getKey2Description(), key2);
 
-        try
-        {
-            this.bridgeTable.updateByKey2(getKey2Type().toObject(key2), getKey1Type().toObject(key1));
-        }
-        catch(KeyDoesNotExistException ex)
-        {
-            this.bridgeTable.insert(getKey1Type().toObject(key1), getKey2Type().toObject(key2));
-        }
+        this.bridgeTable.upsertByKey2(getKey2Type().toObject(key2), getKey1Type().toObject(key1));
     }
 
     /**
@@ -335,6 +736,32 @@ public class BridgeTableModule
         
         this.bridgeTable.removeByKey2(getKey2Type().toObject(key2));
     }
+
+    /**
+     * Apply several writes as a single unit: either all of them are applied or, if one of them fails, none is.
+     * When the type is <b>DATA_SOURCE</b> they run on a single connection, within a single transaction. The in
+     * memory types apply them while holding their locks once.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:execute-batch}
+     *
+     * @param operations The writes, in order. Each one is a map with the <code>operation</code> to run
+     * (insert, update-by-key1, update-by-key2, upsert-by-key1, upsert-by-key2, remove-by-key1 or
+     * remove-by-key2) and the <code>key1</code> and <code>key2</code> it takes. Updates by key1 take the new
+     * value as key2 and updates by key2 take it as key1.
+     * @throws KeyAlreadyExistsException If an operation would map a key that is already mapped.
+     * @throws KeyDoesNotExistException If an operation updates or removes a key that is not present.
+     * @throws Exception In case of any other error
+     */
+    @Processor
+    public void executeBatch(@Optional @Default("#[payload]") List<Map<String, Object>> operations) throws Exception
+    {
+        List<BridgeTableOperation> batch = new ArrayList<BridgeTableOperation>(operations.size());
+        for(Map<String, Object> operation : operations)
+        {
+            batch.add(toOperation(operation));
+        }
+        this.bridgeTable.executeBatch(batch);
+    }
     
     /**
      * Retrieves the value of key2 associated with key1.
@@ -376,6 +803,94 @@ public class BridgeTableModule
         return transformReturnValue(value, getKey1Type());
     }
     
+    /**
+     * Retrieves the value of key2 associated with key1, or a default value if key1 is not present. Unlike
+     * <code>retrieve-by-key1</code> a missing key1 doesn't raise an exception.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:retrieve-by-key1-or-default}
+     *
+     * @param key1 The value of key1 to retrieve
+     * @param defaultValue The value to return if key1 is not present
+     * @return Value of key2 (String if <code>returnValueAsString == true</code> or the object corresponding to <code>key2Type</code>), or the default value
+     * @throws Exception In case of error
+     */
+    @Processor
+    public Object retrieveByKey1OrDefault(String key1, @Optional String defaultValue) throws Exception
+    {
+        validateKey(getKey1Description(), key1);
+
+        Object value = this.bridgeTable.retrieveByKey1OrDefault(getKey1Type().toObject(key1), MISSING);
+
+        return value != MISSING ? transformReturnValue(value, getKey2Type()) : defaultValue;
+    }
+
+    /**
+     * Retrieves the value of key1 associated with key2, or a default value if key2 is not present. Unlike
+     * <code>retrieve-by-key2</code> a missing key2 doesn't raise an exception.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:retrieve-by-key2-or-default}
+     *
+     * @param key2 The value of key2 to retrieve
+     * @param defaultValue The value to return if key2 is not present
+     * @return Value of key1 (String if <code>returnValueAsString == true</code> or the object corresponding to <code>key1Type</code>), or the default value
+     * @throws Exception In case of error
+     */
+    @Processor
+    public Object retrieveByKey2OrDefault(String key2, @Optional String defaultValue) throws Exception
+    {
+        validateKey(getKey2Description(), key2);
+
+        Object value = this.bridgeTable.retrieveByKey2OrDefault(getKey2Type().toObject(key2), MISSING);
+
+        return value != MISSING ? transformReturnValue(value, getKey1Type()) : defaultValue;
+    }
+
+    /**
+     * Retrieves the values of key2 associated with several values of key1 at once.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:retrieve-all-by-key1}
+     *
+     * @param keys1 The values of key1 to retrieve
+     * @return Map of the values of key2 by value of key1, only for the values of key1 present in the bridge table
+     * (String if <code>returnValueAsString == true</code> or the objects corresponding to the key types)
+     * @throws Exception In case of error
+     */
+    @Processor
+    public Map<Object, Object> retrieveAllByKey1(@Optional @Default("#[payload]") List<String> keys1) throws Exception
+    {
+        List<Object> keys = new ArrayList<Object>(keys1.size());
+        for(String key1 : keys1)
+        {
+            validateKey(getKey1Description(), key1);
+            keys.add(getKey1Type().toObject(key1));
+        }
+
+        return transformReturnValues(this.bridgeTable.retrieveAllByKey1(keys), getKey1Type(), getKey2Type());
+    }
+
+    /**
+     * Retrieves the values of key1 associated with several values of key2 at once.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:retrieve-all-by-key2}
+     *
+     * @param keys2 The values of key2 to retrieve
+     * @return Map of the values of key1 by value of key2, only for the values of key2 present in the bridge table
+     * (String if <code>returnValueAsString == true</code> or the objects corresponding to the key types)
+     * @throws Exception In case of error
+     */
+    @Processor
+    public Map<Object, Object> retrieveAllByKey2(@Optional @Default("#[payload]") List<String> keys2) throws Exception
+    {
+        List<Object> keys = new ArrayList<Object>(keys2.size());
+        for(String key2 : keys2)
+        {
+            validateKey(getKey2Description(), key2);
+            keys.add(getKey2Type().toObject(key2));
+        }
+
+        return transformReturnValues(this.bridgeTable.retrieveAllByKey2(keys), getKey2Type(), getKey1Type());
+    }
+
     /**
      * Checks whether key1 exists in the bridge table
      * <p/>
@@ -452,12 +967,118 @@ public class BridgeTableModule
         return values;
     }
 
-    public String getTableName()
-    {
-        return tableName;
-    }
-
-    public void setTableName(String tableName)
+    /**
+     * Returns a page of the values for key1 in ascending order. To walk the whole table start without
+     * <code>afterKey1</code> and pass the last value of every page to get the next one, until a page has less than
+     * <code>pageSize</code> values. When the type is <b>DATA_SOURCE</b> the page is looked up with the index on
+     * key1, so every page costs the same no matter how deep it is.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:keys1-page}
+     *
+     * @param afterKey1 The last value of key1 of the previous page, none for the first page
+     * @param pageSize The maximum number of values to return
+     * @return A list of key1 objects (String if <code>returnValueAsString == true</code> or the object corresponding to <code>key1Type</code>)
+     * @throws Exception In case of error
+     */
+    @Processor
+    public List<Object> keys1Page(@Optional String afterKey1, @Optional @Default("10000") int pageSize) throws Exception
+    {
+        Object after = StringUtils.isEmpty(afterKey1) ? null : getKey1Type().toObject(afterKey1);
+        List<Object> values = this.bridgeTable.keys1Page(after, pageSize);
+
+        for(int i=0; i < values.size(); i++)
+        {
+            values.set(i, transformReturnValue(values.get(i), getKey1Type()));
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns a page of the values for key2 in ascending order. To walk the whole table start without
+     * <code>afterKey2</code> and pass the last value of every page to get the next one, until a page has less than
+     * <code>pageSize</code> values. When the type is <b>DATA_SOURCE</b> the page is looked up with the index on
+     * key2, so every page costs the same no matter how deep it is.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:keys2-page}
+     *
+     * @param afterKey2 The last value of key2 of the previous page, none for the first page
+     * @param pageSize The maximum number of values to return
+     * @return A list of key2 objects (String if <code>returnValueAsString == true</code> or the object corresponding to <code>key2Type</code>)
+     * @throws Exception In case of error
+     */
+    @Processor
+    public List<Object> keys2Page(@Optional String afterKey2, @Optional @Default("10000") int pageSize) throws Exception
+    {
+        Object after = StringUtils.isEmpty(afterKey2) ? null : getKey2Type().toObject(afterKey2);
+        List<Object> values = this.bridgeTable.keys2Page(after, pageSize);
+
+        for(int i=0; i < values.size(); i++)
+        {
+            values.set(i, transformReturnValue(values.get(i), getKey2Type()));
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns a lazy iterator over the values for key1, for tables too big to load at once with <code>keys1</code>.
+     * The keys are read as the iterator advances (when the type is <b>DATA_SOURCE</b>, from a database cursor
+     * fetching <code>fetchSize</code> rows at a time), so memory use doesn't depend on the size of the table.
+     * The iterator frees its resources once exhausted; if the flow stops earlier it must be closed.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:stream-keys1}
+     *
+     * @return An iterator of key1 objects (String if <code>returnValueAsString == true</code> or the object corresponding to <code>key1Type</code>)
+     * @throws Exception In case of error
+     */
+    @Processor
+    public KeyIterator streamKeys1() throws Exception
+    {
+        return transformReturnValues(this.bridgeTable.iterateKeys1(), getKey1Type());
+    }
+
+    /**
+     * Returns a lazy iterator over the values for key2, for tables too big to load at once with <code>keys2</code>.
+     * The keys are read as the iterator advances (when the type is <b>DATA_SOURCE</b>, from a database cursor
+     * fetching <code>fetchSize</code> rows at a time), so memory use doesn't depend on the size of the table.
+     * The iterator frees its resources once exhausted; if the flow stops earlier it must be closed.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:stream-keys2}
+     *
+     * @return An iterator of key2 objects (String if <code>returnValueAsString == true</code> or the object corresponding to <code>key2Type</code>)
+     * @throws Exception In case of error
+     */
+    @Processor
+    public KeyIterator streamKeys2() throws Exception
+    {
+        return transformReturnValues(this.bridgeTable.iterateKeys2(), getKey2Type());
+    }
+
+    /**
+     * Returns runtime statistics of the bridge table, such as the number of flushes of the log and how long
+     * writers waited for them. Bridge tables that don't collect statistics return an empty map.
+     * <p/>
+     * {@sample.xml ../../../doc/module-bridgetable-module.xml.sample bridgetable:statistics}
+     *
+     * @return Statistics by name
+     */
+    @Processor
+    public Map<String, Object> statistics()
+    {
+        if(this.bridgeTable instanceof Monitorable)
+        {
+            return ((Monitorable) this.bridgeTable).getStatistics();
+        }
+        return new HashMap<String, Object>();
+    }
+
+    public String getTableName()
+    {
+        return tableName;
+    }
+
+    public void setTableName(String tableName)
     {
         this.tableName = tableName;
     }
@@ -472,6 +1093,306 @@ public class BridgeTableModule
         this.dataSource = dataSource;
     }
 
+    public List<DataSource> getShardDataSources()
+    {
+        return shardDataSources;
+    }
+
+    public void setShardDataSources(List<DataSource> shardDataSources)
+    {
+        this.shardDataSources = shardDataSources;
+    }
+
+    public int getShardCount()
+    {
+        return shardCount;
+    }
+
+    public void setShardCount(int shardCount)
+    {
+        this.shardCount = shardCount;
+    }
+
+    public boolean isPinConnections()
+    {
+        return pinConnections;
+    }
+
+    public void setPinConnections(boolean pinConnections)
+    {
+        this.pinConnections = pinConnections;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public int getInChunkSize()
+    {
+        return inChunkSize;
+    }
+
+    public void setInChunkSize(int inChunkSize)
+    {
+        this.inChunkSize = inChunkSize;
+    }
+
+    public int getFetchSize()
+    {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize)
+    {
+        this.fetchSize = fetchSize;
+    }
+
+    public SchemaLayout getSchemaLayout()
+    {
+        return schemaLayout;
+    }
+
+    public void setSchemaLayout(SchemaLayout schemaLayout)
+    {
+        this.schemaLayout = schemaLayout;
+    }
+
+    public boolean isMigrateSchema()
+    {
+        return migrateSchema;
+    }
+
+    public void setMigrateSchema(boolean migrateSchema)
+    {
+        this.migrateSchema = migrateSchema;
+    }
+
+    public List<DataSource> getReadDataSources()
+    {
+        return readDataSources;
+    }
+
+    public void setReadDataSources(List<DataSource> readDataSources)
+    {
+        this.readDataSources = readDataSources;
+    }
+
+    public ReadSelection getReadSelection()
+    {
+        return readSelection;
+    }
+
+    public void setReadSelection(ReadSelection readSelection)
+    {
+        this.readSelection = readSelection;
+    }
+
+    public long getReadAfterWriteWindow()
+    {
+        return readAfterWriteWindow;
+    }
+
+    public void setReadAfterWriteWindow(long readAfterWriteWindow)
+    {
+        this.readAfterWriteWindow = readAfterWriteWindow;
+    }
+
+    public int getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
+    public long getCacheTimeToLive()
+    {
+        return cacheTimeToLive;
+    }
+
+    public void setCacheTimeToLive(long cacheTimeToLive)
+    {
+        this.cacheTimeToLive = cacheTimeToLive;
+    }
+
+    public long getFilterExpectedEntries()
+    {
+        return filterExpectedEntries;
+    }
+
+    public void setFilterExpectedEntries(long filterExpectedEntries)
+    {
+        this.filterExpectedEntries = filterExpectedEntries;
+    }
+
+    public double getFilterFalsePositiveRate()
+    {
+        return filterFalsePositiveRate;
+    }
+
+    public void setFilterFalsePositiveRate(double filterFalsePositiveRate)
+    {
+        this.filterFalsePositiveRate = filterFalsePositiveRate;
+    }
+
+    public long getWriteBehindInterval()
+    {
+        return writeBehindInterval;
+    }
+
+    public void setWriteBehindInterval(long writeBehindInterval)
+    {
+        this.writeBehindInterval = writeBehindInterval;
+    }
+
+    public int getWriteBehindMaxPending()
+    {
+        return writeBehindMaxPending;
+    }
+
+    public void setWriteBehindMaxPending(int writeBehindMaxPending)
+    {
+        this.writeBehindMaxPending = writeBehindMaxPending;
+    }
+
+    public long getWriteBehindMaxWait()
+    {
+        return writeBehindMaxWait;
+    }
+
+    public void setWriteBehindMaxWait(long writeBehindMaxWait)
+    {
+        this.writeBehindMaxWait = writeBehindMaxWait;
+    }
+
+    public int getAsyncThreads()
+    {
+        return asyncThreads;
+    }
+
+    public void setAsyncThreads(int asyncThreads)
+    {
+        this.asyncThreads = asyncThreads;
+    }
+
+    public int getAsyncQueueSize()
+    {
+        return asyncQueueSize;
+    }
+
+    public void setAsyncQueueSize(int asyncQueueSize)
+    {
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    public boolean isAsyncVirtualThreads()
+    {
+        return asyncVirtualThreads;
+    }
+
+    public void setAsyncVirtualThreads(boolean asyncVirtualThreads)
+    {
+        this.asyncVirtualThreads = asyncVirtualThreads;
+    }
+
+    /**
+     * Gives Java components access to the bridge table without blocking: each operation returns a future, so
+     * a flow can have several lookups in flight at once (e.g. one per id of a message) and wait for all of them.
+     * @return The asynchronous view of the bridge table, <b>null</b> while the module is stopped
+     */
+    public AsyncBridgeTable getAsyncBridgeTable()
+    {
+        return asyncBridgeTable;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    public String getStoreDirectory()
+    {
+        return storeDirectory;
+    }
+
+    public void setStoreDirectory(String storeDirectory)
+    {
+        this.storeDirectory = storeDirectory;
+    }
+
+    public long getCompactionInterval()
+    {
+        return compactionInterval;
+    }
+
+    public void setCompactionInterval(long compactionInterval)
+    {
+        this.compactionInterval = compactionInterval;
+    }
+
+    public DurabilityMode getDurabilityMode()
+    {
+        return durabilityMode;
+    }
+
+    public void setDurabilityMode(DurabilityMode durabilityMode)
+    {
+        this.durabilityMode = durabilityMode;
+    }
+
+    public long getGroupCommitWindow()
+    {
+        return groupCommitWindow;
+    }
+
+    public void setGroupCommitWindow(long groupCommitWindow)
+    {
+        this.groupCommitWindow = groupCommitWindow;
+    }
+
+    public int getGroupCommitSize()
+    {
+        return groupCommitSize;
+    }
+
+    public void setGroupCommitSize(int groupCommitSize)
+    {
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    public String getMappedFile()
+    {
+        return mappedFile;
+    }
+
+    public void setMappedFile(String mappedFile)
+    {
+        this.mappedFile = mappedFile;
+    }
+
+    public float getGrowthFactor()
+    {
+        return growthFactor;
+    }
+
+    public void setGrowthFactor(float growthFactor)
+    {
+        this.growthFactor = growthFactor;
+    }
+
     public boolean isAutoCreateTable()
     {
         return autoCreateTable;
@@ -522,6 +1443,84 @@ public class BridgeTableModule
         this.allowEmptyKeys = allowEmptyKeys;
     }
     
+    /*
+     * Applies the settings specific to the concrete implementation
+     */
+    private void configure(BridgeTable table)
+    {
+        if(table instanceof DataSourceBridgeTable)
+        {
+            ((DataSourceBridgeTable) table).setPinConnections(isPinConnections());
+            ((DataSourceBridgeTable) table).setBatchSize(getBatchSize());
+            ((DataSourceBridgeTable) table).setInChunkSize(getInChunkSize());
+            ((DataSourceBridgeTable) table).setFetchSize(getFetchSize());
+            ((DataSourceBridgeTable) table).setSchemaLayout(getSchemaLayout());
+            ((DataSourceBridgeTable) table).setMigrateSchema(isMigrateSchema());
+            ((DataSourceBridgeTable) table).setReadDataSources(getReadDataSources());
+            ((DataSourceBridgeTable) table).setReadSelection(getReadSelection());
+            ((DataSourceBridgeTable) table).setReadAfterWriteWindow(getReadAfterWriteWindow());
+        }
+        else if(table instanceof LogBridgeTable)
+        {
+            ((LogBridgeTable) table).setCompactionInterval(getCompactionInterval());
+            ((LogBridgeTable) table).setDurabilityMode(getDurabilityMode());
+            ((LogBridgeTable) table).setGroupCommitWindow(getGroupCommitWindow());
+            ((LogBridgeTable) table).setGroupCommitSize(getGroupCommitSize());
+        }
+        else if(table instanceof MappedFileBridgeTable)
+        {
+            ((MappedFileBridgeTable) table).setInitialCapacity(getCapacity());
+            ((MappedFileBridgeTable) table).setGrowthFactor(getGrowthFactor());
+        }
+        else if(table instanceof InMemoryBridgeTable)
+        {
+            ((InMemoryBridgeTable) table).setNullKeys(isAllowEmptyKeys());
+        }
+    }
+
+    /*
+     * Creates the sharded table over the shard DataSources, or over several tables of the DataSource
+     */
+    private ShardedBridgeTable createShards()
+    {
+        List<DataSourceBridgeTable> shards = new ArrayList<DataSourceBridgeTable>();
+        if(!isEmpty(getShardDataSources()))
+        {
+            for(DataSource shardDataSource : getShardDataSources())
+            {
+                shards.add(new DataSourceBridgeTable(shardDataSource));
+            }
+        }
+        else
+        {
+            for(int i=0; i < getShardCount(); i++)
+            {
+                shards.add(new DataSourceBridgeTable(getDataSource()));
+            }
+        }
+        for(DataSourceBridgeTable shard : shards)
+        {
+            configure(shard);
+        }
+        if(!isEmpty(getShardDataSources()) && !isEmpty(getReadDataSources()))
+        {
+            LOGGER.warn("The read data sources are replicas of a single data source, so they are not used with shard data sources");
+            for(DataSourceBridgeTable shard : shards)
+            {
+                shard.setReadDataSources(null);
+            }
+        }
+
+        ShardedBridgeTable table = new ShardedBridgeTable(shards);
+        table.setSuffixTables(isEmpty(getShardDataSources()));
+        return table;
+    }
+
+    private static boolean isEmpty(Collection<?> collection)
+    {
+        return collection == null || collection.isEmpty();
+    }
+
     /*
      * Validates keys sent as parameters
      */
@@ -535,6 +1534,114 @@ public class BridgeTableModule
         }
     }
 
+    /*
+     * Validates and converts an operation received by executeBatch
+     */
+    private BridgeTableOperation toOperation(Map<String, Object> operation)
+    {
+        Object name = operation.get("operation");
+        BridgeTableOperation.Kind kind = null;
+        if(name != null)
+        {
+            // Accepts the names of the processors (update-by-key1), of the methods (updateByKey1) and of the kinds
+            String normalized = name.toString().replace("-", "").replace("_", "");
+            for(BridgeTableOperation.Kind candidate : BridgeTableOperation.Kind.values())
+            {
+                if(candidate.name().replace("_", "").equalsIgnoreCase(normalized))
+                {
+                    kind = candidate;
+                }
+            }
+        }
+        if(kind == null)
+        {
+            String msg = "Invalid operation " + operation + ", expected insert, update-by-key1, update-by-key2, upsert-by-key1, upsert-by-key2, remove-by-key1 or remove-by-key2.";
+            LOGGER.error(msg);
+            throw new IllegalArgumentException(msg);
+        }
+
+        Object key1 = null;
+        Object key2 = null;
+        if(kind != BridgeTableOperation.Kind.REMOVE_BY_KEY2)
+        {
+            String value1 = operation.get("key1") == null ? null : String.valueOf(operation.get("key1"));
+            validateKey(getKey1Description(), value1);
+            key1 = getKey1Type().toObject(value1);
+        }
+        if(kind != BridgeTableOperation.Kind.REMOVE_BY_KEY1)
+        {
+            String value2 = operation.get("key2") == null ? null : String.valueOf(operation.get("key2"));
+            validateKey(getKey2Description(), value2);
+            key2 = getKey2Type().toObject(value2);
+        }
+        return new BridgeTableOperation(kind, key1, key2);
+    }
+
+    /*
+     * Validates and converts the mappings received by insertAll
+     */
+    private Map<Object, Object> toPairs(Object pairs, Map<Object, Object> duplicates)
+    {
+        Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+        if(pairs instanceof Map)
+        {
+            for(Map.Entry<?, ?> pair : ((Map<?, ?>) pairs).entrySet())
+            {
+                addPair(result, duplicates, pair.getKey(), pair.getValue());
+            }
+        }
+        else if(pairs instanceof Collection)
+        {
+            for(Object pair : (Collection<?>) pairs)
+            {
+                if(pair instanceof Map.Entry)
+                {
+                    addPair(result, duplicates, ((Map.Entry<?, ?>) pair).getKey(), ((Map.Entry<?, ?>) pair).getValue());
+                }
+                else if(pair instanceof Object[] && ((Object[]) pair).length == 2)
+                {
+                    addPair(result, duplicates, ((Object[]) pair)[0], ((Object[]) pair)[1]);
+                }
+                else if(pair instanceof List && ((List<?>) pair).size() == 2)
+                {
+                    addPair(result, duplicates, ((List<?>) pair).get(0), ((List<?>) pair).get(1));
+                }
+                else
+                {
+                    String msg = "Invalid pair " + pair + ", expected a map entry, an array or a list with key1 and key2.";
+                    LOGGER.error(msg);
+                    throw new IllegalArgumentException(msg);
+                }
+            }
+        }
+        else
+        {
+            String msg = "Invalid pairs " + pairs + ", expected a map or a list of pairs.";
+            LOGGER.error(msg);
+            throw new IllegalArgumentException(msg);
+        }
+        return result;
+    }
+
+    private void addPair(Map<Object, Object> pairs, Map<Object, Object> duplicates, Object key1, Object key2)
+    {
+        String value1 = key1 == null ? null : String.valueOf(key1);
+        String value2 = key2 == null ? null : String.valueOf(key2);
+        validateKey(getKey1Description(), value1);
+        validateKey(getKey2Description(), value2);
+
+        Object k1 = getKey1Type().toObject(value1);
+        Object k2 = getKey2Type().toObject(value2);
+        if(pairs.containsKey(k1))
+        {
+            duplicates.put(k1, k2);
+        }
+        else
+        {
+            pairs.put(k1, k2);
+        }
+    }
+
     /*
      * Transform return values
      */
@@ -550,6 +1657,52 @@ public class BridgeTableModule
         }        
     }
     
+    /*
+     * Transform the keys and values of a returned map
+     */
+    private Map<Object, Object> transformReturnValues(Map<Object, Object> values, KeyType keyType, KeyType valueType)
+    {
+        Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+        for(Map.Entry<Object, Object> entry : values.entrySet())
+        {
+            result.put(transformReturnValue(entry.getKey(), keyType), transformReturnValue(entry.getValue(), valueType));
+        }
+        return result;
+    }
+
+    /*
+     * Wraps an iterator so that it transforms the values as they are returned
+     */
+    private KeyIterator transformReturnValues(final KeyIterator values, final KeyType type)
+    {
+        return new KeyIterator()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return values.hasNext();
+            }
+
+            @Override
+            public Object next()
+            {
+                return transformReturnValue(values.next(), type);
+            }
+
+            @Override
+            public void remove()
+            {
+                values.remove();
+            }
+
+            @Override
+            public void close()
+            {
+                values.close();
+            }
+        };
+    }
+
     private String getKey1Description()
     {
         return "key1 (" + getKey1Name() + ")";
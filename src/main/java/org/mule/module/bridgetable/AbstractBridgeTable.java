@@ -0,0 +1,419 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Base class for bridge tables that implements the bulk and compound operations on top of the single mapping
+ * ones. Implementations that can do better (e.g. a database that batches statements) override them.
+ */
+public abstract class AbstractBridgeTable implements BridgeTable
+{
+    private static final Logger LOGGER = Logger.getLogger(AbstractBridgeTable.class);
+
+    // Returned by lookups of keys that are not present
+    private static final Object MISSING = new Object();
+
+    // Orders keys of the same type
+    private static final Comparator<Object> NATURAL_ORDER = new Comparator<Object>()
+    {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Object key1, Object key2)
+        {
+            return ((Comparable<Object>) key1).compareTo(key2);
+        }
+    };
+
+    /**
+     * Inserts the mappings one by one, collecting the ones whose keys already exist.
+     * @see org.mule.module.bridgetable.BridgeTable#insertAll(java.util.Map)
+     */
+    @Override
+    public Map<Object, Object> insertAll(Map<Object, Object> pairs) throws BridgeTableException
+    {
+        Map<Object, Object> conflicts = new LinkedHashMap<Object, Object>();
+        for(Map.Entry<Object, Object> pair : pairs.entrySet())
+        {
+            try
+            {
+                insert(pair.getKey(), pair.getValue());
+            }
+            catch(KeyAlreadyExistsException ex)
+            {
+                conflicts.put(pair.getKey(), pair.getValue());
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * Updates the mapping and inserts it if key1 doesn't exist. The two steps are not atomic: implementations
+     * that can do them at once override this method.
+     * @see org.mule.module.bridgetable.BridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(Object key1, Object key2) throws BridgeTableException
+    {
+        try
+        {
+            updateByKey1(key1, key2);
+        }
+        catch(KeyDoesNotExistException ex)
+        {
+            insert(key1, key2);
+        }
+    }
+
+    /**
+     * Updates the mapping and inserts it if key2 doesn't exist. The two steps are not atomic: implementations
+     * that can do them at once override this method.
+     * @see org.mule.module.bridgetable.BridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(Object key2, Object key1) throws BridgeTableException
+    {
+        try
+        {
+            updateByKey2(key2, key1);
+        }
+        catch(KeyDoesNotExistException ex)
+        {
+            insert(key1, key2);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        try
+        {
+            return retrieveByKey1(key1);
+        }
+        catch(KeyDoesNotExistException ex)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        try
+        {
+            return retrieveByKey2(key2);
+        }
+        catch(KeyDoesNotExistException ex)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Retrieves the values one by one, skipping the ones that don't exist.
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        for(Object key1 : keys1)
+        {
+            try
+            {
+                found.put(key1, retrieveByKey1(key1));
+            }
+            catch(KeyDoesNotExistException ex)
+            {
+                // Not found
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Retrieves the values one by one, skipping the ones that don't exist.
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        for(Object key2 : keys2)
+        {
+            try
+            {
+                found.put(key2, retrieveByKey2(key2));
+            }
+            catch(KeyDoesNotExistException ex)
+            {
+                // Not found
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Iterates over a copy of the values for key1. Implementations that can walk their storage lazily
+     * override this method.
+     * @see org.mule.module.bridgetable.BridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        return iterator(keys1().iterator());
+    }
+
+    /**
+     * Iterates over a copy of the values for key2. Implementations that can walk their storage lazily
+     * override this method.
+     * @see org.mule.module.bridgetable.BridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        return iterator(keys2().iterator());
+    }
+
+    /**
+     * Applies the operations one by one, recording how to revert each of them, and reverts the applied ones in
+     * reverse order if one fails. Other writers may see, and interfere with, the operations applied so far:
+     * implementations that can isolate the batch (e.g. a transaction or a lock held throughout) override this
+     * method.
+     * @see org.mule.module.bridgetable.BridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        List<BridgeTableOperation> undo = new ArrayList<BridgeTableOperation>();
+        try
+        {
+            for(BridgeTableOperation operation : operations)
+            {
+                apply(operation, undo);
+            }
+        }
+        catch(BridgeTableException ex)
+        {
+            for(int i=undo.size() - 1; i >= 0; i--)
+            {
+                try
+                {
+                    apply(undo.get(i), null);
+                }
+                catch(BridgeTableException undoEx)
+                {
+                    LOGGER.error("Could not revert " + undo.get(i) + " after a failed batch", undoEx);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Applies an operation through the single mapping methods of this table.
+     * @param operation The operation
+     * @param undo Receives the operation that reverts this one once it's applied, <b>null</b> if it's not
+     * going to be reverted. Computing the reverse operation takes a lookup for updates, upserts and removals.
+     * @throws BridgeTableException If the operation fails
+     */
+    protected void apply(BridgeTableOperation operation, List<BridgeTableOperation> undo) throws BridgeTableException
+    {
+        Object key1 = operation.getKey1();
+        Object key2 = operation.getKey2();
+        Object previous;
+        switch(operation.getKind())
+        {
+            case INSERT:
+                insert(key1, key2);
+                if(undo != null)
+                {
+                    undo.add(new BridgeTableOperation(BridgeTableOperation.Kind.REMOVE_BY_KEY1, key1, null));
+                }
+                break;
+            case UPDATE_BY_KEY1:
+                previous = undo == null ? null : retrieveByKey1(key1);
+                updateByKey1(key1, key2);
+                if(undo != null)
+                {
+                    undo.add(new BridgeTableOperation(BridgeTableOperation.Kind.UPDATE_BY_KEY1, key1, previous));
+                }
+                break;
+            case UPDATE_BY_KEY2:
+                previous = undo == null ? null : retrieveByKey2(key2);
+                updateByKey2(key2, key1);
+                if(undo != null)
+                {
+                    undo.add(new BridgeTableOperation(BridgeTableOperation.Kind.UPDATE_BY_KEY2, previous, key2));
+                }
+                break;
+            case UPSERT_BY_KEY1:
+                previous = undo == null ? null : retrieveByKey1OrDefault(key1, MISSING);
+                upsertByKey1(key1, key2);
+                if(undo != null)
+                {
+                    undo.add(previous == MISSING
+                             ? new BridgeTableOperation(BridgeTableOperation.Kind.REMOVE_BY_KEY1, key1, null)
+                             : new BridgeTableOperation(BridgeTableOperation.Kind.UPDATE_BY_KEY1, key1, previous));
+                }
+                break;
+            case UPSERT_BY_KEY2:
+                previous = undo == null ? null : retrieveByKey2OrDefault(key2, MISSING);
+                upsertByKey2(key2, key1);
+                if(undo != null)
+                {
+                    undo.add(previous == MISSING
+                             ? new BridgeTableOperation(BridgeTableOperation.Kind.REMOVE_BY_KEY2, null, key2)
+                             : new BridgeTableOperation(BridgeTableOperation.Kind.UPDATE_BY_KEY2, previous, key2));
+                }
+                break;
+            case REMOVE_BY_KEY1:
+                previous = undo == null ? null : retrieveByKey1(key1);
+                removeByKey1(key1);
+                if(undo != null)
+                {
+                    undo.add(new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, key1, previous));
+                }
+                break;
+            case REMOVE_BY_KEY2:
+                previous = undo == null ? null : retrieveByKey2(key2);
+                removeByKey2(key2);
+                if(undo != null)
+                {
+                    undo.add(new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, previous, key2));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation.getKind());
+        }
+    }
+
+    /**
+     * Selects the page while iterating over the values for key1, keeping only <code>pageSize</code> of them, so
+     * every page costs a pass over the keys no matter how deep it is: walking n keys in pages of
+     * <code>pageSize</code> costs O(n * n / pageSize). Engines that keep their keys sorted override it.
+     * @see org.mule.module.bridgetable.BridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        return page(iterateKeys1(), afterKey1, pageSize);
+    }
+
+    /**
+     * Selects the page while iterating over the values for key2, as {@link #keys1Page(Object, int)} does for key1.
+     * @see org.mule.module.bridgetable.BridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        return page(iterateKeys2(), afterKey2, pageSize);
+    }
+
+    /**
+     * Selects the smallest keys greater than a given one, keeping the best candidates in a bounded heap. Keys
+     * must be comparable with each other; null keys are skipped.
+     * @param keys The keys, closed when done
+     * @param afterKey The key that precedes the page, or null for the first page
+     * @param pageSize The maximum number of keys to select
+     * @return The selected keys in ascending order
+     */
+    protected static List<Object> page(KeyIterator keys, Object afterKey, int pageSize)
+    {
+        if(pageSize < 1)
+        {
+            keys.close();
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+
+        // The largest candidate is at the head, ready to be replaced by a smaller key
+        PriorityQueue<Object> candidates = new PriorityQueue<Object>(Math.min(pageSize, 1024), Collections.reverseOrder(NATURAL_ORDER));
+        try
+        {
+            while(keys.hasNext())
+            {
+                Object key = keys.next();
+                if(key == null || (afterKey != null && NATURAL_ORDER.compare(key, afterKey) <= 0))
+                {
+                    continue;
+                }
+                if(candidates.size() < pageSize)
+                {
+                    candidates.add(key);
+                }
+                else if(NATURAL_ORDER.compare(key, candidates.peek()) < 0)
+                {
+                    candidates.poll();
+                    candidates.add(key);
+                }
+            }
+        }
+        finally
+        {
+            keys.close();
+        }
+
+        List<Object> result = new ArrayList<Object>(candidates);
+        Collections.sort(result, NATURAL_ORDER);
+        return result;
+    }
+
+    /**
+     * Adapts an iterator that holds no resources
+     * @param keys The iterator
+     * @return A key iterator whose {@link KeyIterator#close()} does nothing
+     */
+    protected static KeyIterator iterator(final Iterator<?> keys)
+    {
+        return new KeyIterator()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return keys.hasNext();
+            }
+
+            @Override
+            public Object next()
+            {
+                return keys.next();
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+}
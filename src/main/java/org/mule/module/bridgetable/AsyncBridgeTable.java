@@ -0,0 +1,134 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.module.bridgetable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Non blocking view of a {@link BridgeTable}: every operation returns right away with a future of its result,
+ * so several of them can be in flight at once (e.g. the lookups of several ids). The operations behave as those
+ * of {@link BridgeTable} with the same name; when they fail, {@link Future#get()} throws an
+ * {@link java.util.concurrent.ExecutionException} caused by the {@link BridgeTableException}.
+ */
+public interface AsyncBridgeTable
+{
+    /**
+     * @return The bridge table the operations run on
+     */
+    BridgeTable getBridgeTable();
+
+    /**
+     * @see BridgeTable#insert(Object, Object)
+     */
+    Future<Void> insert(Object key1, Object key2);
+
+    /**
+     * @see BridgeTable#insertAll(Map)
+     */
+    Future<Map<Object, Object>> insertAll(Map<Object, Object> pairs);
+
+    /**
+     * @see BridgeTable#updateByKey1(Object, Object)
+     */
+    Future<Void> updateByKey1(Object key1, Object newKey2);
+
+    /**
+     * @see BridgeTable#updateByKey2(Object, Object)
+     */
+    Future<Void> updateByKey2(Object key2, Object newKey1);
+
+    /**
+     * @see BridgeTable#upsertByKey1(Object, Object)
+     */
+    Future<Void> upsertByKey1(Object key1, Object key2);
+
+    /**
+     * @see BridgeTable#upsertByKey2(Object, Object)
+     */
+    Future<Void> upsertByKey2(Object key2, Object key1);
+
+    /**
+     * @see BridgeTable#removeByKey1(Object)
+     */
+    Future<Void> removeByKey1(Object key1);
+
+    /**
+     * @see BridgeTable#removeByKey2(Object)
+     */
+    Future<Void> removeByKey2(Object key2);
+
+    /**
+     * @see BridgeTable#retrieveByKey1(Object)
+     */
+    Future<Object> retrieveByKey1(Object key1);
+
+    /**
+     * @see BridgeTable#retrieveByKey2(Object)
+     */
+    Future<Object> retrieveByKey2(Object key2);
+
+    /**
+     * @see BridgeTable#retrieveByKey1OrDefault(Object, Object)
+     */
+    Future<Object> retrieveByKey1OrDefault(Object key1, Object defaultValue);
+
+    /**
+     * @see BridgeTable#retrieveByKey2OrDefault(Object, Object)
+     */
+    Future<Object> retrieveByKey2OrDefault(Object key2, Object defaultValue);
+
+    /**
+     * @see BridgeTable#retrieveAllByKey1(Collection)
+     */
+    Future<Map<Object, Object>> retrieveAllByKey1(Collection<?> keys1);
+
+    /**
+     * @see BridgeTable#retrieveAllByKey2(Collection)
+     */
+    Future<Map<Object, Object>> retrieveAllByKey2(Collection<?> keys2);
+
+    /**
+     * @see BridgeTable#containsKey1(Object)
+     */
+    Future<Boolean> containsKey1(Object key1);
+
+    /**
+     * @see BridgeTable#containsKey2(Object)
+     */
+    Future<Boolean> containsKey2(Object key2);
+
+    /**
+     * @see BridgeTable#keys1()
+     */
+    Future<List<Object>> keys1();
+
+    /**
+     * @see BridgeTable#keys2()
+     */
+    Future<List<Object>> keys2();
+
+    /**
+     * @see BridgeTable#keys1Page(Object, int)
+     */
+    Future<List<Object>> keys1Page(Object afterKey1, int pageSize);
+
+    /**
+     * @see BridgeTable#keys2Page(Object, int)
+     */
+    Future<List<Object>> keys2Page(Object afterKey2, int pageSize);
+
+    /**
+     * @see BridgeTable#executeBatch(List)
+     */
+    Future<Void> executeBatch(List<BridgeTableOperation> operations);
+}
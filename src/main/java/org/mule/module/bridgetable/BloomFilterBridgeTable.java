@@ -0,0 +1,773 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bridge table that keeps a counting Bloom filter of the values of each key of another bridge table, so that
+ * lookups of keys that are certainly not present are answered without reaching the underlying storage
+ * (typically a database).
+ * <p/>
+ * The filters are sized for <code>expectedEntries</code> mappings and the given false positive rate, and are
+ * filled by iterating over the underlying table when it's initialized. Writes through this table keep them up to
+ * date: keys are added before they are written and removed once they are certainly gone, so at no point does a
+ * filter miss a key that may be present. Updates, upserts and removals look up the keys they replace, so they are
+ * serialized with each other; inserts are not.
+ * <p/>
+ * Writes done by other instances (e.g. other Mule nodes sharing the database) are not seen, so this table should
+ * only be used when all the writes go through it.
+ */
+public class BloomFilterBridgeTable extends AbstractBridgeTable implements Monitorable, ThreadContextAware
+{
+    private static final Logger LOGGER = Logger.getLogger(BloomFilterBridgeTable.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Returned by lookups of keys that are not present
+    private static final Object MISSING = new Object();
+
+    private final BridgeTable delegate;
+    private long expectedEntries = 1000000;
+    private double falsePositiveRate = 0.01;
+
+    private String tableName;
+    private KeyType key1Type;
+    private KeyType key2Type;
+    private CountingBloomFilter filter1;
+    private CountingBloomFilter filter2;
+
+    // Serializes the writes that replace keys, so the keys they look up are still the ones they replace
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    /**
+     * @param delegate The bridge table whose keys are filtered
+     */
+    public BloomFilterBridgeTable(BridgeTable delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Initializes the underlying table and fills the filters with its keys.
+     * @see org.mule.module.bridgetable.BridgeTable#init(java.lang.String, org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType, java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public void init(String tableName,
+                     KeyType key1Type,
+                     KeyType key2Type,
+                     String key1Name,
+                     String key2Name,
+                     boolean autoCreateTable) throws BridgeTableException
+    {
+        this.tableName = tableName;
+        this.key1Type = key1Type;
+        this.key2Type = key2Type;
+        this.delegate.init(tableName, key1Type, key2Type, key1Name, key2Name, autoCreateTable);
+
+        long start = System.currentTimeMillis();
+        this.filter1 = new CountingBloomFilter(this.expectedEntries, this.falsePositiveRate);
+        this.filter2 = new CountingBloomFilter(this.expectedEntries, this.falsePositiveRate);
+        long count = fill(this.filter1, this.delegate.iterateKeys1(), key1Type);
+        fill(this.filter2, this.delegate.iterateKeys2(), key2Type);
+
+        LOGGER.info("Loaded " + count + " mappings of " + tableName + " into Bloom filters of " + (this.filter1.getMemoryBytes() + this.filter2.getMemoryBytes()) + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+        if(count > this.expectedEntries)
+        {
+            LOGGER.warn(tableName + " has " + count + " mappings but its Bloom filters were sized for " + this.expectedEntries + ", they will have more false positives than configured");
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#destroy()
+     */
+    @Override
+    public void destroy() throws BridgeTableException
+    {
+        this.delegate.destroy();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Object key1, Object key2) throws BridgeTableException
+    {
+        add(key1, key2);
+        try
+        {
+            this.delegate.insert(key1, key2);
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            remove(key1, key2);
+            throw ex;
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#insertAll(java.util.Map)
+     */
+    @Override
+    public Map<Object, Object> insertAll(Map<Object, Object> pairs) throws BridgeTableException
+    {
+        for(Map.Entry<Object, Object> pair : pairs.entrySet())
+        {
+            add(pair.getKey(), pair.getValue());
+        }
+
+        Map<Object, Object> conflicts = this.delegate.insertAll(pairs);
+        for(Map.Entry<Object, Object> conflict : conflicts.entrySet())
+        {
+            remove(conflict.getKey(), conflict.getValue());
+        }
+        return conflicts;
+    }
+
+    /**
+     * Adds the keys the batch may write to the filters before running it on the underlying table and then
+     * removes the ones that are not present, so the filters don't miss a key while the batch is applied. The
+     * keys a batch may replace are those it names and the ones they are mapped to beforehand.
+     * @see org.mule.module.bridgetable.BridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        this.writeLock.lock();
+        try
+        {
+            // Whether each key was present before the batch
+            Map<Object, Boolean> keys1 = new HashMap<Object, Boolean>();
+            Map<Object, Boolean> keys2 = new HashMap<Object, Boolean>();
+            for(BridgeTableOperation operation : operations)
+            {
+                if(operation.hasKey1() && !keys1.containsKey(operation.getKey1()))
+                {
+                    Object key2 = retrieveByKey1OrDefault(operation.getKey1(), MISSING);
+                    keys1.put(operation.getKey1(), Boolean.valueOf(key2 != MISSING));
+                    if(key2 != MISSING)
+                    {
+                        keys2.put(key2, Boolean.TRUE);
+                    }
+                }
+                if(operation.hasKey2() && !keys2.containsKey(operation.getKey2()))
+                {
+                    Object key1 = retrieveByKey2OrDefault(operation.getKey2(), MISSING);
+                    keys2.put(operation.getKey2(), Boolean.valueOf(key1 != MISSING));
+                    if(key1 != MISSING)
+                    {
+                        keys1.put(key1, Boolean.TRUE);
+                    }
+                }
+            }
+
+            for(Map.Entry<Object, Boolean> key1 : keys1.entrySet())
+            {
+                if(!key1.getValue().booleanValue())
+                {
+                    add(key1.getKey(), MISSING);
+                }
+            }
+            for(Map.Entry<Object, Boolean> key2 : keys2.entrySet())
+            {
+                if(!key2.getValue().booleanValue())
+                {
+                    add(MISSING, key2.getKey());
+                }
+            }
+
+            try
+            {
+                this.delegate.executeBatch(operations);
+            }
+            finally
+            {
+                try
+                {
+                    for(Object key1 : keys1.keySet())
+                    {
+                        if(!this.delegate.containsKey1(key1))
+                        {
+                            remove(key1, MISSING);
+                        }
+                    }
+                    for(Object key2 : keys2.keySet())
+                    {
+                        if(!this.delegate.containsKey2(key2))
+                        {
+                            remove(MISSING, key2);
+                        }
+                    }
+                }
+                catch(BridgeTableException ex)
+                {
+                    // Keys left in the filters only cost lookups that reach the underlying table
+                    LOGGER.warn("Could not check the keys of a batch in " + this.tableName + ", the filters may report keys that are not present", ex);
+                }
+            }
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey1(Object key1, Object newKey2) throws BridgeTableException
+    {
+        this.writeLock.lock();
+        try
+        {
+            Object oldKey2 = retrieveByKey1OrDefault(key1, MISSING);
+            add(MISSING, newKey2);
+            try
+            {
+                this.delegate.updateByKey1(key1, newKey2);
+            }
+            catch(KeyDoesNotExistException ex)
+            {
+                remove(MISSING, newKey2);
+                throw ex;
+            }
+            catch(KeyAlreadyExistsException ex)
+            {
+                remove(MISSING, newKey2);
+                throw ex;
+            }
+            remove(MISSING, oldKey2);
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey2(Object key2, Object newKey1) throws BridgeTableException
+    {
+        this.writeLock.lock();
+        try
+        {
+            Object oldKey1 = retrieveByKey2OrDefault(key2, MISSING);
+            add(newKey1, MISSING);
+            try
+            {
+                this.delegate.updateByKey2(key2, newKey1);
+            }
+            catch(KeyDoesNotExistException ex)
+            {
+                remove(newKey1, MISSING);
+                throw ex;
+            }
+            catch(KeyAlreadyExistsException ex)
+            {
+                remove(newKey1, MISSING);
+                throw ex;
+            }
+            remove(oldKey1, MISSING);
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(Object key1, Object key2) throws BridgeTableException
+    {
+        this.writeLock.lock();
+        try
+        {
+            Object oldKey2 = retrieveByKey1OrDefault(key1, MISSING);
+            add(key1, key2);
+            try
+            {
+                this.delegate.upsertByKey1(key1, key2);
+            }
+            catch(KeyAlreadyExistsException ex)
+            {
+                remove(key1, key2);
+                throw ex;
+            }
+            if(oldKey2 != MISSING)
+            {
+                // key1 was already counted
+                remove(key1, oldKey2);
+            }
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(Object key2, Object key1) throws BridgeTableException
+    {
+        this.writeLock.lock();
+        try
+        {
+            Object oldKey1 = retrieveByKey2OrDefault(key2, MISSING);
+            add(key1, key2);
+            try
+            {
+                this.delegate.upsertByKey2(key2, key1);
+            }
+            catch(KeyAlreadyExistsException ex)
+            {
+                remove(key1, key2);
+                throw ex;
+            }
+            if(oldKey1 != MISSING)
+            {
+                // key2 was already counted
+                remove(oldKey1, key2);
+            }
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey1(java.lang.Object)
+     */
+    @Override
+    public void removeByKey1(Object key1) throws BridgeTableException
+    {
+        this.writeLock.lock();
+        try
+        {
+            Object key2 = retrieveByKey1OrDefault(key1, MISSING);
+            this.delegate.removeByKey1(key1);
+            remove(key1, key2);
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey2(java.lang.Object)
+     */
+    @Override
+    public void removeByKey2(Object key2) throws BridgeTableException
+    {
+        this.writeLock.lock();
+        try
+        {
+            Object key1 = retrieveByKey2OrDefault(key2, MISSING);
+            this.delegate.removeByKey2(key2);
+            remove(key1, key2);
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1(Object key1) throws BridgeTableException
+    {
+        Object key2 = retrieveByKey1OrDefault(key1, MISSING);
+        if(key2 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+        }
+        return key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2(Object key2) throws BridgeTableException
+    {
+        Object key1 = retrieveByKey2OrDefault(key2, MISSING);
+        if(key1 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+        }
+        return key1;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        if(!mightContainKey1(key1))
+        {
+            return defaultValue;
+        }
+        Object key2 = this.delegate.retrieveByKey1OrDefault(key1, MISSING);
+        if(key2 == MISSING)
+        {
+            this.falsePositives.incrementAndGet();
+            return defaultValue;
+        }
+        return key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        if(!mightContainKey2(key2))
+        {
+            return defaultValue;
+        }
+        Object key1 = this.delegate.retrieveByKey2OrDefault(key2, MISSING);
+        if(key1 == MISSING)
+        {
+            this.falsePositives.incrementAndGet();
+            return defaultValue;
+        }
+        return key1;
+    }
+
+    /**
+     * Looks up in the underlying table only the keys that may be present.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        List<Object> candidates = new ArrayList<Object>();
+        for(Object key1 : keys1)
+        {
+            if(mightContainKey1(key1))
+            {
+                candidates.add(key1);
+            }
+        }
+        return candidates.isEmpty() ? new LinkedHashMap<Object, Object>() : this.delegate.retrieveAllByKey1(candidates);
+    }
+
+    /**
+     * Looks up in the underlying table only the keys that may be present.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        List<Object> candidates = new ArrayList<Object>();
+        for(Object key2 : keys2)
+        {
+            if(mightContainKey2(key2))
+            {
+                candidates.add(key2);
+            }
+        }
+        return candidates.isEmpty() ? new LinkedHashMap<Object, Object>() : this.delegate.retrieveAllByKey2(candidates);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return this.delegate.isPersistent();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey1(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey1(Object key1) throws BridgeTableException
+    {
+        if(!mightContainKey1(key1))
+        {
+            return false;
+        }
+        if(!this.delegate.containsKey1(key1))
+        {
+            this.falsePositives.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey2(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey2(Object key2) throws BridgeTableException
+    {
+        if(!mightContainKey2(key2))
+        {
+            return false;
+        }
+        if(!this.delegate.containsKey2(key2))
+        {
+            this.falsePositives.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys1()
+     */
+    @Override
+    public List<Object> keys1() throws BridgeTableException
+    {
+        return this.delegate.keys1();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys2()
+     */
+    @Override
+    public List<Object> keys2() throws BridgeTableException
+    {
+        return this.delegate.keys2();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        return this.delegate.keys1Page(afterKey1, pageSize);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        return this.delegate.keys2Page(afterKey2, pageSize);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        return this.delegate.iterateKeys1();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        return this.delegate.iterateKeys2();
+    }
+
+    /**
+     * Returns the statistics of the filters, together with the ones of the underlying table if it has any.
+     * @see org.mule.module.bridgetable.Monitorable#getStatistics()
+     */
+    @Override
+    public Map<String, Object> getStatistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        if(this.delegate instanceof Monitorable)
+        {
+            statistics.putAll(((Monitorable) this.delegate).getStatistics());
+        }
+        statistics.put("filterMemoryBytes", Long.valueOf(this.filter1.getMemoryBytes() + this.filter2.getMemoryBytes()));
+        statistics.put("filterHashFunctions", Integer.valueOf(this.filter1.getHashFunctions()));
+        statistics.put("filterNegatives", Long.valueOf(this.negatives.get()));
+        statistics.put("filterFalsePositives", Long.valueOf(this.falsePositives.get()));
+        return statistics;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ThreadContextAware#captureContext()
+     */
+    @Override
+    public Object captureContext()
+    {
+        return this.delegate instanceof ThreadContextAware ? ((ThreadContextAware) this.delegate).captureContext() : null;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ThreadContextAware#restoreContext(java.lang.Object)
+     */
+    @Override
+    public Object restoreContext(Object context)
+    {
+        return this.delegate instanceof ThreadContextAware ? ((ThreadContextAware) this.delegate).restoreContext(context) : null;
+    }
+
+    /**
+     * @return The bridge table whose keys are filtered
+     */
+    public BridgeTable getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * @return Number of mappings the filters are sized for
+     */
+    public long getExpectedEntries()
+    {
+        return expectedEntries;
+    }
+
+    /**
+     * @param expectedEntries Number of mappings the filters are sized for. Takes effect when the table is
+     * initialized.
+     */
+    public void setExpectedEntries(long expectedEntries)
+    {
+        if(expectedEntries < 1)
+        {
+            throw new IllegalArgumentException("Expected number of entries must be at least 1");
+        }
+        this.expectedEntries = expectedEntries;
+    }
+
+    /**
+     * @return Probability that a lookup of a missing key reaches the underlying table
+     */
+    public double getFalsePositiveRate()
+    {
+        return falsePositiveRate;
+    }
+
+    /**
+     * @param falsePositiveRate Probability that a lookup of a missing key reaches the underlying table when the
+     * table holds the expected number of mappings, between 0 and 1. Takes effect when the table is initialized.
+     */
+    public void setFalsePositiveRate(double falsePositiveRate)
+    {
+        if(falsePositiveRate <= 0 || falsePositiveRate >= 1)
+        {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+        }
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    private boolean mightContainKey1(Object key1)
+    {
+        if(this.filter1.mightContain(hash(key1, this.key1Type)))
+        {
+            return true;
+        }
+        this.negatives.incrementAndGet();
+        return false;
+    }
+
+    private boolean mightContainKey2(Object key2)
+    {
+        if(this.filter2.mightContain(hash(key2, this.key2Type)))
+        {
+            return true;
+        }
+        this.negatives.incrementAndGet();
+        return false;
+    }
+
+    /*
+     * Adds the keys to the filters, skipping the ones that are MISSING
+     */
+    private void add(Object key1, Object key2)
+    {
+        if(key1 != MISSING)
+        {
+            this.filter1.add(hash(key1, this.key1Type));
+        }
+        if(key2 != MISSING)
+        {
+            this.filter2.add(hash(key2, this.key2Type));
+        }
+    }
+
+    /*
+     * Removes the keys from the filters, skipping the ones that are MISSING
+     */
+    private void remove(Object key1, Object key2)
+    {
+        if(key1 != MISSING)
+        {
+            this.filter1.remove(hash(key1, this.key1Type));
+        }
+        if(key2 != MISSING)
+        {
+            this.filter2.remove(hash(key2, this.key2Type));
+        }
+    }
+
+    /*
+     * Hash of a key as encoded for its type. A key that its type cannot encode is hashed as a string instead: it
+     * is still rejected or missed by the bridge table, but the filters never miss a key they were given.
+     */
+    private static long hash(Object key, KeyType type)
+    {
+        try
+        {
+            return KeyCodec.hash(KeyCodec.encode(key, type));
+        }
+        catch(BridgeTableException ex)
+        {
+            return KeyCodec.hash(String.valueOf(key).getBytes(UTF8));
+        }
+    }
+
+    private static long fill(CountingBloomFilter filter, KeyIterator keys, KeyType type)
+    {
+        long count = 0;
+        try
+        {
+            while(keys.hasNext())
+            {
+                filter.add(hash(keys.next(), type));
+                count++;
+            }
+        }
+        finally
+        {
+            keys.close();
+        }
+        return count;
+    }
+}
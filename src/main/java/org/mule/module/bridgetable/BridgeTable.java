@@ -10,7 +10,9 @@
 
 package org.mule.module.bridgetable;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A bridge table maps key1 to key2, allowing to do direct and reverse lookups. This mean that knowing key1 you can get the corresponding value
@@ -44,7 +46,16 @@ public interface BridgeTable
      * @throws BridgeTableException If the mapping cannot be inserted. This can be related to the key types or persistence errors.
      */
     void insert(Object key1, Object key2) throws BridgeTableException;
-    
+
+    /**
+     * Inserts several key1 to key2 mappings. A mapping whose key1 or key2 already exists (in the bridge table or earlier
+     * in the same call) is not inserted and is reported back, without preventing the insertion of the other ones.
+     * @param pairs Values for key2 by value for key1, in the order they should be inserted.
+     * @return The mappings that were not inserted because key1 or key2 already existed, empty if all of them were inserted.
+     * @throws BridgeTableException If the mappings cannot be inserted. This can be related to the key types or persistence errors.
+     */
+    Map<Object, Object> insertAll(Map<Object, Object> pairs) throws BridgeTableException;
+
     /**
      * Update the value of key2 given the value of key1.
      * @param key1 Value for key1 to search an update.
@@ -63,6 +74,24 @@ public interface BridgeTable
      */
     void updateByKey2(Object key2, Object newKey1) throws BridgeTableException;
     
+    /**
+     * Update the value of key2 given the value of key1, or insert the mapping if key1 is not present, as a single operation.
+     * @param key1 Value for key1 to search an update or insert.
+     * @param key2 Value for key2.
+     * @throws BridgeTableException If the mapping cannot be updated or inserted. This can be related to the key types or persistence errors.
+     * @throws KeyAlreadyExistsException If key2 is already mapped to another value of key1
+     */
+    void upsertByKey1(Object key1, Object key2) throws BridgeTableException;
+
+    /**
+     * Update the value of key1 given the value of key2, or insert the mapping if key2 is not present, as a single operation.
+     * @param key2 Value for key2 to search an update or insert.
+     * @param key1 Value for key1.
+     * @throws BridgeTableException If the mapping cannot be updated or inserted. This can be related to the key types or persistence errors.
+     * @throws KeyAlreadyExistsException If key1 is already mapped to another value of key2
+     */
+    void upsertByKey2(Object key2, Object key1) throws BridgeTableException;
+
     /**
      * Delete the row for the given value of key1.
      * @param key1 The key1 of the table row to delete
@@ -97,6 +126,42 @@ public interface BridgeTable
      */    
     Object retrieveByKey2(Object key2) throws BridgeTableException;
     
+    /**
+     * Retrieves the value of key2 associated to the given key1, or a default value if key1 is not present. Unlike
+     * {@link #retrieveByKey1(Object)} a missing key1 is not an error.
+     * @param key1 Value for key1 to search
+     * @param defaultValue Value to return if key1 is not present
+     * @return The value for key2 or the default value
+     * @throws BridgeTableException If the value for key2 cannot be retrieved. This can be related to the key types or persistence errors.
+     */
+    Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException;
+
+    /**
+     * Retrieves the value of key1 associated to the given key2, or a default value if key2 is not present. Unlike
+     * {@link #retrieveByKey2(Object)} a missing key2 is not an error.
+     * @param key2 Value for key2 to search
+     * @param defaultValue Value to return if key2 is not present
+     * @return The value for key1 or the default value
+     * @throws BridgeTableException If the value for key1 cannot be retrieved. This can be related to the key types or persistence errors.
+     */
+    Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException;
+
+    /**
+     * Retrieves the values of key2 associated to several values of key1 at once.
+     * @param keys1 Values for key1 to search
+     * @return The value for key2 by value for key1, only for the values of key1 present in the bridge table
+     * @throws BridgeTableException If the values for key2 cannot be retrieved. This can be related to the key types or persistence errors.
+     */
+    Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException;
+
+    /**
+     * Retrieves the values of key1 associated to several values of key2 at once.
+     * @param keys2 Values for key2 to search
+     * @return The value for key1 by value for key2, only for the values of key2 present in the bridge table
+     * @throws BridgeTableException If the values for key1 cannot be retrieved. This can be related to the key types or persistence errors.
+     */
+    Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException;
+
     /**
      * @return Whether this bridge table is persistent or not. 
      */
@@ -129,6 +194,56 @@ public interface BridgeTable
      * @throws BridgeTableException If the keys cannot be retrieved. This can be related to the key types or persistence errors.
      */
     List<Object> keys2() throws BridgeTableException;
+
+    /**
+     * Returns a page of the values for key1 in ascending order: the first <code>pageSize</code> values greater than
+     * <code>afterKey1</code>. To walk the whole bridge table start with <b>null</b> and pass the last value of every
+     * page to get the next one, until a page comes back with less than <code>pageSize</code> values. No value is
+     * returned twice, but if the bridge table changes during the walk some values may be missed.
+     * @param afterKey1 The last value of the previous page, or <b>null</b> for the first page
+     * @param pageSize The maximum number of values to return
+     * @return The values for key1 after <code>afterKey1</code>, in ascending order
+     * @throws BridgeTableException If the keys cannot be retrieved. This can be related to the key types or persistence errors.
+     */
+    List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException;
+
+    /**
+     * Returns a page of the values for key2 in ascending order: the first <code>pageSize</code> values greater than
+     * <code>afterKey2</code>. To walk the whole bridge table start with <b>null</b> and pass the last value of every
+     * page to get the next one, until a page comes back with less than <code>pageSize</code> values. No value is
+     * returned twice, but if the bridge table changes during the walk some values may be missed.
+     * @param afterKey2 The last value of the previous page, or <b>null</b> for the first page
+     * @param pageSize The maximum number of values to return
+     * @return The values for key2 after <code>afterKey2</code>, in ascending order
+     * @throws BridgeTableException If the keys cannot be retrieved. This can be related to the key types or persistence errors.
+     */
+    List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException;
+
+    /**
+     * Iterates over the values for key1 without loading all of them at once, so memory use doesn't depend on
+     * the size of the bridge table. Mappings changed while iterating may or may not be returned.
+     * @return An iterator over the values for key1, that must be closed if it's not exhausted
+     * @throws BridgeTableException If the iteration cannot be started. This can be related to persistence errors.
+     */
+    KeyIterator iterateKeys1() throws BridgeTableException;
+
+    /**
+     * Iterates over the values for key2 without loading all of them at once, so memory use doesn't depend on
+     * the size of the bridge table. Mappings changed while iterating may or may not be returned.
+     * @return An iterator over the values for key2, that must be closed if it's not exhausted
+     * @throws BridgeTableException If the iteration cannot be started. This can be related to persistence errors.
+     */
+    KeyIterator iterateKeys2() throws BridgeTableException;
+
+    /**
+     * Applies several writes as a single unit: either all of them are applied or, if one of them fails, none
+     * is. The writes are applied in order, so each of them sees the ones before it.
+     * @param operations The writes
+     * @throws KeyAlreadyExistsException If an operation would map a key that is already mapped.
+     * @throws KeyDoesNotExistException If an operation updates or removes a key that does not exist.
+     * @throws BridgeTableException In case of any other error, which can be related to persistence errors.
+     */
+    void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException;
 }
 
 
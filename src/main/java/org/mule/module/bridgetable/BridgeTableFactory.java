@@ -10,6 +10,7 @@
 
 package org.mule.module.bridgetable;
 
+import java.io.File;
 import java.util.Map;
 
 import javax.sql.DataSource;
@@ -31,6 +32,9 @@ public class BridgeTableFactory
         {
             case DATA_SOURCE: return new DataSourceBridgeTable((DataSource) config.get(type));
             case DEFAULT_VOLATILE: return new InMemoryBridgeTable();
+            case DEFAULT_PERSISTENT: return new LogBridgeTable((File) config.get(type));
+            case OFF_HEAP: return new OffHeapBridgeTable((Integer) config.get(type));
+            case MAPPED_FILE: return new MappedFileBridgeTable((File) config.get(type));
             default: throw new Exception("Unsupported type " + type);
         }
     }
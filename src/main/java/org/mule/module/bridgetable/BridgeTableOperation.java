@@ -0,0 +1,108 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+/**
+ * A write to a bridge table, to be applied together with others by {@link BridgeTable#executeBatch(java.util.List)}.
+ * <p/>
+ * key1 and key2 are the keys of the mapping the operation writes: for updates by key1 key2 is the new key2 and
+ * for updates by key2 key1 is the new key1. Removals by key1 ignore key2 and removals by key2 ignore key1.
+ */
+public class BridgeTableOperation
+{
+    /**
+     * The kinds of operations, named after the methods of {@link BridgeTable} they run
+     */
+    public enum Kind
+    {
+        INSERT,
+        UPDATE_BY_KEY1,
+        UPDATE_BY_KEY2,
+        UPSERT_BY_KEY1,
+        UPSERT_BY_KEY2,
+        REMOVE_BY_KEY1,
+        REMOVE_BY_KEY2;
+    }
+
+    private final Kind kind;
+    private final Object key1;
+    private final Object key2;
+
+    /**
+     * @param kind The kind of operation
+     * @param key1 The value for key1, ignored by removals by key2
+     * @param key2 The value for key2, ignored by removals by key1
+     */
+    public BridgeTableOperation(Kind kind, Object key1, Object key2)
+    {
+        if(kind == null)
+        {
+            throw new IllegalArgumentException("The kind of operation cannot be null");
+        }
+        this.kind = kind;
+        this.key1 = kind == Kind.REMOVE_BY_KEY2 ? null : key1;
+        this.key2 = kind == Kind.REMOVE_BY_KEY1 ? null : key2;
+    }
+
+    /**
+     * @return The kind of operation
+     */
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * @return The value for key1, <b>null</b> for removals by key2
+     */
+    public Object getKey1()
+    {
+        return key1;
+    }
+
+    /**
+     * @return The value for key2, <b>null</b> for removals by key1
+     */
+    public Object getKey2()
+    {
+        return key2;
+    }
+
+    /**
+     * @return Whether the operation names a key1
+     */
+    public boolean hasKey1()
+    {
+        return kind != Kind.REMOVE_BY_KEY2;
+    }
+
+    /**
+     * @return Whether the operation names a key2
+     */
+    public boolean hasKey2()
+    {
+        return kind != Kind.REMOVE_BY_KEY1;
+    }
+
+    @Override
+    public String toString()
+    {
+        switch(kind)
+        {
+            case REMOVE_BY_KEY1:
+                return kind + " [" + key1 + "]";
+            case REMOVE_BY_KEY2:
+                return kind + " [" + key2 + "]";
+            default:
+                return kind + " [" + key1 + "] <=> [" + key2 + "]";
+        }
+    }
+}
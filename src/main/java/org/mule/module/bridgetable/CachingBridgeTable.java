@@ -0,0 +1,804 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bridge table that keeps the most recently used mappings of another bridge table in memory, so that repeated
+ * lookups of a hot working set don't reach the underlying storage (typically a database).
+ * <p/>
+ * Every mapping read from the underlying table is cached in both directions at once, and both directions are
+ * evicted, expired and invalidated together, so a lookup by key2 never returns a mapping that a lookup by key1
+ * would not. At most <code>maxEntries</code> mappings are kept and, if a time to live is set, mappings are read
+ * again from the underlying table once they are older than that.
+ * <p/>
+ * Hits don't lock: the mappings are kept in concurrent maps and a hit only marks its mapping as referenced.
+ * Eviction approximates LRU with the CLOCK algorithm: when the cache is full a hand sweeps over the cached
+ * mappings, giving the referenced ones a second chance (and clearing their mark) and evicting the first one
+ * that was not used since the hand last passed. Only misses and writes take the lock.
+ * <p/>
+ * Writes go to the underlying table and then invalidate the mappings of every key they touch. Lookups that were
+ * running while a write invalidated the cache don't cache what they read, as it may be stale. Writes done by
+ * other instances (e.g. other Mule nodes sharing the database) are not seen until the mapping expires, so set a
+ * time to live if there are any.
+ */
+public class CachingBridgeTable extends AbstractBridgeTable implements Monitorable, ThreadContextAware
+{
+    // Returned by lookups of keys that are not present
+    private static final Object MISSING = new Object();
+    // Concurrent maps don't accept null, so null keys (allowed when empty keys are allowed) are masked
+    private static final Object NULL_KEY = new Object();
+
+    private final BridgeTable delegate;
+    private int maxEntries = 10000;
+    private long timeToLive;
+
+    // Guards changes to the cached mappings, lookups don't take it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentMap<Object, CachedMapping> byKey1 = new ConcurrentHashMap<Object, CachedMapping>();
+    private final ConcurrentMap<Object, CachedMapping> byKey2 = new ConcurrentHashMap<Object, CachedMapping>();
+    // The mappings in the order the clock hand visits them, including invalidated ones until the hand reuses their slot
+    private final List<CachedMapping> clock = new ArrayList<CachedMapping>();
+    private int hand;
+    // Bumped by every invalidation, so that lookups started before it don't cache their results
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * @param delegate The bridge table whose mappings are cached
+     */
+    public CachingBridgeTable(BridgeTable delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#init(java.lang.String, org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType, java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public void init(String tableName,
+                     KeyType key1Type,
+                     KeyType key2Type,
+                     String key1Name,
+                     String key2Name,
+                     boolean autoCreateTable) throws BridgeTableException
+    {
+        this.delegate.init(tableName, key1Type, key2Type, key1Name, key2Name, autoCreateTable);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#destroy()
+     */
+    @Override
+    public void destroy() throws BridgeTableException
+    {
+        clear();
+        this.delegate.destroy();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Object key1, Object key2) throws BridgeTableException
+    {
+        try
+        {
+            this.delegate.insert(key1, key2);
+        }
+        finally
+        {
+            invalidate(key1, key2);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#insertAll(java.util.Map)
+     */
+    @Override
+    public Map<Object, Object> insertAll(Map<Object, Object> pairs) throws BridgeTableException
+    {
+        try
+        {
+            return this.delegate.insertAll(pairs);
+        }
+        finally
+        {
+            this.lock.lock();
+            try
+            {
+                for(Map.Entry<Object, Object> pair : pairs.entrySet())
+                {
+                    remove(this.byKey1.get(mask(pair.getKey())));
+                    remove(this.byKey2.get(mask(pair.getValue())));
+                }
+                this.version.incrementAndGet();
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        try
+        {
+            this.delegate.executeBatch(operations);
+        }
+        finally
+        {
+            this.lock.lock();
+            try
+            {
+                for(BridgeTableOperation operation : operations)
+                {
+                    if(operation.hasKey1())
+                    {
+                        remove(this.byKey1.get(mask(operation.getKey1())));
+                    }
+                    if(operation.hasKey2())
+                    {
+                        remove(this.byKey2.get(mask(operation.getKey2())));
+                    }
+                }
+                this.version.incrementAndGet();
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey1(Object key1, Object newKey2) throws BridgeTableException
+    {
+        try
+        {
+            this.delegate.updateByKey1(key1, newKey2);
+        }
+        finally
+        {
+            invalidate(key1, newKey2);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey2(Object key2, Object newKey1) throws BridgeTableException
+    {
+        try
+        {
+            this.delegate.updateByKey2(key2, newKey1);
+        }
+        finally
+        {
+            invalidate(newKey1, key2);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(Object key1, Object key2) throws BridgeTableException
+    {
+        try
+        {
+            this.delegate.upsertByKey1(key1, key2);
+        }
+        finally
+        {
+            invalidate(key1, key2);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(Object key2, Object key1) throws BridgeTableException
+    {
+        try
+        {
+            this.delegate.upsertByKey2(key2, key1);
+        }
+        finally
+        {
+            invalidate(key1, key2);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey1(java.lang.Object)
+     */
+    @Override
+    public void removeByKey1(Object key1) throws BridgeTableException
+    {
+        try
+        {
+            this.delegate.removeByKey1(key1);
+        }
+        finally
+        {
+            invalidate(key1, MISSING);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey2(java.lang.Object)
+     */
+    @Override
+    public void removeByKey2(Object key2) throws BridgeTableException
+    {
+        try
+        {
+            this.delegate.removeByKey2(key2);
+        }
+        finally
+        {
+            invalidate(MISSING, key2);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1(Object key1) throws BridgeTableException
+    {
+        Object key2 = cachedByKey1(key1);
+        if(key2 == MISSING)
+        {
+            long current = this.version.get();
+            key2 = this.delegate.retrieveByKey1(key1);
+            cache(key1, key2, current);
+        }
+        return key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2(Object key2) throws BridgeTableException
+    {
+        Object key1 = cachedByKey2(key2);
+        if(key1 == MISSING)
+        {
+            long current = this.version.get();
+            key1 = this.delegate.retrieveByKey2(key2);
+            cache(key1, key2, current);
+        }
+        return key1;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        Object key2 = cachedByKey1(key1);
+        if(key2 == MISSING)
+        {
+            long current = this.version.get();
+            key2 = this.delegate.retrieveByKey1OrDefault(key1, MISSING);
+            if(key2 == MISSING)
+            {
+                return defaultValue;
+            }
+            cache(key1, key2, current);
+        }
+        return key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        Object key1 = cachedByKey2(key2);
+        if(key1 == MISSING)
+        {
+            long current = this.version.get();
+            key1 = this.delegate.retrieveByKey2OrDefault(key2, MISSING);
+            if(key1 == MISSING)
+            {
+                return defaultValue;
+            }
+            cache(key1, key2, current);
+        }
+        return key1;
+    }
+
+    /**
+     * Looks up in the underlying table only the keys that are not cached.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        List<Object> missing = new ArrayList<Object>();
+        for(Object key1 : keys1)
+        {
+            Object key2 = cachedByKey1(key1);
+            if(key2 != MISSING)
+            {
+                found.put(key1, key2);
+            }
+            else
+            {
+                missing.add(key1);
+            }
+        }
+
+        if(!missing.isEmpty())
+        {
+            long current = this.version.get();
+            Map<Object, Object> retrieved = this.delegate.retrieveAllByKey1(missing);
+            for(Map.Entry<Object, Object> mapping : retrieved.entrySet())
+            {
+                cache(mapping.getKey(), mapping.getValue(), current);
+            }
+            found.putAll(retrieved);
+        }
+        return found;
+    }
+
+    /**
+     * Looks up in the underlying table only the keys that are not cached.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        List<Object> missing = new ArrayList<Object>();
+        for(Object key2 : keys2)
+        {
+            Object key1 = cachedByKey2(key2);
+            if(key1 != MISSING)
+            {
+                found.put(key2, key1);
+            }
+            else
+            {
+                missing.add(key2);
+            }
+        }
+
+        if(!missing.isEmpty())
+        {
+            long current = this.version.get();
+            Map<Object, Object> retrieved = this.delegate.retrieveAllByKey2(missing);
+            for(Map.Entry<Object, Object> mapping : retrieved.entrySet())
+            {
+                cache(mapping.getValue(), mapping.getKey(), current);
+            }
+            found.putAll(retrieved);
+        }
+        return found;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return this.delegate.isPersistent();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey1(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey1(Object key1) throws BridgeTableException
+    {
+        return cachedByKey1(key1) != MISSING || this.delegate.containsKey1(key1);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey2(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey2(Object key2) throws BridgeTableException
+    {
+        return cachedByKey2(key2) != MISSING || this.delegate.containsKey2(key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys1()
+     */
+    @Override
+    public List<Object> keys1() throws BridgeTableException
+    {
+        return this.delegate.keys1();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys2()
+     */
+    @Override
+    public List<Object> keys2() throws BridgeTableException
+    {
+        return this.delegate.keys2();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        return this.delegate.keys1Page(afterKey1, pageSize);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        return this.delegate.keys2Page(afterKey2, pageSize);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        return this.delegate.iterateKeys1();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        return this.delegate.iterateKeys2();
+    }
+
+    /**
+     * Returns the statistics of the cache, together with the ones of the underlying table if it has any.
+     * @see org.mule.module.bridgetable.Monitorable#getStatistics()
+     */
+    @Override
+    public Map<String, Object> getStatistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        if(this.delegate instanceof Monitorable)
+        {
+            statistics.putAll(((Monitorable) this.delegate).getStatistics());
+        }
+
+        long hits = this.hits.get();
+        long lookups = hits + this.misses.get();
+        statistics.put("cacheSize", Integer.valueOf(this.byKey1.size()));
+        statistics.put("cacheHits", Long.valueOf(hits));
+        statistics.put("cacheMisses", Long.valueOf(lookups - hits));
+        statistics.put("cacheHitRatio", Double.valueOf(lookups == 0 ? 0 : (double) hits / lookups));
+        statistics.put("cacheEvictions", Long.valueOf(this.evictions.get()));
+        statistics.put("cacheExpirations", Long.valueOf(this.expirations.get()));
+        return statistics;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ThreadContextAware#captureContext()
+     */
+    @Override
+    public Object captureContext()
+    {
+        return this.delegate instanceof ThreadContextAware ? ((ThreadContextAware) this.delegate).captureContext() : null;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ThreadContextAware#restoreContext(java.lang.Object)
+     */
+    @Override
+    public Object restoreContext(Object context)
+    {
+        return this.delegate instanceof ThreadContextAware ? ((ThreadContextAware) this.delegate).restoreContext(context) : null;
+    }
+
+    /**
+     * Discards every cached mapping
+     */
+    public void clear()
+    {
+        this.lock.lock();
+        try
+        {
+            this.byKey1.clear();
+            this.byKey2.clear();
+            this.clock.clear();
+            this.hand = 0;
+            this.version.incrementAndGet();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The bridge table whose mappings are cached
+     */
+    public BridgeTable getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * @return Maximum number of mappings kept in memory
+     */
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    /**
+     * @param maxEntries Maximum number of mappings kept in memory. Mappings not used recently are evicted
+     * to make room for new ones.
+     */
+    public void setMaxEntries(int maxEntries)
+    {
+        if(maxEntries < 1)
+        {
+            throw new IllegalArgumentException("Maximum number of entries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return Milliseconds a mapping is kept since it was read from the underlying table, 0 if it doesn't expire
+     */
+    public long getTimeToLive()
+    {
+        return timeToLive;
+    }
+
+    /**
+     * @param timeToLive Milliseconds a mapping is kept since it was read from the underlying table, 0 if it
+     * doesn't expire. Applies to the mappings cached from then on.
+     */
+    public void setTimeToLive(long timeToLive)
+    {
+        if(timeToLive < 0)
+        {
+            throw new IllegalArgumentException("Time to live cannot be negative");
+        }
+        this.timeToLive = timeToLive;
+    }
+
+    /*
+     * Returns the cached value for key1, or MISSING if it's not cached
+     */
+    private Object cachedByKey1(Object key1)
+    {
+        CachedMapping mapping = this.byKey1.get(mask(key1));
+        return hit(mapping) ? mapping.key2 : MISSING;
+    }
+
+    /*
+     * Returns the cached value for key2, or MISSING if it's not cached
+     */
+    private Object cachedByKey2(Object key2)
+    {
+        CachedMapping mapping = this.byKey2.get(mask(key2));
+        return hit(mapping) ? mapping.key1 : MISSING;
+    }
+
+    /*
+     * Counts a lookup, marking the mapping as referenced or dropping it if it has expired
+     */
+    private boolean hit(CachedMapping mapping)
+    {
+        if(mapping != null && mapping.expiresAt != 0 && System.nanoTime() - mapping.expiresAt > 0)
+        {
+            this.lock.lock();
+            try
+            {
+                if(!mapping.removed)
+                {
+                    remove(mapping);
+                    this.expirations.incrementAndGet();
+                }
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+            mapping = null;
+        }
+
+        if(mapping == null)
+        {
+            this.misses.incrementAndGet();
+            return false;
+        }
+        // Only written when it changes, so hits on a hot mapping don't keep invalidating its cache line
+        if(!mapping.referenced)
+        {
+            mapping.referenced = true;
+        }
+        this.hits.incrementAndGet();
+        return true;
+    }
+
+    /*
+     * Caches a mapping read from the underlying table, unless the cache was invalidated since the read started
+     */
+    private void cache(Object key1, Object key2, long readVersion)
+    {
+        this.lock.lock();
+        try
+        {
+            if(readVersion != this.version.get())
+            {
+                return;
+            }
+
+            remove(this.byKey1.get(mask(key1)));
+            remove(this.byKey2.get(mask(key2)));
+
+            CachedMapping mapping = new CachedMapping(key1, key2, this.timeToLive == 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeToLive));
+            admit(mapping);
+            this.byKey1.put(mask(key1), mapping);
+            this.byKey2.put(mask(key2), mapping);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Finds a slot of the clock for a new mapping, evicting the first mapping the hand finds unreferenced
+     * once the cache is full. Called with the lock held.
+     */
+    private void admit(CachedMapping mapping)
+    {
+        if(this.clock.size() < this.maxEntries)
+        {
+            this.clock.add(mapping);
+            return;
+        }
+
+        while(true)
+        {
+            if(this.hand >= this.clock.size())
+            {
+                this.hand = 0;
+            }
+            CachedMapping candidate = this.clock.get(this.hand);
+            boolean shrinking = this.clock.size() > this.maxEntries;
+            if(!candidate.removed && candidate.referenced && !shrinking)
+            {
+                // Second chance
+                candidate.referenced = false;
+                this.hand++;
+                continue;
+            }
+
+            if(!candidate.removed)
+            {
+                remove(candidate);
+                this.evictions.incrementAndGet();
+            }
+            if(shrinking)
+            {
+                // maxEntries was lowered, drop the slot
+                int last = this.clock.size() - 1;
+                this.clock.set(this.hand, this.clock.get(last));
+                this.clock.remove(last);
+                continue;
+            }
+            this.clock.set(this.hand, mapping);
+            this.hand++;
+            return;
+        }
+    }
+
+    /*
+     * Drops the mappings of key1 and key2, either of which may be MISSING
+     */
+    private void invalidate(Object key1, Object key2)
+    {
+        this.lock.lock();
+        try
+        {
+            if(key1 != MISSING)
+            {
+                remove(this.byKey1.get(mask(key1)));
+            }
+            if(key2 != MISSING)
+            {
+                remove(this.byKey2.get(mask(key2)));
+            }
+            this.version.incrementAndGet();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Drops a mapping in both directions. Its slot in the clock is reused when the hand gets there. Called with
+     * the lock held.
+     */
+    private void remove(CachedMapping mapping)
+    {
+        if(mapping != null && !mapping.removed)
+        {
+            mapping.removed = true;
+            this.byKey1.remove(mask(mapping.key1), mapping);
+            this.byKey2.remove(mask(mapping.key2), mapping);
+        }
+    }
+
+    private static Object mask(Object key)
+    {
+        return key == null ? NULL_KEY : key;
+    }
+
+    /*
+     * A mapping of the underlying table, indexed by both keys
+     */
+    private static final class CachedMapping
+    {
+        private final Object key1;
+        private final Object key2;
+        // System.nanoTime() when it expires, 0 if it doesn't
+        private final long expiresAt;
+        // Used since the clock hand last passed
+        private volatile boolean referenced;
+        // No longer in the maps, changed with the lock held
+        private volatile boolean removed;
+
+        CachedMapping(Object key1, Object key2, long expiresAt)
+        {
+            this.key1 = key1;
+            this.key2 = key2;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
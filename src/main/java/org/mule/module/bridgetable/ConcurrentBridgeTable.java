@@ -0,0 +1,1058 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Concrete implementation of a bridge table that uses two concurrent maps in memory to store key mappings.
+ * <p/>
+ * Lookups never block: they go straight to the concurrent maps. Writes lock only the stripes of the keys
+ * they touch (key1, key2 and, for updates and removals, the key being replaced), always in ascending stripe
+ * order, so writers working on unrelated keys never wait for each other and <code>direct</code> and
+ * <code>reverse</code> are always modified together.
+ * <p/>
+ * The first call to {@link #keys1Page(Object, int)} or {@link #keys2Page(Object, int)} builds a sorted index of
+ * each key, which writes keep up to date from then on, so every page costs O(log n + pageSize) instead of a pass
+ * over the keys. Tables that are never paged don't pay for the index.
+ */
+public class ConcurrentBridgeTable extends AbstractBridgeTable
+{
+    private static final Logger LOGGER = Logger.getLogger(ConcurrentBridgeTable.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    // Concurrent maps don't accept null, so null keys (allowed when empty keys are allowed) are masked
+    private static final Object NULL_KEY = new Object();
+
+    private final ReentrantLock[] locks;
+    // Set while the current thread applies a batch, which runs afterWrite once at the end
+    private final ThreadLocal<Boolean> batching = new ThreadLocal<Boolean>();
+
+    // key1 => key2 mapping
+    private IndexedMap direct;
+    // key2 => key1 mapping
+    private IndexedMap reverse;
+
+    private String tableName;
+    /**
+     *
+     */
+    public ConcurrentBridgeTable()
+    {
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+        for(int i=0; i < LOCK_STRIPES; i++)
+        {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#init(java.lang.String, org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType, java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public void init(String tableName,
+                     KeyType key1Type,
+                     KeyType key2Type1,
+                     String key1Name,
+                     String key2Name,
+                     boolean autoCreateTable) throws BridgeTableException
+    {
+        this.tableName = tableName;
+        this.direct = new IndexedMap();
+        this.reverse = new IndexedMap();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#destroy()
+     */
+    @Override
+    public void destroy() throws BridgeTableException
+    {
+        this.direct.clear();
+        this.reverse.clear();
+        this.direct = null;
+        this.reverse = null;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Object key1, Object key2) throws BridgeTableException
+    {
+        put(key1, key2);
+        endWrite();
+    }
+
+    /**
+     * Inserts the mappings one by one but runs {@link #afterWrite()} once, after the last of them.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#insertAll(java.util.Map)
+     */
+    @Override
+    public Map<Object, Object> insertAll(Map<Object, Object> pairs) throws BridgeTableException
+    {
+        Map<Object, Object> conflicts = new LinkedHashMap<Object, Object>();
+        boolean written = false;
+        boolean completed = false;
+        try
+        {
+            for(Map.Entry<Object, Object> pair : pairs.entrySet())
+            {
+                try
+                {
+                    put(pair.getKey(), pair.getValue());
+                    written = true;
+                }
+                catch(KeyAlreadyExistsException ex)
+                {
+                    conflicts.put(pair.getKey(), pair.getValue());
+                }
+            }
+            completed = true;
+        }
+        finally
+        {
+            if(written && !completed)
+            {
+                endFailedWrite();
+            }
+        }
+        if(written)
+        {
+            endWrite();
+        }
+        return conflicts;
+    }
+
+    /*
+     * Inserts a mapping without running afterWrite
+     */
+    private void put(Object key1, Object key2) throws BridgeTableException
+    {
+        Object k1 = mask(key1);
+        Object k2 = mask(key2);
+
+        int[] stripes = lock(k1, k2);
+        try
+        {
+            boolean containsKey1 = this.direct.containsKey(k1);
+            boolean containsKey2 = this.reverse.containsKey(k2);
+
+            if(containsKey1 && containsKey2)
+            {
+                throw new KeyAlreadyExistsException("The row [key1, key2] = [" + key1 + ", " + key2 + "] already exists in " + this.tableName);
+            }
+            else if(containsKey1)
+            {
+                throw new KeyAlreadyExistsException("The value [key1] = [" + key1 + "] already exists in " + this.tableName);
+            }
+            else if(containsKey2)
+            {
+                throw new KeyAlreadyExistsException("The value [key2] = [" + key2 + "] already exists in " + this.tableName);
+            }
+            else
+            {
+                checkIndexable(this.direct, k1, key1, "key1");
+                checkIndexable(this.reverse, k2, key2, "key2");
+                onPut(key1, key2);
+                this.direct.put(k1, k2);
+                this.reverse.put(k2, k1);
+            }
+        }
+        finally
+        {
+            unlock(stripes);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey1(Object key1, Object newKey2) throws BridgeTableException
+    {
+        Object k1 = mask(key1);
+        Object newK2 = mask(newKey2);
+
+        while(true)
+        {
+            Object oldK2 = this.direct.get(k1);
+            if(oldK2 == null)
+            {
+                throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+            }
+
+            int[] stripes = lock(k1, oldK2, newK2);
+            try
+            {
+                // Somebody changed key1 while we were acquiring the locks, try again
+                if(!oldK2.equals(this.direct.get(k1)))
+                {
+                    continue;
+                }
+
+                if(!oldK2.equals(newK2))
+                {
+                    if(this.reverse.containsKey(newK2))
+                    {
+                        throw new KeyAlreadyExistsException("The value [key2] = [" + newKey2 + "] already exists in " + this.tableName);
+                    }
+                    checkIndexable(this.reverse, newK2, newKey2, "key2");
+                    onPut(key1, newKey2);
+                    this.reverse.put(newK2, k1);
+                    this.direct.put(k1, newK2);
+                    this.reverse.remove(oldK2);
+                }
+                break;
+            }
+            finally
+            {
+                unlock(stripes);
+            }
+        }
+        endWrite();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey2(Object key2, Object newKey1) throws BridgeTableException
+    {
+        Object k2 = mask(key2);
+        Object newK1 = mask(newKey1);
+
+        while(true)
+        {
+            Object oldK1 = this.reverse.get(k2);
+            if(oldK1 == null)
+            {
+                throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+            }
+
+            int[] stripes = lock(k2, oldK1, newK1);
+            try
+            {
+                // Somebody changed key2 while we were acquiring the locks, try again
+                if(!oldK1.equals(this.reverse.get(k2)))
+                {
+                    continue;
+                }
+
+                if(!oldK1.equals(newK1))
+                {
+                    if(this.direct.containsKey(newK1))
+                    {
+                        throw new KeyAlreadyExistsException("The value [key1] = [" + newKey1 + "] already exists in " + this.tableName);
+                    }
+                    checkIndexable(this.direct, newK1, newKey1, "key1");
+                    onPut(newKey1, key2);
+                    this.direct.put(newK1, k2);
+                    this.reverse.put(k2, newK1);
+                    this.direct.remove(oldK1);
+                }
+                break;
+            }
+            finally
+            {
+                unlock(stripes);
+            }
+        }
+        endWrite();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(Object key1, Object key2) throws BridgeTableException
+    {
+        Object k1 = mask(key1);
+        Object newK2 = mask(key2);
+
+        while(true)
+        {
+            Object oldK2 = this.direct.get(k1);
+            int[] stripes = oldK2 == null ? lock(k1, newK2) : lock(k1, oldK2, newK2);
+            try
+            {
+                // Somebody inserted, changed or removed key1 while we were acquiring the locks, try again
+                Object currentK2 = this.direct.get(k1);
+                if(oldK2 == null ? currentK2 != null : !oldK2.equals(currentK2))
+                {
+                    continue;
+                }
+
+                if(!newK2.equals(oldK2))
+                {
+                    if(this.reverse.containsKey(newK2))
+                    {
+                        throw new KeyAlreadyExistsException("The value [key2] = [" + key2 + "] already exists in " + this.tableName);
+                    }
+                    if(oldK2 == null)
+                    {
+                        checkIndexable(this.direct, k1, key1, "key1");
+                    }
+                    checkIndexable(this.reverse, newK2, key2, "key2");
+                    onPut(key1, key2);
+                    this.reverse.put(newK2, k1);
+                    this.direct.put(k1, newK2);
+                    if(oldK2 != null)
+                    {
+                        this.reverse.remove(oldK2);
+                    }
+                }
+                break;
+            }
+            finally
+            {
+                unlock(stripes);
+            }
+        }
+        endWrite();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(Object key2, Object key1) throws BridgeTableException
+    {
+        Object k2 = mask(key2);
+        Object newK1 = mask(key1);
+
+        while(true)
+        {
+            Object oldK1 = this.reverse.get(k2);
+            int[] stripes = oldK1 == null ? lock(k2, newK1) : lock(k2, oldK1, newK1);
+            try
+            {
+                // Somebody inserted, changed or removed key2 while we were acquiring the locks, try again
+                Object currentK1 = this.reverse.get(k2);
+                if(oldK1 == null ? currentK1 != null : !oldK1.equals(currentK1))
+                {
+                    continue;
+                }
+
+                if(!newK1.equals(oldK1))
+                {
+                    if(this.direct.containsKey(newK1))
+                    {
+                        throw new KeyAlreadyExistsException("The value [key1] = [" + key1 + "] already exists in " + this.tableName);
+                    }
+                    if(oldK1 == null)
+                    {
+                        checkIndexable(this.reverse, k2, key2, "key2");
+                    }
+                    checkIndexable(this.direct, newK1, key1, "key1");
+                    onPut(key1, key2);
+                    this.direct.put(newK1, k2);
+                    this.reverse.put(k2, newK1);
+                    if(oldK1 != null)
+                    {
+                        this.direct.remove(oldK1);
+                    }
+                }
+                break;
+            }
+            finally
+            {
+                unlock(stripes);
+            }
+        }
+        endWrite();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey1(java.lang.Object)
+     */
+    @Override
+    public void removeByKey1(Object key1) throws BridgeTableException
+    {
+        Object k1 = mask(key1);
+
+        while(true)
+        {
+            Object k2 = this.direct.get(k1);
+            if(k2 == null)
+            {
+                throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+            }
+
+            int[] stripes = lock(k1, k2);
+            try
+            {
+                if(k2.equals(this.direct.get(k1)))
+                {
+                    onRemove(key1, unmask(k2));
+                    this.direct.remove(k1);
+                    this.reverse.remove(k2);
+                    break;
+                }
+            }
+            finally
+            {
+                unlock(stripes);
+            }
+        }
+        endWrite();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey2(java.lang.Object)
+     */
+    @Override
+    public void removeByKey2(Object key2) throws BridgeTableException
+    {
+        Object k2 = mask(key2);
+
+        while(true)
+        {
+            Object k1 = this.reverse.get(k2);
+            if(k1 == null)
+            {
+                throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+            }
+
+            int[] stripes = lock(k2, k1);
+            try
+            {
+                if(k1.equals(this.reverse.get(k2)))
+                {
+                    onRemove(unmask(k1), key2);
+                    this.reverse.remove(k2);
+                    this.direct.remove(k1);
+                    break;
+                }
+            }
+            finally
+            {
+                unlock(stripes);
+            }
+        }
+        endWrite();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1(Object key1) throws BridgeTableException
+    {
+        Object key2 = this.direct.get(mask(key1));
+        if(key2 == null)
+        {
+            throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+        }
+        else
+        {
+            return unmask(key2);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2(Object key2) throws BridgeTableException
+    {
+        Object key1 = this.reverse.get(mask(key2));
+        if(key1 == null)
+        {
+            throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+        }
+        else
+        {
+            return unmask(key1);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        Object key2 = this.direct.get(mask(key1));
+        return key2 == null ? defaultValue : unmask(key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        Object key1 = this.reverse.get(mask(key2));
+        return key1 == null ? defaultValue : unmask(key1);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        for(Object key1 : keys1)
+        {
+            Object key2 = this.direct.get(mask(key1));
+            if(key2 != null)
+            {
+                found.put(key1, unmask(key2));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        for(Object key2 : keys2)
+        {
+            Object key1 = this.reverse.get(mask(key2));
+            if(key1 != null)
+            {
+                found.put(key2, unmask(key1));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return false;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey1(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey1(Object key1) throws BridgeTableException
+    {
+        return this.direct.containsKey(mask(key1));
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey2(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey2(Object key2) throws BridgeTableException
+    {
+        return this.reverse.containsKey(mask(key2));
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys1()
+     */
+    @Override
+    public List<Object> keys1() throws BridgeTableException
+    {
+        return unmask(this.direct.keySet());
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys2()
+     */
+    @Override
+    public List<Object> keys2() throws BridgeTableException
+    {
+        return unmask(this.reverse.keySet());
+    }
+
+    /**
+     * The iterator is weakly consistent, as the ones of {@link ConcurrentHashMap}.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        return unmaskingIterator(this.direct.keySet().iterator());
+    }
+
+    /**
+     * The iterator is weakly consistent, as the ones of {@link ConcurrentHashMap}.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        return unmaskingIterator(this.reverse.keySet().iterator());
+    }
+
+    /**
+     * Seeks the page in the sorted index of key1, built by the first call.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        return page(index().direct.index, afterKey1, pageSize);
+    }
+
+    /**
+     * Seeks the page in the sorted index of key2, built by the first call.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        return page(index().reverse.index, afterKey2, pageSize);
+    }
+
+    /**
+     * Invoked before the mapping key1 <=> key2 is stored (by an insert or an update), once the operation has
+     * been validated and while holding the locks of every key involved. Throwing an exception aborts the
+     * operation and leaves the table untouched.
+     * @param key1 Value for key1
+     * @param key2 Value for key2
+     * @throws BridgeTableException To abort the operation
+     */
+    protected void onPut(Object key1, Object key2) throws BridgeTableException
+    {
+    }
+
+    /**
+     * Invoked before the mapping key1 <=> key2 is removed, while holding the locks of both keys. Throwing
+     * an exception aborts the operation and leaves the table untouched.
+     * @param key1 Value for key1
+     * @param key2 Value for key2
+     * @throws BridgeTableException To abort the operation
+     */
+    protected void onRemove(Object key1, Object key2) throws BridgeTableException
+    {
+    }
+
+    /**
+     * Invoked once an insert, update, removal or batch has completed and its locks have been released, so waiting
+     * here (e.g. for the change to be durable) doesn't hold back writers of the same keys. Throwing an
+     * exception fails the operation, even though its change is already visible.
+     * @throws BridgeTableException To report a failure
+     */
+    protected void afterWrite() throws BridgeTableException
+    {
+    }
+
+    /**
+     * Stores the mapping key1 <=> key2 without any validation or hook, dropping the mappings key1 and key2
+     * previously had. Meant to rebuild the table state while it's being initialized.
+     * @param key1 Value for key1
+     * @param key2 Value for key2
+     */
+    protected void load(Object key1, Object key2)
+    {
+        Object k1 = mask(key1);
+        Object k2 = mask(key2);
+
+        Object oldK2 = this.direct.put(k1, k2);
+        if(oldK2 != null && !oldK2.equals(k2))
+        {
+            this.reverse.remove(oldK2, k1);
+        }
+        Object oldK1 = this.reverse.put(k2, k1);
+        if(oldK1 != null && !oldK1.equals(k1))
+        {
+            this.direct.remove(oldK1, k2);
+        }
+    }
+
+    /**
+     * Removes the mappings of key1 and key2, if any, without any validation or hook. Meant to rebuild the
+     * table state while it's being initialized.
+     * @param key1 Value for key1
+     * @param key2 Value for key2
+     */
+    protected void unload(Object key1, Object key2)
+    {
+        Object k1 = mask(key1);
+        Object k2 = mask(key2);
+
+        Object oldK2 = this.direct.remove(k1);
+        if(oldK2 != null)
+        {
+            this.reverse.remove(oldK2, k1);
+        }
+        Object oldK1 = this.reverse.remove(k2);
+        if(oldK1 != null)
+        {
+            this.direct.remove(oldK1, k2);
+        }
+    }
+
+    /**
+     * Iterates over the key1 => key2 mappings without blocking writers. The iteration is weakly consistent:
+     * it reflects every mapping that was stored before it started and may or may not reflect the changes
+     * made while it runs.
+     * @return The mappings
+     */
+    protected Iterator<Map.Entry<Object, Object>> mappings()
+    {
+        final Iterator<Map.Entry<Object, Object>> entries = this.direct.entrySet().iterator();
+        return new Iterator<Map.Entry<Object, Object>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Object, Object> next()
+            {
+                Map.Entry<Object, Object> entry = entries.next();
+                return new AbstractMap.SimpleImmutableEntry<Object, Object>(unmask(entry.getKey()), unmask(entry.getValue()));
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Applies the batch while holding every lock of the table, so no other write is interleaved with its
+     * operations, and runs {@link #afterWrite()} once, after the last of them, even if the batch fails and is
+     * undone. Lookups don't lock, so they may see the batch partially applied.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        lockAll();
+        this.batching.set(Boolean.TRUE);
+        boolean applied = false;
+        try
+        {
+            super.executeBatch(operations);
+            applied = true;
+        }
+        finally
+        {
+            this.batching.remove();
+            unlockAll();
+            if(!applied)
+            {
+                endFailedWrite();
+            }
+        }
+        afterWrite();
+    }
+
+    /**
+     * Acquires every lock of the table, waiting for the writes in progress to complete and keeping new
+     * writes out until {@link #unlockAll()} is called. Lookups are not affected.
+     */
+    protected void lockAll()
+    {
+        for(int i=0; i < LOCK_STRIPES; i++)
+        {
+            this.locks[i].lock();
+        }
+    }
+
+    /**
+     * Releases the locks acquired by {@link #lockAll()}
+     */
+    protected void unlockAll()
+    {
+        for(int i=LOCK_STRIPES - 1; i >= 0; i--)
+        {
+            this.locks[i].unlock();
+        }
+    }
+
+    /*
+     * Builds the sorted indexes the first time they're needed. Writers are held back meanwhile, so no key is
+     * stored after the index has passed it and before the index is published.
+     */
+    private ConcurrentBridgeTable index()
+    {
+        if(this.direct.index == null)
+        {
+            lockAll();
+            try
+            {
+                if(this.direct.index == null)
+                {
+                    this.reverse.buildIndex();
+                    this.direct.buildIndex();
+                }
+            }
+            finally
+            {
+                unlockAll();
+            }
+        }
+        return this;
+    }
+
+    private static List<Object> page(ConcurrentSkipListSet<Object> index, Object afterKey, int pageSize)
+    {
+        if(pageSize < 1)
+        {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+        Iterator<Object> keys = (afterKey == null ? index : index.tailSet(afterKey, false)).iterator();
+        List<Object> result = new ArrayList<Object>(Math.min(pageSize, 1024));
+        while(result.size() < pageSize && keys.hasNext())
+        {
+            result.add(keys.next());
+        }
+        return result;
+    }
+
+    /*
+     * Rejects a new key that the sorted index of the map, if built, cannot hold, before anything is changed
+     */
+    private void checkIndexable(IndexedMap map, Object masked, Object key, String keyName) throws BridgeTableException
+    {
+        if(!map.indexable(masked))
+        {
+            throw new BridgeTableException("The value [" + keyName + "] = [" + key + "] cannot be sorted with the other values for " + keyName + " in " + this.tableName);
+        }
+    }
+
+    /*
+     * Locks the stripes of the given (masked) keys in ascending order and returns them
+     */
+    private int[] lock(Object... keys)
+    {
+        int[] stripes = new int[keys.length];
+        for(int i=0; i < keys.length; i++)
+        {
+            stripes[i] = stripe(keys[i]);
+        }
+        Arrays.sort(stripes);
+
+        for(int i=0; i < stripes.length; i++)
+        {
+            if(i == 0 || stripes[i] != stripes[i - 1])
+            {
+                this.locks[stripes[i]].lock();
+            }
+        }
+        return stripes;
+    }
+
+    /*
+     * Releases the stripes acquired by lock(Object...)
+     */
+    private void unlock(int[] stripes)
+    {
+        for(int i=stripes.length - 1; i >= 0; i--)
+        {
+            if(i == 0 || stripes[i] != stripes[i - 1])
+            {
+                this.locks[stripes[i]].unlock();
+            }
+        }
+    }
+
+    /*
+     * Runs afterWrite, unless a batch will run it once it's done
+     */
+    private void endWrite() throws BridgeTableException
+    {
+        if(this.batching.get() == null)
+        {
+            afterWrite();
+        }
+    }
+
+    /*
+     * Runs afterWrite for a bulk write that failed after writing some of its changes (and maybe undoing them),
+     * so the hook sees every write it was told about. Its own failure is logged, not to hide the original one.
+     */
+    private void endFailedWrite()
+    {
+        try
+        {
+            endWrite();
+        }
+        catch(BridgeTableException ex)
+        {
+            LOGGER.warn("Could not complete a failed write on " + this.tableName, ex);
+        }
+    }
+
+    private int stripe(Object key)
+    {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (LOCK_STRIPES - 1);
+    }
+
+    private static Object mask(Object key)
+    {
+        return key == null ? NULL_KEY : key;
+    }
+
+    private static Object unmask(Object key)
+    {
+        return key == NULL_KEY ? null : key;
+    }
+
+    private static KeyIterator unmaskingIterator(final Iterator<Object> keys)
+    {
+        return new KeyIterator()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return keys.hasNext();
+            }
+
+            @Override
+            public Object next()
+            {
+                return unmask(keys.next());
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    private static List<Object> unmask(Iterable<Object> keys)
+    {
+        List<Object> result = new ArrayList<Object>();
+        for(Object key : keys)
+        {
+            result.add(unmask(key));
+        }
+        return result;
+    }
+
+    /**
+     * Concurrent map that, once {@link #buildIndex()} has been called, keeps its keys sorted as well. The null
+     * key mask is not comparable and is left out of the index, as null keys are left out of pages.
+     */
+    private static class IndexedMap extends ConcurrentHashMap<Object, Object>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private volatile ConcurrentSkipListSet<Object> index;
+
+        IndexedMap()
+        {
+            super(16, 0.75f, LOCK_STRIPES);
+        }
+
+        void buildIndex()
+        {
+            ConcurrentSkipListSet<Object> sorted = new ConcurrentSkipListSet<Object>();
+            for(Object key : keySet())
+            {
+                if(key != NULL_KEY)
+                {
+                    sorted.add(key);
+                }
+            }
+            this.index = sorted;
+        }
+
+        /*
+         * Whether the index, if built, can hold the key along with the ones it has
+         */
+        boolean indexable(Object key)
+        {
+            ConcurrentSkipListSet<Object> sorted = this.index;
+            if(sorted == null || key == NULL_KEY)
+            {
+                return true;
+            }
+            try
+            {
+                sorted.contains(key);
+                return true;
+            }
+            catch(ClassCastException ex)
+            {
+                return false;
+            }
+        }
+
+        @Override
+        public Object put(Object key, Object value)
+        {
+            // Indexed first, so a key that cannot be compared with the others is rejected before it's stored
+            ConcurrentSkipListSet<Object> sorted = this.index;
+            if(sorted != null && key != NULL_KEY)
+            {
+                sorted.add(key);
+            }
+            return super.put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key)
+        {
+            Object previous = super.remove(key);
+            ConcurrentSkipListSet<Object> sorted = this.index;
+            if(previous != null && sorted != null)
+            {
+                sorted.remove(key);
+            }
+            return previous;
+        }
+
+        @Override
+        public boolean remove(Object key, Object value)
+        {
+            boolean removed = super.remove(key, value);
+            ConcurrentSkipListSet<Object> sorted = this.index;
+            if(removed && sorted != null)
+            {
+                sorted.remove(key);
+            }
+            return removed;
+        }
+
+        @Override
+        public void clear()
+        {
+            super.clear();
+            this.index = null;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter with 4 bit counters instead of bits, so that keys can be removed as well as added. It never
+ * answers that a key that was added (and not removed) is missing, and answers that a key that was never added
+ * is present with about the configured probability as long as it doesn't hold more than the expected number of
+ * keys.
+ * <p/>
+ * Counters are packed 16 to a long and updated with compare and set, so the filter can be used by several
+ * threads without locking. A counter that reaches 15 sticks there, as its real count is no longer known:
+ * removals never decrement it, which keeps the filter free of false negatives at the cost of a few more
+ * false positives.
+ */
+class CountingBloomFilter
+{
+    private static final int COUNTERS_PER_WORD = 16;
+    private static final long MAX_COUNT = 15;
+
+    private final AtomicLongArray words;
+    private final long counters;
+    private final int hashFunctions;
+
+    /**
+     * @param expectedKeys Number of keys the filter is sized for
+     * @param falsePositiveRate Probability of answering that a missing key is present when the filter holds the
+     * expected number of keys, between 0 and 1
+     */
+    CountingBloomFilter(long expectedKeys, double falsePositiveRate)
+    {
+        if(expectedKeys < 1)
+        {
+            throw new IllegalArgumentException("Expected number of keys must be at least 1");
+        }
+        if(falsePositiveRate <= 0 || falsePositiveRate >= 1)
+        {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+        }
+
+        // Optimal size and number of hash functions for a plain Bloom filter
+        double ln2 = Math.log(2);
+        long size = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long words = Math.max(1, (size + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+        if(words > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Bloom filter for " + expectedKeys + " keys is too big");
+        }
+
+        this.words = new AtomicLongArray((int) words);
+        this.counters = words * COUNTERS_PER_WORD;
+        this.hashFunctions = Math.max(1, (int) Math.round((double) this.counters / expectedKeys * ln2));
+    }
+
+    /**
+     * @param hash 64 bit hash of the key
+     */
+    void add(long hash)
+    {
+        for(int i=0; i < this.hashFunctions; i++)
+        {
+            long counter = counter(hash, i);
+            int word = (int) (counter / COUNTERS_PER_WORD);
+            int shift = (int) (counter % COUNTERS_PER_WORD) << 2;
+            while(true)
+            {
+                long current = this.words.get(word);
+                if(((current >>> shift) & MAX_COUNT) == MAX_COUNT
+                   || this.words.compareAndSet(word, current, current + (1L << shift)))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param hash 64 bit hash of a key that was added before
+     */
+    void remove(long hash)
+    {
+        for(int i=0; i < this.hashFunctions; i++)
+        {
+            long counter = counter(hash, i);
+            int word = (int) (counter / COUNTERS_PER_WORD);
+            int shift = (int) (counter % COUNTERS_PER_WORD) << 2;
+            while(true)
+            {
+                long current = this.words.get(word);
+                long count = (current >>> shift) & MAX_COUNT;
+                if(count == MAX_COUNT || count == 0
+                   || this.words.compareAndSet(word, current, current - (1L << shift)))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param hash 64 bit hash of the key
+     * @return <b>false</b> if the key is certainly not in the filter, <b>true</b> if it may be
+     */
+    boolean mightContain(long hash)
+    {
+        for(int i=0; i < this.hashFunctions; i++)
+        {
+            long counter = counter(hash, i);
+            int shift = (int) (counter % COUNTERS_PER_WORD) << 2;
+            if(((this.words.get((int) (counter / COUNTERS_PER_WORD)) >>> shift) & MAX_COUNT) == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Bytes taken by the counters
+     */
+    long getMemoryBytes()
+    {
+        return (long) this.words.length() * 8;
+    }
+
+    /**
+     * @return Number of counters set for every key
+     */
+    int getHashFunctions()
+    {
+        return hashFunctions;
+    }
+
+    /*
+     * Counter for the i-th hash function, combining the hash with a second one derived from it
+     * (Kirsch-Mitzenmacher) so that a single hash of the key is enough
+     */
+    private long counter(long hash, int i)
+    {
+        long combined = hash + i * (Long.rotateLeft(hash, 32) * 0x9e3779b97f4a7c15L | 1);
+        return (combined & Long.MAX_VALUE) % this.counters;
+    }
+}
@@ -10,30 +10,91 @@
 
 package org.mule.module.bridgetable;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Types;
+import java.sql.Savepoint;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.mule.module.bridgetable.dialect.BulkLoadDialect;
 import org.mule.module.bridgetable.dialect.DatabaseDialect;
 import org.mule.module.bridgetable.dialect.DatabaseDialectFactory;
+import org.mule.module.bridgetable.dialect.SchemaLayoutDialect;
 
 /**
  * Concrete implementation of a bridge table that uses a JDBC compliant database to store key mappings.
+ * <p/>
+ * The SQL statements are built by the dialect once, when the table is initialized, and run through a
+ * {@link JdbcExecutor} that closes every statement it prepares. When connections are pinned the executor keeps
+ * a few idle connections and their prepared statements between operations.
+ * <p/>
+ * {@link #insertAll(Map)} sends the inserts in batches of <code>batchSize</code> statements within a single
+ * transaction. When a batch fails it's rolled back to the savepoint taken before it and its inserts are retried
+ * one by one, so the rows that conflict are reported instead of failing the whole transaction.
+ * <p/>
+ * {@link #retrieveAllByKey1(Collection)} and {@link #retrieveAllByKey2(Collection)} look the keys up with
+ * <code>IN (...)</code> queries of up to <code>inChunkSize</code> keys. Chunks are padded by repeating their
+ * last key to a power of two, so a handful of statements serve any number of keys.
+ * <p/>
+ * {@link #iterateKeys1()} and {@link #iterateKeys2()} stream the keys from a forward only result set on a
+ * dedicated connection, so memory use doesn't grow with the size of the table.
+ * <p/>
+ * When read replicas are configured the lookups, key listings and iterations go to them, picked with the
+ * configured {@link ReadSelection}. A thread that has written reads from the primary database for
+ * <code>readAfterWriteWindow</code> milliseconds, so it sees its own writes in spite of replication lag. The
+ * window follows the operations the thread hands over to an {@link ExecutorAsyncBridgeTable}.
  */
-public class DataSourceBridgeTable implements BridgeTable
+public class DataSourceBridgeTable extends AbstractBridgeTable implements Monitorable, ThreadContextAware
 {
     private static final Logger LOGGER = Logger.getLogger(DataSourceBridgeTable.class);
     private DataSource ds;
     private String tableName;
     private DatabaseDialect dialect;
+    private boolean pinConnections;
+    private int batchSize = 1000;
+    private int inChunkSize = 500;
+    private int fetchSize = 1000;
+    private SchemaLayout schemaLayout = SchemaLayout.STANDARD;
+    private boolean migrateSchema;
+    private List<DataSource> readDataSources = Collections.emptyList();
+    private ReadSelection readSelection = ReadSelection.ROUND_ROBIN;
+    private long readAfterWriteWindow = 1000;
+    private JdbcExecutor executor;
+    private ReadReplicas replicas;
+
+    // SQL built by the dialect at init
+    private String insertSQL;
+    private String updateByKey1SQL;
+    private String updateByKey2SQL;
+    private String upsertByKey1SQL;
+    private String upsertByKey2SQL;
+    private String deleteByKey1SQL;
+    private String deleteByKey2SQL;
+    private String lookupByKey1SQL;
+    private String lookupByKey2SQL;
+    private String existsByKey1SQL;
+    private String existsByKey2SQL;
+    private String allKey1SQL;
+    private String allKey2SQL;
+    private String firstKey1PageSQL;
+    private String nextKey1PageSQL;
+    private String firstKey2PageSQL;
+    private String nextKey2PageSQL;
     
     /**
      * 
@@ -51,7 +112,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            int result = executeUpdate(dialect.getInsertSQL(getTableName()), new Object[] {key1, key2});
+            int result = executeUpdate(insertSQL, new Object[] {key1, key2});
             
             LOGGER.info(result + " row/s were inserted for key1 = [" + key1 + "] and key2 = [" + key2 + "] in " + getTableName() + ".");
         }
@@ -63,6 +124,148 @@ public class DataSourceBridgeTable implements BridgeTable
         }
     }
 
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#insertAll(java.util.Map)
+     */
+    @Override
+    public Map<Object, Object> insertAll(final Map<Object, Object> pairs) throws BridgeTableException
+    {
+        final Map<Object, Object> conflicts = new LinkedHashMap<Object, Object>();
+        if(pairs.isEmpty())
+        {
+            return conflicts;
+        }
+
+        try
+        {
+            replicas.wrote();
+            executor.execute(new JdbcExecutor.Work<Void>()
+            {
+                @Override
+                public Void execute(JdbcExecutor.Session session) throws SQLException
+                {
+                    Connection conn = session.getConnection();
+                    boolean autoCommit = conn.getAutoCommit();
+                    boolean savepoints = conn.getMetaData().supportsSavepoints();
+                    boolean committed = false;
+                    conn.setAutoCommit(false);
+                    try
+                    {
+                        Map<Object, Object> rejected = dialect instanceof BulkLoadDialect ? ((BulkLoadDialect) dialect).bulkInsert(conn, getTableName(), pairs) : null;
+                        if(rejected != null)
+                        {
+                            conflicts.putAll(rejected);
+                        }
+                        else
+                        {
+                            insertBatches(session, savepoints, pairs, conflicts);
+                        }
+                        conn.commit();
+                        committed = true;
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            if(!committed)
+                            {
+                                conn.rollback();
+                            }
+                        }
+                        finally
+                        {
+                            conn.setAutoCommit(autoCommit);
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            LOGGER.info((pairs.size() - conflicts.size()) + " row/s were inserted and " + conflicts.size() + " row/s conflicted in " + getTableName() + ".");
+            return conflicts;
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not insert " + pairs.size() + " rows in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
+    /**
+     * Runs the statements of all the operations on one connection, in a single transaction that is rolled back
+     * if any of them fails.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(final List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        if(operations.isEmpty())
+        {
+            return;
+        }
+
+        // Work can only throw SQLException, the failure of an operation is rethrown once the connection is released
+        final BridgeTableException[] failure = new BridgeTableException[1];
+        try
+        {
+            replicas.wrote();
+            executor.execute(new JdbcExecutor.Work<Void>()
+            {
+                @Override
+                public Void execute(JdbcExecutor.Session session) throws SQLException
+                {
+                    Connection conn = session.getConnection();
+                    boolean autoCommit = conn.getAutoCommit();
+                    boolean committed = false;
+                    conn.setAutoCommit(false);
+                    try
+                    {
+                        for(BridgeTableOperation operation : operations)
+                        {
+                            // The statements of the operation run on this session, see JdbcExecutor
+                            apply(operation, null);
+                        }
+                        conn.commit();
+                        committed = true;
+                    }
+                    catch(BridgeTableException ex)
+                    {
+                        failure[0] = ex;
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            if(!committed)
+                            {
+                                conn.rollback();
+                            }
+                        }
+                        finally
+                        {
+                            conn.setAutoCommit(autoCommit);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not execute a batch of " + operations.size() + " operations in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+
+        if(failure[0] != null)
+        {
+            LOGGER.warn("A batch of " + operations.size() + " operations was rolled back in " + getTableName() + ".");
+            throw failure[0];
+        }
+        LOGGER.info(operations.size() + " operations were committed in " + getTableName() + ".");
+    }
+
     /**
      * @see org.mule.module.bridgetable.BridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
      */
@@ -71,7 +274,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            int result = executeUpdate(dialect.getUpdateByKey1SQL(getTableName()), new Object[] {newKey2, key1});
+            int result = executeUpdate(updateByKey1SQL, new Object[] {newKey2, key1});
             
             if(result > 0)
             {
@@ -101,7 +304,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            int result = executeUpdate(dialect.getUpdateByKey2SQL(getTableName()), new Object[] {newKey1, key2});
+            int result = executeUpdate(updateByKey2SQL, new Object[] {newKey1, key2});
             
             if(result > 0)
             {
@@ -123,6 +326,46 @@ public class DataSourceBridgeTable implements BridgeTable
         }            
     }
 
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(Object key1, Object key2) throws BridgeTableException
+    {
+        try
+        {
+            int result = executeUpdate(upsertByKey1SQL, new Object[] {key1, key2});
+
+            LOGGER.info(result + " row/s were upserted for key1 = [" + key1 + "] with key2 = [" + key2 + "] in " + getTableName() + ".");
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not upsert key1 = [" + key1 + "] with key2 = [" + key2 + "] in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(Object key2, Object key1) throws BridgeTableException
+    {
+        try
+        {
+            int result = executeUpdate(upsertByKey2SQL, new Object[] {key1, key2});
+
+            LOGGER.info(result + " row/s were upserted for key2 = [" + key2 + "] with key1 = [" + key1 + "] in " + getTableName() + ".");
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not upsert key2 = [" + key2 + "] with key1 = [" + key1 + "] in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
     /**
      * @see org.mule.module.bridgetable.BridgeTable#removeByKey1(java.lang.Object)
      */
@@ -131,7 +374,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            int result = executeUpdate(dialect.getDeleteByKey1SQL(getTableName()), new Object[] {key1});
+            int result = executeUpdate(deleteByKey1SQL, new Object[] {key1});
             
             if(result > 0)
             {
@@ -160,7 +403,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            int result = executeUpdate(dialect.getDeleteByKey2SQL(getTableName()), new Object[] {key2});
+            int result = executeUpdate(deleteByKey2SQL, new Object[] {key2});
             
             if(result > 0)
             {
@@ -191,7 +434,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            List<Object> result = executeQuery(dialect.getLookupByKey1SQL(getTableName()), new Object[] {key1});
+            List<Object> result = executeQuery(lookupByKey1SQL, new Object[] {key1});
             
             if(result.size() > 0)
             {
@@ -224,7 +467,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            List<Object> result = executeQuery(dialect.getLookupByKey2SQL(getTableName()), new Object[] {key2});
+            List<Object> result = executeQuery(lookupByKey2SQL, new Object[] {key2});
             
             if(result.size() > 0)
             {
@@ -249,6 +492,80 @@ public class DataSourceBridgeTable implements BridgeTable
         }         
     }
 
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        try
+        {
+            List<Object> result = executeQuery(lookupByKey1SQL, new Object[] {key1});
+            return result.isEmpty() ? defaultValue : result.get(0);
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not retrieve row for key1 = [" + key1 + "] in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        try
+        {
+            List<Object> result = executeQuery(lookupByKey2SQL, new Object[] {key2});
+            return result.isEmpty() ? defaultValue : result.get(0);
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not retrieve row for key2 = [" + key2 + "] in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        try
+        {
+            return retrieveAll(keys1, true);
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not retrieve rows for " + keys1.size() + " values of key1 in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        try
+        {
+            return retrieveAll(keys2, false);
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not retrieve rows for " + keys2.size() + " values of key2 in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
     /**
      * @see org.mule.module.bridgetable.BridgeTable#isPersistent()
      */
@@ -266,13 +583,13 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            //TODO: Avoid warning messages in log?
-            retrieveByKey1(key1);
-            return true;
+            return !executeQuery(existsByKey1SQL, new Object[] {key1}).isEmpty();
         }
-        catch(KeyDoesNotExistException ex)
+        catch(SQLException ex)
         {
-            return false;
+            String msg = "Could not check row for key1 = [" + key1 + "] in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
         }
     }
 
@@ -284,13 +601,13 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            //TODO: Avoid warning messages in log?
-            retrieveByKey2(key2);
-            return true;
+            return !executeQuery(existsByKey2SQL, new Object[] {key2}).isEmpty();
         }
-        catch(KeyDoesNotExistException ex)
+        catch(SQLException ex)
         {
-            return false;
+            String msg = "Could not check row for key2 = [" + key2 + "] in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
         }
     }
 
@@ -301,8 +618,9 @@ public class DataSourceBridgeTable implements BridgeTable
     public void init(String tableName, KeyType key1Type, KeyType key2Type, String key1Name, String key2Name, boolean autoCreateTable) throws BridgeTableException
     {
         Connection conn = null;
-        ResultSet rs = null;
         setTableName(tableName);
+        this.executor = new JdbcExecutor(ds, pinConnections);
+        this.replicas = new ReadReplicas(readDataSources, pinConnections, readSelection, readAfterWriteWindow, tableName);
         try
         {
             conn = ds.getConnection();
@@ -316,10 +634,18 @@ public class DataSourceBridgeTable implements BridgeTable
                 LOGGER.error("No dialect found for database " + md.getDatabaseProductName() + " (" + md.getDatabaseProductVersion() + ")");
                 throw new BridgeTableException("No dialect found for database " + md.getDatabaseProductName() + " (" + md.getDatabaseProductVersion() + ")");
             }
+            if(dialect instanceof SchemaLayoutDialect)
+            {
+                ((SchemaLayoutDialect) dialect).setSchemaLayout(schemaLayout);
+            }
+            else if(schemaLayout != SchemaLayout.STANDARD)
+            {
+                LOGGER.warn("Schema layout " + schemaLayout + " is not supported for database " + md.getDatabaseProductName() + ", tables are created with its default layout");
+            }
+            buildSQL();
             
-            rs = md.getTables(null, null, getTableName(), null);
-            
-            boolean tableExists = rs.next();
+            String storedTableName = findTable(md);
+            boolean tableExists = storedTableName != null;
             
             if(!tableExists && autoCreateTable)
             {
@@ -332,6 +658,10 @@ public class DataSourceBridgeTable implements BridgeTable
                 throw new BridgeTableException("Table " + getTableName() + " doesn't exist. Set autoCreateTable to true or create the table yourself.");
             } else {
                 //TODO: Validate that the table column names and types match or are compatible!
+                if(dialect instanceof SchemaLayoutDialect)
+                {
+                    validateSchemaLayout(md, storedTableName);
+                }
             }
         }
         catch(SQLException ex)
@@ -342,159 +672,435 @@ public class DataSourceBridgeTable implements BridgeTable
         }
         finally
         {
-            close(conn, rs);
+            close(conn, null);
         }
     }
 
     /*
-     * Executes a SQL query
+     * Looks the table up by its name as given and, if the database changes the case of unquoted identifiers
+     * (e.g. H2 stores them in upper case), by the name as the database stores it. Returns the name it was found
+     * by, null if it doesn't exist.
      */
-    private List<Object> executeQuery(String sql, Object params[]) throws SQLException
+    private String findTable(DatabaseMetaData md) throws SQLException
     {
-        Connection conn = null;
-        ResultSet rs = null;
-        List<Object> result = new ArrayList<Object>();
-        
-        try
+        List<String> names = new ArrayList<String>();
+        names.add(getTableName());
+        if(md.storesUpperCaseIdentifiers())
         {
-            conn = ds.getConnection();
-            
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            
-            if(params != null && params.length > 0)
+            names.add(getTableName().toUpperCase());
+        }
+        else if(md.storesLowerCaseIdentifiers())
+        {
+            names.add(getTableName().toLowerCase());
+        }
+
+        for(String name : names)
+        {
+            ResultSet rs = md.getTables(null, null, name, null);
+            try
             {
-                for(int i=0; i < params.length; i++)
+                if(rs.next())
                 {
-                    if(params[i] != null)
-                    {
-                        stmt.setObject(i + 1, params[i]);
-                    }
-                    else
-                    {
-                        stmt.setNull(i + 1, Types.JAVA_OBJECT);
-                    }
+                    return name;
                 }
             }
-            
-            rs = stmt.executeQuery();
-            
-            while(rs.next())
+            finally
             {
-                result.add(rs.getObject(1));
+                rs.close();
             }
-            
-            return result;
-        }
-        finally
-        {
-            close(conn, rs);
         }
+        return null;
     }
 
     /*
-     * Executes a SQL update statement
+     * Compares the indexes of an existing table with the schema layout and migrates it if it's allowed to,
+     * otherwise logs the statements that would
      */
-    private int executeUpdate(String sql, Object params[]) throws SQLException
+    private void validateSchemaLayout(DatabaseMetaData md, String storedTableName) throws BridgeTableException, SQLException
     {
-        Connection conn = null;
+        Map<String, List<String>> indexes = new LinkedHashMap<String, List<String>>();
+        ResultSet rs = md.getIndexInfo(null, null, storedTableName, false, false);
         try
         {
-            conn = ds.getConnection();
-            
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            
-            if(params != null && params.length > 0)
+            while(rs.next())
             {
-                for(int i=0; i < params.length; i++)
+                String indexName = rs.getString("INDEX_NAME");
+                if(indexName == null || rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic)
                 {
-                    if(params[i] != null)
-                    {
-                        stmt.setObject(i + 1, params[i]);
-                    }
-                    else
-                    {
-                        stmt.setNull(i + 1, Types.JAVA_OBJECT);
-                    }
+                    continue;
+                }
+                List<String> columns = indexes.get(indexName);
+                if(columns == null)
+                {
+                    columns = new ArrayList<String>();
+                    indexes.put(indexName, columns);
                 }
+                // Rows come in column order within each index
+                columns.add(rs.getString("COLUMN_NAME"));
             }
-            
-            return stmt.executeUpdate();
         }
         finally
         {
-            close(conn);
+            rs.close();
+        }
+
+        List<String> migration = ((SchemaLayoutDialect) dialect).getSchemaMigrationSQL(getTableName(), indexes);
+        if(migration.isEmpty())
+        {
+            LOGGER.debug("Table " + getTableName() + " has the " + schemaLayout + " schema layout");
+        }
+        else if(migrateSchema)
+        {
+            for(String sql : migration)
+            {
+                LOGGER.info("Migrating table " + getTableName() + " to the " + schemaLayout + " schema layout: " + sql);
+                executeUpdate(sql, null);
+            }
+        }
+        else
+        {
+            LOGGER.warn("Table " + getTableName() + " doesn't have the " + schemaLayout + " schema layout (indexes " + indexes
+                        + "). Set migrateSchema to true to migrate it when the table is initialized, or run: " + StringUtils.join(migration, "; "));
         }
     }
-    
+
     /*
-     * Creates the bridge table
+     * Builds the SQL statements for this table
      */
-    private void createBridgeTable() throws BridgeTableException
+    private void buildSQL()
     {
-        try
-        {
-            int result = executeUpdate(dialect.getCreateTableSQL(getTableName()), null);
-            
-            LOGGER.info("Created table = [" + getTableName() + "]. Return: " + result);
-        }
-        catch(SQLException ex)
-        {
-            String msg = "Could not create table = [" + getTableName() + "]";
-            LOGGER.error(msg, ex);
-            throw dialect.translateException(ex, msg);
-        }        
-        
+        this.insertSQL = dialect.getInsertSQL(getTableName());
+        this.updateByKey1SQL = dialect.getUpdateByKey1SQL(getTableName());
+        this.updateByKey2SQL = dialect.getUpdateByKey2SQL(getTableName());
+        this.upsertByKey1SQL = dialect.getUpsertByKey1SQL(getTableName());
+        this.upsertByKey2SQL = dialect.getUpsertByKey2SQL(getTableName());
+        this.deleteByKey1SQL = dialect.getDeleteByKey1SQL(getTableName());
+        this.deleteByKey2SQL = dialect.getDeleteByKey2SQL(getTableName());
+        this.lookupByKey1SQL = dialect.getLookupByKey1SQL(getTableName());
+        this.lookupByKey2SQL = dialect.getLookupByKey2SQL(getTableName());
+        this.existsByKey1SQL = dialect.getExistsByKey1SQL(getTableName());
+        this.existsByKey2SQL = dialect.getExistsByKey2SQL(getTableName());
+        this.allKey1SQL = dialect.getAllKey1SQL(getTableName());
+        this.allKey2SQL = dialect.getAllKey2SQL(getTableName());
+        this.firstKey1PageSQL = dialect.getKey1PageSQL(getTableName(), true);
+        this.nextKey1PageSQL = dialect.getKey1PageSQL(getTableName(), false);
+        this.firstKey2PageSQL = dialect.getKey2PageSQL(getTableName(), true);
+        this.nextKey2PageSQL = dialect.getKey2PageSQL(getTableName(), false);
     }
 
     /*
-     * Helper method to silently close JDBC connections
+     * Inserts the pairs with batches of batchSize inserts
      */
-    private void close(Connection conn)
+    private void insertBatches(JdbcExecutor.Session session, boolean savepoints, Map<Object, Object> pairs, Map<Object, Object> conflicts) throws SQLException
     {
-        close(conn, null);
+        Connection conn = session.getConnection();
+        PreparedStatement stmt = session.prepare(insertSQL);
+        stmt.clearBatch();
+        List<Map.Entry<Object, Object>> batch = new ArrayList<Map.Entry<Object, Object>>(Math.min(batchSize, pairs.size()));
+        for(Map.Entry<Object, Object> pair : pairs.entrySet())
+        {
+            batch.add(pair);
+            if(batch.size() == batchSize)
+            {
+                insertBatch(conn, stmt, batch, savepoints, conflicts);
+                batch.clear();
+            }
+        }
+        if(!batch.isEmpty())
+        {
+            insertBatch(conn, stmt, batch, savepoints, conflicts);
+        }
     }
-    
+
     /*
-     * Helper method to silently close JDBC connections and result set
+     * Executes a batch of inserts. If the batch fails it's undone and the inserts are retried one by one,
+     * collecting the ones that conflict with existing rows.
      */
-    private void close(Connection conn, ResultSet rs)
+    private void insertBatch(Connection conn, PreparedStatement stmt, List<Map.Entry<Object, Object>> batch, boolean savepoints, Map<Object, Object> conflicts) throws SQLException
     {
+        Savepoint savepoint = savepoints ? conn.setSavepoint() : null;
+        List<Map.Entry<Object, Object>> retry;
         try
         {
-            if(rs != null)
+            for(Map.Entry<Object, Object> pair : batch)
             {
-                try
-                {
-                    rs.close();
-                }
-                catch(SQLException ex)
+                JdbcExecutor.bind(stmt, new Object[] {pair.getKey(), pair.getValue()});
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            release(conn, savepoint);
+            return;
+        }
+        catch(BatchUpdateException ex)
+        {
+            stmt.clearBatch();
+            if(savepoint != null)
+            {
+                conn.rollback(savepoint);
+                release(conn, savepoint);
+                retry = batch;
+            }
+            else
+            {
+                // Without savepoints the statements that succeeded stay applied, retry the ones that failed
+                // or that the driver didn't run after the failure
+                int[] counts = ex.getUpdateCounts();
+                retry = new ArrayList<Map.Entry<Object, Object>>();
+                for(int i=0; i < batch.size(); i++)
                 {
-                    LOGGER.error("Could not close result set", ex);
+                    if(counts == null || i >= counts.length || counts[i] == Statement.EXECUTE_FAILED)
+                    {
+                        retry.add(batch.get(i));
+                    }
                 }
             }
+            if(LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Batch of " + batch.size() + " inserts failed in " + getTableName() + ", retrying " + retry.size() + " of them one by one", ex);
+            }
         }
-        finally
+
+        for(Map.Entry<Object, Object> pair : retry)
         {
-            if(conn != null)
+            Savepoint row = savepoints ? conn.setSavepoint() : null;
+            try
             {
-                try
+                JdbcExecutor.bind(stmt, new Object[] {pair.getKey(), pair.getValue()});
+                stmt.executeUpdate();
+                release(conn, row);
+            }
+            catch(SQLException ex)
+            {
+                String msg = "Could not insert key1 = [" + pair.getKey() + "] and key2 = [" + pair.getValue() + "] in " + getTableName() + ".";
+                if(!(dialect.translateException(ex, msg) instanceof KeyAlreadyExistsException))
                 {
-                    conn.close();
+                    throw ex;
                 }
-                catch(SQLException ex)
+                if(row != null)
                 {
-                    LOGGER.error("Could not close connection", ex);
+                    conn.rollback(row);
+                    release(conn, row);
                 }
+                conflicts.put(pair.getKey(), pair.getValue());
             }
         }
     }
-    
+
+    /*
+     * Releases a savepoint, which not every driver supports
+     */
+    private void release(Connection conn, Savepoint savepoint)
+    {
+        if(savepoint != null)
+        {
+            try
+            {
+                conn.releaseSavepoint(savepoint);
+            }
+            catch(SQLException ex)
+            {
+                LOGGER.debug("Could not release savepoint", ex);
+            }
+        }
+    }
+
+    /*
+     * Looks keys up in chunks with IN queries, all of them on the same connection
+     */
+    private Map<Object, Object> retrieveAll(Collection<?> keys, final boolean byKey1) throws SQLException
+    {
+        final List<Object> distinct = new ArrayList<Object>(new LinkedHashSet<Object>(keys));
+        distinct.remove(null);
+        if(distinct.isEmpty())
+        {
+            return new LinkedHashMap<Object, Object>();
+        }
+
+        final JdbcExecutor.Work<Map<Object, Object>> work = new JdbcExecutor.Work<Map<Object, Object>>()
+        {
+            @Override
+            public Map<Object, Object> execute(JdbcExecutor.Session session) throws SQLException
+            {
+                Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+                for(int from=0; from < distinct.size(); from += inChunkSize)
+                {
+                    List<Object> chunk = distinct.subList(from, Math.min(from + inChunkSize, distinct.size()));
+                    int count = chunkSize(chunk.size());
+                    Object[] params = new Object[count];
+                    for(int i=0; i < count; i++)
+                    {
+                        params[i] = chunk.get(Math.min(i, chunk.size() - 1));
+                    }
+
+                    PreparedStatement stmt = session.prepare(byKey1 ? dialect.getLookupAllByKey1SQL(getTableName(), count) : dialect.getLookupAllByKey2SQL(getTableName(), count));
+                    JdbcExecutor.bind(stmt, params);
+                    ResultSet rs = stmt.executeQuery();
+                    try
+                    {
+                        while(rs.next())
+                        {
+                            found.put(rs.getObject(1), rs.getObject(2));
+                        }
+                    }
+                    finally
+                    {
+                        JdbcExecutor.close(rs);
+                    }
+                }
+                return found;
+            }
+        };
+        return replicas.read(executor, new ReadReplicas.Read<Map<Object, Object>>()
+        {
+            @Override
+            public Map<Object, Object> run(JdbcExecutor executor) throws SQLException
+            {
+                return executor.execute(work);
+            }
+        });
+    }
+
+    /*
+     * Rounds the number of keys of a chunk up to a power of two, without exceeding the chunk size
+     */
+    private int chunkSize(int keys)
+    {
+        int size = 1;
+        while(size < keys)
+        {
+            size <<= 1;
+        }
+        return Math.min(size, inChunkSize);
+    }
+
+    /*
+     * Executes a SQL query, on a read replica if there are any
+     */
+    private List<Object> executeQuery(final String sql, final Object params[]) throws SQLException
+    {
+        return replicas.read(executor, new ReadReplicas.Read<List<Object>>()
+        {
+            @Override
+            public List<Object> run(JdbcExecutor executor) throws SQLException
+            {
+                return executor.query(sql, params);
+            }
+        });
+    }
+
+    /*
+     * Executes a SQL update statement
+     */
+    private int executeUpdate(String sql, Object params[]) throws SQLException
+    {
+        replicas.wrote();
+        return executor.update(sql, params);
+    }
+    
+    /*
+     * Creates the bridge table
+     */
+    private void createBridgeTable() throws BridgeTableException
+    {
+        try
+        {
+            int result = executeUpdate(dialect.getCreateTableSQL(getTableName()), null);
+            
+            LOGGER.info("Created table = [" + getTableName() + "]. Return: " + result);
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not create table = [" + getTableName() + "]";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }        
+        
+    }
+
+    /*
+     * Helper method to silently close JDBC connections and result set
+     */
+    private void close(Connection conn, ResultSet rs)
+    {
+        try
+        {
+            if(rs != null)
+            {
+                try
+                {
+                    rs.close();
+                }
+                catch(SQLException ex)
+                {
+                    LOGGER.error("Could not close result set", ex);
+                }
+            }
+        }
+        finally
+        {
+            if(conn != null)
+            {
+                try
+                {
+                    conn.close();
+                }
+                catch(SQLException ex)
+                {
+                    LOGGER.error("Could not close connection", ex);
+                }
+            }
+        }
+    }
+    
     /**
      * @see org.mule.module.bridgetable.BridgeTable#destroy()
      */
     @Override
     public void destroy() throws BridgeTableException
     {
+        if(executor != null)
+        {
+            executor.close();
+            executor = null;
+        }
+        if(replicas != null)
+        {
+            replicas.close();
+            replicas = null;
+        }
+    }
+
+    /**
+     * Reads that went to the primary database and, by read replica, reads, failures and recent latency.
+     * @see org.mule.module.bridgetable.Monitorable#getStatistics()
+     */
+    @Override
+    public Map<String, Object> getStatistics()
+    {
+        ReadReplicas replicas = this.replicas;
+        return replicas == null ? new LinkedHashMap<String, Object>() : replicas.getStatistics();
+    }
+
+    /**
+     * Captures when the current thread last wrote, so the reads it hands over to other threads go to the primary
+     * database within the read-after-write window too.
+     * @see org.mule.module.bridgetable.ThreadContextAware#captureContext()
+     */
+    @Override
+    public Object captureContext()
+    {
+        ReadReplicas replicas = this.replicas;
+        return replicas == null ? null : replicas.captureContext();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ThreadContextAware#restoreContext(java.lang.Object)
+     */
+    @Override
+    public Object restoreContext(Object context)
+    {
+        ReadReplicas replicas = this.replicas;
+        return replicas == null ? null : replicas.restoreContext(context);
     }
 
     /**
@@ -505,7 +1111,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            return executeQuery(dialect.getAllKey1SQL(getTableName()), null);
+            return executeQuery(allKey1SQL, null);
         }
         catch(SQLException ex)
         {
@@ -523,7 +1129,7 @@ public class DataSourceBridgeTable implements BridgeTable
     {
         try
         {
-            return executeQuery(dialect.getAllKey2SQL(getTableName()), null);
+            return executeQuery(allKey2SQL, null);
         }
         catch(SQLException ex)
         {
@@ -533,6 +1139,101 @@ public class DataSourceBridgeTable implements BridgeTable
         }  
     }
 
+    /**
+     * Seeks the page with the index on key1 instead of skipping the previous pages.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        if(pageSize < 1)
+        {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+
+        try
+        {
+            if(afterKey1 == null)
+            {
+                return executeQuery(firstKey1PageSQL, new Object[] {Integer.valueOf(pageSize)});
+            }
+            return executeQuery(nextKey1PageSQL, new Object[] {afterKey1, Integer.valueOf(pageSize)});
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not retrieve the values for key1 after [" + afterKey1 + "] in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
+    /**
+     * Seeks the page with the index on key2 instead of skipping the previous pages.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        if(pageSize < 1)
+        {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+
+        try
+        {
+            if(afterKey2 == null)
+            {
+                return executeQuery(firstKey2PageSQL, new Object[] {Integer.valueOf(pageSize)});
+            }
+            return executeQuery(nextKey2PageSQL, new Object[] {afterKey2, Integer.valueOf(pageSize)});
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not retrieve the values for key2 after [" + afterKey2 + "] in " + getTableName() + ".";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
+    /**
+     * Streams the values for key1 from a forward only result set, fetched <code>fetchSize</code> rows at a time,
+     * on a connection of its own that is held until the iterator is closed.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        try
+        {
+            return newKeyIterator(allKey1SQL, "key1");
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not iterate over the values for key1";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
+    /**
+     * Streams the values for key2, as {@link #iterateKeys1()} does for key1.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        try
+        {
+            return newKeyIterator(allKey2SQL, "key2");
+        }
+        catch(SQLException ex)
+        {
+            String msg = "Could not iterate over the values for key2";
+            LOGGER.error(msg, ex);
+            throw dialect.translateException(ex, msg);
+        }
+    }
+
     /**
      * @return The name of the bridge table.
      */
@@ -541,13 +1242,337 @@ public class DataSourceBridgeTable implements BridgeTable
         return tableName;
     }
 
+    /**
+     * @return Whether idle connections and their prepared statements are kept between operations.
+     */
+    public boolean isPinConnections()
+    {
+        return pinConnections;
+    }
+
+    /**
+     * @param pinConnections Whether idle connections and their prepared statements are kept between
+     * operations. Takes effect when the table is initialized.
+     */
+    public void setPinConnections(boolean pinConnections)
+    {
+        this.pinConnections = pinConnections;
+    }
+
+    /**
+     * @return Number of inserts sent to the database at once by {@link #insertAll(Map)}.
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize Number of inserts sent to the database at once by {@link #insertAll(Map)}.
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if(batchSize < 1)
+        {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return Largest number of keys looked up by a single query of {@link #retrieveAllByKey1(Collection)} and
+     * {@link #retrieveAllByKey2(Collection)}.
+     */
+    public int getInChunkSize()
+    {
+        return inChunkSize;
+    }
+
+    /**
+     * @param inChunkSize Largest number of keys looked up by a single query of {@link #retrieveAllByKey1(Collection)}
+     * and {@link #retrieveAllByKey2(Collection)}.
+     */
+    public void setInChunkSize(int inChunkSize)
+    {
+        if(inChunkSize < 1)
+        {
+            throw new IllegalArgumentException("IN chunk size must be at least 1");
+        }
+        this.inChunkSize = inChunkSize;
+    }
+
+    /**
+     * @return Number of rows fetched at once by the iterators of {@link #iterateKeys1()} and {@link #iterateKeys2()}.
+     */
+    public int getFetchSize()
+    {
+        return fetchSize;
+    }
+
+    /**
+     * @param fetchSize Number of rows fetched at once by the iterators of {@link #iterateKeys1()} and
+     * {@link #iterateKeys2()}. Some dialects replace it with the value their driver needs to stream results.
+     */
+    public void setFetchSize(int fetchSize)
+    {
+        if(fetchSize < 1)
+        {
+            throw new IllegalArgumentException("Fetch size must be at least 1");
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return Indexes of the table, where the dialect supports a choice
+     */
+    public SchemaLayout getSchemaLayout()
+    {
+        return schemaLayout;
+    }
+
+    /**
+     * @param schemaLayout Indexes of the table, where the dialect supports a choice. Existing tables with other
+     * indexes are reported when the table is initialized, and migrated if {@link #setMigrateSchema(boolean)} is set.
+     */
+    public void setSchemaLayout(SchemaLayout schemaLayout)
+    {
+        if(schemaLayout == null)
+        {
+            throw new IllegalArgumentException("Schema layout cannot be null");
+        }
+        this.schemaLayout = schemaLayout;
+    }
+
+    /**
+     * @return Whether an existing table is migrated to the schema layout when the table is initialized
+     */
+    public boolean isMigrateSchema()
+    {
+        return migrateSchema;
+    }
+
+    /**
+     * @param migrateSchema Whether an existing table is migrated to the schema layout when the table is
+     * initialized. Migrating rebuilds the indexes, which may take long and lock the table on big tables.
+     */
+    public void setMigrateSchema(boolean migrateSchema)
+    {
+        this.migrateSchema = migrateSchema;
+    }
+
+    /**
+     * @return The read replicas of the database, empty if everything is read from the primary database.
+     */
+    public List<DataSource> getReadDataSources()
+    {
+        return readDataSources;
+    }
+
+    /**
+     * @param readDataSources The read replicas of the database, <b>null</b> or empty to read everything from the
+     * primary database. Takes effect when the table is initialized.
+     */
+    public void setReadDataSources(List<DataSource> readDataSources)
+    {
+        this.readDataSources = readDataSources == null ? Collections.<DataSource>emptyList() : new ArrayList<DataSource>(readDataSources);
+    }
+
+    /**
+     * @return How lookups pick a read replica.
+     */
+    public ReadSelection getReadSelection()
+    {
+        return readSelection;
+    }
+
+    /**
+     * @param readSelection How lookups pick a read replica. Takes effect when the table is initialized.
+     */
+    public void setReadSelection(ReadSelection readSelection)
+    {
+        if(readSelection == null)
+        {
+            throw new IllegalArgumentException("The read selection cannot be null");
+        }
+        this.readSelection = readSelection;
+    }
+
+    /**
+     * @return Milliseconds a thread reads from the primary database after writing.
+     */
+    public long getReadAfterWriteWindow()
+    {
+        return readAfterWriteWindow;
+    }
+
+    /**
+     * @param readAfterWriteWindow Milliseconds a thread reads from the primary database after writing, so it sees
+     * its own writes before they reach the replicas. 0 to always read from the replicas. Takes effect when the
+     * table is initialized.
+     */
+    public void setReadAfterWriteWindow(long readAfterWriteWindow)
+    {
+        if(readAfterWriteWindow < 0)
+        {
+            throw new IllegalArgumentException("The read after write window cannot be negative");
+        }
+        this.readAfterWriteWindow = readAfterWriteWindow;
+    }
+
     /**
      * @param tableName The name of the bridge table.
      */
     public void setTableName(String tableName)
     {
         this.tableName = tableName;
-    }    
-}
+    }
 
+    /*
+     * Streams the first column of a query from a read replica if there are any, falling back to the primary
+     * database if the replica fails
+     */
+    private KeyIterator newKeyIterator(String sql, String keyName) throws SQLException
+    {
+        DataSource source = replicas.select(ds);
+        if(source != ds)
+        {
+            try
+            {
+                KeyIterator iterator = new ResultSetKeyIterator(source, sql, keyName);
+                replicas.succeeded(source);
+                return iterator;
+            }
+            catch(SQLException ex)
+            {
+                replicas.failed(source);
+                LOGGER.warn("Could not iterate over " + getTableName() + " on a read replica, iterating on the primary database", ex);
+            }
+        }
+        return new ResultSetKeyIterator(ds, sql, keyName);
+    }
 
+    /*
+     * Iterator over the first column of a query, holding its connection, statement and result set until it's
+     * exhausted or closed. The connection doesn't come from the executor: a streaming result set blocks the
+     * connection it belongs to, so it cannot be shared with other statements.
+     */
+    private class ResultSetKeyIterator implements KeyIterator
+    {
+        private final String keyName;
+        private final Connection conn;
+        private final boolean autoCommit;
+        private PreparedStatement stmt;
+        private ResultSet rs;
+        private Object next;
+        private boolean ready;
+        private boolean closed;
+
+        ResultSetKeyIterator(DataSource source, String sql, String keyName) throws SQLException
+        {
+            this.keyName = keyName;
+            this.conn = source.getConnection();
+            this.autoCommit = this.conn.getAutoCommit();
+            try
+            {
+                // Some drivers only use cursors within a transaction
+                this.conn.setAutoCommit(false);
+                this.stmt = this.conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                this.stmt.setFetchSize(dialect.getStreamingFetchSize(fetchSize));
+                this.rs = this.stmt.executeQuery();
+            }
+            catch(SQLException ex)
+            {
+                close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if(this.ready)
+            {
+                return true;
+            }
+            if(this.closed)
+            {
+                return false;
+            }
+            try
+            {
+                if(this.rs.next())
+                {
+                    this.next = this.rs.getObject(1);
+                    this.ready = true;
+                }
+                else
+                {
+                    close();
+                }
+            }
+            catch(SQLException ex)
+            {
+                close();
+                String msg = "Could not iterate over the values for " + this.keyName;
+                LOGGER.error(msg, ex);
+                throw new IllegalStateException(msg, dialect.translateException(ex, msg));
+            }
+            return this.ready;
+        }
+
+        @Override
+        public Object next()
+        {
+            if(!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            this.ready = false;
+            Object key = this.next;
+            this.next = null;
+            return key;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+            if(this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            this.ready = false;
+            this.next = null;
+
+            JdbcExecutor.close(this.rs);
+            if(this.stmt != null)
+            {
+                try
+                {
+                    this.stmt.close();
+                }
+                catch(SQLException ex)
+                {
+                    LOGGER.error("Could not close statement", ex);
+                }
+            }
+            try
+            {
+                // Nothing was written, just end the transaction opened for the cursor
+                this.conn.rollback();
+                this.conn.setAutoCommit(this.autoCommit);
+            }
+            catch(SQLException ex)
+            {
+                LOGGER.error("Could not restore auto-commit", ex);
+            }
+            DataSourceBridgeTable.this.close(this.conn, null);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+/**
+ * How writes to a local file reach the disk before the operation that made them returns.
+ */
+public enum DurabilityMode
+{
+    /**
+     * Every write is forced to the disk before the operation returns. Writers that complete while a force
+     * is in progress share the next one.
+     */
+    ALWAYS,
+
+    /**
+     * Concurrent writers are batched behind a single force of the file, issued when the batch is full or
+     * the group commit window has elapsed. Every operation still returns only once its write is on disk.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Writes are left to the operating system, which writes them back on its own schedule. Recent changes
+     * may be lost if the machine crashes.
+     */
+    OS_MANAGED;
+}
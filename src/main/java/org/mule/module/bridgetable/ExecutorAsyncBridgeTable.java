@@ -0,0 +1,591 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.module.bridgetable;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link AsyncBridgeTable} that runs the operations of a bridge table on an executor, or inline when there is no
+ * executor.
+ * <p/>
+ * Tables that block on I/O (a database) are given a bounded executor, see {@link #newExecutor(String, int, int)}:
+ * once its queue is full, operations run on the calling thread, which slows callers down instead of queueing
+ * without limit. Tables kept in memory answer faster than a thread hop would take, so they run inline and
+ * return futures that are already done.
+ * <p/>
+ * On Java 21 and later {@link #newVirtualThreadExecutor()} runs each operation on a virtual thread of its own,
+ * so thousands of operations waiting for the database don't take thousands of platform threads. The number of
+ * operations actually running against the database is then bounded by its connection pool. A virtual thread
+ * that blocks in synchronized code, e.g. in a JDBC driver that does its I/O under a lock or in a synchronized
+ * logging appender, pins its carrier thread on Java 21, so the driver decides how far they scale.
+ * <p/>
+ * When the table is {@link ThreadContextAware} the operations run with the context of the thread that submitted
+ * them, so a flow that has just written reads its own writes even though the read runs on another thread.
+ */
+public class ExecutorAsyncBridgeTable implements AsyncBridgeTable
+{
+    private final BridgeTable table;
+    private final ExecutorService executor;
+
+    /**
+     * @param table The bridge table the operations run on
+     * @param executor The executor that runs the operations, <b>null</b> to run them on the calling thread.
+     * It's not shut down by this class.
+     */
+    public ExecutorAsyncBridgeTable(BridgeTable table, ExecutorService executor)
+    {
+        if(table == null)
+        {
+            throw new IllegalArgumentException("The bridge table cannot be null");
+        }
+        this.table = table;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a bounded executor for the operations of a bridge table. Its threads are daemons, so they don't
+     * keep the JVM alive, and operations submitted while its queue is full run on the submitting thread.
+     * @param tableName The table name, used to name the threads
+     * @param threads The number of threads
+     * @param queueSize The number of operations that can wait for a thread
+     * @return The executor, to be shut down by the caller
+     */
+    public static ExecutorService newExecutor(final String tableName, int threads, int queueSize)
+    {
+        if(threads < 1)
+        {
+            throw new IllegalArgumentException("Number of threads must be at least 1");
+        }
+        if(queueSize < 1)
+        {
+            throw new IllegalArgumentException("Queue size must be at least 1");
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "bridgetable-async-" + tableName + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler()
+        {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+            {
+                if(executor.isShutdown())
+                {
+                    throw new RejectedExecutionException("Bridge table " + tableName + " is closed");
+                }
+                runnable.run();
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each operation. Virtual threads need Java 21 or later;
+     * this class is built for earlier versions too, so the executor is looked up by reflection.
+     * @return The executor, to be shut down by the caller, or <b>null</b> if the JVM has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch(NoSuchMethodException ex)
+        {
+            return null;
+        }
+        catch(Exception ex)
+        {
+            throw new IllegalStateException("Could not create a virtual thread executor", ex);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#getBridgeTable()
+     */
+    @Override
+    public BridgeTable getBridgeTable()
+    {
+        return table;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Future<Void> insert(final Object key1, final Object key2)
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                table.insert(key1, key2);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#insertAll(java.util.Map)
+     */
+    @Override
+    public Future<Map<Object, Object>> insertAll(final Map<Object, Object> pairs)
+    {
+        return submit(new Callable<Map<Object, Object>>()
+        {
+            @Override
+            public Map<Object, Object> call() throws Exception
+            {
+                return table.insertAll(pairs);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Future<Void> updateByKey1(final Object key1, final Object newKey2)
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                table.updateByKey1(key1, newKey2);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#updateByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Future<Void> updateByKey2(final Object key2, final Object newKey1)
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                table.updateByKey2(key2, newKey1);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Future<Void> upsertByKey1(final Object key1, final Object key2)
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                table.upsertByKey1(key1, key2);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Future<Void> upsertByKey2(final Object key2, final Object key1)
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                table.upsertByKey2(key2, key1);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#removeByKey1(java.lang.Object)
+     */
+    @Override
+    public Future<Void> removeByKey1(final Object key1)
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                table.removeByKey1(key1);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#removeByKey2(java.lang.Object)
+     */
+    @Override
+    public Future<Void> removeByKey2(final Object key2)
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                table.removeByKey2(key2);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#retrieveByKey1(java.lang.Object)
+     */
+    @Override
+    public Future<Object> retrieveByKey1(final Object key1)
+    {
+        return submit(new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception
+            {
+                return table.retrieveByKey1(key1);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#retrieveByKey2(java.lang.Object)
+     */
+    @Override
+    public Future<Object> retrieveByKey2(final Object key2)
+    {
+        return submit(new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception
+            {
+                return table.retrieveByKey2(key2);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Future<Object> retrieveByKey1OrDefault(final Object key1, final Object defaultValue)
+    {
+        return submit(new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception
+            {
+                return table.retrieveByKey1OrDefault(key1, defaultValue);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Future<Object> retrieveByKey2OrDefault(final Object key2, final Object defaultValue)
+    {
+        return submit(new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception
+            {
+                return table.retrieveByKey2OrDefault(key2, defaultValue);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Future<Map<Object, Object>> retrieveAllByKey1(final Collection<?> keys1)
+    {
+        return submit(new Callable<Map<Object, Object>>()
+        {
+            @Override
+            public Map<Object, Object> call() throws Exception
+            {
+                return table.retrieveAllByKey1(keys1);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Future<Map<Object, Object>> retrieveAllByKey2(final Collection<?> keys2)
+    {
+        return submit(new Callable<Map<Object, Object>>()
+        {
+            @Override
+            public Map<Object, Object> call() throws Exception
+            {
+                return table.retrieveAllByKey2(keys2);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#containsKey1(java.lang.Object)
+     */
+    @Override
+    public Future<Boolean> containsKey1(final Object key1)
+    {
+        return submit(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                return Boolean.valueOf(table.containsKey1(key1));
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#containsKey2(java.lang.Object)
+     */
+    @Override
+    public Future<Boolean> containsKey2(final Object key2)
+    {
+        return submit(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                return Boolean.valueOf(table.containsKey2(key2));
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#keys1()
+     */
+    @Override
+    public Future<List<Object>> keys1()
+    {
+        return submit(new Callable<List<Object>>()
+        {
+            @Override
+            public List<Object> call() throws Exception
+            {
+                return table.keys1();
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#keys2()
+     */
+    @Override
+    public Future<List<Object>> keys2()
+    {
+        return submit(new Callable<List<Object>>()
+        {
+            @Override
+            public List<Object> call() throws Exception
+            {
+                return table.keys2();
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public Future<List<Object>> keys1Page(final Object afterKey1, final int pageSize)
+    {
+        return submit(new Callable<List<Object>>()
+        {
+            @Override
+            public List<Object> call() throws Exception
+            {
+                return table.keys1Page(afterKey1, pageSize);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public Future<List<Object>> keys2Page(final Object afterKey2, final int pageSize)
+    {
+        return submit(new Callable<List<Object>>()
+        {
+            @Override
+            public List<Object> call() throws Exception
+            {
+                return table.keys2Page(afterKey2, pageSize);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AsyncBridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public Future<Void> executeBatch(final List<BridgeTableOperation> operations)
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                table.executeBatch(operations);
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Runs the operation on the executor, or right away if there is none
+     */
+    private <T> Future<T> submit(Callable<T> operation)
+    {
+        if(this.executor != null)
+        {
+            if(this.table instanceof ThreadContextAware)
+            {
+                return this.executor.submit(new ContextCallable<T>((ThreadContextAware) this.table, operation));
+            }
+            return this.executor.submit(operation);
+        }
+        try
+        {
+            return new DoneFuture<T>(operation.call(), null);
+        }
+        catch(Exception ex)
+        {
+            return new DoneFuture<T>(null, ex);
+        }
+    }
+
+    /*
+     * Operation that runs with the context of the thread that created it, e.g. so that the reads of a thread
+     * that just wrote go to the primary database instead of a read replica that may lag behind
+     */
+    private static final class ContextCallable<T> implements Callable<T>
+    {
+        private final ThreadContextAware table;
+        private final Callable<T> operation;
+        private final Object context;
+
+        ContextCallable(ThreadContextAware table, Callable<T> operation)
+        {
+            this.table = table;
+            this.operation = operation;
+            this.context = table.captureContext();
+        }
+
+        @Override
+        public T call() throws Exception
+        {
+            Object previous = this.table.restoreContext(this.context);
+            try
+            {
+                return this.operation.call();
+            }
+            finally
+            {
+                this.table.restoreContext(previous);
+            }
+        }
+    }
+
+    /*
+     * Future of an operation that ran inline
+     */
+    private static final class DoneFuture<T> implements Future<T>
+    {
+        private final T result;
+        private final Exception failure;
+
+        DoneFuture(T result, Exception failure)
+        {
+            this.result = result;
+            this.failure = failure;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return true;
+        }
+
+        @Override
+        public T get() throws ExecutionException
+        {
+            if(this.failure != null)
+            {
+                throw new ExecutionException(this.failure);
+            }
+            return this.result;
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws ExecutionException
+        {
+            return get();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes writers wait until what they wrote to a file is durable, according to a {@link DurabilityMode}.
+ * <p/>
+ * Writers {@link #register()} when they write and then {@link #await(long)} the position of the file right after
+ * their write. The first writer that needs a force becomes the leader: under GROUP_COMMIT it waits until
+ * <code>maxBatch</code> writers are waiting, no other registered writer is on its way or the window has
+ * elapsed, then forces the file once for everybody, while the other writers (the followers) wait for it to
+ * complete. Writers whose position is already durable return right away.
+ */
+class GroupCommit
+{
+    /**
+     * The file being written
+     */
+    interface Target
+    {
+        /**
+         * Forces everything written so far to the disk
+         * @return The position up to which the file is durable
+         * @throws IOException If the file cannot be forced
+         */
+        long force() throws IOException;
+    }
+
+    private final Target target;
+    private final DurabilityMode mode;
+    private final long windowNanos;
+    private final int maxBatch;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchFull = this.lock.newCondition();
+    private final Condition forced = this.lock.newCondition();
+
+    // Guarded by lock
+    private long durable;
+    private boolean forcing;
+    private int waiting;
+    // Writers that registered but didn't call await yet
+    private final AtomicInteger writing = new AtomicInteger();
+
+    private final AtomicLong forces = new AtomicLong();
+    private final AtomicLong forceNanos = new AtomicLong();
+    private final AtomicLong maxForceNanos = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param target The file to force
+     * @param mode The durability mode
+     * @param window Longest time the leader of a group commit waits for more writers, in microseconds
+     * @param maxBatch Number of waiting writers that triggers a group commit before the window elapses
+     */
+    GroupCommit(Target target, DurabilityMode mode, long window, int maxBatch)
+    {
+        this.target = target;
+        this.mode = mode;
+        this.windowNanos = mode == DurabilityMode.GROUP_COMMIT ? TimeUnit.MICROSECONDS.toNanos(window) : 0;
+        this.maxBatch = mode == DurabilityMode.GROUP_COMMIT ? Math.max(1, maxBatch) : 1;
+    }
+
+    /**
+     * @return The durability mode
+     */
+    DurabilityMode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Records that the file is durable up to a position without forcing it (e.g. it was forced and closed)
+     * @param position The position
+     */
+    void forced(long position)
+    {
+        this.lock.lock();
+        try
+        {
+            if(position > this.durable)
+            {
+                this.durable = position;
+                this.forced.signalAll();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Announces a write that will be followed by a call to {@link #await(long)}, so the leader of a group
+     * commit can wait for it
+     */
+    void register()
+    {
+        if(this.mode != DurabilityMode.OS_MANAGED)
+        {
+            this.writing.incrementAndGet();
+        }
+    }
+
+    /**
+     * Blocks until the file is durable up to the given position. Must follow a call to {@link #register()}.
+     * @param position Position right after the write of the caller
+     * @throws IOException If the file cannot be forced
+     */
+    void await(long position) throws IOException
+    {
+        if(this.mode == DurabilityMode.OS_MANAGED)
+        {
+            return;
+        }
+
+        int writing = this.writing.decrementAndGet();
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        this.lock.lock();
+        try
+        {
+            this.waiting++;
+            try
+            {
+                if(this.durable < position && (this.waiting >= this.maxBatch || writing <= 0))
+                {
+                    this.batchFull.signal();
+                }
+
+                while(this.durable < position)
+                {
+                    if(this.forcing)
+                    {
+                        try
+                        {
+                            this.forced.await();
+                        }
+                        catch(InterruptedException ex)
+                        {
+                            interrupted = true;
+                        }
+                    }
+                    else
+                    {
+                        interrupted |= lead();
+                    }
+                }
+            }
+            finally
+            {
+                this.waiting--;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        this.waits.incrementAndGet();
+        this.waitNanos.addAndGet(elapsed);
+        max(this.maxWaitNanos, elapsed);
+    }
+
+    /**
+     * @return Statistics of the forces and of the writers that waited for them
+     */
+    Map<String, Object> getStatistics()
+    {
+        long forces = this.forces.get();
+        long waits = this.waits.get();
+
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("durabilityMode", this.mode.name());
+        statistics.put("flushCount", Long.valueOf(forces));
+        statistics.put("writesPerFlush", Double.valueOf(forces == 0 ? 0 : (double) waits / forces));
+        statistics.put("averageFlushMicros", Long.valueOf(forces == 0 ? 0 : this.forceNanos.get() / forces / 1000));
+        statistics.put("maxFlushMicros", Long.valueOf(this.maxForceNanos.get() / 1000));
+        statistics.put("syncWaits", Long.valueOf(waits));
+        statistics.put("averageSyncWaitMicros", Long.valueOf(waits == 0 ? 0 : this.waitNanos.get() / waits / 1000));
+        statistics.put("maxSyncWaitMicros", Long.valueOf(this.maxWaitNanos.get() / 1000));
+        return statistics;
+    }
+
+    /*
+     * Gathers a batch and forces the file for it. Called with the lock held, which is released while forcing.
+     * Returns whether the thread was interrupted while gathering the batch.
+     */
+    private boolean lead() throws IOException
+    {
+        this.forcing = true;
+        boolean interrupted = false;
+        try
+        {
+            long remaining = this.windowNanos;
+            while(this.waiting < this.maxBatch && this.writing.get() > 0 && remaining > 0)
+            {
+                try
+                {
+                    remaining = this.batchFull.awaitNanos(remaining);
+                }
+                catch(InterruptedException ex)
+                {
+                    interrupted = true;
+                    break;
+                }
+            }
+
+            long start = System.nanoTime();
+            long position;
+            this.lock.unlock();
+            try
+            {
+                position = this.target.force();
+            }
+            finally
+            {
+                this.lock.lock();
+            }
+
+            long elapsed = System.nanoTime() - start;
+            this.forces.incrementAndGet();
+            this.forceNanos.addAndGet(elapsed);
+            max(this.maxForceNanos, elapsed);
+
+            if(position > this.durable)
+            {
+                this.durable = position;
+            }
+        }
+        finally
+        {
+            this.forcing = false;
+            this.forced.signalAll();
+        }
+        return interrupted;
+    }
+
+    private static void max(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while(value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+}
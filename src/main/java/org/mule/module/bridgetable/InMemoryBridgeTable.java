@@ -10,26 +10,30 @@
 
 package org.mule.module.bridgetable;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.log4j.Logger;
+
 /**
- * Concrete implementation of a bridge table that uses two maps in memory to store key mappings.
+ * Volatile bridge table that keeps key mappings in memory. The concrete storage is selected from the key types
+ * when the table is initialized: {@link LongBridgeTable} when both keys are integral numbers and null keys are
+ * not allowed, and {@link ConcurrentBridgeTable} otherwise.
+ * <p/>
+ * {@link LongBridgeTable} serializes its writers on a single lock, while {@link ConcurrentBridgeTable} only locks
+ * the stripes of the keys a write touches. The former takes far less memory and its lookups don't allocate, the
+ * latter scales better with many concurrent writers.
  */
-public class InMemoryBridgeTable implements BridgeTable
+public class InMemoryBridgeTable extends AbstractBridgeTable
 {
-    private Object lock = new Object();
-    
-    // key1 => key2 mapping
-    private Map<Object, Object> direct;
-    // key2 => key1 mapping
-    private Map<Object, Object> reverse;
-    
-    private String tableName;
+    private static final Logger LOGGER = Logger.getLogger(InMemoryBridgeTable.class);
+
+    private BridgeTable engine;
+    private boolean nullKeys;
+
     /**
-     * 
+     *
      */
     public InMemoryBridgeTable()
     {
@@ -41,14 +45,25 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public void init(String tableName,
                      KeyType key1Type,
-                     KeyType key2Type1,
+                     KeyType key2Type,
                      String key1Name,
                      String key2Name,
                      boolean autoCreateTable) throws BridgeTableException
     {
-        this.tableName = tableName;
-        this.direct = new HashMap<Object, Object>();
-        this.reverse = new HashMap<Object, Object>();
+        if(!this.nullKeys && LongBridgeTable.supports(key1Type) && LongBridgeTable.supports(key2Type))
+        {
+            this.engine = new LongBridgeTable();
+        }
+        else
+        {
+            this.engine = new ConcurrentBridgeTable();
+        }
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Using " + this.engine.getClass().getName() + " for table " + tableName);
+        }
+        this.engine.init(tableName, key1Type, key2Type, key1Name, key2Name, autoCreateTable);
     }
 
     /**
@@ -57,10 +72,7 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public void destroy() throws BridgeTableException
     {
-        this.direct.clear();
-        this.reverse.clear();
-        this.direct = null;
-        this.reverse = null;
+        this.engine.destroy();
     }
 
     /**
@@ -69,26 +81,16 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public void insert(Object key1, Object key2) throws BridgeTableException
     {
-        synchronized (this.lock)
-        {
-            if(containsKey1(key1) && containsKey2(key2))
-            {
-                throw new KeyAlreadyExistsException("The row [key1, key2] = [" + key1 + ", " + key2 + "] already exists in " + this.tableName);
-            }
-            else if(containsKey1(key1))
-            {
-                throw new KeyAlreadyExistsException("The value [key1] = [" + key1 + "] already exists in " + this.tableName);
-            }
-            else if(containsKey2(key2))
-            {
-                throw new KeyAlreadyExistsException("The value [key2] = [" + key2 + "] already exists in " + this.tableName);
-            }
-            else
-            {
-                this.direct.put(key1, key2);
-                this.reverse.put(key2, key1);
-            }
-        }
+        this.engine.insert(key1, key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#insertAll(java.util.Map)
+     */
+    @Override
+    public Map<Object, Object> insertAll(Map<Object, Object> pairs) throws BridgeTableException
+    {
+        return this.engine.insertAll(pairs);
     }
 
     /**
@@ -97,20 +99,7 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public void updateByKey1(Object key1, Object newKey2) throws BridgeTableException
     {
-        synchronized (this.lock)
-        {        
-            if(!containsKey1(key1))
-            {
-                throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
-            }
-            else
-            {
-                Object oldKey2 = this.direct.get(key1);
-                this.direct.put(key1, newKey2);
-                this.reverse.remove(oldKey2);
-                this.reverse.put(newKey2, key1);
-            }
-        }
+        this.engine.updateByKey1(key1, newKey2);
     }
 
     /**
@@ -119,20 +108,25 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public void updateByKey2(Object key2, Object newKey1) throws BridgeTableException
     {
-        synchronized (this.lock)
-        {        
-            if(!containsKey2(key2))
-            {
-                throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
-            }
-            else
-            {
-                Object oldKey1 = this.reverse.get(key2);
-                this.reverse.put(key2, newKey1);
-                this.direct.remove(oldKey1);
-                this.direct.put(newKey1, key2);
-            }
-        }        
+        this.engine.updateByKey2(key2, newKey1);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(Object key1, Object key2) throws BridgeTableException
+    {
+        this.engine.upsertByKey1(key1, key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(Object key2, Object key1) throws BridgeTableException
+    {
+        this.engine.upsertByKey2(key2, key1);
     }
 
     /**
@@ -141,18 +135,7 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public void removeByKey1(Object key1) throws BridgeTableException
     {
-        synchronized (this.lock)
-        {        
-            if(!containsKey1(key1))
-            {
-                throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
-            }
-            else
-            {
-                Object key2 = this.direct.remove(key1);
-                this.reverse.remove(key2);
-            }
-        }        
+        this.engine.removeByKey1(key1);
     }
 
     /**
@@ -161,18 +144,7 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public void removeByKey2(Object key2) throws BridgeTableException
     {
-        synchronized (this.lock)
-        {        
-            if(!containsKey2(key2))
-            {
-                throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
-            }
-            else
-            {
-                Object key1 = this.reverse.remove(key2);
-                this.direct.remove(key1);
-            }
-        }         
+        this.engine.removeByKey2(key2);
     }
 
     /**
@@ -181,14 +153,7 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public Object retrieveByKey1(Object key1) throws BridgeTableException
     {
-        if(!containsKey1(key1))
-        {
-            throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
-        }
-        else
-        {
-            return this.direct.get(key1);
-        }
+        return this.engine.retrieveByKey1(key1);
     }
 
     /**
@@ -197,14 +162,43 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public Object retrieveByKey2(Object key2) throws BridgeTableException
     {
-        if(!containsKey2(key2))
-        {
-            throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
-        }
-        else
-        {
-            return this.reverse.get(key2);
-        }
+        return this.engine.retrieveByKey2(key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        return this.engine.retrieveByKey1OrDefault(key1, defaultValue);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        return this.engine.retrieveByKey2OrDefault(key2, defaultValue);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        return this.engine.retrieveAllByKey1(keys1);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        return this.engine.retrieveAllByKey2(keys2);
     }
 
     /**
@@ -222,7 +216,7 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public boolean containsKey1(Object key1) throws BridgeTableException
     {
-        return this.direct.containsKey(key1);
+        return this.engine.containsKey1(key1);
     }
 
     /**
@@ -231,7 +225,7 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public boolean containsKey2(Object key2) throws BridgeTableException
     {
-        return this.reverse.containsKey(key2);
+        return this.engine.containsKey2(key2);
     }
 
     /**
@@ -240,7 +234,7 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public List<Object> keys1() throws BridgeTableException
     {
-        return new ArrayList<Object>(this.direct.keySet());
+        return this.engine.keys1();
     }
 
     /**
@@ -249,8 +243,68 @@ public class InMemoryBridgeTable implements BridgeTable
     @Override
     public List<Object> keys2() throws BridgeTableException
     {
-        return new ArrayList<Object>(this.reverse.keySet());
+        return this.engine.keys2();
     }
-}
 
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        return this.engine.keys1Page(afterKey1, pageSize);
+    }
 
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        return this.engine.keys2Page(afterKey2, pageSize);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        return this.engine.iterateKeys1();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        return this.engine.iterateKeys2();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        this.engine.executeBatch(operations);
+    }
+
+    /**
+     * @return Whether the table accepts null keys
+     */
+    public boolean isNullKeys()
+    {
+        return nullKeys;
+    }
+
+    /**
+     * @param nullKeys Whether the table must accept null keys, which keeps numeric keys out of
+     * {@link LongBridgeTable}. Takes effect when the table is initialized.
+     */
+    public void setNullKeys(boolean nullKeys)
+    {
+        this.nullKeys = nullKeys;
+    }
+}
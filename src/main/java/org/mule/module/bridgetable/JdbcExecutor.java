@@ -0,0 +1,400 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs JDBC work against a data source, taking care of connections and prepared statements.
+ * <p/>
+ * By default every unit of work borrows a connection from the data source and returns it when it's done,
+ * closing every statement it prepared. When connections are pinned a unit of work leaves its connection,
+ * together with a cache of the statements prepared on it, with the executor instead, and the next unit of work
+ * takes it back, so a series of operations neither goes back to the pool nor makes the database parse the same
+ * SQL again.
+ * <p/>
+ * Connections are held only while a unit of work runs or while they're idle in the executor, never by a thread:
+ * a thread that ends, as virtual threads do after their single task, leaves nothing behind. The most recently
+ * used idle connection is handed out first, so the idle connections beyond what the load needs age and are
+ * closed, when a unit of work ends, once they have been idle for {@link #IDLE_TIMEOUT} milliseconds. At most
+ * {@link #MAX_IDLE_SESSIONS} of them are kept.
+ * Pinned connections are discarded when they fail and closed by {@link #close()}.
+ * <p/>
+ * Units of work run from within another unit of work share its connection, so they take part in its
+ * transaction.
+ */
+class JdbcExecutor
+{
+    private static final Logger LOGGER = Logger.getLogger(JdbcExecutor.class);
+
+    static final int STATEMENT_CACHE_SIZE = 32;
+    static final int MAX_IDLE_SESSIONS = 16;
+    static final long IDLE_TIMEOUT = 60 * 1000;
+
+    /**
+     * A unit of work that runs with a connection
+     */
+    interface Work<T>
+    {
+        /**
+         * @param session The connection and its statements
+         * @return The result of the work
+         * @throws SQLException In case of error
+         */
+        T execute(Session session) throws SQLException;
+    }
+
+    private final DataSource dataSource;
+    private final boolean pinConnections;
+
+    private final ThreadLocal<Session> current = new ThreadLocal<Session>();
+    // Idle pinned sessions, the most recently used first
+    private final Deque<Session> idle = new ArrayDeque<Session>();
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private boolean closed;
+
+    /**
+     * @param dataSource The data source
+     * @param pinConnections Whether connections are kept, with their statements, between units of work
+     */
+    JdbcExecutor(DataSource dataSource, boolean pinConnections)
+    {
+        this.dataSource = dataSource;
+        this.pinConnections = pinConnections;
+    }
+
+    /**
+     * Runs a unit of work
+     * @param work The work
+     * @return The result of the work
+     * @throws SQLException In case of error
+     */
+    <T> T execute(Work<T> work) throws SQLException
+    {
+        Session session = this.current.get();
+        if(session != null)
+        {
+            return work.execute(session);
+        }
+
+        session = acquire();
+        boolean failed = true;
+        this.current.set(session);
+        try
+        {
+            T result = work.execute(session);
+            failed = false;
+            return result;
+        }
+        finally
+        {
+            this.current.remove();
+            release(session, failed);
+        }
+    }
+
+    /**
+     * Executes a query and returns the values of its first column
+     * @param sql The query
+     * @param params The parameters of the query
+     * @return The values of the first column of every row
+     * @throws SQLException In case of error
+     */
+    List<Object> query(final String sql, final Object[] params) throws SQLException
+    {
+        return execute(new Work<List<Object>>()
+        {
+            @Override
+            public List<Object> execute(Session session) throws SQLException
+            {
+                PreparedStatement stmt = session.prepare(sql);
+                bind(stmt, params);
+
+                List<Object> result = new ArrayList<Object>();
+                ResultSet rs = stmt.executeQuery();
+                try
+                {
+                    while(rs.next())
+                    {
+                        result.add(rs.getObject(1));
+                    }
+                }
+                finally
+                {
+                    close(rs);
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Executes an update statement
+     * @param sql The statement
+     * @param params The parameters of the statement
+     * @return The number of rows affected
+     * @throws SQLException In case of error
+     */
+    int update(final String sql, final Object[] params) throws SQLException
+    {
+        return execute(new Work<Integer>()
+        {
+            @Override
+            public Integer execute(Session session) throws SQLException
+            {
+                PreparedStatement stmt = session.prepare(sql);
+                bind(stmt, params);
+                return Integer.valueOf(stmt.executeUpdate());
+            }
+        }).intValue();
+    }
+
+    /**
+     * Closes the idle pinned connections. The ones in use are closed when their unit of work ends.
+     */
+    void close()
+    {
+        List<Session> closing;
+        this.idleLock.lock();
+        try
+        {
+            this.closed = true;
+            closing = new ArrayList<Session>(this.idle);
+            this.idle.clear();
+        }
+        finally
+        {
+            this.idleLock.unlock();
+        }
+        for(Session session : closing)
+        {
+            session.close();
+        }
+    }
+
+    /**
+     * Sets the parameters of a statement
+     * @param stmt The statement
+     * @param params The parameters, may be null
+     * @throws SQLException In case of error
+     */
+    static void bind(PreparedStatement stmt, Object[] params) throws SQLException
+    {
+        if(params != null && params.length > 0)
+        {
+            for(int i=0; i < params.length; i++)
+            {
+                if(params[i] != null)
+                {
+                    stmt.setObject(i + 1, params[i]);
+                }
+                else
+                {
+                    stmt.setNull(i + 1, Types.JAVA_OBJECT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Silently closes a result set
+     * @param rs The result set, may be null
+     */
+    static void close(ResultSet rs)
+    {
+        if(rs != null)
+        {
+            try
+            {
+                rs.close();
+            }
+            catch(SQLException ex)
+            {
+                LOGGER.error("Could not close result set", ex);
+            }
+        }
+    }
+
+    private Session acquire() throws SQLException
+    {
+        if(this.pinConnections)
+        {
+            this.idleLock.lock();
+            try
+            {
+                Session session = this.idle.pollFirst();
+                if(session != null)
+                {
+                    return session;
+                }
+            }
+            finally
+            {
+                this.idleLock.unlock();
+            }
+        }
+        return new Session(this.dataSource.getConnection());
+    }
+
+    private void release(Session session, boolean failed)
+    {
+        if(!this.pinConnections || (failed && !session.isValid()))
+        {
+            // A failed connection may be broken, the next unit of work will get a new one
+            session.close();
+            return;
+        }
+
+        List<Session> closing = new ArrayList<Session>();
+        long now = System.currentTimeMillis();
+        this.idleLock.lock();
+        try
+        {
+            if(this.closed || this.idle.size() >= MAX_IDLE_SESSIONS)
+            {
+                closing.add(session);
+            }
+            else
+            {
+                session.idleSince = now;
+                this.idle.addFirst(session);
+            }
+            // The least recently used sessions are at the end
+            while(!this.idle.isEmpty() && now - this.idle.peekLast().idleSince > IDLE_TIMEOUT)
+            {
+                closing.add(this.idle.pollLast());
+            }
+        }
+        finally
+        {
+            this.idleLock.unlock();
+        }
+        for(Session expired : closing)
+        {
+            expired.close();
+        }
+    }
+
+    /**
+     * A connection and the statements prepared on it
+     */
+    static class Session
+    {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+        // When the session was last returned to the executor
+        private long idleSince;
+
+        Session(Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        /**
+         * @return The connection
+         */
+        Connection getConnection()
+        {
+            return connection;
+        }
+
+        /**
+         * Returns a prepared statement for the given SQL, reusing the one prepared before if any. The statement
+         * belongs to the session and must not be closed by the caller.
+         * @param sql The SQL
+         * @return The statement
+         * @throws SQLException In case of error
+         */
+        PreparedStatement prepare(String sql) throws SQLException
+        {
+            PreparedStatement stmt = this.statements.get(sql);
+            if(stmt == null)
+            {
+                stmt = this.connection.prepareStatement(sql);
+                this.statements.put(sql, stmt);
+                if(this.statements.size() > STATEMENT_CACHE_SIZE)
+                {
+                    Iterator<PreparedStatement> eldest = this.statements.values().iterator();
+                    close(eldest.next());
+                    eldest.remove();
+                }
+            }
+            else
+            {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+
+        private boolean isValid()
+        {
+            try
+            {
+                return !this.connection.isClosed() && this.connection.isValid(5);
+            }
+            catch(SQLException ex)
+            {
+                return false;
+            }
+        }
+
+        private void close()
+        {
+            try
+            {
+                for(PreparedStatement stmt : this.statements.values())
+                {
+                    close(stmt);
+                }
+                this.statements.clear();
+            }
+            finally
+            {
+                try
+                {
+                    this.connection.close();
+                }
+                catch(SQLException ex)
+                {
+                    LOGGER.error("Could not close connection", ex);
+                }
+            }
+        }
+
+        private static void close(PreparedStatement stmt)
+        {
+            try
+            {
+                stmt.close();
+            }
+            catch(SQLException ex)
+            {
+                LOGGER.error("Could not close statement", ex);
+            }
+        }
+    }
+}
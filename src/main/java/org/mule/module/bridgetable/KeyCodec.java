@@ -0,0 +1,220 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Binary encoding of keys for the bridge tables that store them outside of the Java heap. STRING keys are
+ * encoded as UTF-8, INT_NUMBER as 4 bytes, LONG_NUMBER as 8 bytes and DECIMAL_NUMBER as the 8 bytes of the
+ * IEEE 754 representation. A <code>null</code> key is encoded as <code>null</code>.
+ * <p/>
+ * Integral keys are never narrowed: a key that is not a whole number, or doesn't fit in its type, is rejected
+ * rather than truncated into another key.
+ */
+final class KeyCodec
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private KeyCodec()
+    {
+    }
+
+    /**
+     * @param key The key to encode
+     * @param type The type of the key
+     * @return The bytes for the key or <code>null</code> if the key is null
+     * @throws BridgeTableException If the key is not a number of the given type
+     */
+    static byte[] encode(Object key, KeyType type) throws BridgeTableException
+    {
+        if(key == null)
+        {
+            return null;
+        }
+
+        switch(type)
+        {
+            case INT_NUMBER: return ByteBuffer.allocate(4).putInt(toInt(key)).array();
+            case LONG_NUMBER: return ByteBuffer.allocate(8).putLong(toLong(key)).array();
+            case DECIMAL_NUMBER: return ByteBuffer.allocate(8).putDouble(toDouble(key)).array();
+            default: return String.valueOf(key).getBytes(UTF8);
+        }
+    }
+
+    /**
+     * @param bytes The bytes as returned by {@link #encode(Object, KeyType)}
+     * @param type The type of the key
+     * @return The key
+     */
+    static Object decode(byte[] bytes, KeyType type)
+    {
+        if(bytes == null)
+        {
+            return null;
+        }
+
+        switch(type)
+        {
+            case INT_NUMBER: return Integer.valueOf(ByteBuffer.wrap(bytes).getInt());
+            case LONG_NUMBER: return Long.valueOf(ByteBuffer.wrap(bytes).getLong());
+            case DECIMAL_NUMBER: return Double.valueOf(ByteBuffer.wrap(bytes).getDouble());
+            default: return new String(bytes, UTF8);
+        }
+    }
+
+    /**
+     * @param bytes An encoded key, may be null
+     * @return Number of bytes taken by the key when written with {@link #write(ByteBuffer, byte[])}
+     */
+    static int sizeOf(byte[] bytes)
+    {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    /**
+     * Writes an encoded key preceded by its length (-1 for null)
+     * @param buffer The destination buffer
+     * @param bytes The encoded key, may be null
+     */
+    static void write(ByteBuffer buffer, byte[] bytes)
+    {
+        if(bytes == null)
+        {
+            buffer.putInt(-1);
+        }
+        else
+        {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Reads an encoded key written by {@link #write(ByteBuffer, byte[])}
+     * @param buffer The source buffer
+     * @return The encoded key, may be null
+     */
+    static byte[] read(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        if(length < 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 64 bit hash of an encoded key (MurmurHash64A)
+     * @param bytes The encoded key, may be null
+     * @return The hash
+     */
+    static long hash(byte[] bytes)
+    {
+        if(bytes == null)
+        {
+            return 0x9e3779b97f4a7c15L;
+        }
+
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        long h = 0x8445d61a4e774912L ^ (bytes.length * m);
+
+        int blocks = bytes.length >>> 3;
+        for(int i=0; i < blocks; i++)
+        {
+            int offset = i << 3;
+            long k = (bytes[offset] & 0xffL)
+                | (bytes[offset + 1] & 0xffL) << 8
+                | (bytes[offset + 2] & 0xffL) << 16
+                | (bytes[offset + 3] & 0xffL) << 24
+                | (bytes[offset + 4] & 0xffL) << 32
+                | (bytes[offset + 5] & 0xffL) << 40
+                | (bytes[offset + 6] & 0xffL) << 48
+                | (bytes[offset + 7] & 0xffL) << 56;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+
+        int tail = blocks << 3;
+        int remaining = bytes.length - tail;
+        if(remaining > 0)
+        {
+            for(int i=remaining - 1; i >= 0; i--)
+            {
+                h ^= (bytes[tail + i] & 0xffL) << (i << 3);
+            }
+            h *= m;
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+
+    private static int toInt(Object key) throws BridgeTableException
+    {
+        long value = toLong(key);
+        if(value != (int) value)
+        {
+            throw new BridgeTableException("The key [" + key + "] is out of range for " + KeyType.INT_NUMBER);
+        }
+        return (int) value;
+    }
+
+    private static long toLong(Object key) throws BridgeTableException
+    {
+        if(key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)
+        {
+            return ((Number) key).longValue();
+        }
+
+        // Other numbers and strings must hold an integral value within range, 1.5 is not truncated to 1
+        try
+        {
+            BigDecimal value = key instanceof BigDecimal ? (BigDecimal) key : new BigDecimal(String.valueOf(key));
+            return value.longValueExact();
+        }
+        catch(NumberFormatException ex)
+        {
+            throw new BridgeTableException("The key [" + key + "] is not a number", ex);
+        }
+        catch(ArithmeticException ex)
+        {
+            throw new BridgeTableException("The key [" + key + "] is not an integral number within range", ex);
+        }
+    }
+
+    private static double toDouble(Object key) throws BridgeTableException
+    {
+        if(key instanceof Number)
+        {
+            return ((Number) key).doubleValue();
+        }
+        try
+        {
+            return Double.parseDouble(String.valueOf(key));
+        }
+        catch(NumberFormatException ex)
+        {
+            throw new BridgeTableException("The key [" + key + "] is not a number", ex);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.Iterator;
+
+/**
+ * Lazy iterator over the values of a key of a bridge table, which may hold resources (such as a database
+ * cursor) until it's closed. It closes itself when it's exhausted or fails; callers that stop iterating
+ * earlier must call {@link #close()}.
+ * <p/>
+ * Errors while iterating are thrown as {@link IllegalStateException} whose cause is the
+ * {@link BridgeTableException}. Keys cannot be removed through the iterator.
+ */
+public interface KeyIterator extends Iterator<Object>
+{
+    /**
+     * Frees the resources held by the iterator. Calling it more than once has no effect.
+     */
+    void close();
+}
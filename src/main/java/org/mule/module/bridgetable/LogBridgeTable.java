@@ -0,0 +1,955 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Concrete implementation of a persistent bridge table that keeps its mappings in memory (so lookups
+ * are as fast as in a {@link ConcurrentBridgeTable}) and makes them survive restarts by appending every
+ * change to a log in a local directory.
+ * <p/>
+ * Each insert and update is logged as a PUT record (the mapping key1 <=> key2 is now current) and each
+ * removal as a REMOVE record. Records are framed as <code>[length][operation][key1][key2][crc32]</code>
+ * with keys encoded by {@link KeyCodec}, and are written sequentially while holding the locks of the keys
+ * they affect.
+ * <p/>
+ * The log is split in segments (<code>&lt;table&gt;.&lt;n&gt;.log</code>). Compaction, which runs in the
+ * background every <code>compactionInterval</code> milliseconds, starts a new segment n, writes every live
+ * mapping to the snapshot <code>&lt;table&gt;.&lt;n&gt;.snapshot</code> and then deletes the older segments
+ * and snapshots. Writers are only held back while the new segment is opened and lookups are never blocked:
+ * the snapshot is written from a weakly consistent iteration of the maps, which is enough because every
+ * change it might miss or see half done is in segment n or later, and replaying a PUT or REMOVE record
+ * leaves the keys involved in the same state no matter their previous state.
+ * <p/>
+ * When the table is initialized the latest snapshot is loaded and only the segments written after it are
+ * replayed. A torn or corrupt record at the end of the last segment (e.g. a crash in the middle of a write)
+ * is discarded.
+ * <p/>
+ * Inserts, updates and removals return once their record is durable according to the {@link DurabilityMode}.
+ * They wait after releasing the locks of their keys, so under GROUP_COMMIT concurrent writers share a single
+ * force of the log.
+ */
+public class LogBridgeTable extends ConcurrentBridgeTable implements Monitorable
+{
+    private static final Logger LOGGER = Logger.getLogger(LogBridgeTable.class);
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x42545331;
+
+    // File.toPath(), FileChannel.open(Path, OpenOption...) and StandardOpenOption.READ, null before Java 7
+    private static final Method TO_PATH;
+    private static final Method OPEN;
+    private static final Object OPEN_OPTIONS;
+
+    static
+    {
+        Method toPath = null;
+        Method open = null;
+        Object options = null;
+        try
+        {
+            Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+            options = Array.newInstance(optionClass, 1);
+            Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+            toPath = File.class.getMethod("toPath");
+            open = FileChannel.class.getMethod("open", Class.forName("java.nio.file.Path"), options.getClass());
+        }
+        catch(Exception ex)
+        {
+            toPath = null;
+            open = null;
+        }
+        TO_PATH = toPath;
+        OPEN = open;
+        OPEN_OPTIONS = options;
+    }
+
+    private final File directory;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    // Serializes forces of the log with the switch to a new segment
+    private final ReentrantLock forceLock = new ReentrantLock();
+
+    private DurabilityMode durabilityMode = DurabilityMode.GROUP_COMMIT;
+    private long groupCommitWindow = 1000;
+    private int groupCommitSize = 64;
+    private GroupCommit groupCommit;
+    // Position, counted from the start of this run, right after the last record written by the current thread
+    private final ThreadLocal<long[]> lastWrite = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[1];
+        }
+    };
+
+    private long compactionInterval;
+    private ScheduledExecutorService compactor;
+
+    private String tableName;
+    private KeyType key1Type;
+    private KeyType key2Type;
+
+    // Sequence number of the segment being appended to
+    private long segment;
+    private File logFile;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    // Segment being closed by a compaction, which may hold records that are not durable yet
+    private FileChannel previous;
+    // Bytes appended to the log since the table was initialized
+    private long written;
+
+    /**
+     * @param directory Directory that holds the log segments and snapshots
+     */
+    public LogBridgeTable(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ConcurrentBridgeTable#init(java.lang.String, org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType, java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public void init(String tableName,
+                     KeyType key1Type,
+                     KeyType key2Type,
+                     String key1Name,
+                     String key2Name,
+                     boolean autoCreateTable) throws BridgeTableException
+    {
+        super.init(tableName, key1Type, key2Type, key1Name, key2Name, autoCreateTable);
+
+        this.tableName = tableName;
+        this.key1Type = key1Type;
+        this.key2Type = key2Type;
+
+        if(!this.directory.isDirectory() && !this.directory.mkdirs())
+        {
+            throw new BridgeTableException("Could not create directory " + this.directory.getAbsolutePath() + " for bridge table " + tableName);
+        }
+
+        this.written = 0;
+        this.groupCommit = new GroupCommit(new GroupCommit.Target()
+        {
+            @Override
+            public long force() throws IOException
+            {
+                return forceLog();
+            }
+        }, this.durabilityMode, this.groupCommitWindow, this.groupCommitSize);
+
+        try
+        {
+            long start = System.currentTimeMillis();
+            recover();
+            LOGGER.info("Loaded " + keys1().size() + " mappings for " + tableName + " from " + this.directory.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not recover bridge table " + tableName + " from " + this.directory.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+
+        if(this.compactionInterval > 0)
+        {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "bridgetable-compaction-" + LogBridgeTable.this.tableName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.compactor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    compactIfNeeded();
+                }
+            }, this.compactionInterval, this.compactionInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ConcurrentBridgeTable#destroy()
+     */
+    @Override
+    public void destroy() throws BridgeTableException
+    {
+        if(this.compactor != null)
+        {
+            this.compactor.shutdown();
+            this.compactor = null;
+        }
+
+        // Wait for a compaction in progress
+        this.compactionLock.lock();
+        this.forceLock.lock();
+        this.writeLock.lock();
+        try
+        {
+            if(this.channel != null)
+            {
+                this.channel.force(true);
+                this.file.close();
+                this.channel = null;
+                this.file = null;
+                this.groupCommit.forced(this.written);
+            }
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not close log " + this.logFile.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+        finally
+        {
+            this.writeLock.unlock();
+            this.forceLock.unlock();
+            this.compactionLock.unlock();
+            super.destroy();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ConcurrentBridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return true;
+    }
+
+    /**
+     * Writes a snapshot of the table and deletes the log segments and snapshots it supersedes. Writers
+     * are held back only while a new log segment is started.
+     * @throws BridgeTableException If the snapshot cannot be written
+     */
+    public void compact() throws BridgeTableException
+    {
+        this.compactionLock.lock();
+        try
+        {
+            if(this.channel == null)
+            {
+                throw new BridgeTableException("Bridge table " + this.tableName + " is closed");
+            }
+
+            long start = System.currentTimeMillis();
+            long sequence = roll();
+            File snapshot = writeSnapshot(sequence);
+            deleteObsolete(sequence);
+
+            if(LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Compacted " + this.tableName + " into " + snapshot.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+        finally
+        {
+            this.compactionLock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ConcurrentBridgeTable#onPut(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    protected void onPut(Object key1, Object key2) throws BridgeTableException
+    {
+        append(PUT, key1, key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ConcurrentBridgeTable#onRemove(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    protected void onRemove(Object key1, Object key2) throws BridgeTableException
+    {
+        append(REMOVE, key1, key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ConcurrentBridgeTable#afterWrite()
+     */
+    @Override
+    protected void afterWrite() throws BridgeTableException
+    {
+        long[] position = this.lastWrite.get();
+        if(position[0] > 0)
+        {
+            long target = position[0];
+            position[0] = 0;
+            try
+            {
+                this.groupCommit.await(target);
+            }
+            catch(IOException ex)
+            {
+                String msg = "Could not force log " + this.logFile.getAbsolutePath();
+                LOGGER.error(msg, ex);
+                throw new BridgeTableException(msg, ex);
+            }
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.Monitorable#getStatistics()
+     */
+    @Override
+    public Map<String, Object> getStatistics()
+    {
+        return this.groupCommit.getStatistics();
+    }
+
+    /**
+     * @return The log segment being appended to
+     */
+    public File getLogFile()
+    {
+        return logFile;
+    }
+
+    /**
+     * @return Milliseconds between background compactions, 0 if they are disabled
+     */
+    public long getCompactionInterval()
+    {
+        return compactionInterval;
+    }
+
+    /**
+     * @param compactionInterval Milliseconds between background compactions, 0 to disable them. Takes effect
+     * when the table is initialized.
+     */
+    public void setCompactionInterval(long compactionInterval)
+    {
+        this.compactionInterval = compactionInterval;
+    }
+
+    /**
+     * @return How writes reach the disk before operations return
+     */
+    public DurabilityMode getDurabilityMode()
+    {
+        return durabilityMode;
+    }
+
+    /**
+     * @param durabilityMode How writes reach the disk before operations return. Takes effect when the table
+     * is initialized.
+     */
+    public void setDurabilityMode(DurabilityMode durabilityMode)
+    {
+        this.durabilityMode = durabilityMode;
+    }
+
+    /**
+     * @return Longest time, in microseconds, a group commit waits for more writers before forcing the log
+     */
+    public long getGroupCommitWindow()
+    {
+        return groupCommitWindow;
+    }
+
+    /**
+     * @param groupCommitWindow Longest time, in microseconds, a group commit waits for more writers before
+     * forcing the log. Takes effect when the table is initialized.
+     */
+    public void setGroupCommitWindow(long groupCommitWindow)
+    {
+        this.groupCommitWindow = groupCommitWindow;
+    }
+
+    /**
+     * @return Number of waiting writers that forces the log before the group commit window elapses
+     */
+    public int getGroupCommitSize()
+    {
+        return groupCommitSize;
+    }
+
+    /**
+     * @param groupCommitSize Number of waiting writers that forces the log before the group commit window
+     * elapses. Takes effect when the table is initialized.
+     */
+    public void setGroupCommitSize(int groupCommitSize)
+    {
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    /*
+     * Writes a record at the end of the log
+     */
+    private void append(byte operation, Object key1, Object key2) throws BridgeTableException
+    {
+        byte[] k1 = KeyCodec.encode(key1, this.key1Type);
+        byte[] k2 = KeyCodec.encode(key2, this.key2Type);
+
+        int length = 1 + KeyCodec.sizeOf(k1) + KeyCodec.sizeOf(k2);
+        ByteBuffer record = ByteBuffer.allocate(4 + length + 4);
+        record.putInt(length);
+        record.put(operation);
+        KeyCodec.write(record, k1);
+        KeyCodec.write(record, k2);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        this.writeLock.lock();
+        try
+        {
+            if(this.channel == null)
+            {
+                throw new BridgeTableException("Bridge table " + this.tableName + " is closed");
+            }
+            while(record.hasRemaining())
+            {
+                this.channel.write(record);
+            }
+            this.written += record.limit();
+            long[] position = this.lastWrite.get();
+            if(position[0] == 0)
+            {
+                // A bulk operation appends several records and waits once, for the last of them
+                this.groupCommit.register();
+            }
+            position[0] = this.written;
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not write to log " + this.logFile.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+        finally
+        {
+            this.writeLock.unlock();
+        }
+    }
+
+    /*
+     * Forces the records written so far, including those of a segment being closed, and returns the position
+     * they reach
+     */
+    private long forceLog() throws IOException
+    {
+        this.forceLock.lock();
+        try
+        {
+            long position;
+            FileChannel current;
+            FileChannel closing;
+            this.writeLock.lock();
+            try
+            {
+                position = this.written;
+                current = this.channel;
+                closing = this.previous;
+            }
+            finally
+            {
+                this.writeLock.unlock();
+            }
+
+            if(current == null)
+            {
+                throw new IOException("Bridge table " + this.tableName + " is closed");
+            }
+            if(closing != null)
+            {
+                closing.force(false);
+            }
+            current.force(false);
+            return position;
+        }
+        finally
+        {
+            this.forceLock.unlock();
+        }
+    }
+
+    /*
+     * Compaction run by the background thread, skipped when nothing was logged since the last one
+     */
+    private void compactIfNeeded()
+    {
+        this.compactionLock.lock();
+        try
+        {
+            if(this.channel != null && this.channel.position() > 0)
+            {
+                compact();
+            }
+        }
+        catch(Exception ex)
+        {
+            LOGGER.error("Compaction of bridge table " + this.tableName + " failed", ex);
+        }
+        finally
+        {
+            this.compactionLock.unlock();
+        }
+    }
+
+    /*
+     * Starts a new log segment and returns its sequence number. No write is in progress while the segment
+     * is switched, so every change is either reflected in the maps before the snapshot starts or logged in
+     * the new segment.
+     */
+    private long roll() throws BridgeTableException
+    {
+        FileChannel previous;
+        File previousFile;
+        lockAll();
+        try
+        {
+            this.writeLock.lock();
+            try
+            {
+                previous = this.channel;
+                previousFile = this.logFile;
+                open(this.segment + 1);
+                this.previous = previous;
+            }
+            finally
+            {
+                this.writeLock.unlock();
+            }
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not start a new log segment for bridge table " + this.tableName;
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+        finally
+        {
+            unlockAll();
+        }
+
+        this.forceLock.lock();
+        try
+        {
+            previous.force(true);
+            this.writeLock.lock();
+            try
+            {
+                this.previous = null;
+            }
+            finally
+            {
+                this.writeLock.unlock();
+            }
+            previous.close();
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not close log " + previousFile.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+        finally
+        {
+            this.forceLock.unlock();
+        }
+        return this.segment;
+    }
+
+    /*
+     * Opens a log segment for appending, discarding whatever follows the last valid record
+     */
+    private void open(long sequence) throws IOException
+    {
+        File log = file(sequence, LOG_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        this.file = raf;
+        this.channel = raf.getChannel();
+        this.channel.position(this.channel.size());
+        this.logFile = log;
+        this.segment = sequence;
+    }
+
+    /*
+     * Loads the latest snapshot and replays the log segments written after it
+     */
+    private void recover() throws IOException, BridgeTableException
+    {
+        // Log written before it was split in segments
+        File legacy = new File(this.directory, this.tableName + LOG_SUFFIX);
+        if(legacy.exists() && list(LOG_SUFFIX).isEmpty() && !legacy.renameTo(file(0, LOG_SUFFIX)))
+        {
+            throw new BridgeTableException("Could not rename " + legacy.getAbsolutePath() + " to " + file(0, LOG_SUFFIX).getAbsolutePath());
+        }
+
+        List<Long> snapshots = list(SNAPSHOT_SUFFIX);
+        long first = 0;
+        if(!snapshots.isEmpty())
+        {
+            first = snapshots.get(snapshots.size() - 1);
+            readSnapshot(file(first, SNAPSHOT_SUFFIX));
+        }
+
+        List<Long> segments = list(LOG_SUFFIX);
+        long last = first;
+        long end = 0;
+        for(Long sequence : segments)
+        {
+            if(sequence < first)
+            {
+                continue;
+            }
+            File log = file(sequence, LOG_SUFFIX);
+            end = replay(log);
+            if(end < log.length() && sequence != segments.get(segments.size() - 1))
+            {
+                LOGGER.warn("Ignoring " + (log.length() - end) + " bytes of incomplete or corrupt records at the end of " + log.getAbsolutePath());
+            }
+            last = sequence;
+        }
+
+        open(last);
+        if(this.channel.size() > end)
+        {
+            LOGGER.warn("Discarding " + (this.channel.size() - end) + " bytes of incomplete or corrupt records at the end of " + this.logFile.getAbsolutePath());
+            this.channel.truncate(end);
+            this.channel.position(end);
+        }
+
+        deleteObsolete(first);
+    }
+
+    /*
+     * Rebuilds the in-memory state from a log segment and returns the position right after the last valid record
+     */
+    private long replay(File log) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log), 64 * 1024));
+        long end = 0;
+        try
+        {
+            CRC32 crc = new CRC32();
+            while(true)
+            {
+                int length = in.readInt();
+                if(length < 9 || length > MAX_RECORD_LENGTH)
+                {
+                    LOGGER.warn("Invalid record length " + length + " at position " + end + " of " + log.getAbsolutePath());
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int checksum = in.readInt();
+
+                crc.reset();
+                crc.update(payload);
+                if((int) crc.getValue() != checksum)
+                {
+                    LOGGER.warn("Checksum mismatch for record at position " + end + " of " + log.getAbsolutePath());
+                    break;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                byte operation = record.get();
+                Object key1 = KeyCodec.decode(KeyCodec.read(record), this.key1Type);
+                Object key2 = KeyCodec.decode(KeyCodec.read(record), this.key2Type);
+                if(operation == PUT)
+                {
+                    load(key1, key2);
+                }
+                else if(operation == REMOVE)
+                {
+                    unload(key1, key2);
+                }
+                end += 4 + length + 4;
+            }
+        }
+        catch(EOFException ex)
+        {
+            // End of the log, possibly in the middle of a record
+        }
+        finally
+        {
+            in.close();
+        }
+        return end;
+    }
+
+    /*
+     * Writes the live mappings to a new snapshot. The snapshot is written to a temporary file which is
+     * renamed once it's complete and synced, so a snapshot file is never partial.
+     */
+    private File writeSnapshot(long sequence) throws BridgeTableException
+    {
+        File snapshot = file(sequence, SNAPSHOT_SUFFIX);
+        File temp = new File(this.directory, snapshot.getName() + ".tmp");
+        try
+        {
+            FileOutputStream fos = new FileOutputStream(temp);
+            try
+            {
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 64 * 1024));
+                out.writeInt(SNAPSHOT_MAGIC);
+                long count = 0;
+                for(Iterator<Map.Entry<Object, Object>> it = mappings(); it.hasNext();)
+                {
+                    Map.Entry<Object, Object> mapping = it.next();
+                    out.writeByte(PUT);
+                    writeKey(out, KeyCodec.encode(mapping.getKey(), this.key1Type));
+                    writeKey(out, KeyCodec.encode(mapping.getValue(), this.key2Type));
+                    count++;
+                }
+                out.writeByte(0);
+                out.writeLong(count);
+                out.flush();
+                out.writeInt((int) crc.getValue());
+                out.flush();
+                fos.getFD().sync();
+            }
+            finally
+            {
+                fos.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            temp.delete();
+            String msg = "Could not write snapshot " + snapshot.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+
+        if(!temp.renameTo(snapshot))
+        {
+            temp.delete();
+            String msg = "Could not rename " + temp.getAbsolutePath() + " to " + snapshot.getAbsolutePath();
+            LOGGER.error(msg);
+            throw new BridgeTableException(msg);
+        }
+        // The new segment and the snapshot must be in the directory for good before the files they replace go
+        syncDirectory();
+        return snapshot;
+    }
+
+    /*
+     * Forces the directory entries (files created, renamed or deleted) to disk. Directories can only be opened
+     * for syncing through the Java 7 file API; before it, or where the platform does not allow it, the
+     * directory is left to the file system.
+     */
+    private void syncDirectory() throws BridgeTableException
+    {
+        if(OPEN == null)
+        {
+            return;
+        }
+        FileChannel channel;
+        try
+        {
+            channel = (FileChannel) OPEN.invoke(null, TO_PATH.invoke(this.directory), OPEN_OPTIONS);
+        }
+        catch(InvocationTargetException ex)
+        {
+            // e.g. Windows does not open directories
+            if(LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Could not open directory " + this.directory.getAbsolutePath() + " to sync it", ex.getCause());
+            }
+            return;
+        }
+        catch(IllegalAccessException ex)
+        {
+            return;
+        }
+
+        try
+        {
+            try
+            {
+                channel.force(true);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not sync directory " + this.directory.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+    }
+
+    /*
+     * Loads the mappings of a snapshot
+     */
+    private void readSnapshot(File snapshot) throws IOException, BridgeTableException
+    {
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024), crc));
+        try
+        {
+            if(in.readInt() != SNAPSHOT_MAGIC)
+            {
+                throw new BridgeTableException(snapshot.getAbsolutePath() + " is not a bridge table snapshot");
+            }
+            long count = 0;
+            while(in.readByte() == PUT)
+            {
+                Object key1 = KeyCodec.decode(readKey(in), this.key1Type);
+                Object key2 = KeyCodec.decode(readKey(in), this.key2Type);
+                load(key1, key2);
+                count++;
+            }
+            long expected = in.readLong();
+            int checksum = (int) crc.getValue();
+            if(count != expected || in.readInt() != checksum)
+            {
+                throw new BridgeTableException("Snapshot " + snapshot.getAbsolutePath() + " is corrupt");
+            }
+        }
+        catch(EOFException ex)
+        {
+            throw new BridgeTableException("Snapshot " + snapshot.getAbsolutePath() + " is truncated", ex);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /*
+     * Deletes the snapshots and log segments older than the given sequence number
+     */
+    private void deleteObsolete(long sequence)
+    {
+        for(String suffix : new String[] {LOG_SUFFIX, SNAPSHOT_SUFFIX})
+        {
+            for(Long older : list(suffix))
+            {
+                if(older < sequence)
+                {
+                    File obsolete = file(older, suffix);
+                    if(!obsolete.delete())
+                    {
+                        LOGGER.warn("Could not delete " + obsolete.getAbsolutePath());
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Sequence numbers of the files of this table with the given suffix, in ascending order
+     */
+    private List<Long> list(String suffix)
+    {
+        List<Long> sequences = new ArrayList<Long>();
+        String prefix = this.tableName + ".";
+        String[] names = this.directory.list();
+        if(names != null)
+        {
+            for(String name : names)
+            {
+                if(name.startsWith(prefix) && name.endsWith(suffix) && name.length() > prefix.length() + suffix.length())
+                {
+                    String number = name.substring(prefix.length(), name.length() - suffix.length());
+                    try
+                    {
+                        sequences.add(Long.valueOf(number));
+                    }
+                    catch(NumberFormatException ex)
+                    {
+                        // Not one of our files
+                    }
+                }
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    private File file(long sequence, String suffix)
+    {
+        return new File(this.directory, this.tableName + "." + sequence + suffix);
+    }
+
+    private static void writeKey(DataOutputStream out, byte[] bytes) throws IOException
+    {
+        if(bytes == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readKey(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if(length < 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,1178 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concrete implementation of a bridge table for numeric keys (INT_NUMBER or LONG_NUMBER on both sides).
+ * <p/>
+ * Keys are stored unboxed in two open-addressing tables of longs (key1 => key2 and key2 => key1) using linear
+ * probing, so a mapping costs a few dozen bytes instead of two hash map entries and four boxed numbers, and
+ * the lookup path does not allocate (apart from boxing the returned value).
+ * <p/>
+ * Writers are serialized by a lock and bump a sequence number before and after every change. Readers don't
+ * lock: they read the tables optimistically and retry if the sequence number changed meanwhile, falling back
+ * to the lock if they keep losing the race.
+ * <p/>
+ * The first call to {@link #keys1Page(Object, int)} or {@link #keys2Page(Object, int)} sorts the keys of that
+ * side into an array of longs. Later writes are kept aside and merged into the array once they pile up, so every
+ * page costs O(log n + pageSize) instead of a pass over the keys. Tables that are never paged don't pay for it.
+ * <p/>
+ * Null keys are not supported: {@link InMemoryBridgeTable} keeps the tables that must accept them in a
+ * {@link ConcurrentBridgeTable}.
+ */
+public class LongBridgeTable extends AbstractBridgeTable
+{
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 8;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Odd while a write is in progress
+    private volatile long sequence;
+    // Set while a batch holds the lock, so the sequence number stays odd until the whole batch is applied
+    private boolean batching;
+
+    // key1 => key2 mapping
+    private volatile LongHash direct;
+    // key2 => key1 mapping
+    private volatile LongHash reverse;
+
+    private String tableName;
+    private KeyType key1Type;
+    private KeyType key2Type;
+
+    /**
+     *
+     */
+    public LongBridgeTable()
+    {
+    }
+
+    /**
+     * @param keyType A key type
+     * @return Whether the key type can be stored in this bridge table
+     */
+    public static boolean supports(KeyType keyType)
+    {
+        return keyType == KeyType.INT_NUMBER || keyType == KeyType.LONG_NUMBER;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#init(java.lang.String, org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType, java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public void init(String tableName,
+                     KeyType key1Type,
+                     KeyType key2Type,
+                     String key1Name,
+                     String key2Name,
+                     boolean autoCreateTable) throws BridgeTableException
+    {
+        if(!supports(key1Type) || !supports(key2Type))
+        {
+            throw new BridgeTableException("Bridge table " + tableName + " only supports numeric keys but key1 type = [" + key1Type + "] and key2 type = [" + key2Type + "]");
+        }
+        this.tableName = tableName;
+        this.key1Type = key1Type;
+        this.key2Type = key2Type;
+        this.direct = new LongHash();
+        this.reverse = new LongHash();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#destroy()
+     */
+    @Override
+    public void destroy() throws BridgeTableException
+    {
+        this.lock.lock();
+        try
+        {
+            this.direct = new LongHash();
+            this.reverse = new LongHash();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Object key1, Object key2) throws BridgeTableException
+    {
+        long k1 = toLong(key1, "key1");
+        long k2 = toLong(key2, "key2");
+
+        this.lock.lock();
+        try
+        {
+            boolean containsKey1 = this.direct.indexOf(k1) >= 0;
+            boolean containsKey2 = this.reverse.indexOf(k2) >= 0;
+
+            if(containsKey1 && containsKey2)
+            {
+                throw new KeyAlreadyExistsException("The row [key1, key2] = [" + key1 + ", " + key2 + "] already exists in " + this.tableName);
+            }
+            else if(containsKey1)
+            {
+                throw new KeyAlreadyExistsException("The value [key1] = [" + key1 + "] already exists in " + this.tableName);
+            }
+            else if(containsKey2)
+            {
+                throw new KeyAlreadyExistsException("The value [key2] = [" + key2 + "] already exists in " + this.tableName);
+            }
+
+            beginWrite();
+            try
+            {
+                this.direct.put(k1, k2);
+                this.reverse.put(k2, k1);
+            }
+            finally
+            {
+                endWrite();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey1(Object key1, Object newKey2) throws BridgeTableException
+    {
+        setByKey1(key1, newKey2, false);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(Object key1, Object key2) throws BridgeTableException
+    {
+        setByKey1(key1, key2, true);
+    }
+
+    /*
+     * Updates key2 for key1, inserting the mapping if key1 doesn't exist and upsert is set
+     */
+    private void setByKey1(Object key1, Object newKey2, boolean upsert) throws BridgeTableException
+    {
+        long k1 = toLong(key1, "key1");
+        long newK2 = toLong(newKey2, "key2");
+
+        this.lock.lock();
+        try
+        {
+            int slot = this.direct.indexOf(k1);
+            if(slot < 0 && !upsert)
+            {
+                throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+            }
+            boolean exists = slot >= 0;
+            long oldK2 = exists ? this.direct.valueAt(slot) : 0;
+            if(exists && oldK2 == newK2)
+            {
+                return;
+            }
+            if(this.reverse.indexOf(newK2) >= 0)
+            {
+                throw new KeyAlreadyExistsException("The value [key2] = [" + newKey2 + "] already exists in " + this.tableName);
+            }
+
+            beginWrite();
+            try
+            {
+                this.direct.put(k1, newK2);
+                if(exists)
+                {
+                    this.reverse.remove(oldK2);
+                }
+                this.reverse.put(newK2, k1);
+            }
+            finally
+            {
+                endWrite();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey2(Object key2, Object newKey1) throws BridgeTableException
+    {
+        setByKey2(key2, newKey1, false);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(Object key2, Object key1) throws BridgeTableException
+    {
+        setByKey2(key2, key1, true);
+    }
+
+    /*
+     * Updates key1 for key2, inserting the mapping if key2 doesn't exist and upsert is set
+     */
+    private void setByKey2(Object key2, Object newKey1, boolean upsert) throws BridgeTableException
+    {
+        long k2 = toLong(key2, "key2");
+        long newK1 = toLong(newKey1, "key1");
+
+        this.lock.lock();
+        try
+        {
+            int slot = this.reverse.indexOf(k2);
+            if(slot < 0 && !upsert)
+            {
+                throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+            }
+            boolean exists = slot >= 0;
+            long oldK1 = exists ? this.reverse.valueAt(slot) : 0;
+            if(exists && oldK1 == newK1)
+            {
+                return;
+            }
+            if(this.direct.indexOf(newK1) >= 0)
+            {
+                throw new KeyAlreadyExistsException("The value [key1] = [" + newKey1 + "] already exists in " + this.tableName);
+            }
+
+            beginWrite();
+            try
+            {
+                this.reverse.put(k2, newK1);
+                if(exists)
+                {
+                    this.direct.remove(oldK1);
+                }
+                this.direct.put(newK1, k2);
+            }
+            finally
+            {
+                endWrite();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey1(java.lang.Object)
+     */
+    @Override
+    public void removeByKey1(Object key1) throws BridgeTableException
+    {
+        this.lock.lock();
+        try
+        {
+            int slot = key1 == null ? -1 : this.direct.indexOf(toLong(key1, "key1"));
+            if(slot < 0)
+            {
+                throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+            }
+            long k2 = this.direct.valueAt(slot);
+
+            beginWrite();
+            try
+            {
+                this.direct.remove(toLong(key1, "key1"));
+                this.reverse.remove(k2);
+            }
+            finally
+            {
+                endWrite();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey2(java.lang.Object)
+     */
+    @Override
+    public void removeByKey2(Object key2) throws BridgeTableException
+    {
+        this.lock.lock();
+        try
+        {
+            int slot = key2 == null ? -1 : this.reverse.indexOf(toLong(key2, "key2"));
+            if(slot < 0)
+            {
+                throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+            }
+            long k1 = this.reverse.valueAt(slot);
+
+            beginWrite();
+            try
+            {
+                this.reverse.remove(toLong(key2, "key2"));
+                this.direct.remove(k1);
+            }
+            finally
+            {
+                endWrite();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1(Object key1) throws BridgeTableException
+    {
+        Object key2 = key1 == null ? null : lookup(this.direct, toLong(key1, "key1"), this.key2Type);
+        if(key2 == null)
+        {
+            throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+        }
+        return key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2(Object key2) throws BridgeTableException
+    {
+        Object key1 = key2 == null ? null : lookup(this.reverse, toLong(key2, "key2"), this.key1Type);
+        if(key1 == null)
+        {
+            throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+        }
+        return key1;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        Object key2 = key1 == null ? null : lookup(this.direct, toLong(key1, "key1"), this.key2Type);
+        return key2 == null ? defaultValue : key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        Object key1 = key2 == null ? null : lookup(this.reverse, toLong(key2, "key2"), this.key1Type);
+        return key1 == null ? defaultValue : key1;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        for(Object key1 : keys1)
+        {
+            Object key2 = key1 == null ? null : lookup(this.direct, toLong(key1, "key1"), this.key2Type);
+            if(key2 != null)
+            {
+                found.put(key1, key2);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        for(Object key2 : keys2)
+        {
+            Object key1 = key2 == null ? null : lookup(this.reverse, toLong(key2, "key2"), this.key1Type);
+            if(key1 != null)
+            {
+                found.put(key2, key1);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return false;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey1(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey1(Object key1) throws BridgeTableException
+    {
+        return key1 != null && contains(this.direct, toLong(key1, "key1"));
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey2(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey2(Object key2) throws BridgeTableException
+    {
+        return key2 != null && contains(this.reverse, toLong(key2, "key2"));
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys1()
+     */
+    @Override
+    public List<Object> keys1() throws BridgeTableException
+    {
+        this.lock.lock();
+        try
+        {
+            return this.direct.keys(this.key1Type);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys2()
+     */
+    @Override
+    public List<Object> keys2() throws BridgeTableException
+    {
+        this.lock.lock();
+        try
+        {
+            return this.reverse.keys(this.key2Type);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * The iterator doesn't lock: it walks the table as it is, so it returns the mappings present during the
+     * whole iteration, may or may not return the ones changed meanwhile, and may miss or repeat a mapping
+     * moved by a concurrent remove or resize.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        return this.direct.iterator(this.key1Type);
+    }
+
+    /**
+     * The iterator doesn't lock, as the one of {@link #iterateKeys1()}.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        return this.reverse.iterator(this.key2Type);
+    }
+
+    /**
+     * Seeks the page in the sorted keys of key1, sorted by the first call.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        return page(this.direct, afterKey1, "key1", pageSize, this.key1Type);
+    }
+
+    /**
+     * Seeks the page in the sorted keys of key2, sorted by the first call.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        return page(this.reverse, afterKey2, "key2", pageSize, this.key2Type);
+    }
+
+    /**
+     * Applies the batch while holding the lock, as a single write: readers don't see any of the operations until
+     * all of them have been applied or reverted.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        this.lock.lock();
+        try
+        {
+            beginWrite();
+            this.batching = true;
+            try
+            {
+                super.executeBatch(operations);
+            }
+            finally
+            {
+                this.batching = false;
+                endWrite();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Selects the keys of a table that follow a given one, from its sorted keys
+     */
+    private List<Object> page(LongHash hash, Object afterKey, String keyName, int pageSize, KeyType type) throws BridgeTableException
+    {
+        if(pageSize < 1)
+        {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+        boolean first = afterKey == null;
+        long after = first ? 0 : toLong(afterKey, keyName);
+
+        this.lock.lock();
+        try
+        {
+            return hash.sortedKeys().page(first, after, pageSize, type);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Optimistic membership test, falling back to the lock
+     */
+    private boolean contains(LongHash hash, long key)
+    {
+        for(int attempt=0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++)
+        {
+            long seq = this.sequence;
+            if((seq & 1) == 0)
+            {
+                boolean found = hash.indexOf(key) >= 0;
+                if(seq == this.sequence)
+                {
+                    return found;
+                }
+            }
+        }
+
+        this.lock.lock();
+        try
+        {
+            return hash.indexOf(key) >= 0;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Returns the value mapped to a key, or null if there is none
+     */
+    private Object lookup(LongHash hash, long key, KeyType valueType)
+    {
+        for(int attempt=0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++)
+        {
+            long seq = this.sequence;
+            if((seq & 1) == 0)
+            {
+                int slot = hash.indexOf(key);
+                long value = slot < 0 ? 0 : hash.valueAt(slot);
+                if(seq == this.sequence)
+                {
+                    return slot < 0 ? null : box(value, valueType);
+                }
+            }
+        }
+
+        this.lock.lock();
+        try
+        {
+            int slot = hash.indexOf(key);
+            return slot < 0 ? null : box(hash.valueAt(slot), valueType);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private void beginWrite()
+    {
+        if(!this.batching)
+        {
+            this.sequence++;
+        }
+    }
+
+    private void endWrite()
+    {
+        if(!this.batching)
+        {
+            this.sequence++;
+        }
+    }
+
+    private long toLong(Object key, String keyName) throws BridgeTableException
+    {
+        if(key == null)
+        {
+            throw new BridgeTableException("Bridge table " + this.tableName + " does not support null values for " + keyName);
+        }
+        else if(key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)
+        {
+            return ((Number) key).longValue();
+        }
+
+        // Other numbers and strings must hold an integral value within range, 1.5 is not truncated to 1
+        try
+        {
+            BigDecimal value = key instanceof BigDecimal ? (BigDecimal) key : new BigDecimal(String.valueOf(key));
+            return value.longValueExact();
+        }
+        catch(NumberFormatException ex)
+        {
+            throw new BridgeTableException("The value [" + keyName + "] = [" + key + "] is not a number", ex);
+        }
+        catch(ArithmeticException ex)
+        {
+            throw new BridgeTableException("The value [" + keyName + "] = [" + key + "] is not an integral number", ex);
+        }
+    }
+
+    private static Object box(long value, KeyType type)
+    {
+        if(type == KeyType.INT_NUMBER)
+        {
+            return Integer.valueOf((int) value);
+        }
+        return Long.valueOf(value);
+    }
+
+    /**
+     * Open-addressing long to long hash table with linear probing and backward shift deletion. Keys and values
+     * are interleaved in a single array, and a dedicated marker (plus a separate slot for the marker value
+     * itself) flags free positions. Must be modified while holding the bridge table lock; reads may run
+     * concurrently, and are validated by the caller with the sequence number.
+     */
+    private static final class LongHash
+    {
+        private static final long FREE = Long.MIN_VALUE;
+        private static final int INITIAL_CAPACITY = 64;
+        private static final float LOAD_FACTOR = 0.6f;
+
+        // key at 2 * slot, value at 2 * slot + 1
+        private volatile AtomicLongArray entries;
+        private int size;
+        private int resizeThreshold;
+
+        // Mapping for the key that collides with the free marker
+        private volatile boolean hasFreeKey;
+        private volatile long freeKeyValue;
+
+        // Keys in ascending order, from the first page on
+        private SortedKeys sorted;
+
+        LongHash()
+        {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        /*
+         * Returns the slot holding the key, -1 if absent or capacity() for the free marker key
+         */
+        int indexOf(long key)
+        {
+            AtomicLongArray table = this.entries;
+            int capacity = table.length() >> 1;
+            if(key == FREE)
+            {
+                return this.hasFreeKey ? capacity : -1;
+            }
+
+            int mask = capacity - 1;
+            int slot = mix(key) & mask;
+            for(int probes=0; probes < capacity; probes++)
+            {
+                long current = table.get(slot << 1);
+                if(current == FREE)
+                {
+                    return -1;
+                }
+                else if(current == key)
+                {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        long valueAt(int slot)
+        {
+            AtomicLongArray table = this.entries;
+            if(slot == table.length() >> 1)
+            {
+                return this.freeKeyValue;
+            }
+            return table.get((slot << 1) + 1);
+        }
+
+        void put(long key, long value)
+        {
+            if(key == FREE)
+            {
+                this.freeKeyValue = value;
+                if(!this.hasFreeKey)
+                {
+                    this.hasFreeKey = true;
+                    this.size++;
+                    if(this.sorted != null)
+                    {
+                        this.sorted.add(key);
+                    }
+                }
+                return;
+            }
+
+            if(insert(this.entries, key, value))
+            {
+                this.size++;
+                if(this.sorted != null)
+                {
+                    this.sorted.add(key);
+                }
+                if(this.size > this.resizeThreshold)
+                {
+                    rehash((this.entries.length() >> 1) << 1);
+                }
+            }
+        }
+
+        void remove(long key)
+        {
+            if(key == FREE)
+            {
+                if(this.hasFreeKey)
+                {
+                    this.hasFreeKey = false;
+                    this.size--;
+                    if(this.sorted != null)
+                    {
+                        this.sorted.remove(key);
+                    }
+                }
+                return;
+            }
+
+            AtomicLongArray table = this.entries;
+            int slot = indexOf(key);
+            if(slot < 0)
+            {
+                return;
+            }
+            this.size--;
+            if(this.sorted != null)
+            {
+                this.sorted.remove(key);
+            }
+
+            // Shift back the entries of the probe sequence so that lookups never need tombstones
+            int mask = (table.length() >> 1) - 1;
+            int gap = slot;
+            int next = (gap + 1) & mask;
+            while(true)
+            {
+                long current = table.get(next << 1);
+                if(current == FREE)
+                {
+                    break;
+                }
+                int home = mix(current) & mask;
+                if(((next - home) & mask) >= ((next - gap) & mask))
+                {
+                    table.set((gap << 1) + 1, table.get((next << 1) + 1));
+                    table.set(gap << 1, current);
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table.set(gap << 1, FREE);
+        }
+
+        List<Object> keys(KeyType type)
+        {
+            AtomicLongArray table = this.entries;
+            List<Object> result = new ArrayList<Object>(this.size);
+            if(this.hasFreeKey)
+            {
+                result.add(box(FREE, type));
+            }
+            for(int i=0; i < table.length(); i += 2)
+            {
+                long key = table.get(i);
+                if(key != FREE)
+                {
+                    result.add(box(key, type));
+                }
+            }
+            return result;
+        }
+
+        /*
+         * Returns the keys in ascending order, sorting them the first time
+         */
+        SortedKeys sortedKeys()
+        {
+            if(this.sorted == null)
+            {
+                AtomicLongArray table = this.entries;
+                long[] keys = new long[this.size];
+                int count = 0;
+                if(this.hasFreeKey)
+                {
+                    keys[count++] = FREE;
+                }
+                for(int i=0; i < table.length(); i += 2)
+                {
+                    long key = table.get(i);
+                    if(key != FREE)
+                    {
+                        keys[count++] = key;
+                    }
+                }
+                Arrays.sort(keys, 0, count);
+                this.sorted = new SortedKeys(keys, count);
+            }
+            return this.sorted;
+        }
+
+        KeyIterator iterator(final KeyType type)
+        {
+            final AtomicLongArray table = this.entries;
+            final boolean freeKey = this.hasFreeKey;
+            return new KeyIterator()
+            {
+                // Next position to look at, -2 for the free marker key
+                private int position = freeKey ? -2 : 0;
+                private long next;
+                private boolean ready;
+
+                @Override
+                public boolean hasNext()
+                {
+                    if(this.ready)
+                    {
+                        return true;
+                    }
+                    if(this.position < 0)
+                    {
+                        this.position = 0;
+                        this.next = FREE;
+                        this.ready = true;
+                        return true;
+                    }
+                    while(this.position < table.length())
+                    {
+                        long key = table.get(this.position);
+                        this.position += 2;
+                        if(key != FREE)
+                        {
+                            this.next = key;
+                            this.ready = true;
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                @Override
+                public Object next()
+                {
+                    if(!hasNext())
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    this.ready = false;
+                    return box(this.next, type);
+                }
+
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+
+        private void allocate(int capacity)
+        {
+            this.resizeThreshold = (int) (capacity * LOAD_FACTOR);
+            this.entries = newTable(capacity);
+        }
+
+        private void rehash(int capacity)
+        {
+            // Fill a private table first and publish it once it's complete
+            AtomicLongArray old = this.entries;
+            AtomicLongArray table = newTable(capacity);
+            for(int i=0; i < old.length(); i += 2)
+            {
+                long key = old.get(i);
+                if(key != FREE)
+                {
+                    insert(table, key, old.get(i + 1));
+                }
+            }
+            this.resizeThreshold = (int) (capacity * LOAD_FACTOR);
+            this.entries = table;
+        }
+
+        private static AtomicLongArray newTable(int capacity)
+        {
+            AtomicLongArray table = new AtomicLongArray(capacity << 1);
+            for(int i=0; i < table.length(); i += 2)
+            {
+                table.set(i, FREE);
+            }
+            return table;
+        }
+
+        /*
+         * Stores the value (writing the value before the key) and returns true if the key was new
+         */
+        private static boolean insert(AtomicLongArray table, long key, long value)
+        {
+            int mask = (table.length() >> 1) - 1;
+            int slot = mix(key) & mask;
+            while(true)
+            {
+                long current = table.get(slot << 1);
+                if(current == key)
+                {
+                    table.set((slot << 1) + 1, value);
+                    return false;
+                }
+                else if(current == FREE)
+                {
+                    table.set((slot << 1) + 1, value);
+                    table.set(slot << 1, key);
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private static int mix(long key)
+        {
+            long h = key;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb93fe34d35c3L;
+            h ^= h >>> 33;
+            return (int) h;
+        }
+    }
+
+    /**
+     * Keys of a {@link LongHash} in ascending order: a sorted array, plus the keys added and removed since it was
+     * sorted, which are merged into it once they make up a sizable part of it. Must be used while holding the
+     * bridge table lock.
+     */
+    private static final class SortedKeys
+    {
+        private static final int MIN_PENDING = 1024;
+
+        private long[] keys;
+        private int size;
+        // Keys added since the array was sorted, none of them in the array
+        private final TreeSet<Long> added = new TreeSet<Long>();
+        // Keys of the array removed since it was sorted
+        private final Set<Long> removed = new HashSet<Long>();
+
+        SortedKeys(long[] keys, int size)
+        {
+            this.keys = keys;
+            this.size = size;
+        }
+
+        void add(long key)
+        {
+            Long boxed = Long.valueOf(key);
+            if(!this.removed.remove(boxed))
+            {
+                this.added.add(boxed);
+            }
+        }
+
+        void remove(long key)
+        {
+            Long boxed = Long.valueOf(key);
+            if(!this.added.remove(boxed))
+            {
+                this.removed.add(boxed);
+            }
+        }
+
+        /*
+         * Returns up to pageSize keys greater than after, or the first ones
+         */
+        List<Object> page(boolean first, long after, int pageSize, KeyType type)
+        {
+            if(this.added.size() + this.removed.size() > Math.max(MIN_PENDING, this.size >> 3))
+            {
+                merge();
+            }
+
+            int position = first ? 0 : upperBound(after);
+            Iterator<Long> pending = (first ? this.added : this.added.tailSet(Long.valueOf(after), false)).iterator();
+            Long next = pending.hasNext() ? pending.next() : null;
+            List<Object> result = new ArrayList<Object>(Math.min(pageSize, 1024));
+            while(result.size() < pageSize)
+            {
+                if(position < this.size && this.removed.contains(Long.valueOf(this.keys[position])))
+                {
+                    position++;
+                }
+                else if(position < this.size && (next == null || this.keys[position] < next.longValue()))
+                {
+                    result.add(box(this.keys[position++], type));
+                }
+                else if(next != null)
+                {
+                    result.add(box(next.longValue(), type));
+                    next = pending.hasNext() ? pending.next() : null;
+                }
+                else
+                {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        /*
+         * Position of the first key of the array greater than the given one
+         */
+        private int upperBound(long key)
+        {
+            int low = 0;
+            int high = this.size;
+            while(low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if(this.keys[middle] <= key)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /*
+         * Applies the pending additions and removals to the array
+         */
+        private void merge()
+        {
+            long[] merged = new long[this.size - this.removed.size() + this.added.size()];
+            int count = 0;
+            int position = 0;
+            for(Long key : this.added)
+            {
+                while(position < this.size && this.keys[position] < key.longValue())
+                {
+                    if(!this.removed.contains(Long.valueOf(this.keys[position])))
+                    {
+                        merged[count++] = this.keys[position];
+                    }
+                    position++;
+                }
+                merged[count++] = key.longValue();
+            }
+            for(; position < this.size; position++)
+            {
+                if(!this.removed.contains(Long.valueOf(this.keys[position])))
+                {
+                    merged[count++] = this.keys[position];
+                }
+            }
+            this.keys = merged;
+            this.size = count;
+            this.added.clear();
+            this.removed.clear();
+        }
+    }
+}
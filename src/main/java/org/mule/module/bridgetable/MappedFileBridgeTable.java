@@ -0,0 +1,359 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Concrete implementation of a persistent bridge table whose indexes and data region live in a memory-mapped
+ * file. It works like an {@link OffHeapBridgeTable} (lookups probe the mapped indexes and compare keys in place,
+ * without deserializing anything) but the operating system pages the file in and out, so the page cache holds
+ * the hot mappings and restarting is just mapping the file again.
+ * <p/>
+ * The file starts with a header that records the key types, the sizes of the regions and whether the file was
+ * closed properly, followed by index1, index2 and the data region, which grows at the end of the file. When
+ * the table is full its capacity is multiplied by the growth factor and it is rebuilt, like when the data region
+ * is compacted, into a temporary file that replaces the original one once it's complete.
+ * <p/>
+ * Changes reach the disk when the operating system writes the pages back and when the table is destroyed. If
+ * the file was not closed properly the indexes are rebuilt from the mappings that can still be read, but the
+ * most recent changes may be lost: use DEFAULT_PERSISTENT when every change has to survive a crash.
+ */
+public class MappedFileBridgeTable extends OffHeapBridgeTable
+{
+    private static final Logger LOGGER = Logger.getLogger(MappedFileBridgeTable.class);
+
+    private static final int MAGIC = 0x42544d31;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int KEY1_TYPE_OFFSET = 8;
+    private static final int KEY2_TYPE_OFFSET = 12;
+    private static final int SLOTS_OFFSET = 16;
+    private static final int CAPACITY_OFFSET = 24;
+    private static final int SIZE_OFFSET = 32;
+    private static final int DATA_END_OFFSET = 40;
+    private static final int GARBAGE_OFFSET = 48;
+    private static final int DATA_SEGMENT_SHIFT_OFFSET = 56;
+    private static final int STATE_OFFSET = 60;
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    private final File file;
+    private float growthFactor = 2.0f;
+
+    // File holding the mappings
+    private Mapping current;
+    // File being built by a rebuild, until it's committed
+    private Mapping pending;
+
+    /**
+     * @param file The file that holds the table
+     */
+    public MappedFileBridgeTable(File file)
+    {
+        super(DEFAULT_INITIAL_CAPACITY);
+        this.file = file;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.OffHeapBridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return true;
+    }
+
+    /**
+     * @return The file that holds the table
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @param initialCapacity Capacity of the table when the file is created
+     */
+    public void setInitialCapacity(int initialCapacity)
+    {
+        setCapacity(initialCapacity);
+    }
+
+    /**
+     * @return Factor applied to the capacity when the table is full
+     */
+    public float getGrowthFactor()
+    {
+        return growthFactor;
+    }
+
+    /**
+     * @param growthFactor Factor applied to the capacity when the table is full, 1 for a table that never grows
+     */
+    public void setGrowthFactor(float growthFactor)
+    {
+        if(growthFactor < 1)
+        {
+            throw new IllegalArgumentException("Growth factor must be at least 1");
+        }
+        this.growthFactor = growthFactor;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.OffHeapBridgeTable#open()
+     */
+    @Override
+    protected boolean open() throws BridgeTableException
+    {
+        if(!this.file.exists())
+        {
+            File parent = this.file.getAbsoluteFile().getParentFile();
+            if(parent != null && !parent.isDirectory() && !parent.mkdirs())
+            {
+                throw new BridgeTableException("Could not create directory " + parent.getAbsolutePath() + " for bridge table " + getTableName());
+            }
+            return false;
+        }
+
+        try
+        {
+            Mapping mapping = new Mapping(this.file);
+            this.current = mapping;
+
+            MappedByteBuffer header = mapping.header;
+            if(header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION)
+            {
+                throw new BridgeTableException(this.file.getAbsolutePath() + " is not a bridge table file");
+            }
+            if(header.getInt(KEY1_TYPE_OFFSET) != getKey1Type().ordinal() || header.getInt(KEY2_TYPE_OFFSET) != getKey2Type().ordinal())
+            {
+                throw new BridgeTableException(this.file.getAbsolutePath() + " was created with different key types than the ones of " + getTableName());
+            }
+
+            long slots = header.getLong(SLOTS_OFFSET);
+            mapping.map(slots, header.getInt(DATA_SEGMENT_SHIFT_OFFSET));
+            mapping.memory[2].ensureCapacity(mapping.raf.length() - mapping.dataBase(slots));
+
+            boolean repair = header.getInt(STATE_OFFSET) != STATE_CLOSED;
+            if(repair)
+            {
+                LOGGER.warn(this.file.getAbsolutePath() + " was not closed properly, rebuilding the indexes of " + getTableName());
+            }
+            restore(mapping.memory,
+                    header.getLong(CAPACITY_OFFSET),
+                    slots,
+                    header.getLong(SIZE_OFFSET),
+                    header.getLong(DATA_END_OFFSET),
+                    header.getLong(GARBAGE_OFFSET),
+                    repair);
+
+            // A repair committed a new file
+            if(this.current == mapping)
+            {
+                writeHeader(mapping, STATE_OPEN);
+            }
+
+            LOGGER.info("Mapped " + getSize() + " mappings of " + getTableName() + " from " + this.file.getAbsolutePath());
+            return true;
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not open " + this.file.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.OffHeapBridgeTable#allocate(long, int)
+     */
+    @Override
+    protected SegmentedMemory[] allocate(long slots, int dataSegmentShift) throws BridgeTableException
+    {
+        File temp = new File(this.file.getPath() + ".tmp");
+        try
+        {
+            if(this.pending != null)
+            {
+                this.pending.close();
+            }
+            if(temp.exists() && !temp.delete())
+            {
+                throw new BridgeTableException("Could not delete " + temp.getAbsolutePath());
+            }
+            this.pending = new Mapping(temp);
+            this.pending.map(slots, dataSegmentShift);
+            return this.pending.memory;
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not create " + temp.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.OffHeapBridgeTable#commit()
+     */
+    @Override
+    protected void commit() throws BridgeTableException
+    {
+        Mapping mapping = this.pending;
+        try
+        {
+            writeHeader(mapping, STATE_OPEN);
+            mapping.force();
+
+            if(this.current != null)
+            {
+                this.current.close();
+            }
+            if(!mapping.file.renameTo(this.file))
+            {
+                // Some platforms can't rename over an existing file
+                if(!this.file.delete() || !mapping.file.renameTo(this.file))
+                {
+                    throw new IOException("Could not rename " + mapping.file.getAbsolutePath() + " to " + this.file.getAbsolutePath());
+                }
+            }
+            mapping.file = this.file;
+            this.current = mapping;
+            this.pending = null;
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not commit " + this.file.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.OffHeapBridgeTable#close()
+     */
+    @Override
+    protected void close() throws BridgeTableException
+    {
+        if(this.current == null)
+        {
+            return;
+        }
+
+        try
+        {
+            this.current.force();
+            writeHeader(this.current, STATE_CLOSED);
+            this.current.header.force();
+            this.current.close();
+            this.current = null;
+        }
+        catch(IOException ex)
+        {
+            String msg = "Could not close " + this.file.getAbsolutePath();
+            LOGGER.error(msg, ex);
+            throw new BridgeTableException(msg, ex);
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.OffHeapBridgeTable#nextCapacity(long)
+     */
+    @Override
+    protected long nextCapacity(long capacity)
+    {
+        if(this.growthFactor <= 1)
+        {
+            return capacity;
+        }
+        return Math.max(capacity + 1, (long) Math.ceil(capacity * (double) this.growthFactor));
+    }
+
+    private void writeHeader(Mapping mapping, int state)
+    {
+        MappedByteBuffer header = mapping.header;
+        header.putInt(MAGIC_OFFSET, MAGIC);
+        header.putInt(VERSION_OFFSET, VERSION);
+        header.putInt(KEY1_TYPE_OFFSET, getKey1Type().ordinal());
+        header.putInt(KEY2_TYPE_OFFSET, getKey2Type().ordinal());
+        header.putLong(SLOTS_OFFSET, getSlots());
+        header.putLong(CAPACITY_OFFSET, getCapacity());
+        header.putLong(SIZE_OFFSET, getSize());
+        header.putLong(DATA_END_OFFSET, getDataEnd());
+        header.putLong(GARBAGE_OFFSET, getGarbage());
+        header.putInt(DATA_SEGMENT_SHIFT_OFFSET, Integer.numberOfTrailingZeros(mapping.memory[2].getSegmentSize()));
+        header.putInt(STATE_OFFSET, state);
+        header.force();
+    }
+
+    /*
+     * An open table file: the header followed by index1, index2 and the data region
+     */
+    private static class Mapping
+    {
+        private File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private MappedMemory[] memory;
+
+        Mapping(File file) throws IOException
+        {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = this.raf.getChannel();
+            this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        }
+
+        void map(long slots, int dataSegmentShift) throws BridgeTableException
+        {
+            long indexSize = indexSize(slots);
+            int indexSegmentShift = indexSegmentShift(slots);
+            MappedMemory index1 = new MappedMemory(this.channel, HEADER_SIZE, indexSegmentShift);
+            MappedMemory index2 = new MappedMemory(this.channel, HEADER_SIZE + indexSize, indexSegmentShift);
+            index1.ensureCapacity(indexSize);
+            index2.ensureCapacity(indexSize);
+            this.memory = new MappedMemory[] {index1, index2, new MappedMemory(this.channel, dataBase(slots), dataSegmentShift)};
+        }
+
+        long dataBase(long slots)
+        {
+            return HEADER_SIZE + 2 * indexSize(slots);
+        }
+
+        void force()
+        {
+            for(MappedMemory region : this.memory)
+            {
+                region.force();
+            }
+        }
+
+        void close() throws IOException
+        {
+            // Mapped segments stay valid until they are garbage collected
+            this.raf.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SegmentedMemory} whose segments are mapped from a region of a file that starts at a given offset.
+ * The file grows as segments are allocated; new segments are zeroed by the file system.
+ */
+class MappedMemory extends SegmentedMemory
+{
+    private final FileChannel channel;
+    private final long base;
+
+    /**
+     * @param channel Channel of the file, open for reading and writing
+     * @param base Offset of the region in the file
+     * @param segmentShift Size of each segment as a power of two
+     */
+    MappedMemory(FileChannel channel, long base, int segmentShift)
+    {
+        super(segmentShift);
+        this.channel = channel;
+        this.base = base;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.SegmentedMemory#allocate(int, int)
+     */
+    @Override
+    protected ByteBuffer allocate(int index, int size) throws BridgeTableException
+    {
+        long offset = this.base + ((long) index) * size;
+        try
+        {
+            return this.channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+        }
+        catch(IOException ex)
+        {
+            throw new BridgeTableException("Could not map " + size + " bytes at offset " + offset, ex);
+        }
+    }
+
+    /**
+     * Writes the changes made to the segments to the file
+     */
+    void force()
+    {
+        for(ByteBuffer segment : segments())
+        {
+            ((MappedByteBuffer) segment).force();
+        }
+    }
+}
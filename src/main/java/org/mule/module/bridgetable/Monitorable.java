@@ -0,0 +1,24 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.Map;
+
+/**
+ * Implemented by the bridge tables that expose runtime statistics.
+ */
+public interface Monitorable
+{
+    /**
+     * @return Statistics by name. The values are snapshots taken when the method is called.
+     */
+    Map<String, Object> getStatistics();
+}
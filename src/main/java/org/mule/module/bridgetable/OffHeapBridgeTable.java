@@ -0,0 +1,1236 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Concrete implementation of a bridge table that keeps key mappings outside of the Java heap, so that
+ * tables with tens or hundreds of millions of mappings don't put any pressure on the garbage collector.
+ * <p/>
+ * Mappings are appended to a data region as <code>[length1][key1][length2][key2]</code>, with keys encoded by
+ * {@link KeyCodec}. Two open-addressing indexes (one hashed by key1 and one hashed by key2) hold, for every
+ * mapping, a slot with its position in the data region and a fingerprint of the hash, so most probes never
+ * touch the data region. Space left behind by updates and removals is reclaimed by compacting the data region
+ * once garbage outweighs live data.
+ * <p/>
+ * The indexes are sized up front for the configured capacity (the maximum number of mappings); direct memory
+ * for the data region is allocated as it grows. Remember to set <code>-XX:MaxDirectMemorySize</code> accordingly.
+ */
+public class OffHeapBridgeTable extends AbstractBridgeTable
+{
+    private static final Logger LOGGER = Logger.getLogger(OffHeapBridgeTable.class);
+
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int MIN_SEGMENT_SHIFT = 16;
+    private static final int MAX_SEGMENT_SHIFT = 26;
+
+    // A slot holds the 24 upper bits of the hash and the position of the mapping plus one (0 means free)
+    private static final int POSITION_BITS = 40;
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+    private static final int KEY1 = 1;
+    private static final int KEY2 = 2;
+
+    // Returned by lookups of keys that are not present
+    private static final Object MISSING = new Object();
+
+    // Index slots decoded by an iterator every time it takes the read lock
+    private static final int ITERATOR_CHUNK_SLOTS = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long capacity;
+
+    private String tableName;
+    private KeyType key1Type;
+    private KeyType key2Type;
+
+    private SegmentedMemory index1;
+    private SegmentedMemory index2;
+    private SegmentedMemory data;
+    private long slots;
+    private long size;
+    private long dataEnd;
+    private long garbage;
+
+    /**
+     * @param capacity Maximum number of mappings the table can hold
+     */
+    public OffHeapBridgeTable(int capacity)
+    {
+        if(capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#init(java.lang.String, org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType, java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public void init(String tableName,
+                     KeyType key1Type,
+                     KeyType key2Type,
+                     String key1Name,
+                     String key2Name,
+                     boolean autoCreateTable) throws BridgeTableException
+    {
+        this.tableName = tableName;
+        this.key1Type = key1Type;
+        this.key2Type = key2Type;
+
+        this.lock.writeLock().lock();
+        try
+        {
+            if(!open())
+            {
+                this.slots = slots(this.capacity);
+                SegmentedMemory[] memory = allocate(this.slots, dataSegmentShift(this.capacity));
+                this.index1 = memory[0];
+                this.index2 = memory[1];
+                this.data = memory[2];
+                this.size = 0;
+                this.dataEnd = 0;
+                this.garbage = 0;
+                commit();
+            }
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+
+        LOGGER.info("Allocated " + (this.index1.capacity() + this.index2.capacity()) + " bytes for the indexes of " + tableName + " (capacity " + this.capacity + ")");
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#destroy()
+     */
+    @Override
+    public void destroy() throws BridgeTableException
+    {
+        this.lock.writeLock().lock();
+        try
+        {
+            close();
+        }
+        finally
+        {
+            this.index1.release();
+            this.index2.release();
+            this.data.release();
+            this.size = 0;
+            this.slots = 0;
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Object key1, Object key2) throws BridgeTableException
+    {
+        byte[] k1 = KeyCodec.encode(key1, this.key1Type);
+        byte[] k2 = KeyCodec.encode(key2, this.key2Type);
+        long h1 = KeyCodec.hash(k1);
+        long h2 = KeyCodec.hash(k2);
+
+        this.lock.writeLock().lock();
+        try
+        {
+            boolean containsKey1 = find(this.index1, k1, h1, KEY1) >= 0;
+            boolean containsKey2 = find(this.index2, k2, h2, KEY2) >= 0;
+
+            if(containsKey1 && containsKey2)
+            {
+                throw new KeyAlreadyExistsException("The row [key1, key2] = [" + key1 + ", " + key2 + "] already exists in " + this.tableName);
+            }
+            else if(containsKey1)
+            {
+                throw new KeyAlreadyExistsException("The value [key1] = [" + key1 + "] already exists in " + this.tableName);
+            }
+            else if(containsKey2)
+            {
+                throw new KeyAlreadyExistsException("The value [key2] = [" + key2 + "] already exists in " + this.tableName);
+            }
+            else if(this.size >= this.capacity)
+            {
+                long grown = nextCapacity(this.capacity);
+                if(grown <= this.capacity)
+                {
+                    throw new BridgeTableException("Bridge table " + this.tableName + " is full (capacity " + this.capacity + ")");
+                }
+                rebuild(grown, false);
+            }
+
+            long position = append(k1, k2);
+            store(this.index1, h1, position);
+            store(this.index2, h2, position);
+            this.size++;
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey1(Object key1, Object newKey2) throws BridgeTableException
+    {
+        byte[] k1 = KeyCodec.encode(key1, this.key1Type);
+        byte[] k2 = KeyCodec.encode(newKey2, this.key2Type);
+        long h1 = KeyCodec.hash(k1);
+        long h2 = KeyCodec.hash(k2);
+
+        this.lock.writeLock().lock();
+        try
+        {
+            long slot1 = find(this.index1, k1, h1, KEY1);
+            if(slot1 < 0)
+            {
+                throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+            }
+
+            long oldPosition = position(this.index1.getLong(slot1 << 3));
+            byte[] oldK2 = readKey(oldPosition, KEY2);
+            if(Arrays.equals(oldK2, k2))
+            {
+                return;
+            }
+            if(find(this.index2, k2, h2, KEY2) >= 0)
+            {
+                throw new KeyAlreadyExistsException("The value [key2] = [" + newKey2 + "] already exists in " + this.tableName);
+            }
+
+            long oldHash2 = KeyCodec.hash(oldK2);
+            remove(this.index2, find(this.index2, oldK2, oldHash2, KEY2), KEY2);
+
+            long position = append(k1, k2);
+            this.index1.putLong(slot1 << 3, slot(h1, position));
+            store(this.index2, h2, position);
+            release(oldPosition);
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey2(Object key2, Object newKey1) throws BridgeTableException
+    {
+        byte[] k2 = KeyCodec.encode(key2, this.key2Type);
+        byte[] k1 = KeyCodec.encode(newKey1, this.key1Type);
+        long h1 = KeyCodec.hash(k1);
+        long h2 = KeyCodec.hash(k2);
+
+        this.lock.writeLock().lock();
+        try
+        {
+            long slot2 = find(this.index2, k2, h2, KEY2);
+            if(slot2 < 0)
+            {
+                throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+            }
+
+            long oldPosition = position(this.index2.getLong(slot2 << 3));
+            byte[] oldK1 = readKey(oldPosition, KEY1);
+            if(Arrays.equals(oldK1, k1))
+            {
+                return;
+            }
+            if(find(this.index1, k1, h1, KEY1) >= 0)
+            {
+                throw new KeyAlreadyExistsException("The value [key1] = [" + newKey1 + "] already exists in " + this.tableName);
+            }
+
+            long oldHash1 = KeyCodec.hash(oldK1);
+            remove(this.index1, find(this.index1, oldK1, oldHash1, KEY1), KEY1);
+
+            long position = append(k1, k2);
+            this.index2.putLong(slot2 << 3, slot(h2, position));
+            store(this.index1, h1, position);
+            release(oldPosition);
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(Object key1, Object key2) throws BridgeTableException
+    {
+        byte[] k1 = KeyCodec.encode(key1, this.key1Type);
+
+        // The write lock is reentrant, so holding it makes the lookup and the update or insert a single step
+        this.lock.writeLock().lock();
+        try
+        {
+            if(find(this.index1, k1, KeyCodec.hash(k1), KEY1) >= 0)
+            {
+                updateByKey1(key1, key2);
+            }
+            else
+            {
+                insert(key1, key2);
+            }
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(Object key2, Object key1) throws BridgeTableException
+    {
+        byte[] k2 = KeyCodec.encode(key2, this.key2Type);
+
+        this.lock.writeLock().lock();
+        try
+        {
+            if(find(this.index2, k2, KeyCodec.hash(k2), KEY2) >= 0)
+            {
+                updateByKey2(key2, key1);
+            }
+            else
+            {
+                insert(key1, key2);
+            }
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey1(java.lang.Object)
+     */
+    @Override
+    public void removeByKey1(Object key1) throws BridgeTableException
+    {
+        byte[] k1 = KeyCodec.encode(key1, this.key1Type);
+        long h1 = KeyCodec.hash(k1);
+
+        this.lock.writeLock().lock();
+        try
+        {
+            long slot1 = find(this.index1, k1, h1, KEY1);
+            if(slot1 < 0)
+            {
+                throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+            }
+
+            long position = position(this.index1.getLong(slot1 << 3));
+            byte[] k2 = readKey(position, KEY2);
+            remove(this.index1, slot1, KEY1);
+            remove(this.index2, find(this.index2, k2, KeyCodec.hash(k2), KEY2), KEY2);
+            this.size--;
+            release(position);
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey2(java.lang.Object)
+     */
+    @Override
+    public void removeByKey2(Object key2) throws BridgeTableException
+    {
+        byte[] k2 = KeyCodec.encode(key2, this.key2Type);
+        long h2 = KeyCodec.hash(k2);
+
+        this.lock.writeLock().lock();
+        try
+        {
+            long slot2 = find(this.index2, k2, h2, KEY2);
+            if(slot2 < 0)
+            {
+                throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+            }
+
+            long position = position(this.index2.getLong(slot2 << 3));
+            byte[] k1 = readKey(position, KEY1);
+            remove(this.index2, slot2, KEY2);
+            remove(this.index1, find(this.index1, k1, KeyCodec.hash(k1), KEY1), KEY1);
+            this.size--;
+            release(position);
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1(Object key1) throws BridgeTableException
+    {
+        Object key2 = lookup(key1, KEY1);
+        if(key2 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+        }
+        return key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2(Object key2) throws BridgeTableException
+    {
+        Object key1 = lookup(key2, KEY2);
+        if(key1 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+        }
+        return key1;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        Object key2 = lookup(key1, KEY1);
+        return key2 == MISSING ? defaultValue : key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        Object key1 = lookup(key2, KEY2);
+        return key1 == MISSING ? defaultValue : key1;
+    }
+
+    /**
+     * Looks all the keys up while holding the read lock once.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        return retrieveAll(keys1, KEY1);
+    }
+
+    /**
+     * Looks all the keys up while holding the read lock once.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        return retrieveAll(keys2, KEY2);
+    }
+
+    /**
+     * Applies the batch while holding the write lock, so lookups see either none or all of its operations.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        this.lock.writeLock().lock();
+        try
+        {
+            super.executeBatch(operations);
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return false;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey1(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey1(Object key1) throws BridgeTableException
+    {
+        byte[] k1 = KeyCodec.encode(key1, this.key1Type);
+        long h1 = KeyCodec.hash(k1);
+
+        this.lock.readLock().lock();
+        try
+        {
+            return find(this.index1, k1, h1, KEY1) >= 0;
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey2(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey2(Object key2) throws BridgeTableException
+    {
+        byte[] k2 = KeyCodec.encode(key2, this.key2Type);
+        long h2 = KeyCodec.hash(k2);
+
+        this.lock.readLock().lock();
+        try
+        {
+            return find(this.index2, k2, h2, KEY2) >= 0;
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys1()
+     */
+    @Override
+    public List<Object> keys1() throws BridgeTableException
+    {
+        return keys(this.index1, KEY1, this.key1Type);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#keys2()
+     */
+    @Override
+    public List<Object> keys2() throws BridgeTableException
+    {
+        return keys(this.index2, KEY2, this.key2Type);
+    }
+
+    /**
+     * The iterator walks the index in chunks of slots, holding the read lock while decoding each chunk only.
+     * It returns the mappings present during the whole iteration and may or may not return the ones changed
+     * meanwhile; a mapping moved by a concurrent remove or compaction may be missed or repeated.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        return new ChunkedKeyIterator(KEY1);
+    }
+
+    /**
+     * The iterator walks the index in chunks, as the one of {@link #iterateKeys1()}.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        return new ChunkedKeyIterator(KEY2);
+    }
+
+    /**
+     * @return The name of the bridge table.
+     */
+    public String getTableName()
+    {
+        return tableName;
+    }
+
+    /**
+     * @return Type of key1
+     */
+    public KeyType getKey1Type()
+    {
+        return key1Type;
+    }
+
+    /**
+     * @return Type of key2
+     */
+    public KeyType getKey2Type()
+    {
+        return key2Type;
+    }
+
+    /**
+     * @return Maximum number of mappings the table can hold before it has to grow
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return Number of mappings in the table
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return Number of bytes of direct memory held by the table
+     */
+    public long getMemoryUsage()
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            return this.index1.capacity() + this.index2.capacity() + this.data.capacity();
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Restores the mappings left by a previous run, if the concrete storage outlives the table, by calling
+     * {@link #restore(SegmentedMemory[], long, long, long, long, long, boolean)}. Invoked by
+     * {@link #init(String, KeyType, KeyType, String, String, boolean)} while holding the write lock.
+     * @return <code>true</code> if the table was restored, <code>false</code> to start with an empty table
+     * @throws BridgeTableException If the previous mappings cannot be restored
+     */
+    protected boolean open() throws BridgeTableException
+    {
+        return false;
+    }
+
+    /**
+     * Allocates zeroed memory for the two indexes and the data region of the table. By default the memory
+     * is direct memory.
+     * @param slots Number of slots of each index
+     * @param dataSegmentShift Segment size of the data region as a power of two
+     * @return The memory for index1, index2 and the data region, in that order
+     * @throws BridgeTableException If the memory cannot be allocated
+     */
+    protected SegmentedMemory[] allocate(long slots, int dataSegmentShift) throws BridgeTableException
+    {
+        return new SegmentedMemory[] {allocateIndex(slots), allocateIndex(slots), new SegmentedMemory(dataSegmentShift)};
+    }
+
+    /**
+     * Invoked, while holding the write lock, once the memory returned by the last call to
+     * {@link #allocate(long, int)} holds every mapping and before the memory it replaces is released.
+     * @throws BridgeTableException To report a failure
+     */
+    protected void commit() throws BridgeTableException
+    {
+    }
+
+    /**
+     * Invoked by {@link #destroy()}, while holding the write lock, before the memory is released.
+     * @throws BridgeTableException To report a failure
+     */
+    protected void close() throws BridgeTableException
+    {
+    }
+
+    /**
+     * Growth policy of the table. By default tables don't grow.
+     * @param capacity Current capacity of the full table
+     * @return The new capacity, or <code>capacity</code> if the table can't grow
+     */
+    protected long nextCapacity(long capacity)
+    {
+        return capacity;
+    }
+
+    /**
+     * Sets the capacity of the table. Takes effect when the table is initialized.
+     * @param capacity Maximum number of mappings the table can hold before it has to grow
+     */
+    protected void setCapacity(long capacity)
+    {
+        if(capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adopts memory holding the indexes and the data region of a previous run. Meant to be called from
+     * {@link #open()}.
+     * @param memory Memory for index1, index2 and the data region, in that order
+     * @param capacity Capacity of the table
+     * @param slots Number of slots of each index
+     * @param size Number of mappings
+     * @param dataEnd End of the data region
+     * @param garbage Bytes of the data region no longer referenced
+     * @param repair Whether the memory may be inconsistent (e.g. it was not closed properly) and the
+     * indexes have to be rebuilt from the mappings that can still be read
+     * @throws BridgeTableException If the indexes cannot be rebuilt
+     */
+    protected void restore(SegmentedMemory[] memory, long capacity, long slots, long size, long dataEnd, long garbage, boolean repair) throws BridgeTableException
+    {
+        this.index1 = memory[0];
+        this.index2 = memory[1];
+        this.data = memory[2];
+        this.capacity = capacity;
+        this.slots = slots;
+        this.size = size;
+        this.dataEnd = dataEnd;
+        this.garbage = garbage;
+
+        if(repair)
+        {
+            rebuild(capacity, true);
+        }
+    }
+
+    /**
+     * @return Number of slots of each index
+     */
+    protected long getSlots()
+    {
+        return slots;
+    }
+
+    /**
+     * @return End of the data region
+     */
+    protected long getDataEnd()
+    {
+        return dataEnd;
+    }
+
+    /**
+     * @return Bytes of the data region no longer referenced
+     */
+    protected long getGarbage()
+    {
+        return garbage;
+    }
+
+    /**
+     * @param slots Number of slots of an index
+     * @return Number of bytes taken by the index
+     */
+    protected static long indexSize(long slots)
+    {
+        return slots << 3;
+    }
+
+    /**
+     * @param slots Number of slots of an index
+     * @return Segment size of the index as a power of two
+     */
+    protected static int indexSegmentShift(long slots)
+    {
+        return Math.min(MAX_SEGMENT_SHIFT, log2(indexSize(slots)));
+    }
+
+    /*
+     * Lists every key of one of the indexes
+     */
+    private List<Object> keys(SegmentedMemory index, int which, KeyType type)
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            List<Object> result = new ArrayList<Object>((int) this.size);
+            for(long slot=0; slot < this.slots; slot++)
+            {
+                long value = index.getLong(slot << 3);
+                if(value != 0)
+                {
+                    result.add(KeyCodec.decode(readKey(position(value), which), type));
+                }
+            }
+            return result;
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Decodes the keys held by up to ITERATOR_CHUNK_SLOTS slots of an index, starting at the given one, and
+     * returns the slot to continue from, or -1 once the whole index has been walked
+     */
+    private long keys(int which, long from, List<Object> result)
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            SegmentedMemory index = which == KEY1 ? this.index1 : this.index2;
+            KeyType type = which == KEY1 ? this.key1Type : this.key2Type;
+            long to = Math.min(from + ITERATOR_CHUNK_SLOTS, this.slots);
+            for(long slot=from; slot < to; slot++)
+            {
+                long value = index.getLong(slot << 3);
+                if(value != 0)
+                {
+                    result.add(KeyCodec.decode(readKey(position(value), which), type));
+                }
+            }
+            return to < this.slots ? to : -1;
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Returns the value mapped to a key, which may be null, or MISSING if there is none
+     */
+    private Object lookup(Object key, int which) throws BridgeTableException
+    {
+        byte[] k = KeyCodec.encode(key, which == KEY1 ? this.key1Type : this.key2Type);
+        long h = KeyCodec.hash(k);
+
+        this.lock.readLock().lock();
+        try
+        {
+            SegmentedMemory index = which == KEY1 ? this.index1 : this.index2;
+            long slot = find(index, k, h, which);
+            if(slot < 0)
+            {
+                return MISSING;
+            }
+            return KeyCodec.decode(readKey(position(index.getLong(slot << 3)), which == KEY1 ? KEY2 : KEY1), which == KEY1 ? this.key2Type : this.key1Type);
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Looks several keys up under a single read lock, returning the values found by key
+     */
+    private Map<Object, Object> retrieveAll(Collection<?> keys, int which) throws BridgeTableException
+    {
+        KeyType keyType = which == KEY1 ? this.key1Type : this.key2Type;
+        KeyType valueType = which == KEY1 ? this.key2Type : this.key1Type;
+        int other = which == KEY1 ? KEY2 : KEY1;
+
+        List<byte[]> encoded = new ArrayList<byte[]>(keys.size());
+        for(Object key : keys)
+        {
+            encoded.add(KeyCodec.encode(key, keyType));
+        }
+
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        this.lock.readLock().lock();
+        try
+        {
+            SegmentedMemory index = which == KEY1 ? this.index1 : this.index2;
+            Iterator<byte[]> k = encoded.iterator();
+            for(Object key : keys)
+            {
+                byte[] bytes = k.next();
+                long slot = find(index, bytes, KeyCodec.hash(bytes), which);
+                if(slot >= 0)
+                {
+                    found.put(key, KeyCodec.decode(readKey(position(index.getLong(slot << 3)), other), valueType));
+                }
+            }
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    /*
+     * Returns the slot of the index holding the key or -1 if it's not present
+     */
+    private long find(SegmentedMemory index, byte[] key, long hash, int which)
+    {
+        long mask = this.slots - 1;
+        long fingerprint = fingerprint(hash);
+        long slot = hash & mask;
+        for(long probes=0; probes < this.slots; probes++)
+        {
+            long value = index.getLong(slot << 3);
+            if(value == 0)
+            {
+                return -1;
+            }
+            else if((value >>> POSITION_BITS) == fingerprint && keyEquals(position(value), which, key))
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /*
+     * Adds a mapping to an index (the key must not be present)
+     */
+    private void store(SegmentedMemory index, long hash, long position)
+    {
+        long mask = this.slots - 1;
+        long slot = hash & mask;
+        while(index.getLong(slot << 3) != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+        index.putLong(slot << 3, slot(hash, position));
+    }
+
+    /*
+     * Frees a slot of an index, shifting back the rest of its probe sequence
+     */
+    private void remove(SegmentedMemory index, long slot, int which)
+    {
+        long mask = this.slots - 1;
+        long gap = slot;
+        long next = (gap + 1) & mask;
+        while(true)
+        {
+            long value = index.getLong(next << 3);
+            if(value == 0)
+            {
+                break;
+            }
+            long home = KeyCodec.hash(readKey(position(value), which)) & mask;
+            if(((next - home) & mask) >= ((next - gap) & mask))
+            {
+                index.putLong(gap << 3, value);
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        index.putLong(gap << 3, 0L);
+    }
+
+    /*
+     * Appends a mapping to the data region and returns its position
+     */
+    private long append(byte[] k1, byte[] k2) throws BridgeTableException
+    {
+        int length = 8 + length(k1) + length(k2);
+        long segmentSize = this.data.getSegmentSize();
+        if(length > segmentSize)
+        {
+            throw new BridgeTableException("Keys are too long to be stored in " + this.tableName);
+        }
+
+        long position = this.dataEnd;
+        long remaining = segmentSize - (position & (segmentSize - 1));
+        if(remaining < length)
+        {
+            // Mappings never cross segments
+            this.garbage += remaining;
+            position += remaining;
+        }
+        if(position + length > POSITION_MASK)
+        {
+            throw new BridgeTableException("Data region of " + this.tableName + " is full");
+        }
+
+        this.data.ensureCapacity(position + length);
+        this.data.putInt(position, k1 == null ? -1 : k1.length);
+        if(k1 != null)
+        {
+            this.data.put(position + 4, k1);
+        }
+        long offset = position + 4 + length(k1);
+        this.data.putInt(offset, k2 == null ? -1 : k2.length);
+        if(k2 != null)
+        {
+            this.data.put(offset + 4, k2);
+        }
+        this.dataEnd = position + length;
+        return position;
+    }
+
+    /*
+     * Accounts for a mapping that is no longer referenced and compacts the data region if it's mostly garbage
+     */
+    private void release(long position) throws BridgeTableException
+    {
+        int length1 = this.data.getInt(position);
+        int length2 = this.data.getInt(position + 4 + Math.max(length1, 0));
+        this.garbage += 8 + Math.max(length1, 0) + Math.max(length2, 0);
+
+        if(this.garbage > this.data.getSegmentSize() && this.garbage > this.dataEnd / 2)
+        {
+            rebuild(this.capacity, false);
+        }
+    }
+
+    /*
+     * Rewrites every live mapping into fresh memory sized for the given capacity. When repairing, mappings that
+     * cannot be read or whose keys were already copied are dropped.
+     */
+    private void rebuild(long capacity, boolean repair) throws BridgeTableException
+    {
+        long start = System.currentTimeMillis();
+
+        SegmentedMemory oldIndex1 = this.index1;
+        SegmentedMemory oldIndex2 = this.index2;
+        SegmentedMemory oldData = this.data;
+        long oldSlots = this.slots;
+
+        this.capacity = capacity;
+        this.slots = slots(capacity);
+        SegmentedMemory[] memory = allocate(this.slots, Math.max(log2(oldData.getSegmentSize()), dataSegmentShift(capacity)));
+        this.index1 = memory[0];
+        this.index2 = memory[1];
+        this.data = memory[2];
+        this.size = 0;
+        this.dataEnd = 0;
+        this.garbage = 0;
+
+        for(long slot=0; slot < oldSlots; slot++)
+        {
+            long value = oldIndex1.getLong(slot << 3);
+            if(value != 0)
+            {
+                long oldPosition = position(value);
+                if(repair && !isReadable(oldData, oldPosition))
+                {
+                    continue;
+                }
+                byte[] k1 = readKey(oldData, oldPosition, KEY1);
+                byte[] k2 = readKey(oldData, oldPosition, KEY2);
+                long h1 = KeyCodec.hash(k1);
+                long h2 = KeyCodec.hash(k2);
+                if(repair && (find(this.index1, k1, h1, KEY1) >= 0 || find(this.index2, k2, h2, KEY2) >= 0 || this.size >= capacity))
+                {
+                    continue;
+                }
+                long position = append(k1, k2);
+                store(this.index1, h1, position);
+                store(this.index2, h2, position);
+                this.size++;
+            }
+        }
+
+        commit();
+        oldIndex1.release();
+        oldIndex2.release();
+        oldData.release();
+
+        LOGGER.info("Rebuilt " + this.tableName + " in " + (System.currentTimeMillis() - start) + " ms, " + this.size + " mappings use " + this.dataEnd + " bytes (capacity " + this.capacity + ")");
+    }
+
+    private static SegmentedMemory allocateIndex(long slots) throws BridgeTableException
+    {
+        SegmentedMemory index = new SegmentedMemory(indexSegmentShift(slots));
+        index.ensureCapacity(indexSize(slots));
+        return index;
+    }
+
+    /*
+     * Whether a mapping of a data region that may be corrupt lies within the allocated memory and its segment
+     */
+    private static boolean isReadable(SegmentedMemory data, long position)
+    {
+        long segmentEnd = (position | (data.getSegmentSize() - 1)) + 1;
+        if(position < 0 || position + 8 > Math.min(segmentEnd, data.capacity()))
+        {
+            return false;
+        }
+        int length1 = data.getInt(position);
+        if(length1 < -1 || position + 8 + Math.max(length1, 0) > segmentEnd)
+        {
+            return false;
+        }
+        int length2 = data.getInt(position + 4 + Math.max(length1, 0));
+        return length2 >= -1 && position + 8 + Math.max(length1, 0) + (long) Math.max(length2, 0) <= segmentEnd;
+    }
+
+    private boolean keyEquals(long position, int which, byte[] key)
+    {
+        long offset = keyOffset(this.data, position, which);
+        int length = this.data.getInt(offset);
+        if(key == null || length < 0)
+        {
+            return key == null && length < 0;
+        }
+        else if(length != key.length)
+        {
+            return false;
+        }
+
+        offset += 4;
+        for(int i=0; i < length; i++)
+        {
+            if(this.data.getByte(offset + i) != key[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readKey(long position, int which)
+    {
+        return readKey(this.data, position, which);
+    }
+
+    private static byte[] readKey(SegmentedMemory data, long position, int which)
+    {
+        long offset = keyOffset(data, position, which);
+        int length = data.getInt(offset);
+        if(length < 0)
+        {
+            return null;
+        }
+        byte[] key = new byte[length];
+        data.get(offset + 4, key);
+        return key;
+    }
+
+    private static long keyOffset(SegmentedMemory data, long position, int which)
+    {
+        if(which == KEY1)
+        {
+            return position;
+        }
+        return position + 4 + Math.max(data.getInt(position), 0);
+    }
+
+    private static int length(byte[] key)
+    {
+        return key == null ? 0 : key.length;
+    }
+
+    private static long slot(long hash, long position)
+    {
+        return (fingerprint(hash) << POSITION_BITS) | (position + 1);
+    }
+
+    private static long fingerprint(long hash)
+    {
+        return hash >>> POSITION_BITS;
+    }
+
+    private static long position(long slot)
+    {
+        return (slot & POSITION_MASK) - 1;
+    }
+
+    private static long slots(long capacity)
+    {
+        return Math.max(1024, nextPowerOfTwo((long) Math.ceil(capacity / (double) LOAD_FACTOR)));
+    }
+
+    private static int dataSegmentShift(long capacity)
+    {
+        return Math.max(MIN_SEGMENT_SHIFT, Math.min(MAX_SEGMENT_SHIFT, log2(nextPowerOfTwo(capacity)) + 5));
+    }
+
+    private static long nextPowerOfTwo(long value)
+    {
+        long result = 1;
+        while(result < value)
+        {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    private static int log2(long powerOfTwo)
+    {
+        return 63 - Long.numberOfLeadingZeros(powerOfTwo);
+    }
+
+    /*
+     * Iterator that decodes the keys of an index a chunk of slots at a time
+     */
+    private class ChunkedKeyIterator implements KeyIterator
+    {
+        private final int which;
+        private final List<Object> chunk = new ArrayList<Object>();
+        private Iterator<Object> current = this.chunk.iterator();
+        // Next slot to decode, -1 when done
+        private long slot;
+
+        ChunkedKeyIterator(int which)
+        {
+            this.which = which;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while(!this.current.hasNext() && this.slot >= 0)
+            {
+                this.chunk.clear();
+                this.slot = keys(this.which, this.slot, this.chunk);
+                this.current = this.chunk.iterator();
+            }
+            return this.current.hasNext();
+        }
+
+        @Override
+        public Object next()
+        {
+            if(!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            return this.current.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+            this.slot = -1;
+            this.current = Collections.emptyList().iterator();
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Routes the lookups of a database bridge table to read replicas of its database.
+ * <p/>
+ * A thread that has just written reads from the primary database for a while, so that it sees its own writes
+ * even if the replicas lag behind, and so do the operations it hands over to other threads with
+ * {@link #captureContext()}. Lookups that fail on a replica are retried on the primary database.
+ * <p/>
+ * A replica that fails is left out of the selection for a while, twice as long after every consecutive
+ * failure up to {@link #MAX_BACK_OFF}. Once its back-off is over a single lookup tries it again, and the first
+ * success puts it back in the selection.
+ */
+class ReadReplicas
+{
+    private static final Logger LOGGER = Logger.getLogger(ReadReplicas.class);
+
+    // With LEAST_LATENCY, one lookup out of these goes to the next replica in turn
+    private static final int PROBE_INTERVAL = 16;
+    // Latency assumed for a replica that just failed
+    private static final long FAILURE_PENALTY = TimeUnit.SECONDS.toNanos(1);
+    // How long a replica is skipped after failing, doubled for every consecutive failure
+    static final long BACK_OFF = TimeUnit.SECONDS.toNanos(1);
+    static final long MAX_BACK_OFF = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * A read, run against the primary database or a replica
+     */
+    interface Read<T>
+    {
+        /**
+         * @param executor The executor of the database to read from
+         * @return The result of the read
+         * @throws SQLException In case of error
+         */
+        T run(JdbcExecutor executor) throws SQLException;
+    }
+
+    private final List<Replica> replicas = new ArrayList<Replica>();
+    private final ReadSelection selection;
+    private final long readAfterWriteWindow;
+    private final String tableName;
+
+    // When the current thread last wrote, shared with the operations it hands over to other threads
+    private final ThreadLocal<AtomicLong> lastWrite = new ThreadLocal<AtomicLong>()
+    {
+        @Override
+        protected AtomicLong initialValue()
+        {
+            return new AtomicLong();
+        }
+    };
+    private final AtomicLong turn = new AtomicLong();
+    private final AtomicLong primaryReads = new AtomicLong();
+
+    /**
+     * @param dataSources The read replicas, none to read from the primary database
+     * @param pinConnections Whether idle connections to the replicas are kept between reads
+     * @param selection How reads pick a replica
+     * @param readAfterWriteWindow Milliseconds a thread reads from the primary database after writing
+     * @param tableName The table name, for logging
+     */
+    ReadReplicas(List<DataSource> dataSources, boolean pinConnections, ReadSelection selection, long readAfterWriteWindow, String tableName)
+    {
+        for(DataSource dataSource : dataSources)
+        {
+            this.replicas.add(new Replica(dataSource, new JdbcExecutor(dataSource, pinConnections)));
+        }
+        this.selection = selection;
+        this.readAfterWriteWindow = readAfterWriteWindow;
+        this.tableName = tableName;
+    }
+
+    /**
+     * Records that the current thread wrote to the primary database
+     */
+    void wrote()
+    {
+        if(!this.replicas.isEmpty() && this.readAfterWriteWindow > 0)
+        {
+            this.lastWrite.get().set(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return The read-after-write state of the current thread, for {@link #restoreContext(Object)}
+     */
+    Object captureContext()
+    {
+        return this.lastWrite.get();
+    }
+
+    /**
+     * Makes the current thread read and write with the read-after-write state of another one
+     * @param context A state returned by {@link #captureContext()}
+     * @return The state the current thread had
+     */
+    Object restoreContext(Object context)
+    {
+        AtomicLong previous = this.lastWrite.get();
+        if(context == null)
+        {
+            this.lastWrite.remove();
+        }
+        else
+        {
+            this.lastWrite.set((AtomicLong) context);
+        }
+        return previous;
+    }
+
+    /**
+     * Runs a read against a replica, or against the primary database if the current thread wrote recently, there
+     * are no replicas or the replica fails.
+     * @param primary The executor of the primary database
+     * @param read The read
+     * @return The result of the read
+     * @throws SQLException If the read fails on the primary database
+     */
+    <T> T read(JdbcExecutor primary, Read<T> read) throws SQLException
+    {
+        Replica replica = select();
+        if(replica != null)
+        {
+            replica.reads.incrementAndGet();
+            long start = System.nanoTime();
+            try
+            {
+                T result = read.run(replica.executor);
+                replica.succeeded(System.nanoTime() - start);
+                return result;
+            }
+            catch(SQLException ex)
+            {
+                replica.failed();
+                LOGGER.warn("Could not read " + this.tableName + " from a read replica, reading from the primary database", ex);
+            }
+        }
+        this.primaryReads.incrementAndGet();
+        return read.run(primary);
+    }
+
+    /**
+     * Picks the data source for a read that holds its own connection.
+     * @param primary The primary data source
+     * @return A replica, or the primary data source if the current thread wrote recently or there are no replicas
+     */
+    DataSource select(DataSource primary)
+    {
+        Replica replica = select();
+        if(replica == null)
+        {
+            this.primaryReads.incrementAndGet();
+            return primary;
+        }
+        replica.reads.incrementAndGet();
+        return replica.dataSource;
+    }
+
+    /**
+     * Records that a replica picked with {@link #select(DataSource)} failed, so the read goes to the primary
+     * @param dataSource The replica
+     */
+    void failed(DataSource dataSource)
+    {
+        for(Replica replica : this.replicas)
+        {
+            if(replica.dataSource == dataSource)
+            {
+                replica.failed();
+            }
+        }
+        this.primaryReads.incrementAndGet();
+    }
+
+    /**
+     * Records that a replica picked with {@link #select(DataSource)} answered, so it is no longer backed off
+     * @param dataSource The replica
+     */
+    void succeeded(DataSource dataSource)
+    {
+        for(Replica replica : this.replicas)
+        {
+            if(replica.dataSource == dataSource)
+            {
+                replica.recovered();
+            }
+        }
+    }
+
+    /**
+     * @return Reads and failures by replica, with their recent latency, and the reads that went to the primary
+     */
+    Map<String, Object> getStatistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("primaryReads", Long.valueOf(this.primaryReads.get()));
+        for(int i=0; i < this.replicas.size(); i++)
+        {
+            Replica replica = this.replicas.get(i);
+            statistics.put("replica" + i + ".reads", Long.valueOf(replica.reads.get()));
+            statistics.put("replica" + i + ".failures", Long.valueOf(replica.failures.get()));
+            statistics.put("replica" + i + ".latencyMillis", Double.valueOf(replica.latency / 1e6));
+        }
+        return statistics;
+    }
+
+    /**
+     * Closes the connections to the replicas
+     */
+    void close()
+    {
+        for(Replica replica : this.replicas)
+        {
+            replica.executor.close();
+        }
+    }
+
+    /*
+     * Picks the replica for a read, null to read from the primary database
+     */
+    private Replica select()
+    {
+        if(this.replicas.isEmpty())
+        {
+            return null;
+        }
+
+        long written = this.lastWrite.get().get();
+        if(written != 0 && System.currentTimeMillis() - written < this.readAfterWriteWindow)
+        {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        long turn = this.turn.getAndIncrement() & Long.MAX_VALUE;
+        if(this.selection == ReadSelection.ROUND_ROBIN)
+        {
+            return next((int) (turn % this.replicas.size()), now);
+        }
+        if(turn % PROBE_INTERVAL == 0)
+        {
+            return next((int) ((turn / PROBE_INTERVAL) % this.replicas.size()), now);
+        }
+
+        Replica fastest = null;
+        for(Replica replica : this.replicas)
+        {
+            if(!replica.isFailing() && (fastest == null || replica.latency < fastest.latency))
+            {
+                fastest = replica;
+            }
+        }
+        if(fastest == null)
+        {
+            // All of them failed lately, one whose back-off is over may get a retry
+            return next(0, now);
+        }
+        return fastest;
+    }
+
+    /*
+     * The first replica from the given one on that is not backing off, null if they all are
+     */
+    private Replica next(int first, long now)
+    {
+        for(int i=0; i < this.replicas.size(); i++)
+        {
+            Replica replica = this.replicas.get((first + i) % this.replicas.size());
+            if(replica.tryAcquire(now))
+            {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    private static final class Replica
+    {
+        private final DataSource dataSource;
+        private final JdbcExecutor executor;
+        private final AtomicLong reads = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        // Failures since the last success, and when the replica may be tried again after the last of them
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong retryAt = new AtomicLong();
+        // Moving average of the latency in ns, updated without synchronization as a lost sample doesn't matter
+        private volatile long latency;
+
+        Replica(DataSource dataSource, JdbcExecutor executor)
+        {
+            this.dataSource = dataSource;
+            this.executor = executor;
+        }
+
+        void succeeded(long nanos)
+        {
+            long current = this.latency;
+            this.latency = current == 0 ? nanos : current + (nanos - current) / 8;
+            recovered();
+        }
+
+        void recovered()
+        {
+            this.consecutiveFailures.set(0);
+        }
+
+        void failed()
+        {
+            this.failures.incrementAndGet();
+            this.latency = Math.max(this.latency * 2, FAILURE_PENALTY);
+            int consecutive = this.consecutiveFailures.incrementAndGet();
+            long backOff = Math.min(BACK_OFF << Math.min(consecutive - 1, 16), MAX_BACK_OFF);
+            this.retryAt.set(System.nanoTime() + backOff);
+        }
+
+        boolean isFailing()
+        {
+            return this.consecutiveFailures.get() > 0;
+        }
+
+        /*
+         * Whether a read may go to the replica. Once the back-off of a failing replica is over, only the read that
+         * moves its retry time on gets through, so a single read finds out whether it recovered.
+         */
+        boolean tryAcquire(long now)
+        {
+            if(this.consecutiveFailures.get() == 0)
+            {
+                return true;
+            }
+            long retry = this.retryAt.get();
+            return now - retry >= 0 && this.retryAt.compareAndSet(retry, now + BACK_OFF);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+/**
+ * How lookups pick one of the read replicas of a database bridge table.
+ */
+public enum ReadSelection
+{
+    /**
+     * The replicas take turns.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The replica that has answered fastest lately. A few lookups still go to the others in turns, so that a
+     * replica that was slow or failed gets the chance to prove it has recovered.
+     */
+    LEAST_LATENCY;
+}
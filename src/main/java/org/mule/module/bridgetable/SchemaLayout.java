@@ -0,0 +1,34 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+/**
+ * Indexes of the table created for a bridge table in a database. Every index is maintained on every write, so
+ * the fewer the faster the writes.
+ */
+public enum SchemaLayout
+{
+    /**
+     * Primary key on (key1, key2), a unique index on each key and another plain index on each key.
+     */
+    STANDARD,
+
+    /**
+     * Primary key on key1 and a unique index on key2, the least needed to look mappings up in both directions
+     * and keep them one to one.
+     */
+    COMPACT,
+
+    /**
+     * Like {@link #COMPACT}, plus an index on the creation date by which keys1 and keys2 list the keys.
+     */
+    COMPACT_ORDERED;
+}
@@ -0,0 +1,176 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A growable region of memory outside of the Java heap, addressed with <code>long</code> positions. It is
+ * made of fixed size segments (a single {@link ByteBuffer} can't hold more than 2GB) that are allocated
+ * on demand. Callers are expected to never read or write a value across two segments.
+ */
+class SegmentedMemory
+{
+    private final int segmentShift;
+    private final long segmentMask;
+    private ByteBuffer[] segments = new ByteBuffer[0];
+
+    /**
+     * @param segmentShift Size of each segment as a power of two
+     */
+    SegmentedMemory(int segmentShift)
+    {
+        this.segmentShift = segmentShift;
+        this.segmentMask = (1L << segmentShift) - 1;
+    }
+
+    /**
+     * @return Size in bytes of every segment
+     */
+    int getSegmentSize()
+    {
+        return 1 << this.segmentShift;
+    }
+
+    /**
+     * @return Number of bytes currently allocated
+     */
+    long capacity()
+    {
+        return ((long) this.segments.length) << this.segmentShift;
+    }
+
+    /**
+     * Allocates segments until the memory can hold <code>size</code> bytes.
+     * @param size Required size
+     * @throws BridgeTableException If the memory cannot be allocated
+     */
+    void ensureCapacity(long size) throws BridgeTableException
+    {
+        int required = (int) ((size + this.segmentMask) >>> this.segmentShift);
+        if(required > this.segments.length)
+        {
+            ByteBuffer[] grown = new ByteBuffer[required];
+            System.arraycopy(this.segments, 0, grown, 0, this.segments.length);
+            for(int i=this.segments.length; i < required; i++)
+            {
+                grown[i] = allocate(i, getSegmentSize());
+            }
+            this.segments = grown;
+        }
+    }
+
+    /**
+     * Allocates a new segment. By default segments live in direct memory.
+     * @param index Index of the segment
+     * @param size Size in bytes of the segment
+     * @return The segment
+     * @throws BridgeTableException If the segment cannot be allocated
+     */
+    protected ByteBuffer allocate(int index, int size) throws BridgeTableException
+    {
+        try
+        {
+            return ByteBuffer.allocateDirect(size);
+        }
+        catch(OutOfMemoryError err)
+        {
+            throw new BridgeTableException("Could not allocate " + size + " bytes of direct memory. Consider raising -XX:MaxDirectMemorySize", err);
+        }
+    }
+
+    /**
+     * Drops every segment
+     */
+    void release()
+    {
+        this.segments = new ByteBuffer[0];
+    }
+
+    /**
+     * @return The segments allocated so far
+     */
+    protected ByteBuffer[] segments()
+    {
+        return this.segments;
+    }
+
+    byte getByte(long position)
+    {
+        return segment(position).get(offset(position));
+    }
+
+    void putByte(long position, byte value)
+    {
+        segment(position).put(offset(position), value);
+    }
+
+    int getInt(long position)
+    {
+        return segment(position).getInt(offset(position));
+    }
+
+    void putInt(long position, int value)
+    {
+        segment(position).putInt(offset(position), value);
+    }
+
+    long getLong(long position)
+    {
+        return segment(position).getLong(offset(position));
+    }
+
+    void putLong(long position, long value)
+    {
+        segment(position).putLong(offset(position), value);
+    }
+
+    void get(long position, byte[] dst)
+    {
+        ByteBuffer segment = segment(position);
+        int offset = offset(position);
+        for(int i=0; i < dst.length; i++)
+        {
+            dst[i] = segment.get(offset + i);
+        }
+    }
+
+    void put(long position, byte[] src)
+    {
+        ByteBuffer segment = segment(position);
+        int offset = offset(position);
+        for(int i=0; i < src.length; i++)
+        {
+            segment.put(offset + i, src[i]);
+        }
+    }
+
+    /**
+     * Fills <code>length</code> bytes with zeros
+     */
+    void clear(long position, long length)
+    {
+        for(long i=0; i < length; i += 8)
+        {
+            putLong(position + i, 0L);
+        }
+    }
+
+    private ByteBuffer segment(long position)
+    {
+        return this.segments[(int) (position >>> this.segmentShift)];
+    }
+
+    private int offset(long position)
+    {
+        return (int) (position & this.segmentMask);
+    }
+}
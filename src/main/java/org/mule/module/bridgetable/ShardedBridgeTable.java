@@ -0,0 +1,922 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bridge table that spreads its mappings over several bridge tables (shards), typically on different databases,
+ * so that their writes don't all go to the same one.
+ * <p/>
+ * Every mapping is stored in the shard picked by the hash of key1 and in the shard picked by the hash of key2
+ * (once if it's the same one), so lookups in either direction reach a single shard and each shard enforces the
+ * uniqueness of the keys it's picked for. Writes touch at most three shards, one after the other: when a later
+ * step fails the earlier ones are undone, but meanwhile, or if undoing fails, lookups may see the write in one
+ * direction only. Listing keys asks every shard in parallel and keeps from each one the keys it's picked for.
+ * <p/>
+ * The shard of a key depends on the number and order of the shards, so they cannot change once the table holds
+ * mappings without moving them.
+ * <p/>
+ * The tasks run on the shards in parallel carry the state the shards keep for the calling thread, such as when
+ * it last wrote to read replicas, so the caller reads its own writes as if they had run on its thread.
+ */
+public class ShardedBridgeTable extends AbstractBridgeTable implements Monitorable, ThreadContextAware
+{
+    private static final Logger LOGGER = Logger.getLogger(ShardedBridgeTable.class);
+
+    private final List<BridgeTable> shards;
+    private boolean suffixTables;
+
+    private String tableName;
+    private KeyType key1Type;
+    private KeyType key2Type;
+    private ExecutorService executor;
+
+    /**
+     * @param shards The bridge tables the mappings are spread over, at least one
+     */
+    public ShardedBridgeTable(List<? extends BridgeTable> shards)
+    {
+        if(shards == null || shards.isEmpty())
+        {
+            throw new IllegalArgumentException("There must be at least one shard");
+        }
+        this.shards = new ArrayList<BridgeTable>(shards);
+    }
+
+    /**
+     * Initializes every shard, in parallel.
+     * @see org.mule.module.bridgetable.BridgeTable#init(java.lang.String, org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType, java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public void init(final String tableName,
+                     final KeyType key1Type,
+                     final KeyType key2Type,
+                     final String key1Name,
+                     final String key2Name,
+                     final boolean autoCreateTable) throws BridgeTableException
+    {
+        this.tableName = tableName;
+        this.key1Type = key1Type;
+        this.key2Type = key2Type;
+
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.shards.size(), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "bridgetable-shard-" + tableName + "-" + threads.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(BridgeTable shard, int index) throws BridgeTableException
+            {
+                shard.init(shardTableName(index), key1Type, key2Type, key1Name, key2Name, autoCreateTable);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#destroy()
+     */
+    @Override
+    public void destroy() throws BridgeTableException
+    {
+        try
+        {
+            fanOut(new ShardTask<Void>()
+            {
+                @Override
+                public Void run(BridgeTable shard, int index) throws BridgeTableException
+                {
+                    shard.destroy();
+                    return null;
+                }
+            });
+        }
+        finally
+        {
+            this.executor.shutdown();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Object key1, Object key2) throws BridgeTableException
+    {
+        BridgeTable shard1 = shard1(key1);
+        BridgeTable shard2 = shard2(key2);
+
+        shard1.insert(key1, key2);
+        if(shard2 != shard1)
+        {
+            try
+            {
+                shard2.insert(key1, key2);
+            }
+            catch(BridgeTableException ex)
+            {
+                undo(shard1, key1);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Inserts into every shard in parallel. The mappings that conflict in one of their shards are removed from
+     * the other one.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#insertAll(java.util.Map)
+     */
+    @Override
+    public Map<Object, Object> insertAll(Map<Object, Object> pairs) throws BridgeTableException
+    {
+        final List<Map<Object, Object>> placed = new ArrayList<Map<Object, Object>>(this.shards.size());
+        for(int i=0; i < this.shards.size(); i++)
+        {
+            placed.add(new LinkedHashMap<Object, Object>());
+        }
+        for(Map.Entry<Object, Object> pair : pairs.entrySet())
+        {
+            int index1 = index(pair.getKey(), this.key1Type);
+            int index2 = index(pair.getValue(), this.key2Type);
+            placed.get(index1).put(pair.getKey(), pair.getValue());
+            placed.get(index2).put(pair.getKey(), pair.getValue());
+        }
+
+        List<Map<Object, Object>> rejected = fanOut(new ShardTask<Map<Object, Object>>()
+        {
+            @Override
+            public Map<Object, Object> run(BridgeTable shard, int index) throws BridgeTableException
+            {
+                Map<Object, Object> shardPairs = placed.get(index);
+                return shardPairs.isEmpty() ? new LinkedHashMap<Object, Object>() : shard.insertAll(shardPairs);
+            }
+        });
+
+        Map<Object, Object> conflicts = new LinkedHashMap<Object, Object>();
+        for(Map.Entry<Object, Object> pair : pairs.entrySet())
+        {
+            int index1 = index(pair.getKey(), this.key1Type);
+            int index2 = index(pair.getValue(), this.key2Type);
+            boolean rejected1 = rejected.get(index1).containsKey(pair.getKey());
+            boolean rejected2 = rejected.get(index2).containsKey(pair.getKey());
+            if(rejected1 || rejected2)
+            {
+                conflicts.put(pair.getKey(), pair.getValue());
+                if(!rejected1)
+                {
+                    undo(this.shards.get(index1), pair.getKey());
+                }
+                if(!rejected2 && index2 != index1)
+                {
+                    undo(this.shards.get(index2), pair.getKey());
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey1(Object key1, Object newKey2) throws BridgeTableException
+    {
+        Object oldKey2 = shard1(key1).retrieveByKey1(key1);
+        replace(key1, oldKey2, key1, newKey2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey2(Object key2, Object newKey1) throws BridgeTableException
+    {
+        Object oldKey1 = shard2(key2).retrieveByKey2(key2);
+        replace(oldKey1, key2, newKey1, key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey1(java.lang.Object)
+     */
+    @Override
+    public void removeByKey1(Object key1) throws BridgeTableException
+    {
+        BridgeTable shard1 = shard1(key1);
+        Object key2 = shard1.retrieveByKey1(key1);
+        BridgeTable shard2 = shard2(key2);
+        if(shard2 != shard1)
+        {
+            removeIfPresent(shard2, key1);
+        }
+        shard1.removeByKey1(key1);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey2(java.lang.Object)
+     */
+    @Override
+    public void removeByKey2(Object key2) throws BridgeTableException
+    {
+        BridgeTable shard2 = shard2(key2);
+        Object key1 = shard2.retrieveByKey2(key2);
+        BridgeTable shard1 = shard1(key1);
+        if(shard1 != shard2)
+        {
+            removeIfPresent(shard1, key1);
+        }
+        shard2.removeByKey2(key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1(Object key1) throws BridgeTableException
+    {
+        return shard1(key1).retrieveByKey1(key1);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2(Object key2) throws BridgeTableException
+    {
+        return shard2(key2).retrieveByKey2(key2);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        return shard1(key1).retrieveByKey1OrDefault(key1, defaultValue);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        return shard2(key2).retrieveByKey2OrDefault(key2, defaultValue);
+    }
+
+    /**
+     * Looks the keys up in their shards in parallel.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        return retrieveAll(keys1, true);
+    }
+
+    /**
+     * Looks the keys up in their shards in parallel.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        return retrieveAll(keys2, false);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return this.shards.get(0).isPersistent();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey1(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey1(Object key1) throws BridgeTableException
+    {
+        return shard1(key1).containsKey1(key1);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey2(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey2(Object key2) throws BridgeTableException
+    {
+        return shard2(key2).containsKey2(key2);
+    }
+
+    /**
+     * Lists the keys of every shard in parallel, one shard after the other in the result.
+     * @see org.mule.module.bridgetable.BridgeTable#keys1()
+     */
+    @Override
+    public List<Object> keys1() throws BridgeTableException
+    {
+        return keys(true);
+    }
+
+    /**
+     * Lists the keys of every shard in parallel, one shard after the other in the result.
+     * @see org.mule.module.bridgetable.BridgeTable#keys2()
+     */
+    @Override
+    public List<Object> keys2() throws BridgeTableException
+    {
+        return keys(false);
+    }
+
+    /**
+     * Selects a page from every shard in parallel and merges them.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        return keysPage(afterKey1, pageSize, true);
+    }
+
+    /**
+     * Selects a page from every shard in parallel and merges them.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        return keysPage(afterKey2, pageSize, false);
+    }
+
+    /**
+     * Iterates over the shards one after the other.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        return new ShardKeyIterator(true);
+    }
+
+    /**
+     * Iterates over the shards one after the other.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        return new ShardKeyIterator(false);
+    }
+
+    /**
+     * Returns the statistics of the shards that have any, prefixed with <code>shard&lt;index&gt;.</code>
+     * @see org.mule.module.bridgetable.Monitorable#getStatistics()
+     */
+    @Override
+    public Map<String, Object> getStatistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("shards", Integer.valueOf(this.shards.size()));
+        for(int i=0; i < this.shards.size(); i++)
+        {
+            if(this.shards.get(i) instanceof Monitorable)
+            {
+                for(Map.Entry<String, Object> statistic : ((Monitorable) this.shards.get(i)).getStatistics().entrySet())
+                {
+                    statistics.put("shard" + i + "." + statistic.getKey(), statistic.getValue());
+                }
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the contexts of every shard, <b>null</b> for the ones that keep none.
+     * @see org.mule.module.bridgetable.ThreadContextAware#captureContext()
+     */
+    @Override
+    public Object captureContext()
+    {
+        Object[] contexts = new Object[this.shards.size()];
+        for(int i=0; i < contexts.length; i++)
+        {
+            if(this.shards.get(i) instanceof ThreadContextAware)
+            {
+                contexts[i] = ((ThreadContextAware) this.shards.get(i)).captureContext();
+            }
+        }
+        return contexts;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ThreadContextAware#restoreContext(java.lang.Object)
+     */
+    @Override
+    public Object restoreContext(Object context)
+    {
+        Object[] contexts = (Object[]) context;
+        Object[] previous = new Object[this.shards.size()];
+        for(int i=0; i < previous.length; i++)
+        {
+            previous[i] = restoreContext(i, contexts[i]);
+        }
+        return previous;
+    }
+
+    /*
+     * Makes the current thread run with the given context of a shard and returns the one it had
+     */
+    private Object restoreContext(int index, Object context)
+    {
+        if(this.shards.get(index) instanceof ThreadContextAware)
+        {
+            return ((ThreadContextAware) this.shards.get(index)).restoreContext(context);
+        }
+        return null;
+    }
+
+    /**
+     * @return The shards
+     */
+    public List<BridgeTable> getShards()
+    {
+        return shards;
+    }
+
+    /**
+     * @return Whether shard <code>i</code> is initialized with the table name followed by <code>_i</code>
+     */
+    public boolean isSuffixTables()
+    {
+        return suffixTables;
+    }
+
+    /**
+     * @param suffixTables Whether shard <code>i</code> is initialized with the table name followed by
+     * <code>_i</code>, so that several shards can share a database. Otherwise every shard uses the table name.
+     */
+    public void setSuffixTables(boolean suffixTables)
+    {
+        this.suffixTables = suffixTables;
+    }
+
+    private String shardTableName(int index)
+    {
+        return this.suffixTables ? this.tableName + "_" + index : this.tableName;
+    }
+
+    /*
+     * Index of the shard picked for a key. Hashes the key as encoded for its type, so the pick doesn't depend
+     * on the Java type the key comes in.
+     */
+    private int index(Object key, KeyType type) throws BridgeTableException
+    {
+        return (int) ((KeyCodec.hash(KeyCodec.encode(key, type)) & Long.MAX_VALUE) % this.shards.size());
+    }
+
+    private BridgeTable shard1(Object key1) throws BridgeTableException
+    {
+        return this.shards.get(index(key1, this.key1Type));
+    }
+
+    private BridgeTable shard2(Object key2) throws BridgeTableException
+    {
+        return this.shards.get(index(key2, this.key2Type));
+    }
+
+    /*
+     * Replaces the mapping oldKey1 <=> oldKey2 with newKey1 <=> newKey2, where one of the keys is the same. The
+     * shard of the new key goes first, as it rejects the new key if it's taken.
+     */
+    private void replace(Object oldKey1, Object oldKey2, Object newKey1, Object newKey2) throws BridgeTableException
+    {
+        boolean byKey1 = oldKey1.equals(newKey1);
+        BridgeTable kept = byKey1 ? shard1(oldKey1) : shard2(oldKey2);
+        BridgeTable dropped = byKey1 ? shard2(oldKey2) : shard1(oldKey1);
+        BridgeTable added = byKey1 ? shard2(newKey2) : shard1(newKey1);
+
+        // The new key's shard
+        boolean updated = added == kept || added == dropped;
+        if(updated)
+        {
+            update(added, byKey1, oldKey1, oldKey2, newKey1, newKey2);
+        }
+        else
+        {
+            added.insert(newKey1, newKey2);
+        }
+
+        // The shard of the key that stays
+        if(kept != added)
+        {
+            try
+            {
+                update(kept, byKey1, oldKey1, oldKey2, newKey1, newKey2);
+            }
+            catch(BridgeTableException ex)
+            {
+                try
+                {
+                    if(updated)
+                    {
+                        update(added, byKey1, newKey1, newKey2, oldKey1, oldKey2);
+                    }
+                    else
+                    {
+                        added.removeByKey1(newKey1);
+                    }
+                }
+                catch(BridgeTableException undoEx)
+                {
+                    LOGGER.error("Could not undo the write of key1 = [" + newKey1 + "] and key2 = [" + newKey2 + "] to a shard of " + this.tableName + ", its mapping may only be seen in one direction", undoEx);
+                }
+                throw ex;
+            }
+        }
+
+        // The shard of the old key, unless it's one of the others
+        if(dropped != kept && dropped != added)
+        {
+            removeIfPresent(dropped, oldKey1);
+        }
+    }
+
+    private static void update(BridgeTable shard, boolean byKey1, Object oldKey1, Object oldKey2, Object newKey1, Object newKey2) throws BridgeTableException
+    {
+        if(byKey1)
+        {
+            shard.updateByKey1(oldKey1, newKey2);
+        }
+        else
+        {
+            shard.updateByKey2(oldKey2, newKey1);
+        }
+    }
+
+    /*
+     * Removes a mapping inserted into a shard after a later step failed
+     */
+    private void undo(BridgeTable shard, Object key1)
+    {
+        try
+        {
+            shard.removeByKey1(key1);
+        }
+        catch(BridgeTableException ex)
+        {
+            LOGGER.error("Could not undo the insert of key1 = [" + key1 + "] into a shard of " + this.tableName + ", its mapping may only be seen in one direction", ex);
+        }
+    }
+
+    /*
+     * Removes the copy of a mapping from the shard of its other key, tolerating its absence so that a removal
+     * that failed halfway can be repeated
+     */
+    private void removeIfPresent(BridgeTable shard, Object key1) throws BridgeTableException
+    {
+        try
+        {
+            shard.removeByKey1(key1);
+        }
+        catch(KeyDoesNotExistException ex)
+        {
+            LOGGER.warn("The value [key1] = [" + key1 + "] was missing from one of its shards in " + this.tableName);
+        }
+    }
+
+    private Map<Object, Object> retrieveAll(Collection<?> keys, final boolean byKey1) throws BridgeTableException
+    {
+        final List<List<Object>> placed = new ArrayList<List<Object>>(this.shards.size());
+        for(int i=0; i < this.shards.size(); i++)
+        {
+            placed.add(new ArrayList<Object>());
+        }
+        for(Object key : keys)
+        {
+            placed.get(index(key, byKey1 ? this.key1Type : this.key2Type)).add(key);
+        }
+
+        List<Map<Object, Object>> results = fanOut(new ShardTask<Map<Object, Object>>()
+        {
+            @Override
+            public Map<Object, Object> run(BridgeTable shard, int index) throws BridgeTableException
+            {
+                List<Object> shardKeys = placed.get(index);
+                if(shardKeys.isEmpty())
+                {
+                    return new LinkedHashMap<Object, Object>();
+                }
+                return byKey1 ? shard.retrieveAllByKey1(shardKeys) : shard.retrieveAllByKey2(shardKeys);
+            }
+        });
+
+        // In the order of the keys
+        Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+        for(Object key : keys)
+        {
+            Map<Object, Object> result = results.get(index(key, byKey1 ? this.key1Type : this.key2Type));
+            if(result.containsKey(key))
+            {
+                found.put(key, result.get(key));
+            }
+        }
+        return found;
+    }
+
+    private List<Object> keys(final boolean byKey1) throws BridgeTableException
+    {
+        List<List<Object>> results = fanOut(new ShardTask<List<Object>>()
+        {
+            @Override
+            public List<Object> run(BridgeTable shard, int index) throws BridgeTableException
+            {
+                List<Object> owned = new ArrayList<Object>();
+                for(Object key : byKey1 ? shard.keys1() : shard.keys2())
+                {
+                    if(owns(index, key, byKey1))
+                    {
+                        owned.add(key);
+                    }
+                }
+                return owned;
+            }
+        });
+
+        List<Object> keys = new ArrayList<Object>();
+        for(List<Object> result : results)
+        {
+            keys.addAll(result);
+        }
+        return keys;
+    }
+
+    private List<Object> keysPage(final Object afterKey, final int pageSize, final boolean byKey1) throws BridgeTableException
+    {
+        if(pageSize < 1)
+        {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+
+        List<List<Object>> results = fanOut(new ShardTask<List<Object>>()
+        {
+            @Override
+            public List<Object> run(BridgeTable shard, int index) throws BridgeTableException
+            {
+                // Skips the copies of the mappings picked by the hash of the other key
+                List<Object> owned = new ArrayList<Object>();
+                Object after = afterKey;
+                while(owned.size() < pageSize)
+                {
+                    List<Object> page = byKey1 ? shard.keys1Page(after, pageSize) : shard.keys2Page(after, pageSize);
+                    for(Object key : page)
+                    {
+                        if(owns(index, key, byKey1))
+                        {
+                            owned.add(key);
+                        }
+                    }
+                    if(page.size() < pageSize)
+                    {
+                        break;
+                    }
+                    after = page.get(page.size() - 1);
+                }
+                return owned;
+            }
+        });
+
+        List<Object> candidates = new ArrayList<Object>();
+        for(List<Object> result : results)
+        {
+            candidates.addAll(result);
+        }
+        return page(iterator(candidates.iterator()), afterKey, pageSize);
+    }
+
+    /*
+     * Whether a key listed by a shard is one the shard is picked for. The shards only hold keys that could be
+     * encoded when they were written, so a key that cannot be encoded is a bug.
+     */
+    private boolean owns(int index, Object key, boolean byKey1)
+    {
+        try
+        {
+            return index(key, byKey1 ? this.key1Type : this.key2Type) == index;
+        }
+        catch(BridgeTableException ex)
+        {
+            throw new IllegalStateException("Shard " + index + " of " + this.tableName + " holds a key it cannot hold", ex);
+        }
+    }
+
+    /*
+     * Runs a task on every shard in parallel, with the shard's context of the calling thread, and returns the
+     * results in shard order. Waits for every shard even if one fails, then throws the first failure.
+     */
+    private <T> List<T> fanOut(final ShardTask<T> task) throws BridgeTableException
+    {
+        final Object[] contexts = (Object[]) captureContext();
+        List<Future<T>> futures = new ArrayList<Future<T>>(this.shards.size());
+        for(int i=0; i < this.shards.size(); i++)
+        {
+            final int index = i;
+            final BridgeTable shard = this.shards.get(i);
+            futures.add(this.executor.submit(new Callable<T>()
+            {
+                @Override
+                public T call() throws Exception
+                {
+                    Object previous = restoreContext(index, contexts[index]);
+                    try
+                    {
+                        return task.run(shard, index);
+                    }
+                    finally
+                    {
+                        restoreContext(index, previous);
+                    }
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<T>(futures.size());
+        Throwable failure = null;
+        boolean interrupted = false;
+        for(Future<T> future : futures)
+        {
+            while(true)
+            {
+                try
+                {
+                    results.add(future.get());
+                    break;
+                }
+                catch(InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+                catch(ExecutionException ex)
+                {
+                    if(failure == null)
+                    {
+                        failure = ex.getCause();
+                    }
+                    results.add(null);
+                    break;
+                }
+            }
+        }
+        if(interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if(failure instanceof BridgeTableException)
+        {
+            throw (BridgeTableException) failure;
+        }
+        else if(failure instanceof RuntimeException)
+        {
+            throw (RuntimeException) failure;
+        }
+        else if(failure instanceof Error)
+        {
+            throw (Error) failure;
+        }
+        return results;
+    }
+
+    /*
+     * Work done on a shard by fanOut()
+     */
+    private interface ShardTask<T>
+    {
+        T run(BridgeTable shard, int index) throws BridgeTableException;
+    }
+
+    /*
+     * Iterates over the keys of every shard, one shard at a time, skipping the ones picked by the hash of the
+     * other key
+     */
+    private final class ShardKeyIterator implements KeyIterator
+    {
+        private final boolean byKey1;
+        private int index = -1;
+        private KeyIterator current;
+        private Object next;
+        private boolean ready;
+
+        ShardKeyIterator(boolean byKey1)
+        {
+            this.byKey1 = byKey1;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while(!this.ready)
+            {
+                if(this.current != null && this.current.hasNext())
+                {
+                    Object key = this.current.next();
+                    if(owns(this.index, key, this.byKey1))
+                    {
+                        this.next = key;
+                        this.ready = true;
+                    }
+                }
+                else
+                {
+                    closeCurrent();
+                    if(this.index + 1 >= shards.size())
+                    {
+                        return false;
+                    }
+                    this.index++;
+                    try
+                    {
+                        BridgeTable shard = shards.get(this.index);
+                        this.current = this.byKey1 ? shard.iterateKeys1() : shard.iterateKeys2();
+                    }
+                    catch(BridgeTableException ex)
+                    {
+                        this.index = shards.size();
+                        throw new IllegalStateException("Could not iterate over the keys of a shard of " + tableName, ex);
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Object next()
+        {
+            if(!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            this.ready = false;
+            Object key = this.next;
+            this.next = null;
+            return key;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+            closeCurrent();
+            this.index = shards.size();
+            this.ready = false;
+            this.next = null;
+        }
+
+        private void closeCurrent()
+        {
+            if(this.current != null)
+            {
+                this.current.close();
+                this.current = null;
+            }
+        }
+    }
+}
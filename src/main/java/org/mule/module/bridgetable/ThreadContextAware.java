@@ -0,0 +1,31 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+/**
+ * Implemented by the bridge tables that keep state for the calling thread, such as when it last wrote, so that
+ * an operation handed over to another thread can run with the state of the thread that submitted it.
+ */
+public interface ThreadContextAware
+{
+    /**
+     * @return The state of the current thread, <b>null</b> if the table keeps none. Changes made by threads that
+     * run with the returned context are seen by the current thread.
+     */
+    Object captureContext();
+
+    /**
+     * Makes the current thread run with the given state, until it's restored with the returned one.
+     * @param context A context returned by {@link #captureContext()}
+     * @return The context the current thread had
+     */
+    Object restoreContext(Object context);
+}
@@ -12,7 +12,7 @@ package org.mule.module.bridgetable;
 
 public enum Type
 {
-    DEFAULT_VOLATILE, DEFAULT_PERSISTENT, DATA_SOURCE;
+    DEFAULT_VOLATILE, DEFAULT_PERSISTENT, DATA_SOURCE, OFF_HEAP, MAPPED_FILE;
 }
 
 
@@ -0,0 +1,1292 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bridge table that acknowledges writes once they are staged in memory and applies them to another bridge table
+ * (typically a database) in the background, trading a short durability lag for write latency and throughput.
+ * <p/>
+ * Staged writes are kept as the latest state of every key they touched, so repeated writes to the same key
+ * collapse into one. Every <code>flushInterval</code> milliseconds a background thread applies them in batches of
+ * up to <code>batchSize</code> keys: it deletes the rows that hold the staged keys and inserts their new mappings
+ * in a single {@link BridgeTable#executeBatch(List)}, so a batch is either applied entirely or retried entirely. A
+ * key stays staged until its latest state has been applied, and lookups check the staged keys before the
+ * underlying table, so they always see the writes acknowledged before them. Listing keys applies the staged
+ * writes first.
+ * <p/>
+ * Writes still validate the keys against the staged writes and the underlying table, so they fail as they would
+ * without staging, and they are serialized with each other. The underlying table is read before taking the lock,
+ * so lookups that reach the database don't hold back other writers. When <code>maxPending</code> keys are staged, writers
+ * wait for the background thread to make room, failing after <code>maxWait</code> milliseconds.
+ * {@link #destroy()} applies every staged write before destroying the underlying table.
+ * <p/>
+ * A batch that fails in the background is applied again one mapping at a time, so a mapping the underlying table
+ * rejects for good (e.g. a value too long for its column) doesn't hold back the others. Mappings that still fail
+ * are logged and dropped, as are mappings that conflict with rows written by someone else. If none of them can be
+ * applied the underlying table is taken to be unavailable and the whole batch is retried on the next flush.
+ */
+public class WriteBehindBridgeTable extends AbstractBridgeTable implements Monitorable, ThreadContextAware
+{
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindBridgeTable.class);
+
+    // Returned by lookups of keys that are not present
+    private static final Object MISSING = new Object();
+    // Staged state of a key that was removed
+    private static final Object TOMBSTONE = new Object();
+    // Concurrent maps don't accept null, so null keys are masked
+    private static final Object NULL_KEY = new Object();
+
+    private final BridgeTable delegate;
+    private long flushInterval = 100;
+    private int batchSize = 1000;
+    private int maxPending = 10000;
+    private long maxWait = 30000;
+
+    private String tableName;
+    private ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    // Latest state of the staged keys, masked, modified while holding the lock and dropped once applied
+    private final ConcurrentMap<Object, Staged> staged1 = new ConcurrentHashMap<Object, Staged>();
+    private final ConcurrentMap<Object, Staged> staged2 = new ConcurrentHashMap<Object, Staged>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = this.lock.newCondition();
+    // Serializes flushes
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // Bumped every time applied keys are dropped, so lookups of the underlying table can tell they raced with it
+    private final AtomicLong drops = new AtomicLong();
+    // Values read by the batch being staged by the current thread
+    private final ThreadLocal<Prefetch> prefetched = new ThreadLocal<Prefetch>();
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedKeys = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong lastLagMillis = new AtomicLong();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param delegate The bridge table the writes are applied to
+     */
+    public WriteBehindBridgeTable(BridgeTable delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#init(java.lang.String, org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType, java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public void init(String tableName,
+                     KeyType key1Type,
+                     KeyType key2Type,
+                     String key1Name,
+                     String key2Name,
+                     boolean autoCreateTable) throws BridgeTableException
+    {
+        this.tableName = tableName;
+        this.delegate.init(tableName, key1Type, key2Type, key1Name, key2Name, autoCreateTable);
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "bridgetable-write-behind-" + WriteBehindBridgeTable.this.tableName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushQuietly();
+            }
+        }, this.flushInterval, this.flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies every staged write and destroys the underlying table.
+     * @see org.mule.module.bridgetable.BridgeTable#destroy()
+     */
+    @Override
+    public void destroy() throws BridgeTableException
+    {
+        if(this.flusher != null)
+        {
+            this.flusher.shutdown();
+            this.flusher = null;
+        }
+
+        try
+        {
+            flush();
+        }
+        catch(BridgeTableException ex)
+        {
+            LOGGER.error("Lost " + pending() + " staged keys of " + this.tableName + " that could not be applied", ex);
+            throw ex;
+        }
+        finally
+        {
+            this.delegate.destroy();
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(final Object key1, final Object key2) throws BridgeTableException
+    {
+        write(key1, key2, new StagedWrite()
+        {
+            @Override
+            public void stage(Object stored1, Object stored2) throws BridgeTableException
+            {
+                stageInsert(key1, key2, stored1, stored2);
+            }
+        });
+    }
+
+    /**
+     * Stages the operations while holding the lock, so lookups see either none or all of them, after reading the
+     * keys they involve from the underlying table without holding it. The flusher may still write them to the
+     * underlying table in different batches.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#executeBatch(java.util.List)
+     */
+    @Override
+    public void executeBatch(List<BridgeTableOperation> operations) throws BridgeTableException
+    {
+        while(true)
+        {
+            long epoch = this.drops.get();
+            Prefetch prefetch = prefetch(operations, epoch);
+            this.lock.lock();
+            try
+            {
+                if(this.drops.get() == epoch)
+                {
+                    this.prefetched.set(prefetch);
+                    try
+                    {
+                        super.executeBatch(operations);
+                    }
+                    finally
+                    {
+                        this.prefetched.remove();
+                    }
+                    return;
+                }
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey1(final Object key1, final Object newKey2) throws BridgeTableException
+    {
+        write(key1, newKey2, new StagedWrite()
+        {
+            @Override
+            public void stage(Object stored1, Object stored2) throws BridgeTableException
+            {
+                stageUpdateByKey1(key1, newKey2, stored1, stored2);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#updateByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void updateByKey2(final Object key2, final Object newKey1) throws BridgeTableException
+    {
+        write(newKey1, key2, new StagedWrite()
+        {
+            @Override
+            public void stage(Object stored1, Object stored2) throws BridgeTableException
+            {
+                stageUpdateByKey2(key2, newKey1, stored2, stored1);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey1(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey1(final Object key1, final Object key2) throws BridgeTableException
+    {
+        write(key1, key2, new StagedWrite()
+        {
+            @Override
+            public void stage(Object stored1, Object stored2) throws BridgeTableException
+            {
+                if(isMissing1(key1, stored1))
+                {
+                    stageInsert(key1, key2, stored1, stored2);
+                }
+                else
+                {
+                    stageUpdateByKey1(key1, key2, stored1, stored2);
+                }
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#upsertByKey2(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void upsertByKey2(final Object key2, final Object key1) throws BridgeTableException
+    {
+        write(key1, key2, new StagedWrite()
+        {
+            @Override
+            public void stage(Object stored1, Object stored2) throws BridgeTableException
+            {
+                if(isMissing2(key2, stored2))
+                {
+                    stageInsert(key1, key2, stored1, stored2);
+                }
+                else
+                {
+                    stageUpdateByKey2(key2, key1, stored2, stored1);
+                }
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey1(java.lang.Object)
+     */
+    @Override
+    public void removeByKey1(final Object key1) throws BridgeTableException
+    {
+        write(key1, MISSING, new StagedWrite()
+        {
+            @Override
+            public void stage(Object stored1, Object stored2) throws BridgeTableException
+            {
+                stageRemoveByKey1(key1, stored1);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#removeByKey2(java.lang.Object)
+     */
+    @Override
+    public void removeByKey2(final Object key2) throws BridgeTableException
+    {
+        write(MISSING, key2, new StagedWrite()
+        {
+            @Override
+            public void stage(Object stored1, Object stored2) throws BridgeTableException
+            {
+                stageRemoveByKey2(key2, stored2);
+            }
+        });
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey1(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1(Object key1) throws BridgeTableException
+    {
+        Object key2 = lookup(this.staged1, key1, true);
+        if(key2 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+        }
+        return key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#retrieveByKey2(java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2(Object key2) throws BridgeTableException
+    {
+        Object key1 = lookup(this.staged2, key2, false);
+        if(key1 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+        }
+        return key1;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey1OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+    {
+        Object key2 = lookup(this.staged1, key1, true);
+        return key2 == MISSING ? defaultValue : key2;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveByKey2OrDefault(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public Object retrieveByKey2OrDefault(Object key2, Object defaultValue) throws BridgeTableException
+    {
+        Object key1 = lookup(this.staged2, key2, false);
+        return key1 == MISSING ? defaultValue : key1;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey1(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey1(Collection<?> keys1) throws BridgeTableException
+    {
+        return lookupAll(this.staged1, keys1, true);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#retrieveAllByKey2(java.util.Collection)
+     */
+    @Override
+    public Map<Object, Object> retrieveAllByKey2(Collection<?> keys2) throws BridgeTableException
+    {
+        return lookupAll(this.staged2, keys2, false);
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#isPersistent()
+     */
+    @Override
+    public boolean isPersistent()
+    {
+        return this.delegate.isPersistent();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey1(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey1(Object key1) throws BridgeTableException
+    {
+        return lookup(this.staged1, key1, true) != MISSING;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.BridgeTable#containsKey2(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey2(Object key2) throws BridgeTableException
+    {
+        return lookup(this.staged2, key2, false) != MISSING;
+    }
+
+    /**
+     * Applies the staged writes first.
+     * @see org.mule.module.bridgetable.BridgeTable#keys1()
+     */
+    @Override
+    public List<Object> keys1() throws BridgeTableException
+    {
+        flush();
+        return this.delegate.keys1();
+    }
+
+    /**
+     * Applies the staged writes first.
+     * @see org.mule.module.bridgetable.BridgeTable#keys2()
+     */
+    @Override
+    public List<Object> keys2() throws BridgeTableException
+    {
+        flush();
+        return this.delegate.keys2();
+    }
+
+    /**
+     * Applies the staged writes first.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys1Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys1Page(Object afterKey1, int pageSize) throws BridgeTableException
+    {
+        flush();
+        return this.delegate.keys1Page(afterKey1, pageSize);
+    }
+
+    /**
+     * Applies the staged writes first.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#keys2Page(java.lang.Object, int)
+     */
+    @Override
+    public List<Object> keys2Page(Object afterKey2, int pageSize) throws BridgeTableException
+    {
+        flush();
+        return this.delegate.keys2Page(afterKey2, pageSize);
+    }
+
+    /**
+     * Applies the staged writes first.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys1()
+     */
+    @Override
+    public KeyIterator iterateKeys1() throws BridgeTableException
+    {
+        flush();
+        return this.delegate.iterateKeys1();
+    }
+
+    /**
+     * Applies the staged writes first.
+     * @see org.mule.module.bridgetable.AbstractBridgeTable#iterateKeys2()
+     */
+    @Override
+    public KeyIterator iterateKeys2() throws BridgeTableException
+    {
+        flush();
+        return this.delegate.iterateKeys2();
+    }
+
+    /**
+     * Returns the statistics of the staged writes, together with the ones of the underlying table if it has any.
+     * The flush lag is the time between a write being staged and being applied.
+     * @see org.mule.module.bridgetable.Monitorable#getStatistics()
+     */
+    @Override
+    public Map<String, Object> getStatistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        if(this.delegate instanceof Monitorable)
+        {
+            statistics.putAll(((Monitorable) this.delegate).getStatistics());
+        }
+
+        long flushes = this.flushes.get();
+        statistics.put("pendingKeys", Integer.valueOf(pending()));
+        statistics.put("writeBehindFlushCount", Long.valueOf(flushes));
+        statistics.put("averageFlushBatchSize", Double.valueOf(flushes == 0 ? 0 : (double) this.flushedKeys.get() / flushes));
+        statistics.put("maxFlushBatchSize", Long.valueOf(this.maxBatch.get()));
+        statistics.put("lastFlushLagMillis", Long.valueOf(this.lastLagMillis.get()));
+        statistics.put("maxFlushLagMillis", Long.valueOf(this.maxLagMillis.get()));
+        statistics.put("flushFailures", Long.valueOf(this.failures.get()));
+        statistics.put("flushConflicts", Long.valueOf(this.conflicts.get()));
+        statistics.put("flushRejected", Long.valueOf(this.rejected.get()));
+        return statistics;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ThreadContextAware#captureContext()
+     */
+    @Override
+    public Object captureContext()
+    {
+        return this.delegate instanceof ThreadContextAware ? ((ThreadContextAware) this.delegate).captureContext() : null;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.ThreadContextAware#restoreContext(java.lang.Object)
+     */
+    @Override
+    public Object restoreContext(Object context)
+    {
+        return this.delegate instanceof ThreadContextAware ? ((ThreadContextAware) this.delegate).restoreContext(context) : null;
+    }
+
+    /**
+     * Applies every write staged so far to the underlying table.
+     * @throws BridgeTableException If the writes cannot be applied, in which case they stay staged
+     */
+    public void flush() throws BridgeTableException
+    {
+        this.flushLock.lock();
+        try
+        {
+            while(flushBatch())
+            {
+                // Until there is nothing left
+            }
+        }
+        finally
+        {
+            this.flushLock.unlock();
+        }
+    }
+
+    /**
+     * @return The bridge table the writes are applied to
+     */
+    public BridgeTable getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * @return Milliseconds between background flushes
+     */
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+    /**
+     * @param flushInterval Milliseconds between background flushes. Takes effect when the table is initialized.
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        if(flushInterval < 1)
+        {
+            throw new IllegalArgumentException("Flush interval must be at least 1 ms");
+        }
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @return Maximum number of staged mappings applied at once
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize Maximum number of staged mappings applied at once
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if(batchSize < 1)
+        {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return Number of staged keys at which writers wait for the staged writes to be applied
+     */
+    public int getMaxPending()
+    {
+        return maxPending;
+    }
+
+    /**
+     * @param maxPending Number of staged keys (counting key1 and key2 separately) at which writers wait for the
+     * staged writes to be applied
+     */
+    public void setMaxPending(int maxPending)
+    {
+        if(maxPending < 2)
+        {
+            throw new IllegalArgumentException("Maximum number of pending keys must be at least 2");
+        }
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return Milliseconds a writer waits for room when <code>maxPending</code> keys are staged
+     */
+    public long getMaxWait()
+    {
+        return maxWait;
+    }
+
+    /**
+     * @param maxWait Milliseconds a writer waits for room when <code>maxPending</code> keys are staged before
+     * failing, e.g. because the underlying table is unavailable
+     */
+    public void setMaxWait(long maxWait)
+    {
+        if(maxWait < 1)
+        {
+            throw new IllegalArgumentException("Maximum wait must be at least 1 ms");
+        }
+        this.maxWait = maxWait;
+    }
+
+    /*
+     * Looks a key up in the staged writes and then in the underlying table, retrying if staged writes were
+     * dropped meanwhile, as the underlying table may have been read before they were applied
+     */
+    private Object lookup(Map<Object, Staged> staged, Object key, boolean byKey1) throws BridgeTableException
+    {
+        while(true)
+        {
+            long epoch = this.drops.get();
+            Staged state = staged.get(mask(key));
+            if(state == null)
+            {
+                Object value = stored(staged, key, byKey1, epoch);
+                state = staged.get(mask(key));
+                if(state == null)
+                {
+                    if(this.drops.get() != epoch)
+                    {
+                        continue;
+                    }
+                    return value;
+                }
+            }
+            return state.value == TOMBSTONE ? MISSING : state.value;
+        }
+    }
+
+    /*
+     * Looks several keys up as lookup() does, asking the underlying table only for the keys that are not staged
+     */
+    private Map<Object, Object> lookupAll(Map<Object, Staged> staged, Collection<?> keys, boolean byKey1) throws BridgeTableException
+    {
+        while(true)
+        {
+            long epoch = this.drops.get();
+            List<Object> unstaged = new ArrayList<Object>();
+            for(Object key : keys)
+            {
+                if(!staged.containsKey(mask(key)))
+                {
+                    unstaged.add(key);
+                }
+            }
+            Map<Object, Object> retrieved = unstaged.isEmpty() ? new LinkedHashMap<Object, Object>()
+                                          : byKey1 ? this.delegate.retrieveAllByKey1(unstaged) : this.delegate.retrieveAllByKey2(unstaged);
+            if(this.drops.get() != epoch)
+            {
+                continue;
+            }
+
+            Map<Object, Object> found = new LinkedHashMap<Object, Object>();
+            for(Object key : keys)
+            {
+                Staged state = staged.get(mask(key));
+                if(state == null && retrieved.containsKey(key))
+                {
+                    found.put(key, retrieved.get(key));
+                }
+                else if(state != null && state.value != TOMBSTONE)
+                {
+                    found.put(key, state.value);
+                }
+            }
+            return found;
+        }
+    }
+
+    /*
+     * Runs a write with the lock held, after reading the values key1 and key2 (either of which may be MISSING)
+     * have in the underlying table without holding it. The values are read again if staged writes were dropped
+     * meanwhile, as they may be out of date.
+     */
+    private void write(Object key1, Object key2, StagedWrite write) throws BridgeTableException
+    {
+        while(true)
+        {
+            long epoch = this.drops.get();
+            Object stored1 = key1 == MISSING ? MISSING : stored(this.staged1, key1, true, epoch);
+            Object stored2 = key2 == MISSING ? MISSING : stored(this.staged2, key2, false, epoch);
+            this.lock.lock();
+            try
+            {
+                awaitRoom();
+                if(this.drops.get() == epoch)
+                {
+                    write.stage(stored1, stored2);
+                    return;
+                }
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Value of a key in the underlying table, or MISSING. Keys that are staged are not read: their staged state
+     * prevails until it's dropped, which bumps the epoch.
+     */
+    private Object stored(Map<Object, Staged> staged, Object key, boolean byKey1, long epoch) throws BridgeTableException
+    {
+        Prefetch prefetch = this.prefetched.get();
+        if(prefetch != null && prefetch.epoch == epoch)
+        {
+            Map<Object, Object> values = byKey1 ? prefetch.values1 : prefetch.values2;
+            if(values.containsKey(key))
+            {
+                return values.get(key);
+            }
+        }
+        if(staged.containsKey(mask(key)))
+        {
+            return MISSING;
+        }
+        return byKey1 ? this.delegate.retrieveByKey1OrDefault(key, MISSING) : this.delegate.retrieveByKey2OrDefault(key, MISSING);
+    }
+
+    /*
+     * Reads the unstaged keys of a batch from the underlying table, two lookups for the whole batch
+     */
+    private Prefetch prefetch(List<BridgeTableOperation> operations, long epoch) throws BridgeTableException
+    {
+        Prefetch prefetch = new Prefetch(epoch);
+        List<Object> keys1 = new ArrayList<Object>();
+        List<Object> keys2 = new ArrayList<Object>();
+        for(BridgeTableOperation operation : operations)
+        {
+            if(operation.hasKey1() && !this.staged1.containsKey(mask(operation.getKey1())))
+            {
+                keys1.add(operation.getKey1());
+            }
+            if(operation.hasKey2() && !this.staged2.containsKey(mask(operation.getKey2())))
+            {
+                keys2.add(operation.getKey2());
+            }
+        }
+        fill(prefetch.values1, keys1, keys1.isEmpty() ? null : this.delegate.retrieveAllByKey1(keys1));
+        fill(prefetch.values2, keys2, keys2.isEmpty() ? null : this.delegate.retrieveAllByKey2(keys2));
+        return prefetch;
+    }
+
+    private static void fill(Map<Object, Object> values, List<Object> keys, Map<Object, Object> found)
+    {
+        for(Object key : keys)
+        {
+            values.put(key, found.containsKey(key) ? found.get(key) : MISSING);
+        }
+    }
+
+    /*
+     * Current value of a key: its staged state if it's staged, or its value in the underlying table. Called with
+     * the lock held.
+     */
+    private static Object current(Map<Object, Staged> staged, Object key, Object stored)
+    {
+        Staged state = staged.get(mask(key));
+        if(state != null)
+        {
+            return state.value == TOMBSTONE ? MISSING : state.value;
+        }
+        return stored;
+    }
+
+    /*
+     * Whether key1 has no current value. Called with the lock held.
+     */
+    private boolean isMissing1(Object key1, Object stored1)
+    {
+        return current(this.staged1, key1, stored1) == MISSING;
+    }
+
+    /*
+     * Whether key2 has no current value. Called with the lock held.
+     */
+    private boolean isMissing2(Object key2, Object stored2)
+    {
+        return current(this.staged2, key2, stored2) == MISSING;
+    }
+
+    /*
+     * Called with the lock held
+     */
+    private void stageInsert(Object key1, Object key2, Object stored1, Object stored2) throws BridgeTableException
+    {
+        if(current(this.staged1, key1, stored1) != MISSING)
+        {
+            throw new KeyAlreadyExistsException("The value [key1] = [" + key1 + "] already exists in " + this.tableName);
+        }
+        if(current(this.staged2, key2, stored2) != MISSING)
+        {
+            throw new KeyAlreadyExistsException("The value [key2] = [" + key2 + "] already exists in " + this.tableName);
+        }
+        stage(this.staged1, key1, key2);
+        stage(this.staged2, key2, key1);
+    }
+
+    /*
+     * Called with the lock held
+     */
+    private void stageRemoveByKey1(Object key1, Object stored1) throws BridgeTableException
+    {
+        Object key2 = current(this.staged1, key1, stored1);
+        if(key2 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+        }
+        stage(this.staged1, key1, TOMBSTONE);
+        stage(this.staged2, key2, TOMBSTONE);
+    }
+
+    /*
+     * Called with the lock held
+     */
+    private void stageRemoveByKey2(Object key2, Object stored2) throws BridgeTableException
+    {
+        Object key1 = current(this.staged2, key2, stored2);
+        if(key1 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+        }
+        stage(this.staged1, key1, TOMBSTONE);
+        stage(this.staged2, key2, TOMBSTONE);
+    }
+
+    /*
+     * Called with the lock held
+     */
+    private void stageUpdateByKey1(Object key1, Object newKey2, Object stored1, Object storedNew2) throws BridgeTableException
+    {
+        Object oldKey2 = current(this.staged1, key1, stored1);
+        if(oldKey2 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key1] = [" + key1 + "] does not exist in " + this.tableName);
+        }
+        Object owner = current(this.staged2, newKey2, storedNew2);
+        if(owner != MISSING && !equal(owner, key1))
+        {
+            throw new KeyAlreadyExistsException("The value [key2] = [" + newKey2 + "] already exists in " + this.tableName);
+        }
+
+        stage(this.staged1, key1, newKey2);
+        if(!equal(oldKey2, newKey2))
+        {
+            stage(this.staged2, oldKey2, TOMBSTONE);
+        }
+        stage(this.staged2, newKey2, key1);
+    }
+
+    /*
+     * Called with the lock held
+     */
+    private void stageUpdateByKey2(Object key2, Object newKey1, Object stored2, Object storedNew1) throws BridgeTableException
+    {
+        Object oldKey1 = current(this.staged2, key2, stored2);
+        if(oldKey1 == MISSING)
+        {
+            throw new KeyDoesNotExistException("The value [key2] = [" + key2 + "] does not exist in " + this.tableName);
+        }
+        Object owner = current(this.staged1, newKey1, storedNew1);
+        if(owner != MISSING && !equal(owner, key2))
+        {
+            throw new KeyAlreadyExistsException("The value [key1] = [" + newKey1 + "] already exists in " + this.tableName);
+        }
+
+        stage(this.staged2, key2, newKey1);
+        if(!equal(oldKey1, newKey1))
+        {
+            stage(this.staged1, oldKey1, TOMBSTONE);
+        }
+        stage(this.staged1, newKey1, key2);
+    }
+
+    private static void stage(Map<Object, Staged> staged, Object key, Object value)
+    {
+        staged.put(mask(key), new Staged(value));
+    }
+
+    /*
+     * Concurrent maps don't accept null, so null keys (allowed when empty keys are allowed) are masked
+     */
+    private static Object mask(Object key)
+    {
+        return key == null ? NULL_KEY : key;
+    }
+
+    private static Object unmask(Object key)
+    {
+        return key == NULL_KEY ? null : key;
+    }
+
+    private static boolean equal(Object a, Object b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private int pending()
+    {
+        return this.staged1.size() + this.staged2.size();
+    }
+
+    /*
+     * Waits until there is room for more staged writes. Called with the lock held.
+     */
+    private void awaitRoom() throws BridgeTableException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxWait);
+        while(pending() >= this.maxPending)
+        {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0)
+            {
+                throw new BridgeTableException("Timed out after " + this.maxWait + " ms waiting for the " + pending() + " staged keys of " + this.tableName + " to be applied");
+            }
+            requestFlush();
+            try
+            {
+                this.notFull.await(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(this.flushInterval)), TimeUnit.NANOSECONDS);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new BridgeTableException("Interrupted while waiting for the staged writes of " + this.tableName + " to be applied", ex);
+            }
+        }
+    }
+
+    private void requestFlush()
+    {
+        ScheduledExecutorService executor = this.flusher;
+        if(executor != null && this.flushRequested.compareAndSet(false, true))
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flushQuietly();
+                }
+            });
+        }
+    }
+
+    private void flushQuietly()
+    {
+        this.flushRequested.set(false);
+        try
+        {
+            flush();
+        }
+        catch(BridgeTableException ex)
+        {
+            // Logged by flushBatch(), the writes will be retried
+        }
+        catch(RuntimeException ex)
+        {
+            LOGGER.error("Unexpected error while applying the staged writes of " + this.tableName, ex);
+        }
+    }
+
+    /*
+     * Applies a batch of staged writes and returns whether there may be more. Called with the flush lock held.
+     */
+    private boolean flushBatch() throws BridgeTableException
+    {
+        Map<Object, Staged> batch1 = new LinkedHashMap<Object, Staged>();
+        Map<Object, Staged> batch2 = new LinkedHashMap<Object, Staged>();
+        this.lock.lock();
+        try
+        {
+            // Every staged mapping goes together with its key2 side
+            for(Map.Entry<Object, Staged> entry : this.staged1.entrySet())
+            {
+                if(batch1.size() >= this.batchSize)
+                {
+                    break;
+                }
+                batch1.put(unmask(entry.getKey()), entry.getValue());
+                if(entry.getValue().value != TOMBSTONE)
+                {
+                    Staged state2 = this.staged2.get(mask(entry.getValue().value));
+                    if(state2 != null)
+                    {
+                        batch2.put(entry.getValue().value, state2);
+                    }
+                }
+            }
+            for(Map.Entry<Object, Staged> entry : this.staged2.entrySet())
+            {
+                if(batch2.size() >= this.batchSize)
+                {
+                    break;
+                }
+                if(entry.getValue().value == TOMBSTONE)
+                {
+                    batch2.put(unmask(entry.getKey()), entry.getValue());
+                }
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+
+        if(batch1.isEmpty() && batch2.isEmpty())
+        {
+            return false;
+        }
+
+        long oldest = Long.MAX_VALUE;
+        List<BridgeTableOperation> operations;
+        Map<Object, Object> rows;
+        Map<Object, Object> inserts = new LinkedHashMap<Object, Object>();
+        try
+        {
+            Map<Object, Object> mappings = new LinkedHashMap<Object, Object>();
+            for(Map.Entry<Object, Staged> entry : batch1.entrySet())
+            {
+                if(entry.getValue().value != TOMBSTONE)
+                {
+                    mappings.put(entry.getKey(), entry.getValue().value);
+                }
+                oldest = Math.min(oldest, entry.getValue().stagedAt);
+            }
+            for(Map.Entry<Object, Staged> entry : batch2.entrySet())
+            {
+                oldest = Math.min(oldest, entry.getValue().stagedAt);
+            }
+
+            // Rows that hold a staged key, key1 => key2, freed before the mappings are written
+            rows = new LinkedHashMap<Object, Object>(this.delegate.retrieveAllByKey1(new ArrayList<Object>(batch1.keySet())));
+            Set<Object> keys2 = new LinkedHashSet<Object>(batch2.keySet());
+            keys2.addAll(mappings.values());
+            // Values for key2 held by rows written by someone else
+            Set<Object> foreign = new HashSet<Object>();
+            for(Map.Entry<Object, Object> row : this.delegate.retrieveAllByKey2(new ArrayList<Object>(keys2)).entrySet())
+            {
+                if(batch2.containsKey(row.getKey()) || batch1.containsKey(row.getValue()))
+                {
+                    rows.put(row.getValue(), row.getKey());
+                }
+                else
+                {
+                    foreign.add(row.getKey());
+                }
+            }
+
+            operations = new ArrayList<BridgeTableOperation>(rows.size() + mappings.size());
+            for(Object key1 : rows.keySet())
+            {
+                operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.REMOVE_BY_KEY1, key1, null));
+            }
+            for(Map.Entry<Object, Object> mapping : mappings.entrySet())
+            {
+                if(foreign.contains(mapping.getValue()))
+                {
+                    this.conflicts.incrementAndGet();
+                    LOGGER.error("Dropped staged mapping [key1, key2] = [" + mapping.getKey() + ", " + mapping.getValue() + "] of " + this.tableName + " as it conflicts with a row written by someone else");
+                }
+                else
+                {
+                    operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, mapping.getKey(), mapping.getValue()));
+                    inserts.put(mapping.getKey(), mapping.getValue());
+                }
+            }
+        }
+        catch(BridgeTableException ex)
+        {
+            this.failures.incrementAndGet();
+            LOGGER.error("Could not read the rows of " + (batch1.size() + batch2.size()) + " staged keys of " + this.tableName + ", they will be retried", ex);
+            throw ex;
+        }
+
+        try
+        {
+            // All or nothing, so a failure never leaves the rows freed and the mappings unwritten
+            this.delegate.executeBatch(operations);
+        }
+        catch(BridgeTableException ex)
+        {
+            this.failures.incrementAndGet();
+            LOGGER.warn("Could not apply " + (batch1.size() + batch2.size()) + " staged keys of " + this.tableName + " at once, applying them one at a time", ex);
+            applyEach(rows, inserts);
+        }
+
+        // Drop the keys whose latest state was applied, unless they were written again meanwhile
+        this.lock.lock();
+        try
+        {
+            for(Map.Entry<Object, Staged> entry : batch1.entrySet())
+            {
+                this.staged1.remove(mask(entry.getKey()), entry.getValue());
+            }
+            for(Map.Entry<Object, Staged> entry : batch2.entrySet())
+            {
+                this.staged2.remove(mask(entry.getKey()), entry.getValue());
+            }
+            this.drops.incrementAndGet();
+            this.notFull.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+
+        int size = batch1.size() + batch2.size();
+        long lag = System.currentTimeMillis() - oldest;
+        this.flushes.incrementAndGet();
+        this.flushedKeys.addAndGet(size);
+        raise(this.maxBatch, size);
+        this.lastLagMillis.set(lag);
+        raise(this.maxLagMillis, lag);
+        return true;
+    }
+
+    /*
+     * Applies the mappings of a failed batch one at a time, each together with the removal of the rows that hold
+     * its keys, and then removes the rows left that no mapping failed to replace. Operations that still fail are logged and dropped, unless none
+     * could be applied, in which case the last failure is thrown and the whole batch stays staged.
+     */
+    private void applyEach(Map<Object, Object> rows, Map<Object, Object> inserts) throws BridgeTableException
+    {
+        // Rows not removed yet, key1 => key2 and key2 => key1
+        Map<Object, Object> remaining = new LinkedHashMap<Object, Object>(rows);
+        Map<Object, Object> holders = new HashMap<Object, Object>();
+        for(Map.Entry<Object, Object> row : rows.entrySet())
+        {
+            holders.put(row.getValue(), row.getKey());
+        }
+
+        int failed = 0;
+        BridgeTableException failure = null;
+        boolean applied = false;
+        for(Map.Entry<Object, Object> insert : inserts.entrySet())
+        {
+            List<Object> freed = new ArrayList<Object>(2);
+            if(remaining.containsKey(insert.getKey()))
+            {
+                freed.add(insert.getKey());
+            }
+            Object holder = holders.get(insert.getValue());
+            if(holder != null && remaining.containsKey(holder) && !freed.contains(holder))
+            {
+                freed.add(holder);
+            }
+
+            List<BridgeTableOperation> operations = new ArrayList<BridgeTableOperation>(freed.size() + 1);
+            for(Object key1 : freed)
+            {
+                operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.REMOVE_BY_KEY1, key1, null));
+            }
+            operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, insert.getKey(), insert.getValue()));
+            try
+            {
+                this.delegate.executeBatch(operations);
+                remaining.keySet().removeAll(freed);
+                applied = true;
+            }
+            catch(BridgeTableException ex)
+            {
+                LOGGER.warn("Could not apply staged mapping [key1, key2] = [" + insert.getKey() + ", " + insert.getValue() + "] of " + this.tableName, ex);
+                // The rows it would have replaced stay as they are
+                remaining.keySet().removeAll(freed);
+                failed++;
+                failure = ex;
+            }
+        }
+        for(Map.Entry<Object, Object> row : remaining.entrySet())
+        {
+            try
+            {
+                this.delegate.removeByKey1(row.getKey());
+                applied = true;
+            }
+            catch(KeyDoesNotExistException ex)
+            {
+                // Already removed by someone else
+            }
+            catch(BridgeTableException ex)
+            {
+                LOGGER.warn("Could not remove the row [key1] = [" + row.getKey() + "] of " + this.tableName + " for a staged write", ex);
+                failed++;
+                failure = ex;
+            }
+        }
+
+        if(failure == null)
+        {
+            return;
+        }
+        if(!applied)
+        {
+            LOGGER.error("Could not apply any of the staged keys of " + this.tableName + ", they will be retried", failure);
+            throw failure;
+        }
+        this.rejected.addAndGet(failed);
+        LOGGER.error("Dropped " + failed + " staged writes of " + this.tableName + " that could not be applied, see the warnings above");
+    }
+
+    private static void raise(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while(value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    /*
+     * A write staged with the lock held, given the values its keys had in the underlying table
+     */
+    private interface StagedWrite
+    {
+        void stage(Object stored1, Object stored2) throws BridgeTableException;
+    }
+
+    /*
+     * Values the unstaged keys of a batch had in the underlying table (MISSING if none), valid while the epoch
+     * of drops is the same
+     */
+    private static final class Prefetch
+    {
+        private final long epoch;
+        private final Map<Object, Object> values1 = new HashMap<Object, Object>();
+        private final Map<Object, Object> values2 = new HashMap<Object, Object>();
+
+        Prefetch(long epoch)
+        {
+            this.epoch = epoch;
+        }
+    }
+
+    /*
+     * Latest state of a staged key: the key it's mapped to or TOMBSTONE
+     */
+    private static final class Staged
+    {
+        private final Object value;
+        private final long stagedAt = System.currentTimeMillis();
+
+        Staged(Object value)
+        {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable.dialect;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Implemented by the dialects of databases with a bulk load mechanism faster than batched inserts.
+ */
+public interface BulkLoadDialect
+{
+    /**
+     * Inserts several mappings at once. The mappings whose key1 or key2 already exist, in the table or earlier in
+     * the same load, are not inserted.
+     * @param conn Connection to load through, with auto-commit off. The caller commits or rolls back.
+     * @param tableName The table name
+     * @param pairs key1 => key2 mappings to insert
+     * @return The mappings that were not inserted, or <b>null</b> if the connection doesn't support bulk loads,
+     * in which case nothing was done
+     * @throws SQLException In case of error
+     */
+    Map<Object, Object> bulkInsert(Connection conn, String tableName, Map<Object, Object> pairs) throws SQLException;
+}
@@ -77,6 +77,32 @@ public interface DatabaseDialect
      */    
     String getUpdateByKey2SQL(String tableName);
 
+    /**
+     * Returns a single SQL statement that updates the value of the key2 that is linked to key1 or, if key1 is not
+     * present, inserts the row. It must fail with an integrity constraint violation if key2 is linked to a
+     * different key1.
+     * 
+     * It will return a statement with 2 replacement parameters (?): the first one for key1 and the
+     * second one for key2
+     * 
+     * @param tableName The name of the table
+     * @return The upsert SQL statement
+     */
+    String getUpsertByKey1SQL(String tableName);
+
+    /**
+     * Returns a single SQL statement that updates the value of the key1 that is linked to key2 or, if key2 is not
+     * present, inserts the row. It must fail with an integrity constraint violation if key1 is linked to a
+     * different key2.
+     * 
+     * It will return a statement with 2 replacement parameters (?): the first one for key1 and the
+     * second one for key2
+     * 
+     * @param tableName The name of the table
+     * @return The upsert SQL statement
+     */
+    String getUpsertByKey2SQL(String tableName);
+
     /**
      * Returns the SQL statement to select the value of the key2 that is linked to key1.
      * 
@@ -101,6 +127,56 @@ public interface DatabaseDialect
      */        
     String getLookupByKey2SQL(String tableName);
     
+    /**
+     * Returns the SQL statement to check whether there is a row for key1, without fetching it.
+     * 
+     * It will return a statement with 1 replacement parameters (?) for key1.
+     * 
+     * The statement should return at most one row, and none if key1 is not present.
+     * 
+     * @param tableName The name of the table
+     * @return The select SQL statement
+     */
+    String getExistsByKey1SQL(String tableName);
+
+    /**
+     * Returns the SQL statement to check whether there is a row for key2, without fetching it.
+     * 
+     * It will return a statement with 1 replacement parameters (?) for key2.
+     * 
+     * The statement should return at most one row, and none if key2 is not present.
+     * 
+     * @param tableName The name of the table
+     * @return The select SQL statement
+     */
+    String getExistsByKey2SQL(String tableName);
+
+    /**
+     * Returns the SQL statement to select the rows whose key1 is one of several values.
+     * 
+     * It will return a statement with <code>count</code> replacement parameters (?), one for each value of key1.
+     * 
+     * The first attribute in the SELECT clause should be the value of key1 and the second one the value of key2.
+     * 
+     * @param tableName The name of the table
+     * @param count The number of values of key1
+     * @return The select SQL statement
+     */
+    String getLookupAllByKey1SQL(String tableName, int count);
+
+    /**
+     * Returns the SQL statement to select the rows whose key2 is one of several values.
+     * 
+     * It will return a statement with <code>count</code> replacement parameters (?), one for each value of key2.
+     * 
+     * The first attribute in the SELECT clause should be the value of key2 and the second one the value of key1.
+     * 
+     * @param tableName The name of the table
+     * @param count The number of values of key2
+     * @return The select SQL statement
+     */
+    String getLookupAllByKey2SQL(String tableName, int count);
+
     /**
      * Returns the SQL statement to delete the row associated with key1
      * 
@@ -139,6 +215,46 @@ public interface DatabaseDialect
      */
     String getAllKey2SQL(String tableName);
 
+    /**
+     * Returns the SQL statement to select a page of values for key1 in ascending order, seeking by key1 so that
+     * the database can use the index on key1 and every page costs the same no matter how deep it is.
+     * 
+     * If <code>first</code> is true it will return a statement with 1 replacement parameter (?) for the size of
+     * the page. Otherwise it will return a statement with 2 replacement parameters (?): the first one for the
+     * last value of key1 of the previous page, and the second one for the size of the page.
+     * 
+     * The first attribute in the SELECT clause should be the value of key1.
+     * 
+     * @param tableName The name of the table
+     * @param first Whether the statement selects the first page
+     * @return The select SQL statement
+     */
+    String getKey1PageSQL(String tableName, boolean first);
+
+    /**
+     * Returns the SQL statement to select a page of values for key2 in ascending order, seeking by key2 so that
+     * the database can use the index on key2 and every page costs the same no matter how deep it is.
+     * 
+     * If <code>first</code> is true it will return a statement with 1 replacement parameter (?) for the size of
+     * the page. Otherwise it will return a statement with 2 replacement parameters (?): the first one for the
+     * last value of key2 of the previous page, and the second one for the size of the page.
+     * 
+     * The first attribute in the SELECT clause should be the value of key2.
+     * 
+     * @param tableName The name of the table
+     * @param first Whether the statement selects the first page
+     * @return The select SQL statement
+     */
+    String getKey2PageSQL(String tableName, boolean first);
+
+    /**
+     * Returns the fetch size to set on the statements whose results are iterated lazily, so the driver
+     * streams the rows instead of loading all of them in memory.
+     * @param fetchSize The number of rows that should be fetched at once
+     * @return The fetch size that makes the driver fetch rows in chunks of about that number
+     */
+    int getStreamingFetchSize(int fetchSize);
+
     /**
      * Translates a specific database related exception to a bridge table module
      * exception. Take special care to map KeyAlreadyExistsException.
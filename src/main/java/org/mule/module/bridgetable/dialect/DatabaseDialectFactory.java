@@ -42,6 +42,14 @@ public class DatabaseDialectFactory
         {
             dialect =  new MySQLDialect();
         }
+        else if("H2".equalsIgnoreCase(databaseProductName))
+        {
+            dialect = new H2Dialect();
+        }
+        else if("PostgreSQL".equalsIgnoreCase(databaseProductName))
+        {
+            dialect = new PostgreSQLDialect();
+        }
 
         if(dialect != null)
         {
@@ -0,0 +1,446 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable.dialect;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+
+import org.apache.log4j.Logger;
+import org.mule.module.bridgetable.BridgeTableException;
+import org.mule.module.bridgetable.KeyAlreadyExistsException;
+import org.mule.module.bridgetable.KeyType;
+
+/**
+ * Dialect for H2, typically embedded in the same process (e.g. <code>jdbc:h2:file:/var/data/bridge</code>) so
+ * that a persistent bridge table doesn't pay for network round trips.
+ */
+public class H2Dialect implements DatabaseDialect
+{
+    private static final Logger LOGGER = Logger.getLogger(H2Dialect.class);
+    private static final String UNIQUE_VIOLATION = "23505";
+    
+    private KeyType key1Type;
+    private KeyType key2Type;
+    private String key1Name;
+    private String key2Name;
+    
+    /**
+     * 
+     */
+    public H2Dialect()
+    {
+    }
+
+    /*
+     * Maps types to H2 table column types
+     */
+    private String keySQLType2ColumnType(KeyType type)
+    {
+        String sqlType = null;
+        switch(type)
+        {
+            case STRING: sqlType = "VARCHAR(255)"; break;
+            case INT_NUMBER: sqlType = "INTEGER"; break;
+            case LONG_NUMBER: sqlType = "BIGINT"; break;
+            case DECIMAL_NUMBER: sqlType = "DOUBLE"; break;
+            default: sqlType = "VARCHAR(255)"; break;
+        }
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("SQL type for " + type + " is " + sqlType);
+        }
+        return sqlType;
+    }
+    
+    /*
+     * Builds a list of count replacement parameters
+     */
+    private String parameters(int count)
+    {
+        if(count < 1) throw new IllegalArgumentException("There must be at least one parameter");
+        StringBuilder params = new StringBuilder(3 * count);
+        params.append("?");
+        for(int i=1; i < count; i++)
+        {
+            params.append(", ?");
+        }
+        return params.toString();
+    }
+
+    private String getKey1SQLColumnName() 
+    {
+        return key1Name;
+    }
+
+    private String getKey2SQLColumnName() 
+    {
+        return key2Name;
+    }
+    
+    /**
+     * H2 doesn't take index definitions in CREATE TABLE, the UNIQUE constraints create the key indexes.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getCreateTableSQL(java.lang.String)
+     */
+    @Override
+    public String getCreateTableSQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        
+        StringBuilder sql = new StringBuilder();
+        
+        sql.append("CREATE TABLE IF NOT EXISTS ")
+           .append(tableName)
+           .append(" (")
+           .append(getKey1SQLColumnName() + " " + keySQLType2ColumnType(key1Type) + " NOT NULL UNIQUE, ")
+           .append(getKey2SQLColumnName() + " " + keySQLType2ColumnType(key2Type) + " NOT NULL UNIQUE, ")
+           .append("creation_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, ")
+           .append("PRIMARY KEY (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ")")
+           .append(")");
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Create table statement: " + sql.toString());
+        }
+        
+        return sql.toString();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getInsertSQL(java.lang.String)
+     */
+    @Override
+    public String getInsertSQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "INSERT INTO " + tableName + " (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") VALUES (?, ?)";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Insert statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpdateByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getUpdateByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "UPDATE " + tableName + " SET " + getKey2SQLColumnName() + " = ? WHERE " + getKey1SQLColumnName() + " = ?";
+        
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Update by key1 statement: " + sql);
+        }
+        return sql;        
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpdateByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getUpdateByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "UPDATE " + tableName + " SET " + getKey1SQLColumnName() + " = ? WHERE " + getKey2SQLColumnName() + " = ?";
+        
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Update by key2 statement: " + sql);
+        }
+        return sql;             
+    }
+
+    /**
+     * Updates the row of key1 or inserts a new one. If key2 belongs to another row the UNIQUE constraint of
+     * key2 rejects it.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpsertByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getUpsertByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "MERGE INTO " + tableName + " (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") KEY (" + getKey1SQLColumnName() + ") VALUES (?, ?)";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Upsert by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Updates the row of key2 or inserts a new one. If key1 belongs to another row the UNIQUE constraint of
+     * key1 rejects it.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpsertByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getUpsertByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "MERGE INTO " + tableName + " (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") KEY (" + getKey2SQLColumnName() + ") VALUES (?, ?)";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Upsert by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getLookupByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + " FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " = ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup by key1 statement: " + sql);
+        }
+        return sql;             
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getLookupByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + " FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " = ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup by key2 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getExistsByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getExistsByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT 1 FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " = ? LIMIT 1";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Exists by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getExistsByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getExistsByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT 1 FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " = ? LIMIT 1";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Exists by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupAllByKey1SQL(java.lang.String, int)
+     */
+    @Override
+    public String getLookupAllByKey1SQL(String tableName, int count)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + " FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " IN (" + parameters(count) + ")";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup all by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupAllByKey2SQL(java.lang.String, int)
+     */
+    @Override
+    public String getLookupAllByKey2SQL(String tableName, int count)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + ", " + getKey1SQLColumnName() + " FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " IN (" + parameters(count) + ")";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup all by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getDeleteByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getDeleteByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "DELETE FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " = ?";
+        
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Delete by key1 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getDeleteByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getDeleteByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "DELETE FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " = ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Delete by key2 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getAllKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getAllKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + " FROM " + tableName + " ORDER BY creation_date ASC";
+        
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Get all key1 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getAllKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getAllKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + " FROM " + tableName + " ORDER BY creation_date ASC";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Get all key2 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getKey1PageSQL(java.lang.String, boolean)
+     */
+    @Override
+    public String getKey1PageSQL(String tableName, boolean first)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + " FROM " + tableName
+                   + (first ? "" : " WHERE " + getKey1SQLColumnName() + " > ?")
+                   + " ORDER BY " + getKey1SQLColumnName() + " ASC LIMIT ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Key1 page statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getKey2PageSQL(java.lang.String, boolean)
+     */
+    @Override
+    public String getKey2PageSQL(String tableName, boolean first)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + " FROM " + tableName
+                   + (first ? "" : " WHERE " + getKey2SQLColumnName() + " > ?")
+                   + " ORDER BY " + getKey2SQLColumnName() + " ASC LIMIT ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Key2 page statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Embedded H2 reads results directly from the database and spills large ones to disk, the fetch size only
+     * matters over a TCP connection, where it is the number of rows sent at once.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getStreamingFetchSize(int)
+     */
+    @Override
+    public int getStreamingFetchSize(int fetchSize)
+    {
+        return fetchSize;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#setKeyTypes(org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType)
+     */
+    @Override
+    public void setKeys(KeyType key1Type, KeyType key2Type, String key1Name, String key2Name)
+    {
+        this.key1Type = key1Type;
+        this.key2Type = key2Type;
+        this.key1Name = key1Name;
+        this.key2Name = key2Name;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#translateException(java.sql.SQLException, java.lang.String)
+     */
+    @Override
+    public BridgeTableException translateException(SQLException sqlEx, String message)
+    {
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Received exception: " + sqlEx.getClass().getName());
+        }
+        BridgeTableException ex = null;
+
+        // H2 1.3 doesn't use SQLIntegrityConstraintViolationException, only the SQL state of the violation
+        if(sqlEx instanceof SQLIntegrityConstraintViolationException || UNIQUE_VIOLATION.equals(sqlEx.getSQLState()))
+        {
+            ex = new KeyAlreadyExistsException(message, sqlEx);
+        }
+        else
+        {
+            ex = new BridgeTableException(message, sqlEx);
+        }
+        
+        return ex;
+    }
+
+}
+
+
@@ -12,13 +12,21 @@ package org.mule.module.bridgetable.dialect;
 
 import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.mule.module.bridgetable.BridgeTableException;
 import org.mule.module.bridgetable.KeyAlreadyExistsException;
 import org.mule.module.bridgetable.KeyType;
+import org.mule.module.bridgetable.SchemaLayout;
 
-public class MySQLDialect implements DatabaseDialect
+public class MySQLDialect implements DatabaseDialect, SchemaLayoutDialect
 {
     private static final Logger LOGGER = Logger.getLogger(MySQLDialect.class);
     
@@ -26,6 +34,7 @@ public class MySQLDialect implements DatabaseDialect
     private KeyType key2Type;
     private String key1Name;
     private String key2Name;
+    private SchemaLayout layout = SchemaLayout.STANDARD;
     
     /**
      * 
@@ -55,6 +64,21 @@ public class MySQLDialect implements DatabaseDialect
         return sqlType;
     }
     
+    /*
+     * Builds a list of count replacement parameters
+     */
+    private String parameters(int count)
+    {
+        if(count < 1) throw new IllegalArgumentException("There must be at least one parameter");
+        StringBuilder params = new StringBuilder(3 * count);
+        params.append("?");
+        for(int i=1; i < count; i++)
+        {
+            params.append(", ?");
+        }
+        return params.toString();
+    }
+
     private String getKey1SQLColumnName() 
     {
         return key1Name;
@@ -65,6 +89,42 @@ public class MySQLDialect implements DatabaseDialect
         return key2Name;
     }
     
+    /*
+     * Definitions of the indexes of the layout by lower case index name. The unique indexes are named after their
+     * column, as the ones created by UNIQUE column constraints.
+     */
+    private Map<String, String> indexDefinitions()
+    {
+        Map<String, String> indexes = new LinkedHashMap<String, String>();
+        if(layout == SchemaLayout.STANDARD)
+        {
+            indexes.put("primary", "PRIMARY KEY (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ")");
+            indexes.put(getKey1SQLColumnName().toLowerCase(), "UNIQUE INDEX " + getKey1SQLColumnName() + " (" + getKey1SQLColumnName() + ")");
+            indexes.put(getKey2SQLColumnName().toLowerCase(), "UNIQUE INDEX " + getKey2SQLColumnName() + " (" + getKey2SQLColumnName() + ")");
+            indexes.put("key1_index", "INDEX key1_index (" + getKey1SQLColumnName() + ")");
+            indexes.put("key2_index", "INDEX key2_index (" + getKey2SQLColumnName() + ")");
+        }
+        else
+        {
+            indexes.put("primary", "PRIMARY KEY (" + getKey1SQLColumnName() + ")");
+            indexes.put(getKey2SQLColumnName().toLowerCase(), "UNIQUE INDEX " + getKey2SQLColumnName() + " (" + getKey2SQLColumnName() + ")");
+            if(layout == SchemaLayout.COMPACT_ORDERED)
+            {
+                indexes.put("creation_date_index", "INDEX creation_date_index (creation_date)");
+            }
+        }
+        return indexes;
+    }
+
+    /*
+     * Lower case column names of an index definition
+     */
+    private static List<String> indexColumns(String definition)
+    {
+        String columns = definition.substring(definition.lastIndexOf('(') + 1, definition.lastIndexOf(')'));
+        return Arrays.asList(columns.toLowerCase().split(",\\s*"));
+    }
+
     /**
      * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getCreateTableSQL(java.lang.String)
      */
@@ -78,13 +138,14 @@ public class MySQLDialect implements DatabaseDialect
         sql.append("CREATE TABLE IF NOT EXISTS ")
            .append(tableName)
            .append(" (")
-           .append(getKey1SQLColumnName() + " " + keySQLType2ColumnType(key1Type) + " UNIQUE, ")
-           .append(getKey2SQLColumnName() + " " + keySQLType2ColumnType(key2Type) + " UNIQUE, ")
-           .append("creation_date TIMESTAMP default now(), ")
-           .append("PRIMARY KEY (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + "), ")
-           .append("INDEX key1_index (" + getKey1SQLColumnName() + "), ")
-           .append("INDEX key2_index (" + getKey2SQLColumnName() + ")")
-           .append(")");
+           .append(getKey1SQLColumnName() + " " + keySQLType2ColumnType(key1Type) + " NOT NULL, ")
+           .append(getKey2SQLColumnName() + " " + keySQLType2ColumnType(key2Type) + " NOT NULL, ")
+           .append("creation_date TIMESTAMP default now()");
+        for(String index : indexDefinitions().values())
+        {
+            sql.append(", ").append(index);
+        }
+        sql.append(")");
 
         if(LOGGER.isDebugEnabled())
         {
@@ -94,6 +155,58 @@ public class MySQLDialect implements DatabaseDialect
         return sql.toString();
     }
 
+    /**
+     * Drops the indexes the layout doesn't have and adds the ones the table doesn't have, in a single ALTER TABLE.
+     * @see org.mule.module.bridgetable.dialect.SchemaLayoutDialect#getSchemaMigrationSQL(java.lang.String, java.util.Map)
+     */
+    @Override
+    public List<String> getSchemaMigrationSQL(String tableName, Map<String, List<String>> indexes)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+
+        Map<String, List<String>> existing = new HashMap<String, List<String>>();
+        for(Map.Entry<String, List<String>> index : indexes.entrySet())
+        {
+            List<String> columns = new ArrayList<String>();
+            for(String column : index.getValue())
+            {
+                columns.add(column.toLowerCase());
+            }
+            existing.put(index.getKey().toLowerCase(), columns);
+        }
+
+        Map<String, String> target = indexDefinitions();
+        List<String> changes = new ArrayList<String>();
+        for(Map.Entry<String, List<String>> index : existing.entrySet())
+        {
+            String definition = target.get(index.getKey());
+            if(definition == null || !indexColumns(definition).equals(index.getValue()))
+            {
+                changes.add("primary".equals(index.getKey()) ? "DROP PRIMARY KEY" : "DROP INDEX " + index.getKey());
+            }
+        }
+        for(Map.Entry<String, String> index : target.entrySet())
+        {
+            List<String> columns = existing.get(index.getKey());
+            if(columns == null || !indexColumns(index.getValue()).equals(columns))
+            {
+                changes.add("ADD " + index.getValue());
+            }
+        }
+
+        List<String> sql = new ArrayList<String>();
+        if(!changes.isEmpty())
+        {
+            sql.add("ALTER TABLE " + tableName + " " + StringUtils.join(changes, ", "));
+        }
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Schema migration statements: " + sql);
+        }
+        return sql;
+    }
+
     /**
      * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getInsertSQL(java.lang.String)
      */
@@ -142,6 +255,44 @@ public class MySQLDialect implements DatabaseDialect
         return sql;             
     }
 
+    /**
+     * The row that collides may be the one of key2, linked to another key1. Its key2 is then set to NULL,
+     * which the NOT NULL key columns reject in strict mode, the default of Connector/J.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpsertByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getUpsertByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "INSERT INTO " + tableName + " (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") VALUES (?, ?)"
+                   + " ON DUPLICATE KEY UPDATE " + getKey2SQLColumnName() + " = IF(" + getKey1SQLColumnName() + " = VALUES(" + getKey1SQLColumnName() + "), VALUES(" + getKey2SQLColumnName() + "), NULL)";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Upsert by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * The row that collides may be the one of key1, linked to another key2. Its key1 is then set to NULL,
+     * which the NOT NULL key columns reject in strict mode, the default of Connector/J.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpsertByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getUpsertByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "INSERT INTO " + tableName + " (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") VALUES (?, ?)"
+                   + " ON DUPLICATE KEY UPDATE " + getKey1SQLColumnName() + " = IF(" + getKey2SQLColumnName() + " = VALUES(" + getKey2SQLColumnName() + "), VALUES(" + getKey1SQLColumnName() + "), NULL)";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Upsert by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
     /**
      * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupByKey1SQL(java.lang.String)
      */
@@ -174,6 +325,70 @@ public class MySQLDialect implements DatabaseDialect
         return sql;           
     }
 
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getExistsByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getExistsByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT 1 FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " = ? LIMIT 1";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Exists by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getExistsByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getExistsByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT 1 FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " = ? LIMIT 1";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Exists by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupAllByKey1SQL(java.lang.String, int)
+     */
+    @Override
+    public String getLookupAllByKey1SQL(String tableName, int count)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + " FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " IN (" + parameters(count) + ")";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup all by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupAllByKey2SQL(java.lang.String, int)
+     */
+    @Override
+    public String getLookupAllByKey2SQL(String tableName, int count)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + ", " + getKey1SQLColumnName() + " FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " IN (" + parameters(count) + ")";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup all by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
     /**
      * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getDeleteByKey1SQL(java.lang.String)
      */
@@ -238,6 +453,53 @@ public class MySQLDialect implements DatabaseDialect
         return sql;           
     }
 
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getKey1PageSQL(java.lang.String, boolean)
+     */
+    @Override
+    public String getKey1PageSQL(String tableName, boolean first)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + " FROM " + tableName
+                   + (first ? "" : " WHERE " + getKey1SQLColumnName() + " > ?")
+                   + " ORDER BY " + getKey1SQLColumnName() + " ASC LIMIT ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Key1 page statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getKey2PageSQL(java.lang.String, boolean)
+     */
+    @Override
+    public String getKey2PageSQL(String tableName, boolean first)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + " FROM " + tableName
+                   + (first ? "" : " WHERE " + getKey2SQLColumnName() + " > ?")
+                   + " ORDER BY " + getKey2SQLColumnName() + " ASC LIMIT ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Key2 page statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Connector/J only streams results, one row at a time, when the fetch size is Integer.MIN_VALUE: any other
+     * value makes it read the whole result in memory unless the connection uses server side cursors.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getStreamingFetchSize(int)
+     */
+    @Override
+    public int getStreamingFetchSize(int fetchSize)
+    {
+        return Integer.MIN_VALUE;
+    }
+
     /**
      * @see org.mule.module.bridgetable.dialect.DatabaseDialect#setKeyTypes(org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType)
      */
@@ -250,6 +512,15 @@ public class MySQLDialect implements DatabaseDialect
         this.key2Name = key2Name;
     }
 
+    /**
+     * @see org.mule.module.bridgetable.dialect.SchemaLayoutDialect#setSchemaLayout(org.mule.module.bridgetable.SchemaLayout)
+     */
+    @Override
+    public void setSchemaLayout(SchemaLayout layout)
+    {
+        this.layout = layout;
+    }
+
     /**
      * @see org.mule.module.bridgetable.dialect.DatabaseDialect#translateException(java.sql.SQLException, java.lang.String)
      */
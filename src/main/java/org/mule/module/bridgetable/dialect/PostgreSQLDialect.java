@@ -0,0 +1,578 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable.dialect;
+
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.mule.module.bridgetable.BridgeTableException;
+import org.mule.module.bridgetable.KeyAlreadyExistsException;
+import org.mule.module.bridgetable.KeyType;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Dialect for PostgreSQL 9.5 or later. Bulk inserts go through the COPY protocol of the PostgreSQL JDBC driver.
+ */
+public class PostgreSQLDialect implements DatabaseDialect, BulkLoadDialect
+{
+    private static final Logger LOGGER = Logger.getLogger(PostgreSQLDialect.class);
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String LOAD_TABLE = "bridgetable_load";
+    private static final int COPY_CHUNK = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private KeyType key1Type;
+    private KeyType key2Type;
+    private String key1Name;
+    private String key2Name;
+    
+    /**
+     * 
+     */
+    public PostgreSQLDialect()
+    {
+    }
+
+    /*
+     * Maps types to PostgreSQL table column types
+     */
+    private String keySQLType2ColumnType(KeyType type)
+    {
+        String sqlType = null;
+        switch(type)
+        {
+            case STRING: sqlType = "VARCHAR(255)"; break;
+            case INT_NUMBER: sqlType = "INTEGER"; break;
+            case LONG_NUMBER: sqlType = "BIGINT"; break;
+            case DECIMAL_NUMBER: sqlType = "DOUBLE PRECISION"; break;
+            default: sqlType = "VARCHAR(255)"; break;
+        }
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("SQL type for " + type + " is " + sqlType);
+        }
+        return sqlType;
+    }
+    
+    /*
+     * Builds a list of count replacement parameters
+     */
+    private String parameters(int count)
+    {
+        if(count < 1) throw new IllegalArgumentException("There must be at least one parameter");
+        StringBuilder params = new StringBuilder(3 * count);
+        params.append("?");
+        for(int i=1; i < count; i++)
+        {
+            params.append(", ?");
+        }
+        return params.toString();
+    }
+
+    private String getKey1SQLColumnName() 
+    {
+        return key1Name;
+    }
+
+    private String getKey2SQLColumnName() 
+    {
+        return key2Name;
+    }
+    
+    /**
+     * The UNIQUE constraints index the keys, the table also gets an index on the creation date by which the keys
+     * are listed.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getCreateTableSQL(java.lang.String)
+     */
+    @Override
+    public String getCreateTableSQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        
+        StringBuilder sql = new StringBuilder();
+        
+        sql.append("CREATE TABLE IF NOT EXISTS ")
+           .append(tableName)
+           .append(" (")
+           .append(getKey1SQLColumnName() + " " + keySQLType2ColumnType(key1Type) + " NOT NULL UNIQUE, ")
+           .append(getKey2SQLColumnName() + " " + keySQLType2ColumnType(key2Type) + " NOT NULL UNIQUE, ")
+           .append("creation_date TIMESTAMP DEFAULT now(), ")
+           .append("PRIMARY KEY (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ")")
+           .append("); ")
+           // The index is created in the schema of the table, so its name cannot be qualified
+           .append("CREATE INDEX IF NOT EXISTS " + tableName.replace('.', '_') + "_creation_date_index ON " + tableName + " (creation_date)");
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Create table statement: " + sql.toString());
+        }
+        
+        return sql.toString();
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getInsertSQL(java.lang.String)
+     */
+    @Override
+    public String getInsertSQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "INSERT INTO " + tableName + " (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") VALUES (?, ?)";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Insert statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpdateByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getUpdateByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "UPDATE " + tableName + " SET " + getKey2SQLColumnName() + " = ? WHERE " + getKey1SQLColumnName() + " = ?";
+        
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Update by key1 statement: " + sql);
+        }
+        return sql;        
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpdateByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getUpdateByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "UPDATE " + tableName + " SET " + getKey1SQLColumnName() + " = ? WHERE " + getKey2SQLColumnName() + " = ?";
+        
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Update by key2 statement: " + sql);
+        }
+        return sql;             
+    }
+
+    /**
+     * Updates the row of key1 or inserts a new one. If key2 belongs to another row the UNIQUE constraint of
+     * key2 rejects it.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpsertByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getUpsertByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "INSERT INTO " + tableName + " (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") VALUES (?, ?)"
+                   + " ON CONFLICT (" + getKey1SQLColumnName() + ") DO UPDATE SET " + getKey2SQLColumnName() + " = EXCLUDED." + getKey2SQLColumnName();
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Upsert by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Updates the row of key2 or inserts a new one. If key1 belongs to another row the UNIQUE constraint of
+     * key1 rejects it.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getUpsertByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getUpsertByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "INSERT INTO " + tableName + " (" + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") VALUES (?, ?)"
+                   + " ON CONFLICT (" + getKey2SQLColumnName() + ") DO UPDATE SET " + getKey1SQLColumnName() + " = EXCLUDED." + getKey1SQLColumnName();
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Upsert by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getLookupByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + " FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " = ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup by key1 statement: " + sql);
+        }
+        return sql;             
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getLookupByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + " FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " = ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup by key2 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getExistsByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getExistsByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT 1 FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " = ? LIMIT 1";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Exists by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getExistsByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getExistsByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT 1 FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " = ? LIMIT 1";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Exists by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupAllByKey1SQL(java.lang.String, int)
+     */
+    @Override
+    public String getLookupAllByKey1SQL(String tableName, int count)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + " FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " IN (" + parameters(count) + ")";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup all by key1 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getLookupAllByKey2SQL(java.lang.String, int)
+     */
+    @Override
+    public String getLookupAllByKey2SQL(String tableName, int count)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + ", " + getKey1SQLColumnName() + " FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " IN (" + parameters(count) + ")";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Lookup all by key2 statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getDeleteByKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getDeleteByKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "DELETE FROM " + tableName + " WHERE " + getKey1SQLColumnName() + " = ?";
+        
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Delete by key1 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getDeleteByKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getDeleteByKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "DELETE FROM " + tableName + " WHERE " + getKey2SQLColumnName() + " = ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Delete by key2 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getAllKey1SQL(java.lang.String)
+     */
+    @Override
+    public String getAllKey1SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + " FROM " + tableName + " ORDER BY creation_date ASC";
+        
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Get all key1 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getAllKey2SQL(java.lang.String)
+     */
+    @Override
+    public String getAllKey2SQL(String tableName)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + " FROM " + tableName + " ORDER BY creation_date ASC";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Get all key2 statement: " + sql);
+        }
+        return sql;           
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getKey1PageSQL(java.lang.String, boolean)
+     */
+    @Override
+    public String getKey1PageSQL(String tableName, boolean first)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey1SQLColumnName() + " FROM " + tableName
+                   + (first ? "" : " WHERE " + getKey1SQLColumnName() + " > ?")
+                   + " ORDER BY " + getKey1SQLColumnName() + " ASC LIMIT ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Key1 page statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getKey2PageSQL(java.lang.String, boolean)
+     */
+    @Override
+    public String getKey2PageSQL(String tableName, boolean first)
+    {
+        if(tableName == null) throw new IllegalArgumentException("Table name cannot be null");
+        String sql = "SELECT " + getKey2SQLColumnName() + " FROM " + tableName
+                   + (first ? "" : " WHERE " + getKey2SQLColumnName() + " > ?")
+                   + " ORDER BY " + getKey2SQLColumnName() + " ASC LIMIT ?";
+
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Key2 page statement: " + sql);
+        }
+        return sql;
+    }
+
+    /**
+     * The driver reads results through a cursor, the fetch size rows at a time, as long as auto-commit is off.
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#getStreamingFetchSize(int)
+     */
+    @Override
+    public int getStreamingFetchSize(int fetchSize)
+    {
+        return fetchSize;
+    }
+
+    /**
+     * Copies the mappings into a temporary table, numbered in their original order, and inserts them from there in
+     * that order, skipping the ones that conflict. The numbers of the rows that were not inserted tell the
+     * conflicts, so keys are never compared outside the database. Only works when the connection is (or wraps) a
+     * PostgreSQL JDBC driver connection.
+     * @see org.mule.module.bridgetable.dialect.BulkLoadDialect#bulkInsert(java.sql.Connection, java.lang.String, java.util.Map)
+     */
+    @Override
+    public Map<Object, Object> bulkInsert(Connection conn, String tableName, Map<Object, Object> pairs) throws SQLException
+    {
+        if(!conn.isWrapperFor(PGConnection.class))
+        {
+            LOGGER.debug("Connection doesn't support COPY, falling back to batched inserts");
+            return null;
+        }
+
+        Statement stmt = conn.createStatement();
+        try
+        {
+            stmt.executeUpdate("CREATE TEMPORARY TABLE " + LOAD_TABLE + " (seq INTEGER, "
+                               + getKey1SQLColumnName() + " " + keySQLType2ColumnType(key1Type) + ", "
+                               + getKey2SQLColumnName() + " " + keySQLType2ColumnType(key2Type) + ") ON COMMIT DROP");
+
+            CopyIn copy = conn.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY " + LOAD_TABLE + " (seq, " + getKey1SQLColumnName() + ", " + getKey2SQLColumnName() + ") FROM STDIN");
+            try
+            {
+                StringBuilder rows = new StringBuilder();
+                int seq = 0;
+                for(Map.Entry<Object, Object> pair : pairs.entrySet())
+                {
+                    rows.append(seq++).append('\t');
+                    copyValue(rows, pair.getKey());
+                    rows.append('\t');
+                    copyValue(rows, pair.getValue());
+                    rows.append('\n');
+                    if(rows.length() >= COPY_CHUNK)
+                    {
+                        byte[] bytes = rows.toString().getBytes(UTF8);
+                        copy.writeToCopy(bytes, 0, bytes.length);
+                        rows.setLength(0);
+                    }
+                }
+                byte[] bytes = rows.toString().getBytes(UTF8);
+                copy.writeToCopy(bytes, 0, bytes.length);
+                copy.endCopy();
+            }
+            finally
+            {
+                if(copy.isActive())
+                {
+                    copy.cancelCopy();
+                }
+            }
+
+            // The rows of the temporary table whose key1 was not inserted are the ones that conflicted
+            String key1 = getKey1SQLColumnName();
+            Set<Integer> conflicting = new HashSet<Integer>();
+            ResultSet rs = stmt.executeQuery("WITH inserted AS (INSERT INTO " + tableName + " (" + key1 + ", " + getKey2SQLColumnName() + ")"
+                                             + " SELECT " + key1 + ", " + getKey2SQLColumnName() + " FROM " + LOAD_TABLE + " ORDER BY seq"
+                                             + " ON CONFLICT DO NOTHING RETURNING " + key1 + ")"
+                                             + " SELECT seq FROM " + LOAD_TABLE + " l WHERE NOT EXISTS (SELECT 1 FROM inserted i WHERE i." + key1 + " = l." + key1 + ")");
+            try
+            {
+                while(rs.next())
+                {
+                    conflicting.add(Integer.valueOf(rs.getInt(1)));
+                }
+            }
+            finally
+            {
+                rs.close();
+            }
+
+            Map<Object, Object> conflicts = new LinkedHashMap<Object, Object>();
+            int seq = 0;
+            for(Map.Entry<Object, Object> pair : pairs.entrySet())
+            {
+                if(conflicting.contains(Integer.valueOf(seq++)))
+                {
+                    conflicts.put(pair.getKey(), pair.getValue());
+                }
+            }
+            return conflicts;
+        }
+        finally
+        {
+            stmt.close();
+        }
+    }
+
+    /*
+     * Appends a value in the text format of COPY, where backslashes and line and column separators are escaped
+     * and null is written as \N
+     */
+    private static void copyValue(StringBuilder rows, Object value)
+    {
+        if(value == null)
+        {
+            rows.append("\\N");
+            return;
+        }
+        String text = value.toString();
+        for(int i=0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            switch(c)
+            {
+                case '\\': rows.append("\\\\"); break;
+                case '\t': rows.append("\\t"); break;
+                case '\n': rows.append("\\n"); break;
+                case '\r': rows.append("\\r"); break;
+                default: rows.append(c); break;
+            }
+        }
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#setKeyTypes(org.mule.module.bridgetable.KeyType, org.mule.module.bridgetable.KeyType)
+     */
+    @Override
+    public void setKeys(KeyType key1Type, KeyType key2Type, String key1Name, String key2Name)
+    {
+        this.key1Type = key1Type;
+        this.key2Type = key2Type;
+        this.key1Name = key1Name;
+        this.key2Name = key2Name;
+    }
+
+    /**
+     * @see org.mule.module.bridgetable.dialect.DatabaseDialect#translateException(java.sql.SQLException, java.lang.String)
+     */
+    @Override
+    public BridgeTableException translateException(SQLException sqlEx, String message)
+    {
+        if(LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Received exception: " + sqlEx.getClass().getName());
+        }
+        BridgeTableException ex = null;
+
+        // The driver doesn't use SQLIntegrityConstraintViolationException, only the SQL state of the violation
+        if(sqlEx instanceof SQLIntegrityConstraintViolationException || UNIQUE_VIOLATION.equals(sqlEx.getSQLState()))
+        {
+            ex = new KeyAlreadyExistsException(message, sqlEx);
+        }
+        else
+        {
+            ex = new BridgeTableException(message, sqlEx);
+        }
+        
+        return ex;
+    }
+
+}
+
+
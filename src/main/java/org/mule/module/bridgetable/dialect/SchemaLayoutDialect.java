@@ -0,0 +1,37 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable.dialect;
+
+import java.util.List;
+import java.util.Map;
+
+import org.mule.module.bridgetable.SchemaLayout;
+
+/**
+ * Implemented by the dialects that can create the table with a choice of indexes and migrate existing tables
+ * between them.
+ */
+public interface SchemaLayoutDialect
+{
+    /**
+     * Sets the layout of the tables created by {@link DatabaseDialect#getCreateTableSQL(String)}.
+     * @param layout The layout
+     */
+    void setSchemaLayout(SchemaLayout layout);
+
+    /**
+     * Returns the statements that give an existing table the layout set with {@link #setSchemaLayout(SchemaLayout)}.
+     * @param tableName The table name
+     * @param indexes The indexes the table has, as the names of their columns in order by index name
+     * @return The statements to run, none if the table already has the layout
+     */
+    List<String> getSchemaMigrationSQL(String tableName, Map<String, List<String>> indexes);
+}
@@ -0,0 +1,228 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.module.bridgetable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * Compares the throughput of asynchronous lookups on a database bridge table run by a pool of platform threads
+ * and by virtual threads (Java 21 on, build with <code>-Pjdk21</code>).
+ * <p/>
+ * By default the platform pool has as many threads as there are connections, so both runs have the same
+ * number of lookups in flight and only the kind of thread differs. A pool the size of <code>asyncThreads</code>
+ * mostly measures how few lookups it lets run at once.
+ * <p/>
+ * The table lives in an in-memory H2 database behind a connection pool that adds a fixed latency to every
+ * statement, standing in for the round trip to a remote database. Settings, as system properties:
+ * <ul>
+ *    <li>bridgetable.benchmark.lookups: lookups submitted at once (default 10000)</li>
+ *    <li>bridgetable.benchmark.latency: milliseconds added to each statement (default 2)</li>
+ *    <li>bridgetable.benchmark.connections: size of the connection pool (default 200)</li>
+ *    <li>bridgetable.benchmark.threads: platform threads (default, as many as connections)</li>
+ * </ul>
+ * Not a test: run its main method with the test classpath. Add <code>-Djdk.tracePinnedThreads=full</code> to
+ * print the stack of every virtual thread that blocks while pinned to its carrier. The latency is added before
+ * the statement reaches H2, so this benchmark doesn't block inside the driver the way a remote database would:
+ * drivers that do I/O in synchronized code pin virtual threads in production.
+ */
+public class AsyncBridgeTableBenchmark
+{
+    private static final int KEYS = 10000;
+
+    public static void main(String[] args) throws Exception
+    {
+        int lookups = Integer.getInteger("bridgetable.benchmark.lookups", 10000).intValue();
+        long latency = Long.getLong("bridgetable.benchmark.latency", 2).longValue();
+        int connections = Integer.getInteger("bridgetable.benchmark.connections", 200).intValue();
+        int threads = Integer.getInteger("bridgetable.benchmark.threads", connections).intValue();
+
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+        DataSourceBridgeTable table = new DataSourceBridgeTable(pool(h2, connections, latency));
+        table.setPinConnections(true);
+        table.init("benchmark", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", true);
+        try
+        {
+            Map<Object, Object> pairs = new LinkedHashMap<Object, Object>();
+            for(int i=0; i < KEYS; i++)
+            {
+                pairs.put("key" + i, Long.valueOf(i));
+            }
+            table.insertAll(pairs);
+
+            System.out.println(lookups + " lookups, " + latency + " ms per statement, " + connections + " connections");
+
+            ExecutorService platform = ExecutorAsyncBridgeTable.newExecutor("benchmark", threads, lookups);
+            run("platform threads (" + threads + ")", table, platform, lookups);
+            platform.shutdown();
+
+            ExecutorService virtual = ExecutorAsyncBridgeTable.newVirtualThreadExecutor();
+            if(virtual == null)
+            {
+                System.out.println("virtual threads: not available, they need Java 21 or later");
+            }
+            else
+            {
+                run("virtual threads", table, virtual, lookups);
+                virtual.shutdown();
+            }
+        }
+        finally
+        {
+            table.destroy();
+        }
+    }
+
+    /*
+     * Runs a warm up round and a measured round of lookups
+     */
+    private static void run(String name, BridgeTable table, ExecutorService executor, int lookups) throws Exception
+    {
+        AsyncBridgeTable async = new ExecutorAsyncBridgeTable(table, executor);
+        lookup(async, lookups / 10);
+
+        long start = System.nanoTime();
+        lookup(async, lookups);
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": " + Math.round(lookups / (elapsed / 1e9)) + " lookups/s, " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+    }
+
+    private static void lookup(AsyncBridgeTable async, int lookups) throws Exception
+    {
+        List<Future<Object>> results = new ArrayList<Future<Object>>(lookups);
+        for(int i=0; i < lookups; i++)
+        {
+            results.add(async.retrieveByKey1("key" + (i % KEYS)));
+        }
+        for(Future<Object> result : results)
+        {
+            result.get();
+        }
+    }
+
+    /*
+     * A pool of up to the given number of connections, whose statements wait for the latency before running.
+     * Waits on a semaphore rather than in synchronized code, so virtual threads waiting for a connection don't
+     * hold on to their carrier threads.
+     */
+    private static DataSource pool(final DataSource target, int connections, final long latency)
+    {
+        final Semaphore permits = new Semaphore(connections);
+        final Queue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+        return (DataSource) proxy(DataSource.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if(!method.getName().equals("getConnection"))
+                {
+                    return call(target, method, args);
+                }
+
+                permits.acquire();
+                Connection conn = idle.poll();
+                if(conn == null)
+                {
+                    try
+                    {
+                        conn = target.getConnection();
+                    }
+                    catch(Exception ex)
+                    {
+                        permits.release();
+                        throw ex;
+                    }
+                }
+                return pooled(conn, permits, idle, latency);
+            }
+        });
+    }
+
+    private static Connection pooled(final Connection conn, final Semaphore permits, final Queue<Connection> idle, final long latency)
+    {
+        final AtomicBoolean closed = new AtomicBoolean();
+        return (Connection) proxy(Connection.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if(method.getName().equals("close"))
+                {
+                    if(closed.compareAndSet(false, true))
+                    {
+                        idle.add(conn);
+                        permits.release();
+                    }
+                    return null;
+                }
+                if(method.getName().equals("isClosed"))
+                {
+                    return Boolean.valueOf(closed.get());
+                }
+
+                Object result = call(conn, method, args);
+                return result instanceof PreparedStatement ? delayed((PreparedStatement) result, latency) : result;
+            }
+        });
+    }
+
+    private static PreparedStatement delayed(final PreparedStatement stmt, final long latency)
+    {
+        return (PreparedStatement) proxy(PreparedStatement.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if(method.getName().startsWith("execute"))
+                {
+                    Thread.sleep(latency);
+                }
+                return call(stmt, method, args);
+            }
+        });
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler)
+    {
+        return Proxy.newProxyInstance(AsyncBridgeTableBenchmark.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch(InvocationTargetException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+}
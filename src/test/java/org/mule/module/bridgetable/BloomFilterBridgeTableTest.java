@@ -0,0 +1,134 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BloomFilterBridgeTableTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFilledFromExistingMappings() throws Exception
+    {
+        BridgeTable table = new LogBridgeTable(folder.getRoot());
+        table.init("testTable", KeyType.STRING, KeyType.INT_NUMBER, "key1", "key2", false);
+        table.insert("a", Integer.valueOf(1));
+        table.insert("b", Integer.valueOf(2));
+        table.destroy();
+
+        BloomFilterBridgeTable filtered = new BloomFilterBridgeTable(new LogBridgeTable(folder.getRoot()));
+        filtered.setExpectedEntries(1000);
+        filtered.init("testTable", KeyType.STRING, KeyType.INT_NUMBER, "key1", "key2", false);
+        try
+        {
+            assertTrue(filtered.containsKey1("a"));
+            assertEquals("b", filtered.retrieveByKey2(Integer.valueOf(2)));
+            assertFalse(filtered.containsKey1("x"));
+            assertEquals(Long.valueOf(1), filtered.getStatistics().get("filterNegatives"));
+        }
+        finally
+        {
+            filtered.destroy();
+        }
+    }
+
+    @Test
+    public void testNoFalseNegatives() throws Exception
+    {
+        BridgeTable delegate = new ConcurrentBridgeTable();
+        BloomFilterBridgeTable table = new BloomFilterBridgeTable(delegate);
+        table.setExpectedEntries(200);
+        table.init("testTable", KeyType.LONG_NUMBER, KeyType.LONG_NUMBER, "key1", "key2", false);
+
+        Random random = new Random(17);
+        for(int i=0; i < 20000; i++)
+        {
+            Long key1 = Long.valueOf(random.nextInt(200));
+            Long key2 = Long.valueOf(random.nextInt(200));
+            try
+            {
+                switch(random.nextInt(5))
+                {
+                    case 0: table.insert(key1, key2); break;
+                    case 1: table.updateByKey1(key1, key2); break;
+                    case 2: table.upsertByKey2(key2, key1); break;
+                    case 3: table.removeByKey1(key1); break;
+                    default: table.removeByKey2(key2); break;
+                }
+            }
+            catch(BridgeTableException ex)
+            {
+                // Conflicts and missing keys are expected
+            }
+        }
+
+        for(Object key1 : delegate.keys1())
+        {
+            assertTrue(table.containsKey1(key1));
+        }
+        for(Object key2 : delegate.keys2())
+        {
+            assertTrue(table.containsKey2(key2));
+        }
+    }
+
+    @Test
+    public void testNoFalseNegativesAfterBatches() throws Exception
+    {
+        BridgeTable delegate = new ConcurrentBridgeTable();
+        BloomFilterBridgeTable table = new BloomFilterBridgeTable(delegate);
+        table.setExpectedEntries(200);
+        table.init("testTable", KeyType.LONG_NUMBER, KeyType.LONG_NUMBER, "key1", "key2", false);
+
+        Random random = new Random(23);
+        BridgeTableOperation.Kind[] kinds = BridgeTableOperation.Kind.values();
+        int failed = 0;
+        for(int i=0; i < 5000; i++)
+        {
+            List<BridgeTableOperation> operations = new ArrayList<BridgeTableOperation>();
+            for(int j=0; j < 3; j++)
+            {
+                operations.add(new BridgeTableOperation(kinds[random.nextInt(kinds.length)], Long.valueOf(random.nextInt(100)), Long.valueOf(random.nextInt(100))));
+            }
+            try
+            {
+                table.executeBatch(operations);
+            }
+            catch(BridgeTableException ex)
+            {
+                // Conflicts and missing keys are expected
+                failed++;
+            }
+        }
+        assertTrue(failed > 0 && failed < 5000);
+
+        for(Object key1 : delegate.keys1())
+        {
+            assertTrue(table.containsKey1(key1));
+        }
+        for(Object key2 : delegate.keys2())
+        {
+            assertTrue(table.containsKey2(key2));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingBridgeTableTest
+{
+    private BridgeTable delegate;
+    private CachingBridgeTable table;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        delegate = new ConcurrentBridgeTable();
+        table = new CachingBridgeTable(delegate);
+        table.setMaxEntries(2);
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+    }
+
+    @Test
+    public void testHitsAndEvictions() throws Exception
+    {
+        table.insert("a", "A");
+        table.insert("b", "B");
+        table.insert("c", "C");
+
+        assertEquals("A", table.retrieveByKey1("a"));
+        assertEquals("a", table.retrieveByKey2("A"));
+        assertEquals("B", table.retrieveByKey1("b"));
+        // Evicts b, as a was used more recently
+        assertEquals("a", table.retrieveByKey2("A"));
+        assertEquals("c", table.retrieveByKey2("C"));
+        assertEquals("A", table.retrieveByKey1("a"));
+
+        Map<String, Object> statistics = table.getStatistics();
+        assertEquals(Long.valueOf(3), statistics.get("cacheHits"));
+        assertEquals(Long.valueOf(3), statistics.get("cacheMisses"));
+        assertEquals(Long.valueOf(1), statistics.get("cacheEvictions"));
+        assertEquals(Integer.valueOf(2), statistics.get("cacheSize"));
+    }
+
+    @Test
+    public void testWritesInvalidateBothDirections() throws Exception
+    {
+        table.insert("a", "A");
+        assertEquals("A", table.retrieveByKey1("a"));
+
+        table.updateByKey1("a", "X");
+        assertEquals("X", table.retrieveByKey1("a"));
+        assertFalse(table.containsKey2("A"));
+        assertEquals("a", table.retrieveByKey2("X"));
+
+        table.removeByKey2("X");
+        assertFalse(table.containsKey1("a"));
+        assertEquals("none", table.retrieveByKey1OrDefault("a", "none"));
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception
+    {
+        table.setTimeToLive(1);
+        table.insert("a", "A");
+        assertEquals("A", table.retrieveByKey1("a"));
+
+        // Changed behind the back of the cache
+        delegate.updateByKey1("a", "X");
+        Thread.sleep(5);
+        assertEquals("X", table.retrieveByKey1("a"));
+        assertEquals(Long.valueOf(1), table.getStatistics().get("cacheExpirations"));
+    }
+
+    @Test
+    public void testLowerMaxEntries() throws Exception
+    {
+        table.setMaxEntries(4);
+        for(int i=0; i < 4; i++)
+        {
+            table.insert("k" + i, "V" + i);
+            table.retrieveByKey1("k" + i);
+        }
+        assertEquals(Integer.valueOf(4), table.getStatistics().get("cacheSize"));
+
+        table.setMaxEntries(2);
+        table.insert("k4", "V4");
+        assertEquals("V4", table.retrieveByKey1("k4"));
+        assertEquals(Integer.valueOf(2), table.getStatistics().get("cacheSize"));
+    }
+
+    @Test
+    public void testConcurrentLookupsAndWrites() throws Exception
+    {
+        table.setMaxEntries(50);
+        for(int i=0; i < 200; i++)
+        {
+            table.insert("k" + i, "V" + i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for(int t=0; t < 8; t++)
+            {
+                final int seed = t;
+                tasks.add(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        for(int i=0; i < 5000; i++)
+                        {
+                            // Skewed towards the first keys, so some of them stay hot
+                            int key = (i * 31 + seed) % (i % 4 == 0 ? 200 : 20);
+                            if(seed == 0 && i % 10 == 0)
+                            {
+                                table.updateByKey1("k" + key, "W" + key);
+                                table.updateByKey1("k" + key, "V" + key);
+                            }
+                            else
+                            {
+                                Object value = table.retrieveByKey1OrDefault("k" + key, null);
+                                assertTrue("V" + key + " or W" + key + " but was " + value, ("V" + key).equals(value) || ("W" + key).equals(value));
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            for(Future<Void> future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // Once the writes are done the cache agrees with the underlying table in both directions
+        for(int i=0; i < 200; i++)
+        {
+            assertEquals("V" + i, table.retrieveByKey1("k" + i));
+            assertEquals("k" + i, table.retrieveByKey2("V" + i));
+        }
+        assertTrue(((Integer) table.getStatistics().get("cacheSize")).intValue() <= 50);
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentBridgeTableTest
+{
+    private static final int THREADS = 8;
+
+    private BridgeTable table;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        table = new ConcurrentBridgeTable();
+        table.init("testTable", KeyType.INT_NUMBER, KeyType.STRING, "key1", "key2", false);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        table.destroy();
+    }
+
+    @Test
+    public void testUpdateToExistingKey() throws Exception
+    {
+        table.insert(Integer.valueOf(1), "a");
+        table.insert(Integer.valueOf(2), "b");
+
+        try
+        {
+            table.updateByKey1(Integer.valueOf(1), "b");
+            fail("Expected KeyAlreadyExistsException");
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            // Expected
+        }
+        try
+        {
+            table.updateByKey2("a", Integer.valueOf(2));
+            fail("Expected KeyAlreadyExistsException");
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            // Expected
+        }
+
+        // The failed updates leave both mappings untouched
+        assertEquals("a", table.retrieveByKey1(Integer.valueOf(1)));
+        assertEquals("b", table.retrieveByKey1(Integer.valueOf(2)));
+        assertEquals(Integer.valueOf(1), table.retrieveByKey2("a"));
+        assertEquals(Integer.valueOf(2), table.retrieveByKey2("b"));
+
+        // Updating to the current value is not a conflict
+        table.updateByKey1(Integer.valueOf(1), "a");
+        table.updateByKey2("b", Integer.valueOf(2));
+        assertEquals(2, table.keys1().size());
+    }
+
+    @Test
+    public void testConcurrentInserts() throws Exception
+    {
+        final int keys = 2000;
+        final AtomicInteger inserted = new AtomicInteger();
+        final AtomicInteger conflicts = new AtomicInteger();
+
+        // Every thread tries to insert every row, only one of them may win each one
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int t=0; t < THREADS; t++)
+        {
+            tasks.add(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    for(int i=0; i < keys; i++)
+                    {
+                        try
+                        {
+                            table.insert(Integer.valueOf(i), "k" + i);
+                            inserted.incrementAndGet();
+                        }
+                        catch(KeyAlreadyExistsException ex)
+                        {
+                            conflicts.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        assertEquals(keys, inserted.get());
+        assertEquals(keys * (THREADS - 1), conflicts.get());
+        assertConsistent(keys);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception
+    {
+        final int keys = 200;
+        for(int i=0; i < keys; i++)
+        {
+            table.insert(Integer.valueOf(i), "k" + i);
+        }
+
+        // Threads move rows onto each other's values, half of the moves should conflict
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int t=0; t < THREADS; t++)
+        {
+            final int seed = t;
+            tasks.add(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    for(int i=0; i < 5000; i++)
+                    {
+                        int key1 = (i * 31 + seed * 17) % keys;
+                        int key2 = (i * 7 + seed * 13) % (keys * 2);
+                        try
+                        {
+                            if(i % 2 == 0)
+                            {
+                                table.updateByKey1(Integer.valueOf(key1), "k" + key2);
+                            }
+                            else
+                            {
+                                table.updateByKey2("k" + key2, Integer.valueOf(key1 + keys));
+                            }
+                        }
+                        catch(KeyAlreadyExistsException ex)
+                        {
+                            // Somebody else owns the target value
+                        }
+                        catch(KeyDoesNotExistException ex)
+                        {
+                            // The source row was moved by somebody else
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        assertConsistent(keys);
+    }
+
+    @Test
+    public void testConcurrentInsertsAndRemoves() throws Exception
+    {
+        final int keys = 500;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int t=0; t < THREADS; t++)
+        {
+            final boolean remover = t % 2 == 0;
+            tasks.add(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    for(int round=0; round < 4; round++)
+                    {
+                        for(int i=0; i < keys; i++)
+                        {
+                            try
+                            {
+                                if(remover)
+                                {
+                                    if(i % 2 == 0)
+                                    {
+                                        table.removeByKey1(Integer.valueOf(i));
+                                    }
+                                    else
+                                    {
+                                        table.removeByKey2("k" + i);
+                                    }
+                                }
+                                else
+                                {
+                                    table.insert(Integer.valueOf(i), "k" + i);
+                                }
+                            }
+                            catch(KeyAlreadyExistsException ex)
+                            {
+                                // Inserted by another thread
+                            }
+                            catch(KeyDoesNotExistException ex)
+                            {
+                                // Removed by another thread, or not inserted yet
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        int size = table.keys1().size();
+        assertEquals(size, table.keys2().size());
+        for(int i=0; i < keys; i++)
+        {
+            boolean contains = table.containsKey1(Integer.valueOf(i));
+            assertEquals(contains, table.containsKey2("k" + i));
+            if(contains)
+            {
+                assertEquals("k" + i, table.retrieveByKey1(Integer.valueOf(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testKeysPage() throws Exception
+    {
+        for(int i=0; i < 1000; i++)
+        {
+            table.insert(Integer.valueOf(i * 7 % 1000), "k" + (i + 1000));
+        }
+        assertEquals(walk(true), table.keys1().size());
+        assertEquals(Arrays.asList((Object) Integer.valueOf(998), Integer.valueOf(999)), table.keys1Page(Integer.valueOf(997), 10));
+
+        // The index built by the first page follows the writes made after it
+        table.removeByKey1(Integer.valueOf(0));
+        table.updateByKey1(Integer.valueOf(1), "k0000");
+        table.updateByKey2("k1002", Integer.valueOf(5000));
+        table.insert(Integer.valueOf(-1), "k9999");
+        assertEquals(Arrays.asList((Object) Integer.valueOf(-1), Integer.valueOf(1), Integer.valueOf(2)), table.keys1Page(null, 3));
+        // k1002 was mapped to 14
+        assertEquals(Arrays.asList((Object) Integer.valueOf(13), Integer.valueOf(15)), table.keys1Page(Integer.valueOf(12), 2));
+        assertEquals(Arrays.asList((Object) Integer.valueOf(999), Integer.valueOf(5000)), table.keys1Page(Integer.valueOf(998), 3));
+        assertEquals(Arrays.asList((Object) "k0000", "k1001", "k1002"), table.keys2Page(null, 3));
+        assertEquals(Arrays.asList((Object) "k9999"), table.keys2Page("k1999", 3));
+        assertEquals(1000, walk(true));
+        assertEquals(1000, walk(false));
+    }
+
+    @Test
+    public void testKeyThatCannotBeSortedLeavesNoTrace() throws Exception
+    {
+        table.insert(Integer.valueOf(1), "a");
+        table.keys2Page(null, 10);
+
+        // The key2 index holds strings, so a number for key2 cannot go into it
+        try
+        {
+            table.insert(Integer.valueOf(2), Long.valueOf(2));
+            fail("Expected BridgeTableException");
+        }
+        catch(BridgeTableException ex)
+        {
+            // Expected
+        }
+        try
+        {
+            table.upsertByKey1(Integer.valueOf(3), Long.valueOf(3));
+            fail("Expected BridgeTableException");
+        }
+        catch(BridgeTableException ex)
+        {
+            // Expected
+        }
+        try
+        {
+            table.updateByKey1(Integer.valueOf(1), Long.valueOf(4));
+            fail("Expected BridgeTableException");
+        }
+        catch(BridgeTableException ex)
+        {
+            // Expected
+        }
+
+        assertEquals(Arrays.asList((Object) Integer.valueOf(1)), table.keys1());
+        assertEquals(Arrays.asList((Object) "a"), table.keys2());
+        assertEquals("a", table.retrieveByKey1(Integer.valueOf(1)));
+        assertEquals(1, walk(true));
+        assertEquals(1, walk(false));
+    }
+
+    /*
+     * Walks the keys page by page, checking they come in ascending order
+     */
+    @SuppressWarnings("unchecked")
+    private int walk(boolean key1) throws Exception
+    {
+        int count = 0;
+        Object last = null;
+        while(true)
+        {
+            List<Object> page = key1 ? table.keys1Page(last, 64) : table.keys2Page(last, 64);
+            for(Object key : page)
+            {
+                assertTrue(last == null || ((Comparable<Object>) last).compareTo(key) < 0);
+                last = key;
+            }
+            count += page.size();
+            if(page.size() < 64)
+            {
+                return count;
+            }
+        }
+    }
+
+    private void run(List<Callable<Void>> tasks) throws Exception
+    {
+        for(Future<Void> future : executor.invokeAll(tasks))
+        {
+            future.get();
+        }
+    }
+
+    /*
+     * Both directions must describe the same rows
+     */
+    private void assertConsistent(int rows) throws Exception
+    {
+        List<Object> keys1 = table.keys1();
+        assertEquals(rows, keys1.size());
+        assertEquals(rows, table.keys2().size());
+        for(Object key1 : keys1)
+        {
+            Object key2 = table.retrieveByKey1(key1);
+            assertEquals(key1, table.retrieveByKey2(key2));
+        }
+        for(Object key2 : table.keys2())
+        {
+            assertTrue(table.containsKey1(table.retrieveByKey2(key2)));
+        }
+        assertFalse(table.containsKey1(Integer.valueOf(-1)));
+    }
+}
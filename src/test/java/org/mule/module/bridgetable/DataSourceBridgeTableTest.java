@@ -0,0 +1,312 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the JDBC bridge table against an in-memory H2 database.
+ */
+public class DataSourceBridgeTableTest
+{
+    private static int databases;
+
+    private JdbcDataSource dataSource;
+    private DataSourceBridgeTable table;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dataSource = newDataSource();
+        table = open(true);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        table.destroy();
+    }
+
+    @Test
+    public void testInsertUpdateRemove() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        table.insert("b", Long.valueOf(2));
+        assertEquals(Long.valueOf(1), table.retrieveByKey1("a"));
+        assertEquals("b", table.retrieveByKey2(Long.valueOf(2)));
+
+        try
+        {
+            table.insert("c", Long.valueOf(1));
+            fail("Expected KeyAlreadyExistsException");
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            // Expected
+        }
+
+        table.updateByKey1("a", Long.valueOf(3));
+        table.updateByKey2(Long.valueOf(2), "d");
+        assertEquals(Long.valueOf(3), table.retrieveByKey1("a"));
+        assertEquals("d", table.retrieveByKey2(Long.valueOf(2)));
+        assertFalse(table.containsKey1("b"));
+
+        table.removeByKey1("a");
+        assertFalse(table.containsKey2(Long.valueOf(3)));
+        assertEquals("none", table.retrieveByKey1OrDefault("a", "none"));
+        try
+        {
+            table.removeByKey1("a");
+            fail("Expected KeyDoesNotExistException");
+        }
+        catch(KeyDoesNotExistException ex)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUpsert() throws Exception
+    {
+        table.upsertByKey1("a", Long.valueOf(1));
+        table.upsertByKey1("a", Long.valueOf(2));
+        table.upsertByKey2(Long.valueOf(3), "b");
+        table.upsertByKey2(Long.valueOf(3), "c");
+        assertEquals(Long.valueOf(2), table.retrieveByKey1("a"));
+        assertEquals("c", table.retrieveByKey2(Long.valueOf(3)));
+        assertFalse(table.containsKey1("b"));
+
+        try
+        {
+            // 3 belongs to c
+            table.upsertByKey1("a", Long.valueOf(3));
+            fail("Expected KeyAlreadyExistsException");
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            // Expected
+        }
+        assertEquals(Long.valueOf(2), table.retrieveByKey1("a"));
+    }
+
+    @Test
+    public void testBulkOperations() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        Map<Object, Object> pairs = new LinkedHashMap<Object, Object>();
+        pairs.put("b", Long.valueOf(2));
+        pairs.put("c", Long.valueOf(1));
+        pairs.put("d", Long.valueOf(4));
+        Map<Object, Object> conflicts = table.insertAll(pairs);
+        assertEquals(1, conflicts.size());
+        assertEquals(Long.valueOf(1), conflicts.get("c"));
+
+        Map<Object, Object> found = table.retrieveAllByKey1(Arrays.asList("a", "c", "d"));
+        assertEquals(2, found.size());
+        assertEquals(Long.valueOf(4), found.get("d"));
+
+        assertEquals(Arrays.asList("a", "b"), table.keys1Page(null, 2));
+        assertEquals(Arrays.asList("d"), table.keys1Page("b", 2));
+
+        Set<Object> keys2 = new HashSet<Object>();
+        KeyIterator iterator = table.iterateKeys2();
+        while(iterator.hasNext())
+        {
+            keys2.add(iterator.next());
+        }
+        assertEquals(new HashSet<Object>(Arrays.asList(Long.valueOf(1), Long.valueOf(2), Long.valueOf(4))), keys2);
+    }
+
+    @Test
+    public void testExistingTable() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        table.destroy();
+
+        // H2 stores the unquoted table name in upper case
+        table = open(false);
+        assertTrue(table.containsKey1("a"));
+    }
+
+    @Test
+    public void testBatch() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        table.insert("b", Long.valueOf(2));
+
+        List<BridgeTableOperation> operations = new ArrayList<BridgeTableOperation>();
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.REMOVE_BY_KEY1, "a", null));
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, "c", Long.valueOf(1)));
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.UPDATE_BY_KEY2, "d", Long.valueOf(2)));
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.UPDATE_BY_KEY1, "x", Long.valueOf(3)));
+        try
+        {
+            table.executeBatch(operations);
+            fail("Expected KeyDoesNotExistException");
+        }
+        catch(KeyDoesNotExistException ex)
+        {
+            // Expected, the transaction is rolled back
+        }
+        assertEquals(Long.valueOf(1), table.retrieveByKey1("a"));
+        assertEquals("b", table.retrieveByKey2(Long.valueOf(2)));
+        assertFalse(table.containsKey1("c"));
+
+        table.executeBatch(operations.subList(0, 3));
+        assertFalse(table.containsKey1("a"));
+        assertEquals(Long.valueOf(1), table.retrieveByKey1("c"));
+        assertEquals("d", table.retrieveByKey2(Long.valueOf(2)));
+    }
+
+    @Test
+    public void testReadReplicas() throws Exception
+    {
+        // A replica that lags behind: it has a mapping the primary doesn't have, and none of the new ones
+        JdbcDataSource replica = newDataSource();
+        DataSourceBridgeTable replicaTable = new DataSourceBridgeTable(replica);
+        replicaTable.init("bridge", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", true);
+        replicaTable.insert("r", Long.valueOf(9));
+        replicaTable.destroy();
+
+        table.destroy();
+        table = new DataSourceBridgeTable(dataSource);
+        table.setReadDataSources(Collections.<DataSource>singletonList(replica));
+        table.setReadAfterWriteWindow(60000);
+        table.init("bridge", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", false);
+
+        // The writer reads its own writes from the primary
+        table.insert("a", Long.valueOf(1));
+        assertTrue(table.containsKey1("a"));
+        assertFalse(table.containsKey1("r"));
+
+        // Other threads read from the replica
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try
+        {
+            assertEquals(Arrays.asList("r"), reader.submit(new Callable<Object>()
+            {
+                @Override
+                public Object call() throws Exception
+                {
+                    assertFalse(table.containsKey1("a"));
+                    assertEquals(Long.valueOf(9), table.retrieveByKey1("r"));
+                    return table.keys1();
+                }
+            }).get());
+        }
+        finally
+        {
+            reader.shutdown();
+        }
+
+        Map<String, Object> statistics = table.getStatistics();
+        assertEquals(Long.valueOf(2), statistics.get("primaryReads"));
+        assertEquals(Long.valueOf(3), statistics.get("replica0.reads"));
+    }
+
+    @Test
+    public void testFailingReplica() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        table.destroy();
+
+        // The replica doesn't have the table, so every read fails there
+        table = new DataSourceBridgeTable(dataSource);
+        table.setReadDataSources(Collections.<DataSource>singletonList(newDataSource()));
+        table.setReadSelection(ReadSelection.LEAST_LATENCY);
+        table.init("bridge", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", false);
+
+        assertEquals(Long.valueOf(1), table.retrieveByKey1("a"));
+        KeyIterator keys = table.iterateKeys1();
+        assertEquals("a", keys.next());
+        keys.close();
+        // The replica is backed off after failing once, so the iteration goes straight to the primary
+        assertEquals(Long.valueOf(1), table.getStatistics().get("replica0.failures"));
+        assertEquals(Long.valueOf(2), table.getStatistics().get("primaryReads"));
+    }
+
+    @Test
+    public void testFailingReplicaIsSkipped() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        table.destroy();
+
+        // The first replica is up to date, the second one doesn't have the table
+        JdbcDataSource replica = newDataSource();
+        DataSourceBridgeTable replicaTable = new DataSourceBridgeTable(replica);
+        replicaTable.init("bridge", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", true);
+        replicaTable.insert("a", Long.valueOf(1));
+        replicaTable.destroy();
+
+        table = new DataSourceBridgeTable(dataSource);
+        table.setReadDataSources(Arrays.<DataSource>asList(replica, newDataSource()));
+        table.init("bridge", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", false);
+
+        // After its first failure the second replica's turns go to the first one
+        for(int i=0; i < 6; i++)
+        {
+            assertEquals(Long.valueOf(1), table.retrieveByKey1("a"));
+        }
+        Map<String, Object> statistics = table.getStatistics();
+        assertEquals(Long.valueOf(5), statistics.get("replica0.reads"));
+        assertEquals(Long.valueOf(1), statistics.get("replica1.reads"));
+        assertEquals(Long.valueOf(1), statistics.get("replica1.failures"));
+        assertEquals(Long.valueOf(1), statistics.get("primaryReads"));
+
+        // Once the back-off is over a single read tries it again
+        Thread.sleep(ReadReplicas.BACK_OFF / 1000000 + 100);
+        for(int i=0; i < 4; i++)
+        {
+            assertEquals(Long.valueOf(1), table.retrieveByKey1("a"));
+        }
+        statistics = table.getStatistics();
+        assertEquals(Long.valueOf(8), statistics.get("replica0.reads"));
+        assertEquals(Long.valueOf(2), statistics.get("replica1.failures"));
+        assertEquals(Long.valueOf(2), statistics.get("primaryReads"));
+    }
+
+    private static JdbcDataSource newDataSource()
+    {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        // Kept until the JVM exits, so the table outlives its connections
+        dataSource.setURL("jdbc:h2:mem:bridge" + (databases++) + ";DB_CLOSE_DELAY=-1");
+        return dataSource;
+    }
+
+    private DataSourceBridgeTable open(boolean autoCreateTable) throws BridgeTableException
+    {
+        DataSourceBridgeTable table = new DataSourceBridgeTable(dataSource);
+        table.init("bridge", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", autoCreateTable);
+        return table;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+public class ExecutorAsyncBridgeTableTest
+{
+    @Test
+    public void testInline() throws Exception
+    {
+        BridgeTable table = new ConcurrentBridgeTable();
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+        AsyncBridgeTable async = new ExecutorAsyncBridgeTable(table, null);
+
+        Future<Void> insert = async.insert("a", "A");
+        assertTrue(insert.isDone());
+        insert.get();
+        assertEquals("A", async.retrieveByKey1("a").get());
+
+        try
+        {
+            async.retrieveByKey2("B").get();
+            fail("Expected ExecutionException");
+        }
+        catch(ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof KeyDoesNotExistException);
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception
+    {
+        // Only on Java 21 and later
+        ExecutorService executor = ExecutorAsyncBridgeTable.newVirtualThreadExecutor();
+        assumeNotNull(executor);
+
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:async;DB_CLOSE_DELAY=-1");
+        DataSourceBridgeTable table = new DataSourceBridgeTable(dataSource);
+        // Virtual threads end after each operation, their connections must go back to the executor
+        table.setPinConnections(true);
+        table.init("testTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", true);
+        try
+        {
+            AsyncBridgeTable async = new ExecutorAsyncBridgeTable(table, executor);
+            List<Future<Void>> inserts = new ArrayList<Future<Void>>();
+            for(int i=0; i < 100; i++)
+            {
+                inserts.add(async.insert("k" + i, Long.valueOf(i)));
+            }
+            for(Future<Void> insert : inserts)
+            {
+                insert.get();
+            }
+            assertEquals(Long.valueOf(42), async.retrieveByKey1("k42").get());
+            assertEquals(100, async.keys1().get().size());
+        }
+        finally
+        {
+            executor.shutdown();
+            table.destroy();
+        }
+    }
+
+    @Test
+    public void testOverlappedLookups() throws Exception
+    {
+        final int lookups = 4;
+        final CountDownLatch running = new CountDownLatch(lookups);
+        // Each lookup only returns once all of them are running at the same time
+        BridgeTable table = new ConcurrentBridgeTable()
+        {
+            @Override
+            public Object retrieveByKey1(Object key1) throws BridgeTableException
+            {
+                running.countDown();
+                try
+                {
+                    if(!running.await(10, TimeUnit.SECONDS))
+                    {
+                        throw new BridgeTableException("The lookups did not overlap");
+                    }
+                }
+                catch(InterruptedException ex)
+                {
+                    throw new BridgeTableException("Interrupted", ex);
+                }
+                return super.retrieveByKey1(key1);
+            }
+        };
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+        for(int i=0; i < lookups; i++)
+        {
+            table.insert("k" + i, "v" + i);
+        }
+
+        ExecutorService executor = ExecutorAsyncBridgeTable.newExecutor("testTable", lookups, 10);
+        try
+        {
+            AsyncBridgeTable async = new ExecutorAsyncBridgeTable(table, executor);
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for(int i=0; i < lookups; i++)
+            {
+                results.add(async.retrieveByKey1("k" + i));
+            }
+            for(int i=0; i < lookups; i++)
+            {
+                assertEquals("v" + i, results.get(i).get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadAfterWriteOnPoolThreads() throws Exception
+    {
+        // A replica that lags behind: it never gets the mappings written to the primary
+        JdbcDataSource replica = new JdbcDataSource();
+        replica.setURL("jdbc:h2:mem:asyncReplica;DB_CLOSE_DELAY=-1");
+        DataSourceBridgeTable replicaTable = new DataSourceBridgeTable(replica);
+        replicaTable.init("testTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", true);
+        replicaTable.destroy();
+
+        JdbcDataSource primary = new JdbcDataSource();
+        primary.setURL("jdbc:h2:mem:asyncPrimary;DB_CLOSE_DELAY=-1");
+        final DataSourceBridgeTable table = new DataSourceBridgeTable(primary);
+        table.setReadDataSources(Collections.<DataSource>singletonList(replica));
+        table.setReadAfterWriteWindow(60000);
+        table.init("testTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", true);
+
+        ExecutorService executor = ExecutorAsyncBridgeTable.newExecutor("testTable", 1, 10);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try
+        {
+            final AsyncBridgeTable async = new ExecutorAsyncBridgeTable(table, executor);
+
+            // The pool thread reads what the caller has just written from the primary
+            table.insert("a", Long.valueOf(1));
+            assertTrue(async.containsKey1("a").get().booleanValue());
+
+            // And the caller reads what it wrote through the pool from the primary too
+            async.insert("b", Long.valueOf(2)).get();
+            assertTrue(table.containsKey1("b"));
+
+            // A thread that didn't write reads from the replica, on the same pool thread
+            assertFalse(other.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws Exception
+                {
+                    return async.containsKey1("a").get();
+                }
+            }).get().booleanValue());
+        }
+        finally
+        {
+            other.shutdown();
+            executor.shutdown();
+            table.destroy();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Counts the connections and statements the executor opens and closes on an in-memory H2 database.
+ */
+public class JdbcExecutorTest
+{
+    private static int databases;
+
+    private final AtomicInteger connectionsOpened = new AtomicInteger();
+    private final AtomicInteger connectionsClosed = new AtomicInteger();
+    private final AtomicInteger statementsPrepared = new AtomicInteger();
+    private final AtomicInteger statementsClosed = new AtomicInteger();
+
+    private DataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:executor" + (databases++) + ";DB_CLOSE_DELAY=-1");
+        dataSource = counting(h2);
+    }
+
+    @Test
+    public void testUnpinnedConnectionsAreReturned() throws Exception
+    {
+        JdbcExecutor executor = new JdbcExecutor(dataSource, false);
+        for(int i=0; i < 5; i++)
+        {
+            assertEquals(Arrays.asList((Object) Integer.valueOf(1)), executor.query("SELECT 1", null));
+        }
+        assertEquals(5, connectionsOpened.get());
+        assertEquals(5, connectionsClosed.get());
+        assertEquals(5, statementsClosed.get());
+    }
+
+    @Test
+    public void testPinnedConnectionIsReused() throws Exception
+    {
+        final JdbcExecutor executor = new JdbcExecutor(dataSource, true);
+        for(int i=0; i < 5; i++)
+        {
+            executor.query("SELECT ?", new Object[] {Integer.valueOf(i)});
+        }
+        assertEquals(1, connectionsOpened.get());
+        assertEquals(1, statementsPrepared.get());
+
+        // Nested work shares the connection of the outer one
+        executor.execute(new JdbcExecutor.Work<Void>()
+        {
+            @Override
+            public Void execute(final JdbcExecutor.Session outer) throws SQLException
+            {
+                executor.execute(new JdbcExecutor.Work<Void>()
+                {
+                    @Override
+                    public Void execute(JdbcExecutor.Session inner) throws SQLException
+                    {
+                        assertSame(outer, inner);
+                        return null;
+                    }
+                });
+                return null;
+            }
+        });
+        assertEquals(1, connectionsOpened.get());
+
+        executor.close();
+        assertEquals(1, connectionsClosed.get());
+        assertEquals(1, statementsClosed.get());
+    }
+
+    @Test
+    public void testPinnedConnectionOutlivesThread() throws Exception
+    {
+        final JdbcExecutor executor = new JdbcExecutor(dataSource, true);
+        for(int i=0; i < 5; i++)
+        {
+            // Every thread runs a single unit of work and ends, the connection goes back to the executor
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        executor.query("SELECT 1", null);
+                    }
+                    catch(SQLException ex)
+                    {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        assertEquals(1, connectionsOpened.get());
+        assertEquals(1, statementsPrepared.get());
+        assertEquals(0, connectionsClosed.get());
+
+        executor.close();
+        assertEquals(1, connectionsClosed.get());
+    }
+
+    @Test
+    public void testStatementCacheEvictsLeastRecentlyUsed() throws Exception
+    {
+        JdbcExecutor executor = new JdbcExecutor(dataSource, true);
+        for(int i=0; i < JdbcExecutor.STATEMENT_CACHE_SIZE; i++)
+        {
+            executor.query("SELECT " + i, null);
+        }
+        // SELECT 0 becomes the most recently used, so the next statement evicts SELECT 1
+        executor.query("SELECT 0", null);
+        executor.query("SELECT " + JdbcExecutor.STATEMENT_CACHE_SIZE, null);
+        assertEquals(JdbcExecutor.STATEMENT_CACHE_SIZE + 1, statementsPrepared.get());
+        assertEquals(1, statementsClosed.get());
+
+        executor.query("SELECT 0", null);
+        assertEquals(JdbcExecutor.STATEMENT_CACHE_SIZE + 1, statementsPrepared.get());
+        executor.query("SELECT 1", null);
+        assertEquals(JdbcExecutor.STATEMENT_CACHE_SIZE + 2, statementsPrepared.get());
+        assertEquals(2, statementsClosed.get());
+
+        executor.close();
+        assertEquals(statementsPrepared.get(), statementsClosed.get());
+    }
+
+    @Test
+    public void testBrokenConnectionIsDiscarded() throws Exception
+    {
+        JdbcExecutor executor = new JdbcExecutor(dataSource, true);
+        executor.query("SELECT 1", null);
+        try
+        {
+            executor.execute(new JdbcExecutor.Work<Void>()
+            {
+                @Override
+                public Void execute(JdbcExecutor.Session session) throws SQLException
+                {
+                    session.getConnection().close();
+                    session.prepare("SELECT 2");
+                    return null;
+                }
+            });
+            fail("Expected SQLException");
+        }
+        catch(SQLException ex)
+        {
+            // The connection was closed
+        }
+
+        // Closed by the work and then once more when discarded
+        assertEquals(2, connectionsClosed.get());
+
+        executor.query("SELECT 1", null);
+        assertEquals(2, connectionsOpened.get());
+        executor.close();
+        assertEquals(3, connectionsClosed.get());
+    }
+
+    @Test
+    public void testIdleConnectionsAreBounded() throws Exception
+    {
+        final JdbcExecutor executor = new JdbcExecutor(dataSource, true);
+        final int workers = JdbcExecutor.MAX_IDLE_SESSIONS + 4;
+        final CountDownLatch started = new CountDownLatch(workers);
+
+        // Every worker holds its connection until all of them have one
+        ExecutorService threads = Executors.newFixedThreadPool(workers);
+        try
+        {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for(int i=0; i < workers; i++)
+            {
+                tasks.add(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        executor.execute(new JdbcExecutor.Work<Void>()
+                        {
+                            @Override
+                            public Void execute(JdbcExecutor.Session session) throws SQLException
+                            {
+                                started.countDown();
+                                try
+                                {
+                                    started.await(10, TimeUnit.SECONDS);
+                                }
+                                catch(InterruptedException ex)
+                                {
+                                    Thread.currentThread().interrupt();
+                                }
+                                return null;
+                            }
+                        });
+                        return null;
+                    }
+                });
+            }
+            for(Future<Void> future : threads.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            threads.shutdownNow();
+        }
+
+        assertEquals(workers, connectionsOpened.get());
+        assertEquals(workers - JdbcExecutor.MAX_IDLE_SESSIONS, connectionsClosed.get());
+
+        // The idle connections are reused
+        executor.query("SELECT 1", null);
+        assertEquals(workers, connectionsOpened.get());
+
+        executor.close();
+        assertEquals(workers, connectionsClosed.get());
+    }
+
+    /*
+     * Wraps the data source so connections and statements are counted
+     */
+    private DataSource counting(final DataSource target)
+    {
+        return proxy(DataSource.class, target, new Interceptor()
+        {
+            public Object intercept(Method method, Object result)
+            {
+                if(method.getName().equals("getConnection"))
+                {
+                    connectionsOpened.incrementAndGet();
+                    return proxy(Connection.class, result, new Interceptor()
+                    {
+                        public Object intercept(Method method, Object result)
+                        {
+                            if(method.getName().equals("close"))
+                            {
+                                connectionsClosed.incrementAndGet();
+                            }
+                            else if(method.getName().equals("prepareStatement"))
+                            {
+                                statementsPrepared.incrementAndGet();
+                                return proxy(PreparedStatement.class, result, new Interceptor()
+                                {
+                                    public Object intercept(Method method, Object result)
+                                    {
+                                        if(method.getName().equals("close"))
+                                        {
+                                            statementsClosed.incrementAndGet();
+                                        }
+                                        return result;
+                                    }
+                                });
+                            }
+                            return result;
+                        }
+                    });
+                }
+                return result;
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, final Object target, final Interceptor interceptor)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                try
+                {
+                    return interceptor.intercept(method, method.invoke(target, args));
+                }
+                catch(InvocationTargetException ex)
+                {
+                    throw ex.getCause();
+                }
+            }
+        }));
+    }
+
+    private interface Interceptor
+    {
+        Object intercept(Method method, Object result);
+    }
+}
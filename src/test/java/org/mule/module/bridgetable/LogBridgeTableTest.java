@@ -0,0 +1,229 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogBridgeTableTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecoverAfterRestart() throws Exception
+    {
+        BridgeTable table = open();
+        table.insert("a", Integer.valueOf(1));
+        table.insert("b", Integer.valueOf(2));
+        table.insert("c", Integer.valueOf(3));
+        table.updateByKey1("a", Integer.valueOf(4));
+        table.updateByKey2(Integer.valueOf(2), "d");
+        table.removeByKey1("c");
+        table.destroy();
+
+        table = open();
+        assertEquals(Integer.valueOf(4), table.retrieveByKey1("a"));
+        assertEquals("d", table.retrieveByKey2(Integer.valueOf(2)));
+        assertFalse(table.containsKey1("b"));
+        assertFalse(table.containsKey1("c"));
+        assertFalse(table.containsKey2(Integer.valueOf(1)));
+        assertEquals(2, table.keys1().size());
+        assertEquals(2, table.keys2().size());
+
+        table.insert("e", Integer.valueOf(5));
+        table.destroy();
+
+        table = open();
+        assertTrue(table.containsKey1("e"));
+        table.destroy();
+    }
+
+    @Test
+    public void testDiscardTornRecord() throws Exception
+    {
+        LogBridgeTable table = open();
+        table.insert("a", Integer.valueOf(1));
+        table.insert("b", Integer.valueOf(2));
+        table.destroy();
+
+        File log = table.getLogFile();
+        long length = log.length();
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.setLength(length - 3);
+        file.close();
+
+        table = open();
+        assertTrue(table.containsKey1("a"));
+        assertFalse(table.containsKey1("b"));
+
+        table.insert("c", Integer.valueOf(3));
+        table.destroy();
+
+        table = open();
+        assertTrue(table.containsKey1("a"));
+        assertTrue(table.containsKey1("c"));
+        table.destroy();
+    }
+
+    @Test
+    public void testRecoverAfterCompaction() throws Exception
+    {
+        LogBridgeTable table = open();
+        for(int i=0; i < 100; i++)
+        {
+            table.insert("key" + i, Integer.valueOf(i));
+        }
+        for(int i=0; i < 100; i += 2)
+        {
+            table.removeByKey1("key" + i);
+        }
+        table.compact();
+        table.updateByKey1("key1", Integer.valueOf(1000));
+        table.insert("key0", Integer.valueOf(0));
+        table.destroy();
+
+        assertEquals(2, folder.getRoot().list().length);
+
+        table = open();
+        assertEquals(51, table.keys1().size());
+        assertEquals("key1", table.retrieveByKey2(Integer.valueOf(1000)));
+        assertEquals(Integer.valueOf(0), table.retrieveByKey1("key0"));
+        assertFalse(table.containsKey1("key2"));
+        assertEquals(Integer.valueOf(99), table.retrieveByKey1("key99"));
+        table.destroy();
+    }
+
+    @Test
+    public void testDurabilityStatistics() throws Exception
+    {
+        LogBridgeTable table = new LogBridgeTable(folder.getRoot());
+        table.setDurabilityMode(DurabilityMode.ALWAYS);
+        table.init("testTable", KeyType.STRING, KeyType.INT_NUMBER, "key1", "key2", false);
+        for(int i=0; i < 10; i++)
+        {
+            table.insert("key" + i, Integer.valueOf(i));
+        }
+        table.removeByKey2(Integer.valueOf(0));
+
+        Map<String, Object> statistics = table.getStatistics();
+        assertEquals("ALWAYS", statistics.get("durabilityMode"));
+        assertEquals(Long.valueOf(11), statistics.get("syncWaits"));
+        assertEquals(Long.valueOf(11), statistics.get("flushCount"));
+        table.destroy();
+    }
+
+    @Test
+    public void testInsertAll() throws Exception
+    {
+        LogBridgeTable table = new LogBridgeTable(folder.getRoot());
+        table.setDurabilityMode(DurabilityMode.ALWAYS);
+        table.init("testTable", KeyType.STRING, KeyType.INT_NUMBER, "key1", "key2", false);
+        table.insert("a", Integer.valueOf(1));
+
+        Map<Object, Object> pairs = new LinkedHashMap<Object, Object>();
+        pairs.put("a", Integer.valueOf(10));
+        pairs.put("b", Integer.valueOf(2));
+        pairs.put("c", Integer.valueOf(1));
+        pairs.put("d", Integer.valueOf(4));
+        pairs.put("e", Integer.valueOf(4));
+        Map<Object, Object> conflicts = table.insertAll(pairs);
+
+        assertEquals(3, conflicts.size());
+        assertEquals(Integer.valueOf(10), conflicts.get("a"));
+        assertEquals(Integer.valueOf(1), conflicts.get("c"));
+        assertEquals(Integer.valueOf(4), conflicts.get("e"));
+
+        // The whole call waits for a single force
+        assertEquals(Long.valueOf(2), table.getStatistics().get("flushCount"));
+        table.destroy();
+
+        table = open();
+        assertEquals(3, table.keys1().size());
+        assertEquals("b", table.retrieveByKey2(Integer.valueOf(2)));
+        assertEquals("d", table.retrieveByKey2(Integer.valueOf(4)));
+        table.destroy();
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception
+    {
+        final LogBridgeTable table = new LogBridgeTable(folder.getRoot());
+        table.setGroupCommitWindow(10000);
+        table.init("testTable", KeyType.STRING, KeyType.INT_NUMBER, "key1", "key2", false);
+        table.insert("a", Integer.valueOf(1));
+
+        // The second insert conflicts, so the first one is undone
+        try
+        {
+            table.executeBatch(Arrays.asList(
+                new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, "b", Integer.valueOf(2)),
+                new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, "c", Integer.valueOf(1))));
+            fail("Expected KeyAlreadyExistsException");
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            // Expected
+        }
+        assertFalse(table.containsKey1("b"));
+        assertEquals(Long.valueOf(2), table.getStatistics().get("syncWaits"));
+
+        // The failed batch is not counted as a write in progress, so a lone writer doesn't wait for the window
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try
+        {
+            long elapsed = writer.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws Exception
+                {
+                    long start = System.currentTimeMillis();
+                    table.insert("d", Integer.valueOf(4));
+                    return Long.valueOf(System.currentTimeMillis() - start);
+                }
+            }).get().longValue();
+            assertTrue(elapsed < 5000);
+        }
+        finally
+        {
+            writer.shutdown();
+        }
+        table.destroy();
+
+        LogBridgeTable reopened = open();
+        assertEquals(2, reopened.keys1().size());
+        assertFalse(reopened.containsKey1("b"));
+        assertEquals("d", reopened.retrieveByKey2(Integer.valueOf(4)));
+        reopened.destroy();
+    }
+
+    private LogBridgeTable open() throws Exception
+    {
+        LogBridgeTable table = new LogBridgeTable(folder.getRoot());
+        table.init("testTable", KeyType.STRING, KeyType.INT_NUMBER, "key1", "key2", false);
+        return table;
+    }
+}
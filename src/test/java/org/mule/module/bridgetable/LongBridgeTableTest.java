@@ -0,0 +1,298 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LongBridgeTableTest
+{
+    private BridgeTable table;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        table = new LongBridgeTable();
+        table.init("testTable", KeyType.LONG_NUMBER, KeyType.INT_NUMBER, "key1", "key2", false);
+    }
+
+    @Test
+    public void testInsertAndRetrieve() throws Exception
+    {
+        for(int i=0; i < 10000; i++)
+        {
+            table.insert(Long.valueOf(i), Integer.valueOf(-i));
+        }
+
+        for(int i=0; i < 10000; i++)
+        {
+            assertEquals(Integer.valueOf(-i), table.retrieveByKey1(Long.valueOf(i)));
+            assertEquals(Long.valueOf(i), table.retrieveByKey2(Integer.valueOf(-i)));
+        }
+        assertEquals(10000, table.keys1().size());
+        assertEquals(10000, table.keys2().size());
+    }
+
+    @Test
+    public void testIterateKeys() throws Exception
+    {
+        // Long.MIN_VALUE is stored apart, as it's the free slot marker
+        table.insert(Long.valueOf(Long.MIN_VALUE), Integer.valueOf(0));
+        for(int i=1; i < 1000; i++)
+        {
+            table.insert(Long.valueOf(i), Integer.valueOf(i));
+        }
+
+        Set<Object> keys = new HashSet<Object>();
+        KeyIterator it = table.iterateKeys1();
+        while(it.hasNext())
+        {
+            assertTrue(keys.add(it.next()));
+        }
+        assertEquals(1000, keys.size());
+        assertTrue(keys.contains(Long.valueOf(Long.MIN_VALUE)));
+        assertTrue(keys.contains(Long.valueOf(999)));
+        assertEquals(new HashSet<Object>(table.keys2()), toSet(table.iterateKeys2()));
+    }
+
+    @Test
+    public void testKeysPage() throws Exception
+    {
+        for(int i=0; i < 1000; i++)
+        {
+            table.insert(Long.valueOf(i * 7 % 1000), Integer.valueOf(i));
+        }
+
+        List<Object> walked = new ArrayList<Object>();
+        List<Object> page = table.keys1Page(null, 300);
+        while(true)
+        {
+            walked.addAll(page);
+            if(page.size() < 300)
+            {
+                break;
+            }
+            page = table.keys1Page(page.get(page.size() - 1), 300);
+        }
+        assertEquals(1000, walked.size());
+        for(int i=0; i < 1000; i++)
+        {
+            assertEquals(Long.valueOf(i), walked.get(i));
+        }
+
+        assertEquals(Arrays.asList((Object) Integer.valueOf(998), Integer.valueOf(999)), table.keys2Page(Integer.valueOf(997), 10));
+    }
+
+    @Test
+    public void testKeysPageAfterWrites() throws Exception
+    {
+        TreeSet<Long> expected = new TreeSet<Long>();
+        table.insert(Long.valueOf(Long.MIN_VALUE), Integer.valueOf(-1));
+        expected.add(Long.valueOf(Long.MIN_VALUE));
+        assertEquals(Arrays.asList((Object) Long.valueOf(Long.MIN_VALUE)), table.keys1Page(null, 10));
+
+        // Enough writes between pages for the pending ones to be merged into the sorted keys several times
+        Random random = new Random(1);
+        for(int round=0; round < 20; round++)
+        {
+            for(int i=0; i < 500; i++)
+            {
+                Long key1 = Long.valueOf(random.nextInt(3000) - 1000);
+                if(expected.remove(key1))
+                {
+                    table.removeByKey1(key1);
+                }
+                else
+                {
+                    table.insert(key1, Integer.valueOf(round * 1000 + i));
+                    expected.add(key1);
+                }
+            }
+
+            List<Object> walked = new ArrayList<Object>();
+            List<Object> page = table.keys1Page(null, 97);
+            while(!page.isEmpty())
+            {
+                walked.addAll(page);
+                page = table.keys1Page(page.get(page.size() - 1), 97);
+            }
+            assertEquals(new ArrayList<Object>(expected), walked);
+
+            List<Object> tail = new ArrayList<Object>(expected.tailSet(Long.valueOf(random.nextInt(3000) - 1000), false));
+            Object after = walked.get(walked.size() - tail.size() - 1);
+            assertEquals(tail.subList(0, Math.min(5, tail.size())), table.keys1Page(after, 5));
+        }
+    }
+
+    @Test
+    public void testRemoveKeepsProbeSequences() throws Exception
+    {
+        for(int i=0; i < 1000; i++)
+        {
+            table.insert(Long.valueOf(i), Integer.valueOf(i));
+        }
+        for(int i=0; i < 1000; i += 2)
+        {
+            table.removeByKey1(Long.valueOf(i));
+        }
+
+        for(int i=0; i < 1000; i++)
+        {
+            assertEquals(i % 2 != 0, table.containsKey1(Long.valueOf(i)));
+            assertEquals(i % 2 != 0, table.containsKey2(Integer.valueOf(i)));
+        }
+    }
+
+    @Test
+    public void testMinValueKey() throws Exception
+    {
+        table.insert(Long.MIN_VALUE, Integer.valueOf(1));
+        assertTrue(table.containsKey1(Long.MIN_VALUE));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), table.retrieveByKey2(Integer.valueOf(1)));
+
+        table.updateByKey2(Integer.valueOf(1), Long.valueOf(2));
+        assertFalse(table.containsKey1(Long.MIN_VALUE));
+        assertEquals(Integer.valueOf(1), table.retrieveByKey1(Long.valueOf(2)));
+    }
+
+    @Test(expected=KeyAlreadyExistsException.class)
+    public void testUpdateToExistingKey() throws Exception
+    {
+        table.insert(Long.valueOf(1), Integer.valueOf(1));
+        table.insert(Long.valueOf(2), Integer.valueOf(2));
+        table.updateByKey1(Long.valueOf(1), Integer.valueOf(2));
+    }
+
+    @Test(expected=KeyDoesNotExistException.class)
+    public void testRetrieveMissingKey() throws Exception
+    {
+        table.retrieveByKey1(Long.valueOf(42));
+    }
+
+    @Test
+    public void testUpsert() throws Exception
+    {
+        table.upsertByKey1(Long.valueOf(1), Integer.valueOf(10));
+        table.upsertByKey1(Long.valueOf(1), Integer.valueOf(11));
+        assertEquals(Integer.valueOf(11), table.retrieveByKey1(Long.valueOf(1)));
+        assertFalse(table.containsKey2(Integer.valueOf(10)));
+
+        table.upsertByKey2(Integer.valueOf(11), Long.valueOf(2));
+        assertEquals(Long.valueOf(2), table.retrieveByKey2(Integer.valueOf(11)));
+        assertFalse(table.containsKey1(Long.valueOf(1)));
+        assertEquals(1, table.keys1().size());
+    }
+
+    @Test(expected=KeyAlreadyExistsException.class)
+    public void testUpsertToKeyOfAnotherMapping() throws Exception
+    {
+        table.insert(Long.valueOf(1), Integer.valueOf(10));
+        table.upsertByKey1(Long.valueOf(2), Integer.valueOf(10));
+    }
+
+    @Test
+    public void testBatch() throws Exception
+    {
+        table.insert(Long.valueOf(1), Integer.valueOf(10));
+        table.insert(Long.valueOf(2), Integer.valueOf(20));
+
+        List<BridgeTableOperation> operations = new ArrayList<BridgeTableOperation>();
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.REMOVE_BY_KEY1, Long.valueOf(1), null));
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, Long.valueOf(3), Integer.valueOf(10)));
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.UPDATE_BY_KEY1, Long.valueOf(2), Integer.valueOf(21)));
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.UPSERT_BY_KEY2, Long.valueOf(4), Integer.valueOf(40)));
+        // Conflicts with the update above, so the whole batch is reverted
+        operations.add(new BridgeTableOperation(BridgeTableOperation.Kind.INSERT, Long.valueOf(5), Integer.valueOf(21)));
+        try
+        {
+            table.executeBatch(operations);
+            fail("Expected KeyAlreadyExistsException");
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            // Expected
+        }
+        assertEquals(Integer.valueOf(10), table.retrieveByKey1(Long.valueOf(1)));
+        assertEquals(Integer.valueOf(20), table.retrieveByKey1(Long.valueOf(2)));
+        assertEquals(2, table.keys1().size());
+        assertEquals(new HashSet<Object>(Arrays.asList(Integer.valueOf(10), Integer.valueOf(20))), new HashSet<Object>(table.keys2()));
+
+        table.executeBatch(operations.subList(0, 4));
+        assertEquals(Long.valueOf(3), table.retrieveByKey2(Integer.valueOf(10)));
+        assertEquals(Integer.valueOf(21), table.retrieveByKey1(Long.valueOf(2)));
+        assertEquals(Long.valueOf(4), table.retrieveByKey2(Integer.valueOf(40)));
+        assertFalse(table.containsKey1(Long.valueOf(1)));
+    }
+
+    @Test
+    public void testNonIntegralKeys() throws Exception
+    {
+        table.insert(Double.valueOf(1.0), new BigDecimal("2.00"));
+        assertEquals(Integer.valueOf(2), table.retrieveByKey1(Long.valueOf(1)));
+        try
+        {
+            table.insert(Double.valueOf(1.5), Integer.valueOf(3));
+            fail("Expected BridgeTableException");
+        }
+        catch(BridgeTableException ex)
+        {
+            // Not truncated to 1
+        }
+        assertFalse(table.containsKey2(Integer.valueOf(3)));
+    }
+
+    @Test
+    public void testNullKeys() throws Exception
+    {
+        try
+        {
+            table.insert(null, Integer.valueOf(1));
+            fail("Expected BridgeTableException");
+        }
+        catch(BridgeTableException ex)
+        {
+            // Numeric tables that must accept null keys are kept in a ConcurrentBridgeTable
+        }
+
+        InMemoryBridgeTable inMemory = new InMemoryBridgeTable();
+        inMemory.setNullKeys(true);
+        inMemory.init("testTable", KeyType.LONG_NUMBER, KeyType.INT_NUMBER, "key1", "key2", false);
+        inMemory.insert(null, Integer.valueOf(1));
+        inMemory.insert(Long.valueOf(2), null);
+        assertEquals(Integer.valueOf(1), inMemory.retrieveByKey1(null));
+        assertEquals(Long.valueOf(2), inMemory.retrieveByKey2(null));
+        inMemory.destroy();
+    }
+
+    private static Set<Object> toSet(KeyIterator it)
+    {
+        Set<Object> keys = new HashSet<Object>();
+        while(it.hasNext())
+        {
+            keys.add(it.next());
+        }
+        return keys;
+    }
+}
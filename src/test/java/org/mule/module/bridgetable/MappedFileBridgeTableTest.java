@@ -0,0 +1,119 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFileBridgeTableTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReopen() throws Exception
+    {
+        MappedFileBridgeTable table = open(1.0f);
+        table.insert("a", Long.valueOf(1));
+        table.insert("b", Long.valueOf(2));
+        table.updateByKey1("a", Long.valueOf(3));
+        table.removeByKey2(Long.valueOf(2));
+        table.destroy();
+
+        table = open(1.0f);
+        assertEquals(Long.valueOf(3), table.retrieveByKey1("a"));
+        assertFalse(table.containsKey1("b"));
+        assertFalse(table.containsKey2(Long.valueOf(1)));
+        assertEquals(1, table.keys2().size());
+        table.destroy();
+    }
+
+    @Test
+    public void testGrowth() throws Exception
+    {
+        MappedFileBridgeTable table = open(2.0f);
+        for(int i=0; i < 5000; i++)
+        {
+            table.insert("key" + i, Long.valueOf(i));
+        }
+        assertTrue(table.getCapacity() >= 5000);
+        table.destroy();
+
+        table = open(2.0f);
+        assertEquals(5000, table.keys1().size());
+        assertEquals("key4999", table.retrieveByKey2(Long.valueOf(4999)));
+        table.destroy();
+    }
+
+    @Test(expected=BridgeTableException.class)
+    public void testFixedCapacity() throws Exception
+    {
+        MappedFileBridgeTable table = open(1.0f);
+        try
+        {
+            for(int i=0; i <= 1000; i++)
+            {
+                table.insert("key" + i, Long.valueOf(i));
+            }
+        }
+        finally
+        {
+            table.destroy();
+        }
+    }
+
+    @Test(expected=BridgeTableException.class)
+    public void testLongKeyOutOfIntRange() throws Exception
+    {
+        MappedFileBridgeTable table = new MappedFileBridgeTable(new File(folder.getRoot(), "numbers.table"));
+        table.init("numbers", KeyType.STRING, KeyType.INT_NUMBER, "key1", "key2", false);
+        try
+        {
+            // Would be stored as 1
+            table.insert("a", Long.valueOf(4294967297L));
+        }
+        finally
+        {
+            table.destroy();
+        }
+    }
+
+    @Test
+    public void testRepairAfterCrash() throws Exception
+    {
+        MappedFileBridgeTable table = open(2.0f);
+        table.insert("a", Long.valueOf(1));
+        table.insert("b", Long.valueOf(2));
+
+        // Not destroyed, as if the process had died
+        MappedFileBridgeTable reopened = open(2.0f);
+        assertEquals(Long.valueOf(1), reopened.retrieveByKey1("a"));
+        assertEquals("b", reopened.retrieveByKey2(Long.valueOf(2)));
+        assertEquals(2, reopened.getSize());
+        reopened.destroy();
+    }
+
+    private MappedFileBridgeTable open(float growthFactor) throws Exception
+    {
+        MappedFileBridgeTable table = new MappedFileBridgeTable(new File(folder.getRoot(), "testTable.table"));
+        table.setInitialCapacity(1000);
+        table.setGrowthFactor(growthFactor);
+        table.init("testTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", false);
+        return table;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapBridgeTableTest
+{
+    private BridgeTable table;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        table = new OffHeapBridgeTable(100);
+        table.init("testTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", false);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        table.destroy();
+    }
+
+    @Test
+    public void testInsertAndRetrieve() throws Exception
+    {
+        table.insert("caf\u00e9", Long.valueOf(1));
+        table.insert("\u65e5\u672c", Long.valueOf(2));
+
+        assertEquals(Long.valueOf(1), table.retrieveByKey1("caf\u00e9"));
+        assertEquals("\u65e5\u672c", table.retrieveByKey2(Long.valueOf(2)));
+        assertFalse(table.containsKey1("cafe"));
+        assertEquals(2, table.keys1().size());
+    }
+
+    @Test
+    public void testUpdateAndRemove() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        table.updateByKey1("a", Long.valueOf(2));
+
+        assertFalse(table.containsKey2(Long.valueOf(1)));
+        assertEquals("a", table.retrieveByKey2(Long.valueOf(2)));
+
+        table.updateByKey2(Long.valueOf(2), "b");
+        assertFalse(table.containsKey1("a"));
+        assertTrue(table.containsKey1("b"));
+
+        table.removeByKey2(Long.valueOf(2));
+        assertFalse(table.containsKey1("b"));
+        assertTrue(table.keys2().isEmpty());
+    }
+
+    @Test
+    public void testRetrieveAll() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        table.insert("b", Long.valueOf(2));
+        table.insert("c", Long.valueOf(3));
+
+        Map<Object, Object> found = table.retrieveAllByKey1(Arrays.asList("c", "x", "a"));
+        assertEquals(2, found.size());
+        assertEquals(Long.valueOf(3), found.get("c"));
+        assertEquals(Long.valueOf(1), found.get("a"));
+
+        found = table.retrieveAllByKey2(Arrays.asList(Long.valueOf(2), Long.valueOf(4)));
+        assertEquals(1, found.size());
+        assertEquals("b", found.get(Long.valueOf(2)));
+    }
+
+    @Test
+    public void testRetrieveOrDefault() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+
+        assertEquals(Long.valueOf(1), table.retrieveByKey1OrDefault("a", Long.valueOf(-1)));
+        assertEquals(Long.valueOf(-1), table.retrieveByKey1OrDefault("x", Long.valueOf(-1)));
+        assertEquals("a", table.retrieveByKey2OrDefault(Long.valueOf(1), null));
+        assertNull(table.retrieveByKey2OrDefault(Long.valueOf(2), null));
+    }
+
+    @Test
+    public void testIterateKeys() throws Exception
+    {
+        // Big enough for the index to be walked in several chunks
+        BridgeTable big = new OffHeapBridgeTable(5000);
+        big.init("bigTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", false);
+        try
+        {
+            for(int i=0; i < 5000; i++)
+            {
+                big.insert("k" + i, Long.valueOf(i));
+            }
+
+            Set<Object> keys = new HashSet<Object>();
+            KeyIterator it = big.iterateKeys1();
+            while(it.hasNext())
+            {
+                assertTrue(keys.add(it.next()));
+            }
+            assertEquals(new HashSet<Object>(big.keys1()), keys);
+
+            it = big.iterateKeys2();
+            assertTrue(it.hasNext());
+            it.close();
+            assertFalse(it.hasNext());
+        }
+        finally
+        {
+            big.destroy();
+        }
+    }
+
+    @Test
+    public void testNumbersAreNotNarrowed() throws Exception
+    {
+        BridgeTable numbers = new OffHeapBridgeTable(100);
+        numbers.init("numbers", KeyType.INT_NUMBER, KeyType.LONG_NUMBER, "key1", "key2", false);
+        try
+        {
+            // 2^32 + 1 would be stored as 1, and 1.5 as 1
+            Object[][] rejected = {{Long.valueOf(4294967297L), Long.valueOf(1)},
+                                   {Integer.valueOf(2), new BigDecimal("1.5")},
+                                   {"x", Long.valueOf(3)}};
+            for(Object[] row : rejected)
+            {
+                try
+                {
+                    numbers.insert(row[0], row[1]);
+                    fail("Expected BridgeTableException for " + Arrays.asList(row));
+                }
+                catch(BridgeTableException ex)
+                {
+                    // Expected
+                }
+            }
+            assertTrue(numbers.keys1().isEmpty());
+            assertFalse(numbers.containsKey1(Integer.valueOf(1)));
+
+            // Whole numbers within range are stored whatever their Java type
+            numbers.insert(Long.valueOf(1), new BigDecimal("2.0"));
+            assertEquals(Long.valueOf(2), numbers.retrieveByKey1(Integer.valueOf(1)));
+            assertEquals(Integer.valueOf(1), numbers.retrieveByKey2("2"));
+        }
+        finally
+        {
+            numbers.destroy();
+        }
+    }
+
+    @Test(expected=BridgeTableException.class)
+    public void testCapacity() throws Exception
+    {
+        for(int i=0; i <= 100; i++)
+        {
+            table.insert("key" + i, Long.valueOf(i));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+/**
+ * Runs the JDBC bridge table against the PostgreSQL database given by the <code>bridgetable.postgresql.url</code>
+ * system property (e.g. <code>jdbc:postgresql://localhost/test?user=test</code>), skipped when it's not set.
+ */
+public class PostgreSQLBridgeTableTest
+{
+    private PGSimpleDataSource dataSource;
+    private DataSourceBridgeTable table;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        String url = System.getProperty("bridgetable.postgresql.url");
+        assumeNotNull(url);
+
+        dataSource = new PGSimpleDataSource();
+        dataSource.setUrl(url);
+        Connection conn = dataSource.getConnection();
+        try
+        {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("DROP TABLE IF EXISTS bridge_test");
+            stmt.executeUpdate("DROP TABLE IF EXISTS bridge_test_decimal");
+            stmt.close();
+        }
+        finally
+        {
+            conn.close();
+        }
+        table = open(true);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if(table != null)
+        {
+            table.destroy();
+        }
+    }
+
+    @Test
+    public void testUpsert() throws Exception
+    {
+        table.upsertByKey1("a", Long.valueOf(1));
+        table.upsertByKey1("a", Long.valueOf(2));
+        table.upsertByKey2(Long.valueOf(3), "b");
+        table.upsertByKey2(Long.valueOf(3), "c");
+        assertEquals(Long.valueOf(2), table.retrieveByKey1("a"));
+        assertEquals("c", table.retrieveByKey2(Long.valueOf(3)));
+        assertFalse(table.containsKey1("b"));
+
+        try
+        {
+            // 3 belongs to c
+            table.upsertByKey1("a", Long.valueOf(3));
+            fail("Expected KeyAlreadyExistsException");
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            // Expected
+        }
+        assertEquals(Long.valueOf(2), table.retrieveByKey1("a"));
+    }
+
+    @Test
+    public void testBulkInsert() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        Map<Object, Object> pairs = new LinkedHashMap<Object, Object>();
+        for(int i=0; i < 5000; i++)
+        {
+            pairs.put("k" + i, Long.valueOf(i + 10));
+        }
+        pairs.put("tab\tand\\backslash\nand newline", Long.valueOf(2));
+        pairs.put("b", Long.valueOf(1));
+        pairs.put("a", Long.valueOf(3));
+        pairs.put("c", Long.valueOf(10));
+
+        Map<Object, Object> conflicts = table.insertAll(pairs);
+        assertEquals(3, conflicts.size());
+        assertTrue(conflicts.containsKey("a"));
+        assertTrue(conflicts.containsKey("b"));
+        // k0 came first
+        assertTrue(conflicts.containsKey("c"));
+        assertEquals("k0", table.retrieveByKey2(Long.valueOf(10)));
+        assertEquals(Long.valueOf(2), table.retrieveByKey1("tab\tand\\backslash\nand newline"));
+        assertEquals(5002, table.keys1().size());
+
+        // Read through a cursor, fetchSize rows at a time
+        table.setFetchSize(100);
+        int count = 0;
+        KeyIterator iterator = table.iterateKeys2();
+        while(iterator.hasNext())
+        {
+            iterator.next();
+            count++;
+        }
+        assertEquals(5002, count);
+    }
+
+    @Test
+    public void testBulkInsertNullKey() throws Exception
+    {
+        Map<Object, Object> pairs = new LinkedHashMap<Object, Object>();
+        pairs.put("a", Long.valueOf(1));
+        pairs.put(null, Long.valueOf(2));
+        try
+        {
+            // Sent as NULL, not as the text "null", so the column rejects it
+            table.insertAll(pairs);
+            fail("Expected BridgeTableException");
+        }
+        catch(BridgeTableException ex)
+        {
+            // Expected
+        }
+        assertFalse(table.containsKey1("null"));
+        assertFalse(table.containsKey2(Long.valueOf(2)));
+    }
+
+    @Test
+    public void testBulkInsertMatchesConflictsByRow() throws Exception
+    {
+        table.destroy();
+        table = new DataSourceBridgeTable(dataSource);
+        table.init("BRIDGE_TEST_DECIMAL", KeyType.DECIMAL_NUMBER, KeyType.LONG_NUMBER, "key1", "key2", true);
+        table.insert(new BigDecimal("2"), Long.valueOf(2));
+
+        // Read back as 1.5 and 3.0, which don't print as the keys that were sent
+        Map<Object, Object> pairs = new LinkedHashMap<Object, Object>();
+        pairs.put(new BigDecimal("1.50"), Long.valueOf(1));
+        pairs.put(new BigDecimal("3"), Long.valueOf(3));
+        pairs.put(new BigDecimal("4"), Long.valueOf(2));
+
+        Map<Object, Object> conflicts = table.insertAll(pairs);
+        assertEquals(1, conflicts.size());
+        assertEquals(Long.valueOf(2), conflicts.get(new BigDecimal("4")));
+        assertTrue(table.containsKey2(Long.valueOf(1)));
+        assertTrue(table.containsKey2(Long.valueOf(3)));
+    }
+
+    @Test
+    public void testExistingTable() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        table.destroy();
+
+        table = open(false);
+        assertTrue(table.containsKey1("a"));
+    }
+
+    private DataSourceBridgeTable open(boolean autoCreateTable) throws BridgeTableException
+    {
+        DataSourceBridgeTable table = new DataSourceBridgeTable(dataSource);
+        table.init("BRIDGE_TEST", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", autoCreateTable);
+        return table;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedBridgeTableTest
+{
+    private List<BridgeTable> shards;
+    private ShardedBridgeTable table;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        shards = new ArrayList<BridgeTable>();
+        for(int i=0; i < 3; i++)
+        {
+            shards.add(new ConcurrentBridgeTable());
+        }
+        table = new ShardedBridgeTable(shards);
+        table.init("testTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", false);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        table.destroy();
+    }
+
+    @Test
+    public void testSameAsSingleTable() throws Exception
+    {
+        Random random = new Random(1);
+        Map<String, Long> expected = new HashMap<String, Long>();
+        for(int i=0; i < 5000; i++)
+        {
+            String key1 = "k" + random.nextInt(100);
+            Long key2 = Long.valueOf(random.nextInt(200));
+            boolean taken = expected.containsValue(key2) && !key2.equals(expected.get(key1));
+            try
+            {
+                switch(random.nextInt(4))
+                {
+                    case 0:
+                        table.insert(key1, key2);
+                        assertFalse(expected.containsKey(key1) || expected.containsValue(key2));
+                        expected.put(key1, key2);
+                        break;
+                    case 1:
+                        table.updateByKey1(key1, key2);
+                        assertTrue(expected.containsKey(key1) && !taken);
+                        expected.put(key1, key2);
+                        break;
+                    case 2:
+                        String owner = (String) table.retrieveByKey2OrDefault(key2, null);
+                        if(owner != null && !expected.containsKey(key1))
+                        {
+                            table.updateByKey2(key2, key1);
+                            expected.remove(owner);
+                            expected.put(key1, key2);
+                        }
+                        break;
+                    default:
+                        table.removeByKey1(key1);
+                        assertTrue(expected.remove(key1) != null);
+                        break;
+                }
+            }
+            catch(KeyAlreadyExistsException ex)
+            {
+                assertTrue(expected.containsKey(key1) || taken);
+            }
+            catch(KeyDoesNotExistException ex)
+            {
+                assertFalse(expected.containsKey(key1));
+            }
+        }
+
+        for(Map.Entry<String, Long> entry : expected.entrySet())
+        {
+            assertEquals(entry.getValue(), table.retrieveByKey1(entry.getKey()));
+            assertEquals(entry.getKey(), table.retrieveByKey2(entry.getValue()));
+        }
+        assertEquals(expected.size(), table.keys1().size());
+        assertEquals(expected.keySet(), new HashSet<Object>(table.keys1()));
+        assertEquals(new HashSet<Object>(expected.values()), new HashSet<Object>(table.keys2()));
+
+        // Every mapping is in one or two shards
+        int rows = 0;
+        for(BridgeTable shard : shards)
+        {
+            rows += shard.keys1().size();
+        }
+        assertTrue(rows >= expected.size() && rows <= 2 * expected.size());
+    }
+
+    @Test
+    public void testInsertAllAndPages() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        Map<Object, Object> pairs = new LinkedHashMap<Object, Object>();
+        for(int i=0; i < 50; i++)
+        {
+            pairs.put("k" + (char) ('a' + i % 26) + i, Long.valueOf(i + 10));
+        }
+        pairs.put("b", Long.valueOf(1));
+        pairs.put("a", Long.valueOf(2));
+        Map<Object, Object> conflicts = table.insertAll(pairs);
+        assertEquals(Arrays.asList((Object) "b", "a"), new ArrayList<Object>(conflicts.keySet()));
+        assertFalse(table.containsKey1("b"));
+        assertFalse(table.containsKey2(Long.valueOf(2)));
+        assertEquals(51, table.retrieveAllByKey1(table.keys1()).size());
+
+        TreeSet<Object> sorted = new TreeSet<Object>(table.keys1());
+        List<Object> paged = new ArrayList<Object>();
+        List<Object> page = table.keys1Page(null, 7);
+        while(!page.isEmpty())
+        {
+            paged.addAll(page);
+            page = table.keys1Page(page.get(page.size() - 1), 7);
+        }
+        assertEquals(new ArrayList<Object>(sorted), paged);
+
+        int count = 0;
+        KeyIterator keys = table.iterateKeys2();
+        while(keys.hasNext())
+        {
+            keys.next();
+            count++;
+        }
+        assertEquals(51, count);
+    }
+
+    @Test
+    public void testTakenKeyLeavesNoTrace() throws Exception
+    {
+        table.insert("a", Long.valueOf(1));
+        for(int i=0; i < 20; i++)
+        {
+            try
+            {
+                table.insert("b" + i, Long.valueOf(1));
+                fail("Expected KeyAlreadyExistsException");
+            }
+            catch(KeyAlreadyExistsException ex)
+            {
+                assertFalse(table.containsKey1("b" + i));
+            }
+        }
+        for(BridgeTable shard : shards)
+        {
+            assertTrue(shard.keys1().size() <= 1);
+        }
+    }
+
+    @Test
+    public void testReadAfterWriteOnShardThreads() throws Exception
+    {
+        List<BridgeTable> replicated = new ArrayList<BridgeTable>();
+        for(int i=0; i < 2; i++)
+        {
+            // A replica that lags behind: it never gets the mappings written to the primary
+            JdbcDataSource replica = new JdbcDataSource();
+            replica.setURL("jdbc:h2:mem:shardReplica" + i + ";DB_CLOSE_DELAY=-1");
+            DataSourceBridgeTable replicaTable = new DataSourceBridgeTable(replica);
+            replicaTable.init("testTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", true);
+            replicaTable.destroy();
+
+            JdbcDataSource primary = new JdbcDataSource();
+            primary.setURL("jdbc:h2:mem:shardPrimary" + i + ";DB_CLOSE_DELAY=-1");
+            DataSourceBridgeTable shard = new DataSourceBridgeTable(primary);
+            shard.setReadDataSources(Collections.<DataSource>singletonList(replica));
+            shard.setReadAfterWriteWindow(60000);
+            replicated.add(shard);
+        }
+        ShardedBridgeTable sharded = new ShardedBridgeTable(replicated);
+        sharded.init("testTable", KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2", true);
+        try
+        {
+            // The caller reads what it wrote on the shard threads from the primaries
+            Map<Object, Object> pairs = new LinkedHashMap<Object, Object>();
+            for(int i=0; i < 10; i++)
+            {
+                pairs.put("k" + i, Long.valueOf(i));
+            }
+            assertTrue(sharded.insertAll(pairs).isEmpty());
+            for(int i=0; i < 10; i++)
+            {
+                assertTrue(sharded.containsKey1("k" + i));
+            }
+            assertEquals(10, sharded.keys1().size());
+
+            // And so does a pool thread it hands the table over to
+            ExecutorService executor = ExecutorAsyncBridgeTable.newExecutor("testTable", 1, 10);
+            try
+            {
+                AsyncBridgeTable async = new ExecutorAsyncBridgeTable(sharded, executor);
+                assertEquals(10, async.keys1().get().size());
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+        }
+        finally
+        {
+            sharded.destroy();
+        }
+    }
+}
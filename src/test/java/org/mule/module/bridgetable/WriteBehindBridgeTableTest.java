@@ -0,0 +1,343 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindBridgeTableTest
+{
+    private BridgeTable delegate;
+    private WriteBehindBridgeTable table;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        delegate = new ConcurrentBridgeTable();
+        table = new WriteBehindBridgeTable(delegate);
+        // Only flushed explicitly by the tests
+        table.setFlushInterval(3600000);
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception
+    {
+        table.insert("a", "A");
+        table.insert("b", "B");
+        assertFalse(delegate.containsKey1("a"));
+        assertEquals("A", table.retrieveByKey1("a"));
+        assertEquals("b", table.retrieveByKey2("B"));
+
+        table.updateByKey1("a", "X");
+        assertEquals("a", table.retrieveByKey2("X"));
+        assertFalse(table.containsKey2("A"));
+
+        table.removeByKey2("B");
+        assertFalse(table.containsKey1("b"));
+        try
+        {
+            table.insert("c", "X");
+            fail("Expected KeyAlreadyExistsException");
+        }
+        catch(KeyAlreadyExistsException ex)
+        {
+            // Expected
+        }
+
+        table.flush();
+        assertEquals("X", delegate.retrieveByKey1("a"));
+        assertFalse(delegate.containsKey1("b"));
+        assertEquals(1, delegate.keys1().size());
+        assertEquals("X", table.retrieveByKey1("a"));
+    }
+
+    @Test
+    public void testCoalescedWrites() throws Exception
+    {
+        table.insert("a", "A");
+        table.flush();
+        for(int i=0; i < 100; i++)
+        {
+            table.updateByKey1("a", "A" + (i % 2));
+        }
+        table.flush();
+
+        assertEquals("A1", delegate.retrieveByKey1("a"));
+        assertEquals(1, delegate.keys2().size());
+        Map<String, Object> statistics = table.getStatistics();
+        assertEquals(Long.valueOf(2), statistics.get("writeBehindFlushCount"));
+        // a and A1, plus the removals of A and A0
+        assertEquals(Long.valueOf(4), statistics.get("maxFlushBatchSize"));
+        assertEquals(Integer.valueOf(0), statistics.get("pendingKeys"));
+    }
+
+    @Test
+    public void testFlushedOnDestroy() throws Exception
+    {
+        // Keeps its mappings when destroyed, so they can be checked
+        delegate = new ConcurrentBridgeTable()
+        {
+            @Override
+            public void destroy()
+            {
+            }
+        };
+        table = new WriteBehindBridgeTable(delegate);
+        table.setFlushInterval(3600000);
+        table.setBatchSize(7);
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+
+        Random random = new Random(1);
+        Map<String, String> expected = new HashMap<String, String>();
+        for(int i=0; i < 1000; i++)
+        {
+            String key1 = "k" + random.nextInt(50);
+            String key2 = "v" + random.nextInt(100);
+            if(random.nextInt(4) == 0)
+            {
+                if(expected.remove(key1) != null)
+                {
+                    table.removeByKey1(key1);
+                }
+            }
+            else if(!expected.containsValue(key2))
+            {
+                table.upsertByKey1(key1, key2);
+                expected.put(key1, key2);
+            }
+        }
+
+        table.destroy();
+        assertEquals(expected.size(), delegate.keys1().size());
+        for(Map.Entry<String, String> entry : expected.entrySet())
+        {
+            assertEquals(entry.getValue(), delegate.retrieveByKey1(entry.getKey()));
+            assertEquals(entry.getKey(), delegate.retrieveByKey2(entry.getValue()));
+        }
+        assertTrue(((Long) table.getStatistics().get("writeBehindFlushCount")).longValue() > 1);
+    }
+
+    @Test
+    public void testFailedFlushKeepsRows() throws Exception
+    {
+        final AtomicBoolean failing = new AtomicBoolean();
+        delegate = new ConcurrentBridgeTable()
+        {
+            @Override
+            public void insert(Object key1, Object key2) throws BridgeTableException
+            {
+                if(failing.get() && "B".equals(key2))
+                {
+                    throw new BridgeTableException("Simulated failure");
+                }
+                super.insert(key1, key2);
+            }
+        };
+        table = new WriteBehindBridgeTable(delegate);
+        table.setFlushInterval(3600000);
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+        table.insert("a", "A");
+        table.flush();
+
+        // The row of a is freed and its new mapping written in the same batch, which fails
+        table.updateByKey1("a", "B");
+        failing.set(true);
+        try
+        {
+            table.flush();
+            fail("Expected BridgeTableException");
+        }
+        catch(BridgeTableException ex)
+        {
+            // Simulated failure
+        }
+        assertEquals("A", delegate.retrieveByKey1("a"));
+        assertEquals("B", table.retrieveByKey1("a"));
+        assertEquals(Long.valueOf(1), table.getStatistics().get("flushFailures"));
+
+        failing.set(false);
+        table.flush();
+        assertEquals("B", delegate.retrieveByKey1("a"));
+        assertFalse(delegate.containsKey2("A"));
+    }
+
+    @Test
+    public void testNullKeys() throws Exception
+    {
+        table.insert(null, "x");
+        table.insert("a", null);
+        assertEquals("x", table.retrieveByKey1(null));
+        assertEquals(null, table.retrieveByKey2("x"));
+        assertTrue(table.containsKey2(null));
+
+        table.updateByKey1(null, "y");
+        table.updateByKey2(null, "b");
+        assertEquals(null, table.retrieveByKey2("y"));
+        assertEquals("b", table.retrieveByKey2(null));
+        assertFalse(table.containsKey2("x"));
+        table.flush();
+
+        assertEquals("y", delegate.retrieveByKey1(null));
+        assertEquals(null, delegate.retrieveByKey1("b"));
+        assertFalse(delegate.containsKey1("a"));
+
+        table.removeByKey2(null);
+        table.removeByKey1(null);
+        assertFalse(table.containsKey1(null));
+        table.flush();
+        assertEquals(0, delegate.keys1().size());
+    }
+
+    @Test
+    public void testRejectedMappingIsDropped() throws Exception
+    {
+        delegate = new ConcurrentBridgeTable()
+        {
+            @Override
+            public void insert(Object key1, Object key2) throws BridgeTableException
+            {
+                if("bad".equals(key1))
+                {
+                    throw new BridgeTableException("Value too long");
+                }
+                super.insert(key1, key2);
+            }
+        };
+        table = new WriteBehindBridgeTable(delegate);
+        table.setFlushInterval(3600000);
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+        table.insert("a", "A");
+        table.flush();
+
+        // The batch fails as a whole, the other mappings are still applied
+        table.updateByKey1("a", "B");
+        table.insert("bad", "A");
+        table.insert("c", "C");
+        table.flush();
+
+        assertEquals("B", delegate.retrieveByKey1("a"));
+        assertEquals("c", delegate.retrieveByKey2("C"));
+        assertFalse(delegate.containsKey1("bad"));
+        assertFalse(table.containsKey1("bad"));
+        assertFalse(delegate.containsKey2("A"));
+        Map<String, Object> statistics = table.getStatistics();
+        assertEquals(Integer.valueOf(0), statistics.get("pendingKeys"));
+        assertEquals(Long.valueOf(1), statistics.get("flushFailures"));
+        assertEquals(Long.valueOf(1), statistics.get("flushRejected"));
+    }
+
+    @Test
+    public void testWaitForRoomTimesOut() throws Exception
+    {
+        delegate = new ConcurrentBridgeTable()
+        {
+            @Override
+            public void executeBatch(java.util.List<BridgeTableOperation> operations) throws BridgeTableException
+            {
+                throw new BridgeTableException("Unavailable");
+            }
+        };
+        table = new WriteBehindBridgeTable(delegate);
+        table.setFlushInterval(3600000);
+        table.setMaxPending(2);
+        table.setMaxWait(200);
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+        table.insert("a", "A");
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            table.insert("b", "B");
+            fail("Expected BridgeTableException");
+        }
+        catch(BridgeTableException ex)
+        {
+            // Nothing can be applied, so there is never room
+        }
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        // Staged writes are kept while the underlying table is unavailable
+        assertEquals("A", table.retrieveByKey1("a"));
+        assertFalse(table.containsKey1("b"));
+    }
+
+    @Test
+    public void testSlowLookupDoesNotBlockWriters() throws Exception
+    {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        delegate = new ConcurrentBridgeTable()
+        {
+            @Override
+            public Object retrieveByKey1OrDefault(Object key1, Object defaultValue) throws BridgeTableException
+            {
+                if("slow".equals(key1))
+                {
+                    reading.countDown();
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch(InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.retrieveByKey1OrDefault(key1, defaultValue);
+            }
+        };
+        table = new WriteBehindBridgeTable(delegate);
+        table.setFlushInterval(3600000);
+        table.init("testTable", KeyType.STRING, KeyType.STRING, "key1", "key2", false);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<?> slow = executor.submit(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    table.insert("slow", "S");
+                    return null;
+                }
+            });
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+            // Staged while the other writer waits for the underlying table
+            table.insert("fast", "F");
+            assertEquals("F", table.retrieveByKey1("fast"));
+            release.countDown();
+            slow.get();
+        }
+        finally
+        {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertEquals("S", table.retrieveByKey1("slow"));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.module.bridgetable.dialect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.module.bridgetable.KeyType;
+import org.mule.module.bridgetable.SchemaLayout;
+
+public class MySQLDialectTest
+{
+    private MySQLDialect dialect;
+
+    @Before
+    public void setUp()
+    {
+        dialect = new MySQLDialect();
+        dialect.setKeys(KeyType.STRING, KeyType.LONG_NUMBER, "key1", "key2");
+    }
+
+    @Test
+    public void testCompactLayout()
+    {
+        dialect.setSchemaLayout(SchemaLayout.COMPACT);
+        assertEquals("CREATE TABLE IF NOT EXISTS bridge (key1 VARCHAR(255) NOT NULL, key2 BIGINT NOT NULL, creation_date TIMESTAMP default now(), "
+                     + "PRIMARY KEY (key1), UNIQUE INDEX key2 (key2))", dialect.getCreateTableSQL("bridge"));
+
+        dialect.setSchemaLayout(SchemaLayout.COMPACT_ORDERED);
+        assertTrue(dialect.getCreateTableSQL("bridge").endsWith("UNIQUE INDEX key2 (key2), INDEX creation_date_index (creation_date))"));
+    }
+
+    @Test
+    public void testMigrateStandardTable()
+    {
+        // As reported by the driver for a table created with the STANDARD layout
+        Map<String, List<String>> indexes = new LinkedHashMap<String, List<String>>();
+        indexes.put("PRIMARY", Arrays.asList("key1", "key2"));
+        indexes.put("key1", Arrays.asList("key1"));
+        indexes.put("key2", Arrays.asList("key2"));
+        indexes.put("key1_index", Arrays.asList("key1"));
+        indexes.put("key2_index", Arrays.asList("key2"));
+        assertTrue(dialect.getSchemaMigrationSQL("bridge", indexes).isEmpty());
+
+        dialect.setSchemaLayout(SchemaLayout.COMPACT_ORDERED);
+        List<String> migration = dialect.getSchemaMigrationSQL("bridge", indexes);
+        assertEquals(1, migration.size());
+        String sql = migration.get(0);
+        assertTrue(sql, sql.startsWith("ALTER TABLE bridge "));
+        for(String change : new String[] {"DROP PRIMARY KEY", "DROP INDEX key1", "DROP INDEX key1_index", "DROP INDEX key2_index",
+                                          "ADD PRIMARY KEY (key1)", "ADD INDEX creation_date_index (creation_date)"})
+        {
+            assertTrue(sql, Arrays.asList(sql.substring("ALTER TABLE bridge ".length()).split(", (?=[A-Z])")).contains(change));
+        }
+        assertEquals(6, sql.split(", (?=[A-Z])").length);
+
+        // Once migrated
+        indexes.remove("key1");
+        indexes.remove("key1_index");
+        indexes.remove("key2_index");
+        indexes.put("PRIMARY", Arrays.asList("KEY1"));
+        indexes.put("creation_date_index", Arrays.asList("creation_date"));
+        assertTrue(dialect.getSchemaMigrationSQL("bridge", indexes).isEmpty());
+    }
+}